@@ -1,10 +1,20 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import net.floodlightcontroller.packet.Ethernet;
 
+import edu.wisc.cs.sdn.vnet.jfr.PacketReceived;
+import edu.wisc.cs.sdn.vnet.log.Logger;
+import edu.wisc.cs.sdn.vnet.metrics.MetricsRegistry;
+import edu.wisc.cs.sdn.vnet.trace.Tracer;
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
 
 /**
@@ -12,12 +22,18 @@ import edu.wisc.cs.sdn.vnet.vns.VNSComm;
  */
 public abstract class Device 
 {
+	private static final Logger LOG = Logger.getLogger(Device.class);
+	
 	/** Hostname for the device */
 	private String host;
 	
 	/** List of the device's interfaces; maps interface name's to interfaces */
 	protected Map<String,Iface> interfaces;
 	
+	/** Interfaces bundled into link aggregation groups, which take their
+	 *  place in the list of interfaces; maps interface names to interfaces */
+	private Map<String,Iface> members;
+	
 	/** PCAP dump file for logging all packets sent/received by the device;
 	 *  null if packets should not be logged */
 	private DumpFile logfile;
@@ -25,6 +41,12 @@ public abstract class Device
 	/** Virtual Network Simulator communication manager for the device */
 	private VNSComm vnsComm;
 	
+	/** Counters, gauges, and histograms for the device */
+	protected MetricsRegistry metrics;
+	
+	/** Per-stage timing of sampled packets; disabled by default */
+	protected Tracer tracer;
+	
 	/**
 	 * Creates a device.
 	 * @param host hostname for the device
@@ -35,7 +57,10 @@ public abstract class Device
 		this.host = host;
 		this.logfile = logfile;
 		this.interfaces = new HashMap<String,Iface>();
+		this.members = new HashMap<String,Iface>();
 		this.vnsComm = null;
+		this.metrics = new MetricsRegistry();
+		this.tracer = new Tracer(this.metrics);
 	}
 	
 	/**
@@ -65,6 +90,18 @@ public abstract class Device
 	public Map<String,Iface> getInterfaces()
 	{ return this.interfaces; }
 	
+	/**
+	 * @return counters, gauges, and histograms for the device
+	 */
+	public MetricsRegistry getMetrics()
+	{ return this.metrics; }
+	
+	/**
+	 * @return per-stage timing of sampled packets
+	 */
+	public Tracer getTracer()
+	{ return this.tracer; }
+	
 	/**
 	 * @param vnsComm Virtual Network System communication manager for the router
 	 */
@@ -88,17 +125,177 @@ public abstract class Device
 	{
 		Iface iface = new Iface(ifaceName);
 		this.interfaces.put(ifaceName, iface);
+		this.registerCounters(iface);
 		return iface;
 	}
 	
+	private void registerCounters(Iface iface)
+	{
+		String prefix = "iface."+iface.getName()+".";
+		this.metrics.register(prefix+"rx_packets", iface.getRxPackets());
+		this.metrics.register(prefix+"rx_bytes", iface.getRxBytes());
+		this.metrics.register(prefix+"tx_packets", iface.getTxPackets());
+		this.metrics.register(prefix+"tx_bytes", iface.getTxBytes());
+	}
+	
+	/**
+	 * Bundle interfaces into a link aggregation group. The group replaces its
+	 * members in the list of interfaces, and packets received on any member
+	 * are handed to the device as received on the group.
+	 * @param groupName name of the group
+	 * @param memberNames names of the interfaces to bundle
+	 * @return the group; null if an interface does not exist, already
+	 *         belongs to a group, or the name is taken
+	 */
+	public LinkGroup addLinkGroup(String groupName, List<String> memberNames)
+	{
+		if (this.interfaces.containsKey(groupName)
+				|| this.members.containsKey(groupName))
+		{
+			LOG.error("Interface "+groupName+" already exists");
+			return null;
+		}
+		if (memberNames.isEmpty())
+		{
+			LOG.error("Link group "+groupName+" has no members");
+			return null;
+		}
+		Iface[] members = new Iface[memberNames.size()];
+		for (int i = 0; i < members.length; i++)
+		{
+			members[i] = this.interfaces.get(memberNames.get(i));
+			if (null == members[i] || members[i] instanceof LinkGroup)
+			{
+				LOG.error("Cannot add "+memberNames.get(i)+" to link group "
+						+ groupName);
+				return null;
+			}
+		}
+		
+		LinkGroup group = new LinkGroup(groupName, members);
+		for (Iface member : members)
+		{
+			this.interfaces.remove(member.getName());
+			this.members.put(member.getName(), member);
+		}
+		this.interfaces.put(groupName, group);
+		this.registerCounters(group);
+		this.interfacesChanged();
+		return group;
+	}
+	
+	/**
+	 * Read link aggregation groups from a file, one per line: the group's
+	 * name followed by the names of its members, e.g., "bond1 eth1 eth2".
+	 * Blank lines and lines starting with # are ignored.
+	 * @param filename name of the file
+	 * @return true if every group was added, otherwise false
+	 */
+	public boolean loadLinkGroups(String filename)
+	{
+		int lineNumber = 0;
+		try (BufferedReader reader = new BufferedReader(
+				new FileReader(filename)))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+				{ continue; }
+				
+				List<String> fields = Arrays.asList(line.split("\\s+"));
+				if (fields.size() < 3)
+				{
+					LOG.error(filename+":"+lineNumber+": invalid entry");
+					return false;
+				}
+				if (null == this.addLinkGroup(fields.get(0),
+						new ArrayList<String>(fields.subList(1, fields.size()))))
+				{ return false; }
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.error(e.toString());
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Read interface MTUs from a file, one per line: the interface's name
+	 * followed by its MTU in bytes, e.g., "eth1 1400". Interfaces not listed
+	 * keep {@link Iface#DEFAULT_MTU}. Blank lines and lines starting with #
+	 * are ignored.
+	 * @param filename name of the file
+	 * @return true if every MTU was set, otherwise false
+	 */
+	public boolean loadMtus(String filename)
+	{
+		int lineNumber = 0;
+		try (BufferedReader reader = new BufferedReader(
+				new FileReader(filename)))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+				{ continue; }
+				
+				String[] fields = line.split("\\s+");
+				int mtu = -1;
+				try
+				{ mtu = (fields.length == 2) ? Integer.parseInt(fields[1]) : -1; }
+				catch (NumberFormatException e)
+				{ }
+				if (mtu < Iface.MIN_MTU || mtu > 65535)
+				{
+					LOG.error(filename+":"+lineNumber+": invalid entry");
+					return false;
+				}
+				Iface iface = this.getInterface(fields[0]);
+				if (null == iface)
+				{
+					LOG.error(filename+":"+lineNumber+": no interface "
+							+ fields[0]);
+					return false;
+				}
+				iface.setMtu(mtu);
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.error(e.toString());
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Called once the device's interfaces have been added and configured, and
+	 * again whenever their configuration changes.
+	 */
+	public void interfacesChanged()
+	{ }
+	
 	/**
 	 * Gets an interface on the device by the interface's name.
-	 * @param ifaceName name of the desired interface
+	 * @param ifaceName name of the desired interface, which may be a member
+	 *        of a link aggregation group
 	 * @return requested interface; null if no interface with the given name 
 	 * 		   exists
 	 */
 	public Iface getInterface(String ifaceName)
-	{ return this.interfaces.get(ifaceName); }
+	{
+		Iface iface = this.interfaces.get(ifaceName);
+		if (null == iface)
+		{ iface = this.members.get(ifaceName); }
+		return iface;
+	}
 	
 	/**
 	 * Send an Ethernet packet out a specific interface.
@@ -108,7 +305,135 @@ public abstract class Device
 	 * @return true if the packet was sent successfully, otherwise false
 	 */
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
-	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
+	{
+		// Packets sent on a group, or a member of one, go out the member the
+		// flow hashes to
+		if (iface.getGroup() != null)
+		{ iface = iface.getGroup(); }
+		Iface outIface = iface;
+		if (iface instanceof LinkGroup)
+		{ outIface = ((LinkGroup)iface).selectMember(etherPacket); }
+		if (null == outIface || !outIface.isUp())
+		{ return false; }
+		
+		if (!this.vnsComm.sendPacket(etherPacket, outIface.getName()))
+		{ return false; }
+		int length = etherPacket.serializedLength();
+		outIface.getTxPackets().increment();
+		outIface.getTxBytes().add(length);
+		if (outIface != iface)
+		{
+			iface.getTxPackets().increment();
+			iface.getTxBytes().add(length);
+		}
+		return true;
+	}
+	
+	/**
+	 * Send copies of an Ethernet packet out several interfaces. The packet is
+	 * serialized only once, and the copies are sent together.
+	 * @param etherPacket an Ethernet packet with all fields, encapsulated
+	 * 		  headers, and payloads completed
+	 * @param ifaces interfaces on which to send the packet
+	 * @return true if the packets were sent successfully, otherwise false
+	 */
+	public boolean sendPacket(Ethernet etherPacket, Iface[] ifaces)
+	{
+		Iface[] outIfaces = ifaces;
+		for (Iface iface : ifaces)
+		{
+			if (iface instanceof LinkGroup || !iface.isUp())
+			{
+				outIfaces = this.selectMembers(etherPacket, ifaces);
+				break;
+			}
+		}
+		if (outIfaces.length > 0
+				&& !this.vnsComm.sendPacket(etherPacket, outIfaces))
+		{ return false; }
+		int length = etherPacket.serializedLength();
+		for (Iface iface : outIfaces)
+		{
+			iface.getTxPackets().increment();
+			iface.getTxBytes().add(length);
+		}
+		if (outIfaces != ifaces)
+		{
+			for (Iface iface : ifaces)
+			{
+				if (iface instanceof LinkGroup && iface.isUp())
+				{
+					iface.getTxPackets().increment();
+					iface.getTxBytes().add(length);
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the interfaces a packet is actually sent on: the member each
+	 *         group's flow hashes to in place of the group, without
+	 *         interfaces that are down
+	 */
+	private Iface[] selectMembers(Ethernet etherPacket, Iface[] ifaces)
+	{
+		List<Iface> outIfaces = new ArrayList<Iface>(ifaces.length);
+		for (Iface iface : ifaces)
+		{
+			Iface outIface = iface;
+			if (iface instanceof LinkGroup)
+			{ outIface = ((LinkGroup)iface).selectMember(etherPacket); }
+			if (outIface != null && outIface.isUp())
+			{ outIfaces.add(outIface); }
+		}
+		return outIfaces.toArray(new Iface[outIfaces.size()]);
+	}
+	
+	/**
+	 * Count an Ethernet packet received on a specific interface and hand it
+	 * to the device.
+	 * @param etherPacket the Ethernet packet that was received
+	 * @param inIface the interface on which the packet was received
+	 */
+	public void receivePacket(Ethernet etherPacket, Iface inIface)
+	{
+		this.tracer.begin();
+		PacketReceived event = new PacketReceived();
+		event.begin();
+		if (inIface != null)
+		{
+			if (!inIface.isUp())
+			{
+				this.tracer.cancel();
+				return;
+			}
+			inIface.getRxPackets().increment();
+			inIface.getRxBytes().add(etherPacket.serializedLength());
+			
+			// Packets received on a member are received on its group
+			LinkGroup group = inIface.getGroup();
+			if (group != null)
+			{
+				group.getRxPackets().increment();
+				group.getRxBytes().add(etherPacket.serializedLength());
+				inIface = group;
+			}
+		}
+		// A handler that throws must not leave the tracer waiting forever
+		try
+		{ this.handlePacket(etherPacket, inIface); }
+		finally
+		{ this.tracer.end(); }
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.device = this.host;
+			event.iface = (null == inIface) ? null : inIface.getName();
+			event.length = etherPacket.serializedLength();
+			event.commit();
+		}
+	}
 	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
@@ -3,22 +3,52 @@ package edu.wisc.cs.sdn.vnet;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
+import edu.wisc.cs.sdn.vnet.metrics.Counter;
+
 /**
  * An interface on a router.
  * @author Aaron Gember-Jacobson
  */
 public class Iface 
 {
+	/** MTU of interfaces that are not configured otherwise */
+	public static final int DEFAULT_MTU = 1500;
+	
+	/** Smallest MTU an IPv4 interface may have (RFC 791) */
+	public static final int MIN_MTU = 68;
+	
 	private String name;
 	private MACAddress macAddress;
 	private int ipAddress;
     private int subnetMask;
 	
+	/** Largest IP packet (in bytes) that may be sent on the interface */
+	private int mtu;
+
+	/** Packets and bytes received and sent on the interface */
+	private Counter rxPackets;
+	private Counter rxBytes;
+	private Counter txPackets;
+	private Counter txBytes;
+	
+	/** False if the interface's link is down, in which case packets are
+	 *  neither sent nor received on it */
+	private volatile boolean up;
+	
+	/** Link aggregation group the interface belongs to; null if none */
+	private volatile LinkGroup group;
+	
 	public Iface(String name)
 	{
 		this.name = name;
 		this.macAddress = null;
 		this.ipAddress = 0;
+		this.up = true;
+		this.mtu = DEFAULT_MTU;
+		this.rxPackets = new Counter();
+		this.rxBytes = new Counter();
+		this.txPackets = new Counter();
+		this.txBytes = new Counter();
 	}
 	
 	public String getName()
@@ -42,6 +72,56 @@ public class Iface
 	public int getSubnetMask()
 	{ return this.subnetMask; }
 
+	/**
+	 * @return largest IP packet (in bytes) that may be sent on the interface
+	 */
+	public int getMtu()
+	{ return this.mtu; }
+	
+	public void setMtu(int mtu)
+	{ this.mtu = mtu; }
+
+	public Counter getRxPackets()
+	{ return this.rxPackets; }
+
+	public Counter getRxBytes()
+	{ return this.rxBytes; }
+
+	public Counter getTxPackets()
+	{ return this.txPackets; }
+
+	public Counter getTxBytes()
+	{ return this.txBytes; }
+	
+	/**
+	 * @return true if the interface's link is up
+	 */
+	public boolean isUp()
+	{ return this.up; }
+	
+	/**
+	 * Mark the interface's link up or down. If the interface belongs to a
+	 * link aggregation group, the group's flows move to or from it.
+	 * @param up true if the link is up
+	 */
+	public void setUp(boolean up)
+	{
+		this.up = up;
+		LinkGroup group = this.group;
+		if (group != null)
+		{ group.membersChanged(); }
+	}
+	
+	/**
+	 * @return the link aggregation group the interface belongs to; null if
+	 *         it does not belong to one
+	 */
+	public LinkGroup getGroup()
+	{ return this.group; }
+	
+	void setGroup(LinkGroup group)
+	{ this.group = group; }
+
 	public String toString()
 	{
 		if ((null == this.macAddress) || (0 == this.ipAddress)
@@ -0,0 +1,143 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+/**
+ * A link aggregation group: several interfaces bundled into one logical
+ * interface. The MAC table, route table, and spanning tree refer to the
+ * group, not its members. Each packet sent on the group goes out one member,
+ * chosen by the hash of the packet's flow, so the packets of a flow stay in
+ * order while different flows share the members' bandwidth.
+ * <p>
+ * Flows are hashed into a fixed number of buckets, each assigned to a
+ * member whose link is up. When a member goes down only its buckets move to
+ * the other members; when a member comes up the buckets are spread evenly
+ * again. The group takes the MAC and IP addresses of its first member.
+ */
+public class LinkGroup extends Iface
+{
+	/** Buckets flows are hashed into; a power of 2 */
+	private static final int BUCKETS = 256;
+	
+	private final Iface[] members;
+	
+	/** Member each bucket of flows is sent on; empty if every member is
+	 *  down */
+	private volatile Iface[] buckets;
+	
+	/**
+	 * Bundle interfaces into a group.
+	 * @param name name of the group
+	 * @param members the interfaces; there must be at least one, and none
+	 *        may belong to another group
+	 */
+	public LinkGroup(String name, Iface[] members)
+	{
+		super(name);
+		this.members = members.clone();
+		this.setMacAddress(members[0].getMacAddress());
+		this.setIpAddress(members[0].getIpAddress());
+		this.setSubnetMask(members[0].getSubnetMask());
+		this.buckets = new Iface[0];
+		for (Iface member : this.members)
+		{ member.setGroup(this); }
+		this.membersChanged();
+	}
+	
+	/**
+	 * @return the interfaces in the group
+	 */
+	public Iface[] getMembers()
+	{ return this.members.clone(); }
+	
+	/**
+	 * @return true if at least one member's link is up
+	 */
+	@Override
+	public boolean isUp()
+	{ return (this.buckets.length > 0); }
+	
+	/**
+	 * Mark every member's link up or down.
+	 * @param up true if the links are up
+	 */
+	@Override
+	public void setUp(boolean up)
+	{
+		for (Iface member : this.members)
+		{ member.setUp(up); }
+	}
+	
+	/**
+	 * @param etherPacket a packet to send on the group
+	 * @return the member to send the packet on; null if every member is down
+	 */
+	public Iface selectMember(Ethernet etherPacket)
+	{
+		Iface[] buckets = this.buckets;
+		if (0 == buckets.length)
+		{ return null; }
+		return buckets[etherPacket.flowHash() & (BUCKETS - 1)];
+	}
+	
+	/**
+	 * Reassign buckets after a member's link goes up or down.
+	 */
+	synchronized void membersChanged()
+	{
+		List<Iface> up = new ArrayList<Iface>(this.members.length);
+		for (Iface member : this.members)
+		{
+			if (member.isUp())
+			{ up.add(member); }
+		}
+		if (up.isEmpty())
+		{
+			this.buckets = new Iface[0];
+			return;
+		}
+		
+		Iface[] old = this.buckets;
+		Set<Iface> assigned = new HashSet<Iface>();
+		for (Iface member : old)
+		{ assigned.add(member); }
+		Iface[] updated = new Iface[BUCKETS];
+		if (!assigned.containsAll(up))
+		{
+			// A member came up, so spread the buckets evenly
+			for (int i = 0; i < BUCKETS; i++)
+			{ updated[i] = up.get(i % up.size()); }
+		}
+		else
+		{
+			// Only move the buckets of members that went down
+			int next = 0;
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				if (old[i].isUp())
+				{ updated[i] = old[i]; }
+				else
+				{ updated[i] = up.get(next++ % up.size()); }
+			}
+		}
+		this.buckets = updated;
+	}
+	
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder(super.toString());
+		sb.append("\n\tmembers:");
+		for (Iface member : this.members)
+		{
+			sb.append(" ").append(member.getName());
+			if (!member.isUp())
+			{ sb.append(" (down)"); }
+		}
+		return sb.toString();
+	}
+}
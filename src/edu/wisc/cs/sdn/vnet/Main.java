@@ -1,8 +1,18 @@
 package edu.wisc.cs.sdn.vnet;
 
+import edu.wisc.cs.sdn.vnet.log.Level;
+import edu.wisc.cs.sdn.vnet.log.Logger;
+import edu.wisc.cs.sdn.vnet.rt.AccessLists;
+import edu.wisc.cs.sdn.vnet.rt.ConnectionTracker;
+import edu.wisc.cs.sdn.vnet.rt.Napt;
 import edu.wisc.cs.sdn.vnet.rt.RipProtocol;
 import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.rt.StateSnapshot;
+import edu.wisc.cs.sdn.vnet.stats.StatsServer;
+import edu.wisc.cs.sdn.vnet.sw.IgmpSnooping;
+import edu.wisc.cs.sdn.vnet.sw.StormControl;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
+import edu.wisc.cs.sdn.vnet.sw.VlanTable;
 import edu.wisc.cs.sdn.vnet.vns.Command;
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
 
@@ -10,6 +20,9 @@ public class Main
 {
 	private static final short DEFAULT_PORT = 8888;
 	private static final String DEFAULT_SERVER = "localhost";
+	private static final int DEFAULT_SNAPSHOT_INTERVAL = 30;
+	/** Time (in milliseconds) between checks for a changed ACL file */
+	private static final long ACL_CHECK_INTERVAL = 2000;
 	
 	public static void main(String[] args)
 	{
@@ -19,6 +32,20 @@ public class Main
 		String arpCacheFile = null;
 		String logfile = null;
 		short port = DEFAULT_PORT;
+		boolean asyncLog = true;
+		int httpPort = -1;
+		int traceRate = 0;
+		String snapshotFile = null;
+		int snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+		boolean stp = false;
+		String vlanFile = null;
+		String lagFile = null;
+		String stormFile = null;
+		boolean igmp = false;
+		String mtuFile = null;
+		String aclFile = null;
+		String natFile = null;
+		int maxConnections = 0;
 		VNSComm vnsComm = null;
 		Device dev = null;
 		
@@ -43,6 +70,38 @@ public class Main
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-loglevel"))
+			{ Logger.setLevel(Level.valueOf(args[++i].toUpperCase())); }
+			else if (arg.equals("-logsample"))
+			{ Logger.setSampleRate(Integer.parseInt(args[++i])); }
+			else if (arg.equals("-logsync"))
+			{ asyncLog = false; }
+			else if (arg.equals("-http"))
+			{ httpPort = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-trace"))
+			{ traceRate = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-snapshot"))
+			{ snapshotFile = args[++i]; }
+			else if (arg.equals("-snapshotinterval"))
+			{ snapshotInterval = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-stp"))
+			{ stp = true; }
+			else if (arg.equals("-vlans"))
+			{ vlanFile = args[++i]; }
+			else if (arg.equals("-lag"))
+			{ lagFile = args[++i]; }
+			else if (arg.equals("-storm"))
+			{ stormFile = args[++i]; }
+			else if (arg.equals("-igmp"))
+			{ igmp = true; }
+			else if (arg.equals("-mtu"))
+			{ mtuFile = args[++i]; }
+			else if (arg.equals("-acl"))
+			{ aclFile = args[++i]; }
+			else if (arg.equals("-nat"))
+			{ natFile = args[++i]; }
+			else if (arg.equals("-conntrack"))
+			{ maxConnections = Integer.parseInt(args[++i]); }
 		}
 		
 		if (null == host)
@@ -51,6 +110,10 @@ public class Main
 			return;
 		}
 		
+		// Keep log writes off the packet-processing thread
+		if (asyncLog)
+		{ Logger.useAsyncAppender(); }
+		
 		// Open PCAP dump file for logging packets sent/received by the router
 		DumpFile dump = null;
 		if (logfile != null)
@@ -75,6 +138,7 @@ public class Main
 			System.err.println("Device name must start with 's' or 'r'");
 			return;
 		}
+		dev.getTracer().setSampleRate(traceRate);
 		
 		// Connect to Virtual Network Simulator server and negotiate session
 		System.out.println(String.format("Connecting to server %s:%d", 
@@ -84,6 +148,40 @@ public class Main
 		{ System.exit(1); }
 		vnsComm.readFromServerExpect(Command.VNS_HW_INFO);	
 		
+		// Bundle interfaces before anything refers to them by name
+		if (lagFile != null && !dev.loadLinkGroups(lagFile))
+		{ System.exit(1); }
+		
+		// Set MTUs before any packets are sent
+		if (mtuFile != null && !dev.loadMtus(mtuFile))
+		{ System.exit(1); }
+		
+		// Assign interfaces to VLANs before any packets arrive
+		if (vlanFile != null && dev instanceof Switch)
+		{
+			VlanTable vlans = new VlanTable();
+			if (!vlans.load(vlanFile))
+			{ System.exit(1); }
+			((Switch)dev).setVlanTable(vlans);
+		}
+		
+		// Limit flooded traffic on each interface
+		if (stormFile != null && dev instanceof Switch)
+		{
+			StormControl stormControl = new StormControl();
+			if (!stormControl.load(stormFile))
+			{ System.exit(1); }
+			((Switch)dev).setStormControl(stormControl);
+		}
+		
+		// Send multicast only to group members and routers
+		if (igmp && dev instanceof Switch)
+		{ ((Switch)dev).setIgmpSnooping(new IgmpSnooping()); }
+		
+		// Run the spanning tree once the switch knows its interfaces
+		if (stp && dev instanceof Switch)
+		{ ((Switch)dev).startSpanningTree(); }
+		
 		if (dev instanceof Router) 
 		{
 			// Read static route table
@@ -92,11 +190,52 @@ public class Main
 		    else{ 
 		    	Runnable ripP = new RipProtocol(dev);
 		    	((Router) dev).setRipProtocl((RipProtocol)ripP);
+		    	// Forward with the routes we had before restarting while
+		    	// RIP reconverges
+		    	if (snapshotFile != null)
+		    	{ StateSnapshot.restore((Router)dev, snapshotFile); }
                 new Thread(ripP).start();
             }	
+			if (snapshotFile != null)
+			{
+				StateSnapshot.schedule((Router)dev, snapshotFile,
+						snapshotInterval * 1000L);
+			}
 			// Read static ACP cache
 			if (arpCacheFile != null)
 			{ ((Router)dev).loadArpCache(arpCacheFile); }
+			// Filter packets, reloading the lists whenever the file changes
+			if (aclFile != null)
+			{
+				AccessLists acls = AccessLists.load(aclFile);
+				if (null == acls)
+				{ System.exit(1); }
+				((Router)dev).setAccessLists(acls);
+				AccessLists.watch((Router)dev, aclFile, ACL_CHECK_INTERVAL);
+			}
+			// Translate packets leaving the outside interfaces
+			if (natFile != null)
+			{
+				Napt napt = new Napt();
+				if (!napt.load(natFile, dev))
+				{ System.exit(1); }
+				((Router)dev).setNapt(napt);
+			}
+			// Track TCP connections
+			if (maxConnections > 0)
+			{
+				((Router)dev).setConnectionTracker(
+						new ConnectionTracker(maxConnections));
+			}
+		}
+
+		// Serve tables and metrics to anyone who asks
+		StatsServer stats = null;
+		if (httpPort >= 0)
+		{
+			stats = new StatsServer(dev);
+			if (!stats.start(httpPort))
+			{ System.exit(1); }
 		}
 
 		// Read messages from the server until the server closes the connection
@@ -104,6 +243,8 @@ public class Main
 		while (vnsComm.readFromServer());
 		
 		// Shutdown the router
+		if (stats != null)
+		{ stats.stop(); }
 		dev.destroy();
 	}
 	
@@ -112,7 +253,46 @@ public class Main
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
 		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-loglevel error|warn|info|debug|trace]"
+				+ " [-logsample N] [-logsync]");
+		System.out.println("     [-http port] [-trace N]");
+		System.out.println("     [-snapshot file [-snapshotinterval seconds]] [-stp]");
+		System.out.println("     [-vlans vlan_file] [-lag lag_file]"
+				+ " [-storm storm_file] [-igmp]");
+		System.out.println("     [-mtu mtu_file] [-acl acl_file] [-nat nat_file]");
+		System.out.println("     [-conntrack max_connections]");
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
+		System.out.println("  -loglevel  least severe messages logged"
+				+ " (default info)");
+		System.out.println("  -logsample log only one in N per-packet messages");
+		System.out.println("  -logsync   write log messages on the calling"
+				+ " thread");
+		System.out.println("  -http      serve tables and metrics as JSON and"
+				+ " Prometheus text on port");
+		System.out.println("  -trace     time each processing stage of one in N"
+				+ " packets");
+		System.out.println(String.format("  -snapshot  save routing state to"
+				+ " file every %d seconds and at exit; restore it at start"
+				+ " when running RIP", DEFAULT_SNAPSHOT_INTERVAL));
+		System.out.println("  -stp       run the rapid spanning tree protocol"
+				+ " (switches)");
+		System.out.println("  -vlans     assign interfaces to VLANs (switches)");
+		System.out.println("  -lag       bundle interfaces into link aggregation"
+				+ " groups");
+		System.out.println("  -storm     limit broadcast, multicast, and unknown"
+				+ " unicast traffic per interface (switches)");
+		System.out.println("  -igmp      snoop IGMP to send multicast only to"
+				+ " group members (switches)");
+		System.out.println(String.format("  -mtu       set interface MTUs"
+				+ " (default %d); routers fragment larger packets",
+				Iface.DEFAULT_MTU));
+		System.out.println("  -acl       filter packets with access control"
+				+ " lists, reloaded when the file changes (routers)");
+		System.out.println("  -nat       translate addresses and ports of packets"
+				+ " leaving the listed interfaces (routers)");
+		System.out.println(String.format("  -conntrack track up to"
+				+ " max_connections TCP connections (routers; %d bytes each)",
+				ConnectionTracker.BYTES_PER_CONNECTION));
 	}
 }
@@ -0,0 +1,143 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Reads Ethernet frames from a PCAP file, such as one written by
+ * {@link DumpFile}. Files in either byte order, with microsecond or
+ * nanosecond timestamps, are accepted.
+ */
+public class PcapReader
+{
+	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
+	private static final int TCPDUMP_MAGIC_SWAPPED = 0xd4c3b2a1;
+	private static final int NSEC_MAGIC = 0xa1b23c4d;
+	private static final int NSEC_MAGIC_SWAPPED = 0x4d3cb2a1;
+	private static final int LINKTYPE_ETHERNET = 1;
+	private static final int MAX_FRAME_LEN = 256 * 1024;
+
+	private DataInputStream inStream;
+	private boolean swapped;
+	private boolean nanos;
+
+	/** Timestamp of the last frame read, in nanoseconds since the epoch */
+	private long timestamp;
+
+	/** Length of the last frame read, before it was truncated by the
+	 *  capture's snap length */
+	private int originalLength;
+
+	private PcapReader(FileInputStream fileStream)
+	{ this.inStream = new DataInputStream(new BufferedInputStream(fileStream)); }
+
+	/**
+	 * Open a PCAP file and read its header.
+	 * @param filename name of the file
+	 * @return a reader positioned at the first frame; null if the file cannot
+	 *         be opened or is not an Ethernet capture
+	 */
+	public static PcapReader open(String filename)
+	{
+		PcapReader reader;
+		try
+		{ reader = new PcapReader(new FileInputStream(filename)); }
+		catch (FileNotFoundException e)
+		{
+			System.err.println("Cannot open " + filename);
+			return null;
+		}
+
+		if (!reader.readHeader())
+		{
+			System.err.println(filename + " is not an Ethernet PCAP file");
+			reader.close();
+			return null;
+		}
+		return reader;
+	}
+
+	private int readInt() throws IOException
+	{
+		int value = this.inStream.readInt();
+		return this.swapped ? Integer.reverseBytes(value) : value;
+	}
+
+	private boolean readHeader()
+	{
+		try
+		{
+			int magic = this.inStream.readInt();
+			if (TCPDUMP_MAGIC_SWAPPED == magic || NSEC_MAGIC_SWAPPED == magic)
+			{ this.swapped = true; }
+			else if (magic != TCPDUMP_MAGIC && magic != NSEC_MAGIC)
+			{ return false; }
+			this.nanos = (NSEC_MAGIC == magic || NSEC_MAGIC_SWAPPED == magic);
+
+			// Skip version, time zone, and significant figures
+			this.inStream.skipBytes(12);
+			this.readInt(); // snap length
+			return (LINKTYPE_ETHERNET == this.readInt());
+		}
+		catch (IOException e)
+		{ return false; }
+	}
+
+	/**
+	 * Read the next frame.
+	 * @return the captured bytes of the frame; null at the end of the file or
+	 *         if the file is truncated or corrupt
+	 */
+	public byte[] readFrame()
+	{
+		try
+		{
+			long sec = this.readInt() & 0xffffffffL;
+			long frac = this.readInt() & 0xffffffffL;
+			int capLen = this.readInt();
+			this.originalLength = this.readInt();
+			if (capLen < 0 || capLen > MAX_FRAME_LEN)
+			{
+				System.err.println("Invalid frame length " + capLen);
+				return null;
+			}
+
+			byte[] frame = new byte[capLen];
+			this.inStream.readFully(frame);
+			this.timestamp = sec * 1000000000L
+					+ (this.nanos ? frac : frac * 1000);
+			return frame;
+		}
+		catch (EOFException e)
+		{ return null; }
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * @return timestamp of the last frame read, in nanoseconds since the
+	 *         epoch
+	 */
+	public long getTimestamp()
+	{ return this.timestamp; }
+
+	/**
+	 * @return length of the last frame read as it was on the wire, which may
+	 *         be more than the number of bytes captured
+	 */
+	public int getOriginalLength()
+	{ return this.originalLength; }
+
+	public void close()
+	{
+		try { this.inStream.close(); }
+		catch (IOException e) { }
+	}
+}
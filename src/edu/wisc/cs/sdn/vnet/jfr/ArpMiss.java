@@ -0,0 +1,27 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A router had a route for a packet but no MAC address for the next hop.
+ */
+@Name("vnet.ArpMiss")
+@Label("ARP Miss")
+@Description("A router found no ARP entry for a next hop")
+@Category({ "Virtual Network", "Routing" })
+@StackTrace(false)
+public class ArpMiss extends jdk.jfr.Event
+{
+	@Label("Device")
+	public String device;
+
+	@Label("Next Hop")
+	public String nextHop;
+
+	@Label("Out Interface")
+	public String iface;
+}
@@ -0,0 +1,32 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A switch sent a packet out every interface because it had not learned
+ * where the destination is.
+ */
+@Name("vnet.MacFlood")
+@Label("MAC Flood")
+@Description("A switch flooded a packet to an unknown destination")
+@Category({ "Virtual Network", "Switching" })
+@StackTrace(false)
+public class MacFlood extends jdk.jfr.Event
+{
+	@Label("Device")
+	public String device;
+
+	@Label("In Interface")
+	public String iface;
+
+	@Label("Destination")
+	public String destination;
+
+	@Label("Interfaces")
+	@Description("Number of interfaces the packet was sent out")
+	public int interfaces;
+}
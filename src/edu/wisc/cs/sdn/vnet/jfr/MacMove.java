@@ -0,0 +1,40 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A switch saw a MAC address on a different interface than the one it had
+ * learned, and either moved the entry or suppressed learning for the address
+ * because it moved too often.
+ */
+@Name("vnet.MacMove")
+@Label("MAC Move")
+@Description("A learned MAC address appeared on another interface")
+@Category({ "Virtual Network", "Switching" })
+@StackTrace(false)
+public class MacMove extends jdk.jfr.Event
+{
+	@Label("VLAN")
+	public int vlan;
+
+	@Label("MAC Address")
+	public String mac;
+
+	@Label("From Interface")
+	public String from;
+
+	@Label("To Interface")
+	public String to;
+
+	@Label("Moves")
+	@Description("Moves within the current window, including this one")
+	public int moves;
+
+	@Label("Suppressed")
+	@Description("Learning is suppressed for the address")
+	public boolean suppressed;
+}
@@ -0,0 +1,27 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A device discarded a packet.
+ */
+@Name("vnet.PacketDropped")
+@Label("Packet Dropped")
+@Description("A device discarded a packet")
+@Category({ "Virtual Network", "Packets" })
+@StackTrace(false)
+public class PacketDropped extends jdk.jfr.Event
+{
+	@Label("Device")
+	public String device;
+
+	@Label("Interface")
+	public String iface;
+
+	@Label("Reason")
+	public String reason;
+}
@@ -0,0 +1,36 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A router sent a packet toward its destination. Disabled by default,
+ * since it is recorded for every packet.
+ */
+@Name("vnet.PacketForwarded")
+@Label("Packet Forwarded")
+@Description("A router forwarded a packet")
+@Category({ "Virtual Network", "Packets" })
+@StackTrace(false)
+@Enabled(false)
+public class PacketForwarded extends jdk.jfr.Event
+{
+	@Label("Device")
+	public String device;
+
+	@Label("In Interface")
+	public String inIface;
+
+	@Label("Out Interface")
+	public String outIface;
+
+	@Label("Destination")
+	public String destination;
+
+	@Label("Flow Cache Hit")
+	public boolean cached;
+}
@@ -0,0 +1,33 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Spans a device's handling of one received packet. By default only
+ * packets whose handling took at least 1 ms are recorded, so the event can
+ * be left on to catch forwarding stalls.
+ */
+@Name("vnet.PacketReceived")
+@Label("Packet Received")
+@Description("A device handled a received packet")
+@Category({ "Virtual Network", "Packets" })
+@StackTrace(false)
+@Threshold("1 ms")
+public class PacketReceived extends jdk.jfr.Event
+{
+	@Label("Device")
+	public String device;
+
+	@Label("Interface")
+	public String iface;
+
+	@Label("Length")
+	@DataAmount
+	public int length;
+}
@@ -0,0 +1,38 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Spans a router's handling of a RIP request or response.
+ */
+@Name("vnet.RipUpdateReceived")
+@Label("RIP Update Received")
+@Description("A router handled a RIP request or response")
+@Category({ "Virtual Network", "Routing" })
+@StackTrace(false)
+public class RipUpdateReceived extends jdk.jfr.Event
+{
+	@Label("Device")
+	public String device;
+
+	@Label("Interface")
+	public String iface;
+
+	@Label("Source")
+	public String source;
+
+	@Label("Command")
+	@Description("request or response")
+	public String command;
+
+	@Label("Entries")
+	public int entries;
+
+	@Label("Route Updates")
+	@Description("Number of entries that changed the route table")
+	public int updates;
+}
@@ -0,0 +1,31 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A router sent a RIP request or response.
+ */
+@Name("vnet.RipUpdateSent")
+@Label("RIP Update Sent")
+@Description("A router sent a RIP request or response")
+@Category({ "Virtual Network", "Routing" })
+@StackTrace(false)
+public class RipUpdateSent extends jdk.jfr.Event
+{
+	@Label("Device")
+	public String device;
+
+	@Label("Interface")
+	public String iface;
+
+	@Label("Command")
+	@Description("request or response")
+	public String command;
+
+	@Label("Entries")
+	public int entries;
+}
@@ -0,0 +1,39 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * An entry was added to, removed from, or updated in a route table, or a
+ * table was loaded from a file.
+ */
+@Name("vnet.RouteTableChanged")
+@Label("Route Table Changed")
+@Description("A route table entry was inserted, removed, or updated")
+@Category({ "Virtual Network", "Routing" })
+@StackTrace(false)
+public class RouteTableChanged extends jdk.jfr.Event
+{
+	@Label("Operation")
+	@Description("insert, remove, update, or load")
+	public String operation;
+
+	@Label("Destination")
+	public String destination;
+
+	@Label("Mask")
+	public String mask;
+
+	@Label("Gateway")
+	public String gateway;
+
+	@Label("Interface")
+	public String iface;
+
+	@Label("Entries")
+	@Description("Number of entries in the table afterward")
+	public int entries;
+}
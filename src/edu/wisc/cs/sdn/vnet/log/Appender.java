@@ -0,0 +1,18 @@
+package edu.wisc.cs.sdn.vnet.log;
+
+/**
+ * A destination for log records.
+ */
+public interface Appender
+{
+	/**
+	 * Write a record. May be called from any thread.
+	 * @param record the record
+	 */
+	public void append(LogRecord record);
+
+	/**
+	 * Wait until every record appended so far has been written.
+	 */
+	public void flush();
+}
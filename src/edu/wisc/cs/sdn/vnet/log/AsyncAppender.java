@@ -0,0 +1,99 @@
+package edu.wisc.cs.sdn.vnet.log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands records to another appender on a background thread, so threads that
+ * log never wait on console or file I/O. When the queue is full, new records
+ * are dropped and counted rather than blocking the caller.
+ */
+public class AsyncAppender implements Appender, Runnable
+{
+	/** Default number of records that may be waiting to be written */
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	private final Appender target;
+	private final BlockingQueue<LogRecord> queue;
+	private final AtomicLong dropped;
+
+	/** Number of records queued or being written; counted before a record
+	 *  is queued and uncounted only once it has been written, so a flush
+	 *  never misses a record in flight */
+	private final AtomicInteger pending;
+
+	/**
+	 * Create an appender and start its background thread.
+	 * @param target appender that writes the records
+	 * @param capacity maximum number of records waiting to be written
+	 */
+	public AsyncAppender(Appender target, int capacity)
+	{
+		this.target = target;
+		this.queue = new ArrayBlockingQueue<LogRecord>(capacity);
+		this.dropped = new AtomicLong();
+		this.pending = new AtomicInteger();
+
+		Thread thread = new Thread(this, "log-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void append(LogRecord record)
+	{
+		this.pending.incrementAndGet();
+		if (!this.queue.offer(record))
+		{
+			this.pending.decrementAndGet();
+			this.dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return number of records dropped because the queue was full
+	 */
+	public long getDropped()
+	{ return this.dropped.get(); }
+
+	public void run()
+	{
+		long reported = 0;
+		while (true)
+		{
+			LogRecord record;
+			try
+			{ record = this.queue.take(); }
+			catch (InterruptedException e)
+			{ break; }
+
+			long dropped = this.dropped.get();
+			if (dropped != reported)
+			{
+				this.target.append(new LogRecord(Level.WARN,
+						AsyncAppender.class.getSimpleName(), String.format(
+						"Dropped %d log records", dropped - reported), null));
+				reported = dropped;
+			}
+			this.target.append(record);
+			this.pending.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Wait, for up to a second, until the queue is empty and the target has
+	 * been flushed.
+	 */
+	public void flush()
+	{
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+		while (this.pending.get() != 0 && System.nanoTime() < deadline)
+		{
+			try { Thread.sleep(1); }
+			catch (InterruptedException e) { break; }
+		}
+		this.target.flush();
+	}
+}
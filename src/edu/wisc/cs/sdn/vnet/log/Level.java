@@ -0,0 +1,13 @@
+package edu.wisc.cs.sdn.vnet.log;
+
+/**
+ * Severity of a log message, from most to least severe.
+ */
+public enum Level
+{
+	ERROR,
+	WARN,
+	INFO,
+	DEBUG,
+	TRACE
+}
@@ -0,0 +1,65 @@
+package edu.wisc.cs.sdn.vnet.log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * A message logged at a specific time and level. Records are formatted by
+ * the appender, so an asynchronous appender keeps formatting off the
+ * logging thread.
+ */
+public class LogRecord
+{
+	private final long time;
+	private final Level level;
+	private final String logger;
+	private final String message;
+	private final Throwable thrown;
+
+	public LogRecord(Level level, String logger, String message,
+			Throwable thrown)
+	{
+		this.time = System.currentTimeMillis();
+		this.level = level;
+		this.logger = logger;
+		this.message = message;
+		this.thrown = thrown;
+	}
+
+	public long getTime()
+	{ return this.time; }
+
+	public Level getLevel()
+	{ return this.level; }
+
+	public String getLogger()
+	{ return this.logger; }
+
+	public String getMessage()
+	{ return this.message; }
+
+	/**
+	 * @return exception logged with the message; null if none
+	 */
+	public Throwable getThrown()
+	{ return this.thrown; }
+
+	/**
+	 * @return the record as one or more lines of text, without a trailing
+	 *         newline
+	 */
+	public String format()
+	{
+		String line = String.format("%s %-5s %s: %s",
+				new SimpleDateFormat("HH:mm:ss.SSS").format(new Date(this.time)),
+				this.level, this.logger, this.message);
+		if (null == this.thrown)
+		{ return line; }
+
+		StringWriter trace = new StringWriter();
+		this.thrown.printStackTrace(new PrintWriter(trace));
+		return line + "\n" + trace.toString().trim();
+	}
+}
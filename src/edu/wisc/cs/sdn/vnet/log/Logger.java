@@ -0,0 +1,181 @@
+package edu.wisc.cs.sdn.vnet.log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * A named source of log messages. The level threshold, sampling rate, and
+ * appender are shared by all loggers.
+ * <p>
+ * Messages that are expensive to build, such as packet dumps, should be
+ * passed as a {@link Supplier}; it is only called if the message will
+ * actually be written. Per-packet messages should use {@link #sample}, which
+ * additionally writes only one in every N calls.
+ */
+public class Logger
+{
+	/** Loggers; maps names to loggers */
+	private static final ConcurrentMap<String,Logger> loggers =
+			new ConcurrentHashMap<String,Logger>();
+
+	/** Ordinal of the least severe level written */
+	private static volatile int threshold = Level.INFO.ordinal();
+
+	/** Write one in this many sampled messages */
+	private static volatile int sampleRate = 1;
+
+	private static volatile Appender appender = new StreamAppender();
+
+	private final String name;
+
+	/** Number of sampled messages seen; updated without synchronization, so
+	 *  sampling is approximate when several threads share a logger */
+	private int sampleCount;
+
+	private Logger(String name)
+	{ this.name = name; }
+
+	/**
+	 * @param cls the class doing the logging
+	 * @return the logger named after the class
+	 */
+	public static Logger getLogger(Class<?> cls)
+	{ return getLogger(cls.getSimpleName()); }
+
+	/**
+	 * @param name name of the logger
+	 * @return the logger with the name, created if it does not exist
+	 */
+	public static Logger getLogger(String name)
+	{
+		Logger logger = loggers.get(name);
+		if (null == logger)
+		{
+			Logger created = new Logger(name);
+			logger = loggers.putIfAbsent(name, created);
+			if (null == logger)
+			{ logger = created; }
+		}
+		return logger;
+	}
+
+	/**
+	 * @param level least severe level to write
+	 */
+	public static void setLevel(Level level)
+	{ threshold = level.ordinal(); }
+
+	/**
+	 * @return least severe level written
+	 */
+	public static Level getLevel()
+	{ return Level.values()[threshold]; }
+
+	/**
+	 * @param rate write one in this many sampled messages; 1 to write all
+	 */
+	public static void setSampleRate(int rate)
+	{ sampleRate = Math.max(1, rate); }
+
+	/**
+	 * @param newAppender destination for all log records
+	 */
+	public static void setAppender(Appender newAppender)
+	{ appender = newAppender; }
+
+	/**
+	 * Write records to the console from a background thread, and flush them
+	 * when the JVM exits.
+	 */
+	public static void useAsyncAppender()
+	{
+		final AsyncAppender async = new AsyncAppender(new StreamAppender(),
+				AsyncAppender.DEFAULT_CAPACITY);
+		appender = async;
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run()
+			{ async.flush(); }
+		});
+	}
+
+	/**
+	 * Wait until every record logged so far has been written.
+	 */
+	public static void flush()
+	{ appender.flush(); }
+
+	public String getName()
+	{ return this.name; }
+
+	/**
+	 * @param level a level
+	 * @return true if messages at the level are written, otherwise false
+	 */
+	public boolean isEnabled(Level level)
+	{ return level.ordinal() <= threshold; }
+
+	public void log(Level level, String message)
+	{
+		if (this.isEnabled(level))
+		{ appender.append(new LogRecord(level, this.name, message, null)); }
+	}
+
+	public void log(Level level, Supplier<String> message)
+	{
+		if (this.isEnabled(level))
+		{
+			appender.append(new LogRecord(level, this.name, message.get(),
+					null));
+		}
+	}
+
+	/**
+	 * Log a message about one of many similar events, e.g., a packet being
+	 * received, writing only one in every N such messages.
+	 * @param level level of the message
+	 * @param message supplies the message, if it will be written
+	 */
+	public void sample(Level level, Supplier<String> message)
+	{
+		if (!this.isEnabled(level))
+		{ return; }
+		if (++this.sampleCount < sampleRate)
+		{ return; }
+		this.sampleCount = 0;
+		appender.append(new LogRecord(level, this.name, message.get(), null));
+	}
+
+	public void error(String message)
+	{ this.log(Level.ERROR, message); }
+
+	public void error(String message, Throwable thrown)
+	{
+		if (this.isEnabled(Level.ERROR))
+		{
+			appender.append(new LogRecord(Level.ERROR, this.name, message,
+					thrown));
+		}
+	}
+
+	public void warn(String message)
+	{ this.log(Level.WARN, message); }
+
+	public void info(String message)
+	{ this.log(Level.INFO, message); }
+
+	public void info(Supplier<String> message)
+	{ this.log(Level.INFO, message); }
+
+	public void debug(String message)
+	{ this.log(Level.DEBUG, message); }
+
+	public void debug(Supplier<String> message)
+	{ this.log(Level.DEBUG, message); }
+
+	public void trace(String message)
+	{ this.log(Level.TRACE, message); }
+
+	public void trace(Supplier<String> message)
+	{ this.log(Level.TRACE, message); }
+}
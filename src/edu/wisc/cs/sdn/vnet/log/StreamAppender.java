@@ -0,0 +1,24 @@
+package edu.wisc.cs.sdn.vnet.log;
+
+/**
+ * Writes records synchronously to the console: warnings and errors to
+ * standard error, everything else to standard output. The streams are
+ * looked up on every write, so records follow System.setOut and
+ * System.setErr.
+ */
+public class StreamAppender implements Appender
+{
+	public void append(LogRecord record)
+	{
+		if (record.getLevel().compareTo(Level.WARN) <= 0)
+		{ System.err.println(record.format()); }
+		else
+		{ System.out.println(record.format()); }
+	}
+
+	public void flush()
+	{
+		System.out.flush();
+		System.err.flush();
+	}
+}
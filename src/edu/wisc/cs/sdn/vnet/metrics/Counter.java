@@ -0,0 +1,33 @@
+package edu.wisc.cs.sdn.vnet.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count. Increments from the packet thread never
+ * contend with readers, and readers never block the packet thread.
+ */
+public class Counter
+{
+	private final LongAdder count;
+
+	public Counter()
+	{ this.count = new LongAdder(); }
+
+	/**
+	 * Add one to the count.
+	 */
+	public void increment()
+	{ this.count.increment(); }
+
+	/**
+	 * @param n amount to add to the count
+	 */
+	public void add(long n)
+	{ this.count.add(n); }
+
+	/**
+	 * @return the current count
+	 */
+	public long get()
+	{ return this.count.sum(); }
+}
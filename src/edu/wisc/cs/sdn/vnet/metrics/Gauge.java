@@ -0,0 +1,12 @@
+package edu.wisc.cs.sdn.vnet.metrics;
+
+/**
+ * A value sampled when metrics are read, such as the size of a table.
+ */
+public interface Gauge
+{
+	/**
+	 * @return the current value; must be safe to call from any thread
+	 */
+	public long getValue();
+}
@@ -0,0 +1,161 @@
+package edu.wisc.cs.sdn.vnet.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values, such as latencies in nanoseconds,
+ * bucketed the way HdrHistogram does: each power of two is split into
+ * {@link #SUB_BUCKETS} linear sub-buckets, so every recorded value is
+ * counted to within about 3% of its true value while the whole range of a
+ * long fits in under 2000 buckets.
+ * <p>
+ * Recording is lock-free and never allocates. Snapshots may be taken from
+ * any thread while values are being recorded; a snapshot is not atomic, but
+ * every bucket in it is a count that really occurred.
+ */
+public class Histogram
+{
+	/** Number of linear sub-buckets per power of two; a power of two */
+	public static final int SUB_BUCKETS = 32;
+
+	private static final int SUB_BUCKET_BITS =
+			Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong max;
+
+	public Histogram()
+	{
+		this.counts = new AtomicLongArray(BUCKETS);
+		this.max = new AtomicLong();
+	}
+
+	private static int bucketIndex(long value)
+	{
+		if (value < SUB_BUCKETS)
+		{ return (int)value; }
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS
+				+ (int)((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * @return the largest value counted in a bucket
+	 */
+	private static long bucketHighValue(int index)
+	{
+		if (index < SUB_BUCKETS)
+		{ return index; }
+		int shift = index / SUB_BUCKETS - 1;
+		long low = ((long)(SUB_BUCKETS + index % SUB_BUCKETS)) << shift;
+		return low + (1L << shift) - 1;
+	}
+
+	/**
+	 * Record a value.
+	 * @param value the value; negative values are counted as 0
+	 */
+	public void record(long value)
+	{
+		if (value < 0)
+		{ value = 0; }
+		this.counts.incrementAndGet(bucketIndex(value));
+
+		long current;
+		while (value > (current = this.max.get()))
+		{
+			if (this.max.compareAndSet(current, value))
+			{ break; }
+		}
+	}
+
+	/**
+	 * @return a copy of the histogram's current counts
+	 */
+	public Snapshot snapshot()
+	{
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+		{ copy[i] = this.counts.get(i); }
+		return new Snapshot(copy, this.max.get());
+	}
+
+	/**
+	 * Counts copied out of a histogram at one point in time.
+	 */
+	public static class Snapshot
+	{
+		private final long[] counts;
+		private final long count;
+		private final long max;
+		private final double mean;
+
+		private Snapshot(long[] counts, long max)
+		{
+			this.counts = counts;
+			long total = 0;
+			double sum = 0;
+			for (int i = 0; i < counts.length; i++)
+			{
+				total += counts[i];
+				sum += (double)counts[i] * bucketHighValue(i);
+			}
+			this.count = total;
+			this.max = max;
+			this.mean = (0 == total) ? 0 : sum / total;
+		}
+
+		/**
+		 * @return number of values recorded
+		 */
+		public long getCount()
+		{ return this.count; }
+
+		/**
+		 * @return largest value recorded; 0 if none
+		 */
+		public long getMax()
+		{ return this.max; }
+
+		/**
+		 * @return approximate mean of the values recorded; 0 if none
+		 */
+		public double getMean()
+		{ return this.mean; }
+
+		/**
+		 * @param percentile a percentile between 0 and 100
+		 * @return a value at least as large as the given percentage of the
+		 *         values recorded, to within the histogram's precision; 0 if
+		 *         none were recorded
+		 */
+		public long getValueAtPercentile(double percentile)
+		{
+			if (0 == this.count)
+			{ return 0; }
+			long rank = Math.max(1, (long)Math.ceil(
+					percentile / 100 * this.count));
+			long seen = 0;
+			for (int i = 0; i < this.counts.length; i++)
+			{
+				seen += this.counts[i];
+				if (seen >= rank)
+				{ return Math.min(bucketHighValue(i), this.max); }
+			}
+			return this.max;
+		}
+
+		public String toString()
+		{
+			return String.format("count=%d mean=%.0f p50=%d p90=%d p99=%d "
+					+ "p99.9=%d max=%d", this.count, this.mean,
+					this.getValueAtPercentile(50),
+					this.getValueAtPercentile(90),
+					this.getValueAtPercentile(99),
+					this.getValueAtPercentile(99.9), this.max);
+		}
+	}
+}
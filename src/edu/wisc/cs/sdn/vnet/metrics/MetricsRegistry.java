@@ -0,0 +1,179 @@
+package edu.wisc.cs.sdn.vnet.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named counters, gauges, and histograms for one device. Names are dotted
+ * paths, e.g., iface.eth1.rx_packets or drop.no_route.
+ * <p>
+ * Look metrics up once, when the component that updates them is created,
+ * and keep the returned object; updating a metric never touches the
+ * registry. Snapshots can be taken from any thread at any time without
+ * pausing the packet thread.
+ */
+public class MetricsRegistry
+{
+	private final ConcurrentMap<String,Counter> counters;
+	private final ConcurrentMap<String,Gauge> gauges;
+	private final ConcurrentMap<String,Histogram> histograms;
+
+	public MetricsRegistry()
+	{
+		this.counters = new ConcurrentHashMap<String,Counter>();
+		this.gauges = new ConcurrentHashMap<String,Gauge>();
+		this.histograms = new ConcurrentHashMap<String,Histogram>();
+	}
+
+	/**
+	 * Get a counter, creating it if it does not exist.
+	 * @param name name of the counter
+	 * @return the counter
+	 */
+	public Counter counter(String name)
+	{
+		Counter counter = this.counters.get(name);
+		if (null == counter)
+		{
+			Counter created = new Counter();
+			counter = this.counters.putIfAbsent(name, created);
+			if (null == counter)
+			{ counter = created; }
+		}
+		return counter;
+	}
+
+	/**
+	 * Register a counter created elsewhere, replacing any counter with the
+	 * same name.
+	 * @param name name of the counter
+	 * @param counter the counter
+	 */
+	public void register(String name, Counter counter)
+	{ this.counters.put(name, counter); }
+
+	/**
+	 * Register a gauge, replacing any gauge with the same name.
+	 * @param name name of the gauge
+	 * @param gauge the gauge
+	 */
+	public void register(String name, Gauge gauge)
+	{ this.gauges.put(name, gauge); }
+
+	/**
+	 * Get a histogram, creating it if it does not exist.
+	 * @param name name of the histogram
+	 * @return the histogram
+	 */
+	public Histogram histogram(String name)
+	{
+		Histogram histogram = this.histograms.get(name);
+		if (null == histogram)
+		{
+			Histogram created = new Histogram();
+			histogram = this.histograms.putIfAbsent(name, created);
+			if (null == histogram)
+			{ histogram = created; }
+		}
+		return histogram;
+	}
+
+	/**
+	 * Remove every metric whose name starts with a prefix, e.g., the
+	 * metrics for an interface that no longer exists.
+	 * @param prefix the prefix
+	 */
+	public void removeAll(String prefix)
+	{
+		for (String name : this.counters.keySet())
+		{
+			if (name.startsWith(prefix))
+			{ this.counters.remove(name); }
+		}
+		for (String name : this.gauges.keySet())
+		{
+			if (name.startsWith(prefix))
+			{ this.gauges.remove(name); }
+		}
+		for (String name : this.histograms.keySet())
+		{
+			if (name.startsWith(prefix))
+			{ this.histograms.remove(name); }
+		}
+	}
+
+	/**
+	 * @return the current value of every metric
+	 */
+	public Snapshot snapshot()
+	{
+		Snapshot snapshot = new Snapshot();
+		for (Map.Entry<String,Counter> entry : this.counters.entrySet())
+		{ snapshot.values.put(entry.getKey(), entry.getValue().get()); }
+		for (Map.Entry<String,Gauge> entry : this.gauges.entrySet())
+		{ snapshot.values.put(entry.getKey(), entry.getValue().getValue()); }
+		for (Map.Entry<String,Histogram> entry : this.histograms.entrySet())
+		{
+			snapshot.histograms.put(entry.getKey(),
+					entry.getValue().snapshot());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Values of a registry's metrics at one point in time, sorted by name.
+	 */
+	public static class Snapshot
+	{
+		private final SortedMap<String,Long> values;
+		private final SortedMap<String,Histogram.Snapshot> histograms;
+
+		private Snapshot()
+		{
+			this.values = new TreeMap<String,Long>();
+			this.histograms = new TreeMap<String,Histogram.Snapshot>();
+		}
+
+		/**
+		 * @return values of counters and gauges; maps names to values
+		 */
+		public SortedMap<String,Long> getValues()
+		{ return this.values; }
+
+		/**
+		 * @return histograms; maps names to histograms
+		 */
+		public SortedMap<String,Histogram.Snapshot> getHistograms()
+		{ return this.histograms; }
+
+		/**
+		 * @param name name of a counter or gauge
+		 * @return the value; 0 if there is no such metric
+		 */
+		public long get(String name)
+		{
+			Long value = this.values.get(name);
+			return (null == value) ? 0 : value;
+		}
+
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String,Long> entry : this.values.entrySet())
+			{
+				sb.append(String.format("%-32s %d\n", entry.getKey(),
+						entry.getValue()));
+			}
+			for (Map.Entry<String,Histogram.Snapshot> entry
+					: this.histograms.entrySet())
+			{
+				sb.append(String.format("%-32s %s\n", entry.getKey(),
+						entry.getValue()));
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.log.Logger;
+
+/**
+ * A router's access control lists: for each interface, an optional list of
+ * rules for packets received on it (ingress) and for packets forwarded out
+ * of it (egress). The first rule that matches a packet decides whether it
+ * is permitted; a packet no rule in a list matches is denied. Interfaces
+ * without a list in a direction permit every packet. Packets the router
+ * sends itself, such as RIP responses, are not checked on egress.
+ * <p>
+ * The file has one rule per line, in the order rules are matched:
+ * <pre>
+ *   # interface direction action protocol source [port] destination [port]
+ *   eth1 in  deny   tcp 10.0.1.0/24 any 10.0.2.5 22
+ *   eth1 in  permit ip  any             any
+ *   eth2 out deny   udp any 1-1023  any 53
+ * </pre>
+ * Protocols are ip (any protocol), icmp, igmp, tcp, udp, or a number.
+ * Addresses are any, an address, or a prefix. Ports, given only for tcp and
+ * udp, are any, a port, or a range; a rule with ports never matches a
+ * fragment other than the first, which carries no ports. Blank lines and
+ * lines starting with # are ignored.
+ * <p>
+ * Lists are compiled when loaded and never modified afterwards, so a router
+ * can replace its lists atomically while packets are being classified.
+ */
+public class AccessLists
+{
+	private static final Logger LOG = Logger.getLogger(AccessLists.class);
+
+	/** Compiled lists; map interface names to classifiers */
+	private final Map<String,AclClassifier> ingress;
+	private final Map<String,AclClassifier> egress;
+
+	private AccessLists(Map<String,List<AclRule>> ingress,
+			Map<String,List<AclRule>> egress)
+	{
+		this.ingress = compile(ingress);
+		this.egress = compile(egress);
+	}
+
+	private static Map<String,AclClassifier> compile(
+			Map<String,List<AclRule>> lists)
+	{
+		Map<String,AclClassifier> compiled =
+				new HashMap<String,AclClassifier>();
+		for (Map.Entry<String,List<AclRule>> list : lists.entrySet())
+		{ compiled.put(list.getKey(), new AclClassifier(list.getValue())); }
+		return compiled;
+	}
+
+	/**
+	 * Read and compile access control lists from a file.
+	 * @param filename name of the file
+	 * @return the lists; null if the file could not be loaded
+	 */
+	public static AccessLists load(String filename)
+	{
+		Map<String,List<AclRule>> ingress = new HashMap<String,List<AclRule>>();
+		Map<String,List<AclRule>> egress = new HashMap<String,List<AclRule>>();
+		int lineNumber = 0;
+		try (BufferedReader reader = new BufferedReader(
+				new FileReader(filename)))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+				{ continue; }
+
+				String[] fields = line.split("\\s+");
+				AclRule rule = parseRule(fields);
+				boolean in = (fields.length > 1) && fields[1].equals("in");
+				boolean out = (fields.length > 1) && fields[1].equals("out");
+				if (null == rule || !(in || out))
+				{
+					LOG.error(filename+":"+lineNumber+": invalid entry");
+					return null;
+				}
+				Map<String,List<AclRule>> lists = in ? ingress : egress;
+				List<AclRule> list = lists.get(fields[0]);
+				if (null == list)
+				{
+					list = new ArrayList<AclRule>();
+					lists.put(fields[0], list);
+				}
+				list.add(rule);
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.error(e.toString());
+			return null;
+		}
+		return new AccessLists(ingress, egress);
+	}
+
+	/**
+	 * @return the rule described by a line's fields; null if they are
+	 *         invalid
+	 */
+	private static AclRule parseRule(String[] fields)
+	{
+		if (fields.length != 6 && fields.length != 8)
+		{ return null; }
+		boolean permit = fields[2].equals("permit");
+		if (!permit && !fields[2].equals("deny"))
+		{ return null; }
+		int protocol = parseProtocol(fields[3]);
+		boolean ports = (8 == fields.length);
+		if (protocol < AclRule.ANY_PROTOCOL || (ports
+				&& protocol != IPv4.PROTOCOL_TCP && protocol != IPv4.PROTOCOL_UDP))
+		{ return null; }
+
+		int[] src = parsePrefix(fields[4]);
+		int[] srcPorts = ports ? parsePorts(fields[5]) : null;
+		int[] dst = parsePrefix(fields[ports ? 6 : 5]);
+		int[] dstPorts = ports ? parsePorts(fields[7]) : null;
+		if (null == src || null == dst
+				|| (ports && !fields[5].equals("any") && null == srcPorts)
+				|| (ports && !fields[7].equals("any") && null == dstPorts))
+		{ return null; }
+		return new AclRule(permit, protocol, src[0], src[1], srcPorts,
+				dst[0], dst[1], dstPorts);
+	}
+
+	/**
+	 * @return protocol number; AclRule.ANY_PROTOCOL for ip; less than
+	 *         ANY_PROTOCOL if the protocol is invalid
+	 */
+	private static int parseProtocol(String s)
+	{
+		switch (s)
+		{
+		case "ip": return AclRule.ANY_PROTOCOL;
+		case "icmp": return IPv4.PROTOCOL_ICMP;
+		case "igmp": return IPv4.PROTOCOL_IGMP;
+		case "tcp": return IPv4.PROTOCOL_TCP;
+		case "udp": return IPv4.PROTOCOL_UDP;
+		}
+		try
+		{
+			int protocol = Integer.parseInt(s);
+			return (protocol >= 0 && protocol <= 255) ? protocol : -2;
+		}
+		catch (NumberFormatException e)
+		{ return -2; }
+	}
+
+	/**
+	 * @return address and mask; null if the prefix is invalid
+	 */
+	private static int[] parsePrefix(String s)
+	{
+		if (s.equals("any"))
+		{ return new int[] { 0, 0 }; }
+		try
+		{
+			int slash = s.indexOf('/');
+			int length = (slash < 0) ? 32
+					: Integer.parseInt(s.substring(slash + 1));
+			if (length < 0 || length > 32)
+			{ return null; }
+			int address = IPv4.toIPv4Address(
+					(slash < 0) ? s : s.substring(0, slash));
+			int mask = (0 == length) ? 0 : (-1 << (32 - length));
+			return new int[] { address, mask };
+		}
+		catch (IllegalArgumentException e)
+		{ return null; }
+	}
+
+	/**
+	 * @return lowest and highest port; null if the range is any or invalid
+	 */
+	private static int[] parsePorts(String s)
+	{
+		if (s.equals("any"))
+		{ return null; }
+		try
+		{
+			int dash = s.indexOf('-');
+			int low = Integer.parseInt((dash < 0) ? s : s.substring(0, dash));
+			int high = (dash < 0) ? low : Integer.parseInt(s.substring(dash + 1));
+			if (low < 0 || high > 0xffff || low > high)
+			{ return null; }
+			return new int[] { low, high };
+		}
+		catch (NumberFormatException e)
+		{ return null; }
+	}
+
+	/**
+	 * Decide whether a packet may be received on, or forwarded out of, an
+	 * interface.
+	 * @param iface the interface
+	 * @param in true to check the interface's ingress list, false for its
+	 *        egress list
+	 * @param ipPacket the packet
+	 * @return true if the packet is permitted, false if it is denied
+	 */
+	public boolean permits(Iface iface, boolean in, IPv4 ipPacket)
+	{
+		AclClassifier classifier =
+				(in ? this.ingress : this.egress).get(iface.getName());
+		if (null == classifier)
+		{ return true; }
+
+		int srcPort = AclClassifier.NO_PORT;
+		int dstPort = AclClassifier.NO_PORT;
+		if (0 == ipPacket.getFragmentOffset())
+		{
+			IPacket payload = ipPacket.getPayload();
+			if (payload instanceof TCP)
+			{
+				srcPort = ((TCP)payload).getSourcePort() & 0xffff;
+				dstPort = ((TCP)payload).getDestinationPort() & 0xffff;
+			}
+			else if (payload instanceof UDP)
+			{
+				srcPort = ((UDP)payload).getSourcePort() & 0xffff;
+				dstPort = ((UDP)payload).getDestinationPort() & 0xffff;
+			}
+		}
+		AclRule rule = classifier.classify(ipPacket.getSourceAddress(),
+				ipPacket.getDestinationAddress(), ipPacket.getProtocol(),
+				srcPort, dstPort);
+		return (rule != null && rule.isPermit());
+	}
+
+	/**
+	 * @param ifaceName name of an interface
+	 * @param in true for the interface's ingress list, false for its egress
+	 *        list
+	 * @return the list's rules, in order; null if the interface has no list
+	 *         in that direction
+	 */
+	public List<AclRule> getRules(String ifaceName, boolean in)
+	{
+		AclClassifier classifier =
+				(in ? this.ingress : this.egress).get(ifaceName);
+		return (null == classifier) ? null : classifier.getRules();
+	}
+
+	/**
+	 * Reload a router's lists whenever their file changes, checking on a
+	 * daemon thread. A file that fails to load leaves the current lists in
+	 * place.
+	 * @param router the router
+	 * @param filename name of the file
+	 * @param interval time (in milliseconds) between checks
+	 */
+	public static void watch(final Router router, final String filename,
+			final long interval)
+	{
+		final File file = new File(filename);
+		Thread watcher = new Thread(() -> {
+			long modified = file.lastModified();
+			while (true)
+			{
+				try
+				{ Thread.sleep(interval); }
+				catch (InterruptedException e)
+				{ break; }
+				if (file.lastModified() == modified)
+				{ continue; }
+				modified = file.lastModified();
+				AccessLists lists = load(filename);
+				if (null == lists)
+				{
+					LOG.error("Keeping previous access lists");
+					continue;
+				}
+				router.setAccessLists(lists);
+				LOG.info("Reloaded access lists from "+filename);
+			}
+		}, router.getHost()+"-acl-watch");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+}
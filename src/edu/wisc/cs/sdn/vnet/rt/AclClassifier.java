@@ -0,0 +1,169 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * An access control list compiled for bit-vector classification (Lakshman
+ * and Stiliadis, SIGCOMM 1998). Each of the five fields a rule matches on is
+ * split into elementary intervals at the edges of the rules' ranges, and each
+ * interval carries a bitmap of the rules whose range covers it. Classifying
+ * a packet takes one binary search per field and an AND of five bitmaps; the
+ * lowest set bit is the first rule, in list order, that matches. The cost
+ * grows with the logarithm of the number of distinct edges and with the
+ * number of rules divided by 64, never with a walk of the list.
+ * <p>
+ * Immutable once built, so any number of threads may classify packets.
+ */
+class AclClassifier
+{
+	/** Port value of packets without TCP or UDP ports, which only rules
+	 *  that match any port cover */
+	static final int NO_PORT = -1;
+
+	/** Largest value of any field, as an unsigned 32-bit integer */
+	private static final long MAX_VALUE = 0xffffffffL;
+
+	/**
+	 * One field's elementary intervals and their bitmaps.
+	 */
+	private static class Field
+	{
+		/** Lowest value in each interval, ascending; the first is 0 */
+		private final long[] starts;
+
+		/** Bitmaps of the rules covering each interval, one after another */
+		private final long[] bits;
+
+		Field(long[] lows, long[] highs, int words)
+		{
+			TreeSet<Long> edges = new TreeSet<Long>();
+			edges.add(0L);
+			for (int i = 0; i < lows.length; i++)
+			{
+				edges.add(lows[i]);
+				if (highs[i] < MAX_VALUE)
+				{ edges.add(highs[i] + 1); }
+			}
+			this.starts = new long[edges.size()];
+			int n = 0;
+			for (long edge : edges)
+			{ this.starts[n++] = edge; }
+
+			this.bits = new long[this.starts.length * words];
+			for (int rule = 0; rule < lows.length; rule++)
+			{
+				int last = this.interval(highs[rule]);
+				for (int i = this.interval(lows[rule]); i <= last; i++)
+				{ this.bits[i * words + (rule >>> 6)] |= 1L << rule; }
+			}
+		}
+
+		/**
+		 * @return index of the interval holding a value
+		 */
+		int interval(long value)
+		{
+			int i = Arrays.binarySearch(this.starts, value);
+			return (i >= 0) ? i : (-i - 2);
+		}
+	}
+
+	/** Rules, in list order */
+	private final AclRule[] rules;
+
+	/** Number of 64-bit words in each bitmap */
+	private final int words;
+
+	private final Field srcAddresses;
+	private final Field dstAddresses;
+	private final Field protocols;
+	private final Field srcPorts;
+	private final Field dstPorts;
+
+	/**
+	 * Compile a list of rules.
+	 * @param rules the rules, in the order they are matched
+	 */
+	AclClassifier(List<AclRule> rules)
+	{
+		this.rules = rules.toArray(new AclRule[rules.size()]);
+		this.words = Math.max(1, (this.rules.length + 63) / 64);
+
+		int n = this.rules.length;
+		long[][] lows = new long[5][n];
+		long[][] highs = new long[5][n];
+		for (int i = 0; i < n; i++)
+		{
+			AclRule rule = this.rules[i];
+			setPrefix(lows[0], highs[0], i, rule.getSourceAddress(),
+					rule.getSourceMask());
+			setPrefix(lows[1], highs[1], i, rule.getDestinationAddress(),
+					rule.getDestinationMask());
+			boolean anyProtocol = (AclRule.ANY_PROTOCOL == rule.getProtocol());
+			lows[2][i] = anyProtocol ? 0 : rule.getProtocol();
+			highs[2][i] = anyProtocol ? MAX_VALUE : rule.getProtocol();
+			setPorts(lows[3], highs[3], i, rule.getSourcePorts());
+			setPorts(lows[4], highs[4], i, rule.getDestinationPorts());
+		}
+		this.srcAddresses = new Field(lows[0], highs[0], this.words);
+		this.dstAddresses = new Field(lows[1], highs[1], this.words);
+		this.protocols = new Field(lows[2], highs[2], this.words);
+		this.srcPorts = new Field(lows[3], highs[3], this.words);
+		this.dstPorts = new Field(lows[4], highs[4], this.words);
+	}
+
+	private static void setPrefix(long[] lows, long[] highs, int i,
+			int address, int mask)
+	{
+		lows[i] = address & mask & MAX_VALUE;
+		highs[i] = (address | ~mask) & MAX_VALUE;
+	}
+
+	private static void setPorts(long[] lows, long[] highs, int i,
+			int[] ports)
+	{
+		lows[i] = (null == ports) ? 0 : ports[0];
+		highs[i] = (null == ports) ? MAX_VALUE : ports[1];
+	}
+
+	/**
+	 * Find the first rule that matches a packet.
+	 * @param srcAddress source address
+	 * @param dstAddress destination address
+	 * @param protocol protocol number
+	 * @param srcPort source port; NO_PORT if the packet has none
+	 * @param dstPort destination port; NO_PORT if the packet has none
+	 * @return the first matching rule; null if none matches
+	 */
+	AclRule classify(int srcAddress, int dstAddress, int protocol,
+			int srcPort, int dstPort)
+	{
+		int words = this.words;
+		long[] a = this.srcAddresses.bits;
+		long[] b = this.dstAddresses.bits;
+		long[] c = this.protocols.bits;
+		long[] d = this.srcPorts.bits;
+		long[] e = this.dstPorts.bits;
+		int ai = this.srcAddresses.interval(srcAddress & MAX_VALUE) * words;
+		int bi = this.dstAddresses.interval(dstAddress & MAX_VALUE) * words;
+		int ci = this.protocols.interval(protocol & 0xff) * words;
+		int di = this.srcPorts.interval(srcPort & MAX_VALUE) * words;
+		int ei = this.dstPorts.interval(dstPort & MAX_VALUE) * words;
+		for (int w = 0; w < words; w++)
+		{
+			long match = a[ai + w] & b[bi + w] & c[ci + w] & d[di + w]
+					& e[ei + w];
+			if (match != 0)
+			{ return this.rules[w * 64 + Long.numberOfTrailingZeros(match)]; }
+		}
+		return null;
+	}
+
+	/**
+	 * @return the rules, in list order
+	 */
+	List<AclRule> getRules()
+	{ return Arrays.asList(this.rules); }
+}
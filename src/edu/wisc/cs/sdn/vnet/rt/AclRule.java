@@ -0,0 +1,121 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * A rule in an access control list: packets whose source and destination
+ * fall in the rule's prefixes, whose protocol matches, and whose TCP or UDP
+ * ports fall in the rule's ranges are permitted or denied.
+ */
+public class AclRule
+{
+	/** Protocol of a rule that matches every protocol */
+	public static final int ANY_PROTOCOL = -1;
+
+	/** True if matching packets are permitted, false if denied */
+	private final boolean permit;
+
+	/** Protocol number; ANY_PROTOCOL to match every protocol */
+	private final int protocol;
+
+	/** Source and destination prefixes; a mask of 0 matches any address */
+	private final int srcAddress;
+	private final int srcMask;
+	private final int dstAddress;
+	private final int dstMask;
+
+	/** Source and destination port ranges, inclusive; null to match every
+	 *  packet, including those without ports */
+	private final int[] srcPorts;
+	private final int[] dstPorts;
+
+	/**
+	 * Create a rule.
+	 * @param permit true to permit matching packets, false to deny them
+	 * @param protocol protocol number; ANY_PROTOCOL to match every protocol
+	 * @param srcAddress source prefix
+	 * @param srcMask source prefix's mask, which must be contiguous
+	 * @param srcPorts lowest and highest source port; null for any
+	 * @param dstAddress destination prefix
+	 * @param dstMask destination prefix's mask, which must be contiguous
+	 * @param dstPorts lowest and highest destination port; null for any
+	 */
+	public AclRule(boolean permit, int protocol, int srcAddress, int srcMask,
+			int[] srcPorts, int dstAddress, int dstMask, int[] dstPorts)
+	{
+		this.permit = permit;
+		this.protocol = protocol;
+		this.srcAddress = srcAddress & srcMask;
+		this.srcMask = srcMask;
+		this.srcPorts = srcPorts;
+		this.dstAddress = dstAddress & dstMask;
+		this.dstMask = dstMask;
+		this.dstPorts = dstPorts;
+	}
+
+	/**
+	 * @return true if matching packets are permitted, false if denied
+	 */
+	public boolean isPermit()
+	{ return this.permit; }
+
+	/**
+	 * @return protocol number; ANY_PROTOCOL if the rule matches every
+	 *         protocol
+	 */
+	public int getProtocol()
+	{ return this.protocol; }
+
+	public int getSourceAddress()
+	{ return this.srcAddress; }
+
+	public int getSourceMask()
+	{ return this.srcMask; }
+
+	public int getDestinationAddress()
+	{ return this.dstAddress; }
+
+	public int getDestinationMask()
+	{ return this.dstMask; }
+
+	/**
+	 * @return lowest and highest source port; null if the rule matches any
+	 */
+	public int[] getSourcePorts()
+	{ return this.srcPorts; }
+
+	/**
+	 * @return lowest and highest destination port; null if the rule matches
+	 *         any
+	 */
+	public int[] getDestinationPorts()
+	{ return this.dstPorts; }
+
+	private static String prefixString(int address, int mask)
+	{
+		if (0 == mask)
+		{ return "any"; }
+		return IPv4.fromIPv4Address(address)+"/"+Integer.bitCount(mask);
+	}
+
+	private static String portString(int[] ports)
+	{
+		if (null == ports)
+		{ return "any"; }
+		if (ports[0] == ports[1])
+		{ return Integer.toString(ports[0]); }
+		return ports[0]+"-"+ports[1];
+	}
+
+	public String toString()
+	{
+		String protocol = (ANY_PROTOCOL == this.protocol) ? "ip"
+				: Integer.toString(this.protocol);
+		return String.format("%s %s %s %s %s %s",
+				(this.permit ? "permit" : "deny"), protocol,
+				prefixString(this.srcAddress, this.srcMask),
+				portString(this.srcPorts),
+				prefixString(this.dstAddress, this.dstMask),
+				portString(this.dstPorts));
+	}
+}
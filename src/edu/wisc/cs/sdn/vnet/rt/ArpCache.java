@@ -1,15 +1,10 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
 /**
@@ -20,6 +15,9 @@ public class ArpCache {
 	/** Entries in the cache; maps an IP address to an entry */
 	private Map<Integer,ArpEntry> entries;
 
+	/** Incremented every time an entry is inserted */
+	private volatile int version;
+
 	/**
 	 * Initializes an empty ARP cache for a router.
 	 */
@@ -33,7 +31,10 @@ public class ArpCache {
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	{
+		this.entries.put(ip, new ArpEntry(mac, ip));
+		this.version++;
+	}
 
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
@@ -44,91 +45,47 @@ public class ArpCache {
 	{ return this.entries.get(ip); }
 
 	/**
-	 * Populate the ARP cache from a file.
-	 * @param filename name of the file containing the static route table
-	 * @param router the route table is associated with
-	 * @return true if route table was successfully loaded, otherwise false
+	 * @return a counter that changes whenever an entry is inserted
 	 */
-	public boolean load(String filename)
-	{
-		// Open the file
-		BufferedReader reader;
-		try 
-		{
-			FileReader fileReader = new FileReader(filename);
-			reader = new BufferedReader(fileReader);
-		}
-		catch (FileNotFoundException e) 
-		{
-			System.err.println(e.toString());
-			return false;
-		}
-
-		while (true)
-		{
-			// Read an ARP entry from the file
-			String line = null;
-			try 
-			{ line = reader.readLine(); }
-			catch (IOException e) 
-			{
-				System.err.println(e.toString());
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-
-			// Stop if we have reached the end of the file
-			if (null == line)
-			{ break; }
-
-			// Parse fields for ARP entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String macByte = "[a-fA-F0-9]{2}";
-			String macPattern = "("+macByte+":"+macByte+":"+macByte
-					+":"+macByte+":"+macByte+":"+macByte+")";
-			Pattern pattern = Pattern.compile(String.format("%s\\s+%s", ipPattern, macPattern));
-			Matcher matcher = pattern.matcher(line);
-			if (!matcher.matches() || matcher.groupCount() != 2)
-			{
-				System.err.println("Invalid entry in ARP cache file");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
+	public int getVersion()
+	{ return this.version; }
 
-			int ip = IPv4.toIPv4Address(matcher.group(1));
-			if (0 == ip)
-			{
-				System.err.println("Error loading ARP cache, cannot convert "
-						+ matcher.group(1) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-
-			MACAddress mac = null;
-			try
-			{ mac = MACAddress.valueOf(matcher.group(2)); }
-			catch(IllegalArgumentException iae)
-			{
-				System.err.println("Error loading ARP cache, cannot convert " 
-						+ matcher.group(3) + " to valid MAC");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
+	/**
+	 * @return the entries in the cache; never locks the cache
+	 */
+	public List<ArpEntry> getEntries()
+	{ return new ArrayList<ArpEntry>(this.entries.values()); }
 
-			// Add an entry to the ACP cache
-			this.insert(mac, ip);
-		}
+	/**
+	 * Populate the ARP cache from a file. Lines that are not valid entries
+	 * are reported and skipped.
+	 * @param filename name of the file containing the static ARP cache
+	 * @return true if the ARP cache was successfully loaded, otherwise false
+	 */
+	public boolean load(String filename)
+	{
+		List<ArpEntry> loaded = TableFileParser.parse(filename, line -> {
+			line.skipSpace();
+			int ip = line.ip();
+			line.separator();
+			MACAddress mac = line.mac();
+			line.finish();
+			return line.ok() ? new ArpEntry(mac, ip) : null;
+		});
+		if (null == loaded)
+		{ return false; }
 
-		// Close the file
-		try { reader.close(); } catch (IOException f) {};
+		for (ArpEntry entry : loaded)
+		{ this.entries.put(entry.getIp(), entry); }
+		this.version++;
 		return true;
 	}
 
 	public String toString()
 	{
-		String result = "IP\t\tMAC\n";
+		StringBuilder result = new StringBuilder("IP\t\tMAC\n");
 		for (ArpEntry entry : this.entries.values())
-		{ result += entry.toString()+"\n"; }
-		return result;
+		{ result.append(entry.toString()).append('\n'); }
+		return result.toString();
 	}
 }
@@ -0,0 +1,132 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * A copy of a tracked TCP connection's state and counters, taken at one
+ * instant. The original direction is the one in which the first packet the
+ * router saw was sent; the reply direction is the opposite.
+ */
+public class Connection
+{
+	/**
+	 * TCP connection states, as tracked by a router in the middle of the
+	 * connection, and how long (in milliseconds) a connection may stay idle
+	 * in each before it is forgotten.
+	 */
+	public enum State
+	{
+		SYN_SENT(120 * 1000),
+		SYN_RECV(60 * 1000),
+		ESTABLISHED(5 * 24 * 3600 * 1000),
+		FIN_WAIT(120 * 1000),
+		CLOSE_WAIT(60 * 1000),
+		LAST_ACK(30 * 1000),
+		TIME_WAIT(120 * 1000),
+		CLOSE(10 * 1000);
+
+		private final int timeout;
+
+		State(int timeout)
+		{ this.timeout = timeout; }
+
+		/**
+		 * @return idle timeout (in milliseconds) for connections in the state
+		 */
+		public int getTimeout()
+		{ return this.timeout; }
+	}
+
+	private final int srcAddress;
+	private final int srcPort;
+	private final int dstAddress;
+	private final int dstPort;
+	private final State state;
+	private final boolean assured;
+	private final long expires;
+
+	/** Packets and bytes (of IP packets) in each direction */
+	private final long origPackets;
+	private final long origBytes;
+	private final long replyPackets;
+	private final long replyBytes;
+
+	Connection(int srcAddress, int srcPort, int dstAddress, int dstPort,
+			State state, boolean assured, long expires, long origPackets,
+			long origBytes, long replyPackets, long replyBytes)
+	{
+		this.srcAddress = srcAddress;
+		this.srcPort = srcPort;
+		this.dstAddress = dstAddress;
+		this.dstPort = dstPort;
+		this.state = state;
+		this.assured = assured;
+		this.expires = expires;
+		this.origPackets = origPackets;
+		this.origBytes = origBytes;
+		this.replyPackets = replyPackets;
+		this.replyBytes = replyBytes;
+	}
+
+	/**
+	 * @return source address in the original direction
+	 */
+	public int getSourceAddress()
+	{ return this.srcAddress; }
+
+	/**
+	 * @return source port in the original direction
+	 */
+	public int getSourcePort()
+	{ return this.srcPort; }
+
+	/**
+	 * @return destination address in the original direction
+	 */
+	public int getDestinationAddress()
+	{ return this.dstAddress; }
+
+	/**
+	 * @return destination port in the original direction
+	 */
+	public int getDestinationPort()
+	{ return this.dstPort; }
+
+	public State getState()
+	{ return this.state; }
+
+	/**
+	 * @return true if packets have been seen in both directions of an
+	 *         established connection, which is then never dropped early to
+	 *         make room for a new one
+	 */
+	public boolean isAssured()
+	{ return this.assured; }
+
+	/**
+	 * @return time (in milliseconds since the epoch) at which the connection
+	 *         is forgotten unless another packet is seen
+	 */
+	public long getExpires()
+	{ return this.expires; }
+
+	public long getOrigPackets()
+	{ return this.origPackets; }
+
+	public long getOrigBytes()
+	{ return this.origBytes; }
+
+	public long getReplyPackets()
+	{ return this.replyPackets; }
+
+	public long getReplyBytes()
+	{ return this.replyBytes; }
+
+	public String toString()
+	{
+		return String.format("%s:%d -> %s:%d %s%s",
+				IPv4.fromIPv4Address(this.srcAddress), this.srcPort,
+				IPv4.fromIPv4Address(this.dstAddress), this.dstPort,
+				this.state, (this.assured ? " assured" : ""));
+	}
+}
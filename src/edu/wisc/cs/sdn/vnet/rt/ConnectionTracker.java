@@ -0,0 +1,513 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+
+import edu.wisc.cs.sdn.vnet.metrics.Counter;
+
+/**
+ * Tracks the state of TCP connections through a router. Each connection is
+ * identified by its 5-tuple and follows a simplified version of the state
+ * machine a stateful firewall keeps (the TCP states as seen from the middle
+ * of the path), with an idle timeout that depends on the state. Packets and
+ * bytes are counted in each direction.
+ * <p>
+ * Connections are stored inline in open-addressing tables, split into
+ * segments that are each locked separately so several threads can track
+ * packets at once. The key is ordered so packets in either direction hash
+ * to the same slot and a packet is matched with one probe sequence. Tables
+ * are allocated once at their full size, so memory is bounded by the limit
+ * on connections, at about {@link #BYTES_PER_CONNECTION} bytes each.
+ * <p>
+ * Expired connections stay in their slots until a later packet of the same
+ * connection reuses the slot, or a sweep that examines a few slots on each
+ * new connection reclaims them. When a segment is full, a new connection
+ * takes the slot of an expired or unassured connection near its own slot
+ * (early drop); if there is none, the packet is refused. A connection that
+ * started before the router began tracking it is picked up as established
+ * from the first packet other than a SYN or RST.
+ */
+public class ConnectionTracker
+{
+	/** Default limit on the number of connections */
+	public static final int DEFAULT_MAX_CONNECTIONS = 1 << 16;
+
+	/** Bytes allocated per connection when the limit on connections is a
+	 *  power of two; up to twice as many otherwise */
+	public static final int BYTES_PER_CONNECTION = 2 * (3 * 4 + 2 + 8 + 4 * 8);
+
+	/** Number of separately locked segments; must be a power of two */
+	private static final int SEGMENTS = 16;
+
+	/** Slots examined for a connection to drop when a segment is full */
+	private static final int EARLY_DROP_PROBES = 8;
+
+	/** Slots examined for expired connections on each new connection */
+	private static final int SWEEP_SLOTS = 2;
+
+	private static final short TCP_FIN = 0x01;
+	private static final short TCP_SYN = 0x02;
+	private static final short TCP_RST = 0x04;
+	private static final short TCP_ACK = 0x10;
+
+	/** Connection flags */
+	private static final byte REPLY_SEEN = 0x01;
+	private static final byte ASSURED = 0x02;
+	private static final byte FIN_ORIG = 0x04;
+	private static final byte FIN_REPLY = 0x08;
+	/** The second FIN was sent in the reply direction */
+	private static final byte LAST_FIN_REPLY = 0x10;
+
+	private static final Connection.State[] STATES =
+			Connection.State.values();
+
+	/**
+	 * One separately locked part of the table.
+	 */
+	private static class Segment
+	{
+		private final int mask;
+
+		/** Most connections the segment holds */
+		private final int limit;
+
+		/** Original direction's addresses, and ports with the source in the
+		 *  upper 16 bits */
+		private final int[] srcAddrs;
+		private final int[] dstAddrs;
+		private final int[] ports;
+
+		/** State ordinal plus one; 0 marks an empty slot */
+		private final byte[] states;
+		private final byte[] flags;
+		private final long[] expires;
+
+		/** Original packets, original bytes, reply packets, reply bytes */
+		private final long[] counters;
+
+		/** Number of occupied slots */
+		private volatile int count;
+
+		/** Next slot the sweep examines */
+		private int sweep;
+
+		Segment(int limit)
+		{
+			// At most half full
+			int size = Integer.highestOneBit(2 * limit - 1) << 1;
+			this.mask = size - 1;
+			this.limit = limit;
+			this.srcAddrs = new int[size];
+			this.dstAddrs = new int[size];
+			this.ports = new int[size];
+			this.states = new byte[size];
+			this.flags = new byte[size];
+			this.expires = new long[size];
+			this.counters = new long[size * 4];
+		}
+	}
+
+	private final Segment[] segments;
+
+	/** Connections made, forgotten after their timeouts, and dropped early */
+	private final Counter created;
+	private final Counter expired;
+	private final Counter earlyDrops;
+
+	/**
+	 * Create a tracker with the default limit on connections.
+	 */
+	public ConnectionTracker()
+	{ this(DEFAULT_MAX_CONNECTIONS); }
+
+	/**
+	 * Create a tracker. The limit is split evenly across the segments, so a
+	 * new connection may be refused slightly before the limit is reached.
+	 * @param maxConnections limit on the number of connections
+	 */
+	public ConnectionTracker(int maxConnections)
+	{
+		this.segments = new Segment[SEGMENTS];
+		int limit = Math.max(1, (maxConnections + SEGMENTS - 1) / SEGMENTS);
+		for (int i = 0; i < SEGMENTS; i++)
+		{ this.segments[i] = new Segment(limit); }
+		this.created = new Counter();
+		this.expired = new Counter();
+		this.earlyDrops = new Counter();
+	}
+
+	/**
+	 * Update the connection a packet belongs to, starting to track it if
+	 * necessary. Packets other than TCP, and fragments, are ignored.
+	 * @param ipPacket the packet
+	 * @return true if the packet may be forwarded; false if it belongs to a
+	 *         new connection for which there is no room
+	 */
+	public boolean track(IPv4 ipPacket)
+	{
+		if (ipPacket.isFragment() || !(ipPacket.getPayload() instanceof TCP))
+		{ return true; }
+		TCP tcp = (TCP)ipPacket.getPayload();
+		int srcAddr = ipPacket.getSourceAddress();
+		int dstAddr = ipPacket.getDestinationAddress();
+		int srcPort = tcp.getSourcePort() & 0xffff;
+		int dstPort = tcp.getDestinationPort() & 0xffff;
+		int hash = hash(srcAddr, srcPort, dstAddr, dstPort);
+		Segment seg = this.segments[hash >>> 28];
+		long now = System.currentTimeMillis();
+
+		synchronized (seg)
+		{
+			boolean reply = false;
+			int slot = hash & seg.mask;
+			for (; seg.states[slot] != 0; slot = (slot + 1) & seg.mask)
+			{
+				if (seg.srcAddrs[slot] == srcAddr && seg.dstAddrs[slot] == dstAddr
+						&& seg.ports[slot] == ((srcPort << 16) | dstPort))
+				{ break; }
+				if (seg.srcAddrs[slot] == dstAddr && seg.dstAddrs[slot] == srcAddr
+						&& seg.ports[slot] == ((dstPort << 16) | srcPort))
+				{
+					reply = true;
+					break;
+				}
+			}
+
+			short tcpFlags = tcp.getFlags();
+			if (seg.states[slot] != 0 && (seg.expires[slot] <= now
+					|| reopens(seg, slot, tcpFlags)))
+			{
+				// Start over in the old connection's slot
+				if (seg.expires[slot] <= now)
+				{ this.expired.increment(); }
+				seg.states[slot] = 0;
+				seg.count--;
+				if (!this.start(seg, slot, srcAddr, srcPort, dstAddr, dstPort,
+						tcpFlags))
+				{
+					this.delete(seg, slot);
+					return true;
+				}
+				reply = false;
+			}
+			else if (0 == seg.states[slot])
+			{
+				if ((tcpFlags & TCP_RST) != 0)
+				{ return true; }
+				this.sweep(seg, now);
+				if (seg.count >= seg.limit && !this.earlyDrop(seg, hash, now))
+				{ return false; }
+				slot = hash & seg.mask;
+				while (seg.states[slot] != 0)
+				{ slot = (slot + 1) & seg.mask; }
+				this.start(seg, slot, srcAddr, srcPort, dstAddr, dstPort,
+						tcpFlags);
+			}
+			else
+			{ update(seg, slot, tcpFlags, reply); }
+
+			int counter = slot * 4 + (reply ? 2 : 0);
+			seg.counters[counter]++;
+			seg.counters[counter + 1] += ipPacket.getTotalLength() & 0xffff;
+			seg.expires[slot] = now + STATES[seg.states[slot] - 1].getTimeout();
+		}
+		return true;
+	}
+
+	/**
+	 * Start tracking a connection in an empty slot.
+	 * @return true if the packet starts a connection, false if it is a reset
+	 *         for which nothing is tracked
+	 */
+	private boolean start(Segment seg, int slot, int srcAddr, int srcPort,
+			int dstAddr, int dstPort, short tcpFlags)
+	{
+		if ((tcpFlags & TCP_RST) != 0)
+		{ return false; }
+		seg.srcAddrs[slot] = srcAddr;
+		seg.dstAddrs[slot] = dstAddr;
+		seg.ports[slot] = (srcPort << 16) | dstPort;
+		boolean syn = ((tcpFlags & (TCP_SYN | TCP_ACK)) == TCP_SYN);
+		seg.states[slot] = (byte)((syn ? Connection.State.SYN_SENT
+				: Connection.State.ESTABLISHED).ordinal() + 1);
+		seg.flags[slot] = 0;
+		for (int i = slot * 4; i < slot * 4 + 4; i++)
+		{ seg.counters[i] = 0; }
+		seg.count++;
+		this.created.increment();
+		return true;
+	}
+
+	/**
+	 * @return true if a packet, sent in either direction, opens a new
+	 *         connection with the same endpoints as a closed one
+	 */
+	private static boolean reopens(Segment seg, int slot, short tcpFlags)
+	{
+		int state = seg.states[slot] - 1;
+		return ((tcpFlags & (TCP_SYN | TCP_ACK | TCP_RST)) == TCP_SYN
+				&& (Connection.State.TIME_WAIT.ordinal() == state
+					|| Connection.State.CLOSE.ordinal() == state));
+	}
+
+	/**
+	 * Move a connection to the state a packet leads to.
+	 * @param reply true if the packet was sent in the reply direction
+	 */
+	private static void update(Segment seg, int slot, short tcpFlags,
+			boolean reply)
+	{
+		byte flags = seg.flags[slot];
+		if (reply)
+		{ flags |= REPLY_SEEN; }
+		Connection.State state = STATES[seg.states[slot] - 1];
+		boolean syn = (tcpFlags & TCP_SYN) != 0;
+		boolean ack = (tcpFlags & TCP_ACK) != 0;
+		boolean fin = (tcpFlags & TCP_FIN) != 0;
+		byte finDir = reply ? FIN_REPLY : FIN_ORIG;
+
+		if ((tcpFlags & TCP_RST) != 0)
+		{ state = Connection.State.CLOSE; }
+		else
+		{
+			switch (state)
+			{
+			case SYN_SENT:
+				if (reply && syn && ack)
+				{ state = Connection.State.SYN_RECV; }
+				break;
+			case SYN_RECV:
+				if (!reply && ack && !syn)
+				{ state = fin ? Connection.State.FIN_WAIT
+						: Connection.State.ESTABLISHED; }
+				break;
+			case ESTABLISHED:
+				if (fin)
+				{ state = Connection.State.FIN_WAIT; }
+				break;
+			case FIN_WAIT:
+			case CLOSE_WAIT:
+				if (fin && 0 == (flags & finDir))
+				{
+					state = Connection.State.LAST_ACK;
+					if (reply)
+					{ flags |= LAST_FIN_REPLY; }
+				}
+				else if (ack && 0 == (flags & finDir))
+				{ state = Connection.State.CLOSE_WAIT; }
+				break;
+			case LAST_ACK:
+				if (ack && !fin && reply != ((flags & LAST_FIN_REPLY) != 0))
+				{ state = Connection.State.TIME_WAIT; }
+				break;
+			default:
+				break;
+			}
+		}
+		if (fin)
+		{ flags |= finDir; }
+		if (Connection.State.ESTABLISHED == state
+				&& (flags & REPLY_SEEN) != 0)
+		{ flags |= ASSURED; }
+		seg.flags[slot] = flags;
+		seg.states[slot] = (byte)(state.ordinal() + 1);
+	}
+
+	/**
+	 * Reclaim expired connections from the next few slots.
+	 */
+	private void sweep(Segment seg, long now)
+	{
+		for (int i = 0; i < SWEEP_SLOTS; i++)
+		{
+			int slot = seg.sweep;
+			if (seg.states[slot] != 0 && seg.expires[slot] <= now)
+			{
+				this.expired.increment();
+				this.delete(seg, slot);
+			}
+			else
+			{ seg.sweep = (slot + 1) & seg.mask; }
+		}
+	}
+
+	/**
+	 * Make room in a full segment by dropping an expired or unassured
+	 * connection near a slot.
+	 * @return true if a connection was dropped
+	 */
+	private boolean earlyDrop(Segment seg, int hash, long now)
+	{
+		int slot = hash & seg.mask;
+		for (int i = 0; i < EARLY_DROP_PROBES; i++, slot = (slot + 1) & seg.mask)
+		{
+			if (0 == seg.states[slot])
+			{ continue; }
+			if (seg.expires[slot] <= now)
+			{
+				this.expired.increment();
+				this.delete(seg, slot);
+				return true;
+			}
+			if (0 == (seg.flags[slot] & ASSURED))
+			{
+				this.earlyDrops.increment();
+				this.delete(seg, slot);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Empty a slot, shifting later connections of the same probe sequence
+	 * back so that no lookup stops short of them.
+	 */
+	private void delete(Segment seg, int hole)
+	{
+		int mask = seg.mask;
+		if (seg.states[hole] != 0)
+		{ seg.count--; }
+		for (int slot = (hole + 1) & mask; seg.states[slot] != 0;
+				slot = (slot + 1) & mask)
+		{
+			int home = hash(seg.srcAddrs[slot], seg.ports[slot] >>> 16,
+					seg.dstAddrs[slot], seg.ports[slot] & 0xffff) & mask;
+			// Move the connection into the hole unless its probe sequence
+			// starts after the hole
+			if (((slot - home) & mask) >= ((slot - hole) & mask))
+			{
+				move(seg, slot, hole);
+				hole = slot;
+			}
+		}
+		seg.states[hole] = 0;
+	}
+
+	private static void move(Segment seg, int from, int to)
+	{
+		seg.srcAddrs[to] = seg.srcAddrs[from];
+		seg.dstAddrs[to] = seg.dstAddrs[from];
+		seg.ports[to] = seg.ports[from];
+		seg.states[to] = seg.states[from];
+		seg.flags[to] = seg.flags[from];
+		seg.expires[to] = seg.expires[from];
+		System.arraycopy(seg.counters, from * 4, seg.counters, to * 4, 4);
+	}
+
+	/**
+	 * Hash a connection's endpoints so that both directions hash alike; the
+	 * upper bits choose the segment, the lower bits the slot.
+	 */
+	private static int hash(int srcAddr, int srcPort, int dstAddr, int dstPort)
+	{
+		long src = ((srcAddr & 0xffffffffL) << 16) | srcPort;
+		long dst = ((dstAddr & 0xffffffffL) << 16) | dstPort;
+		long low = Math.min(src, dst);
+		long high = Math.max(src, dst);
+		long h = (low * 0x9E3779B97F4A7C15L) ^ high;
+		h *= 0xC2B2AE3D27D4EB4FL;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	/*********************************************************************
+	 * Queries
+	 *********************************************************************/
+
+	/**
+	 * Find the connection a packet with the given endpoints belongs to, in
+	 * either direction.
+	 * @return a copy of the connection; null if it is not tracked
+	 */
+	public Connection lookup(int srcAddr, int srcPort, int dstAddr,
+			int dstPort)
+	{
+		int hash = hash(srcAddr, srcPort, dstAddr, dstPort);
+		Segment seg = this.segments[hash >>> 28];
+		long now = System.currentTimeMillis();
+		synchronized (seg)
+		{
+			for (int slot = hash & seg.mask; seg.states[slot] != 0;
+					slot = (slot + 1) & seg.mask)
+			{
+				boolean orig = seg.srcAddrs[slot] == srcAddr
+						&& seg.dstAddrs[slot] == dstAddr
+						&& seg.ports[slot] == ((srcPort << 16) | dstPort);
+				boolean reply = seg.srcAddrs[slot] == dstAddr
+						&& seg.dstAddrs[slot] == srcAddr
+						&& seg.ports[slot] == ((dstPort << 16) | srcPort);
+				if (orig || reply)
+				{
+					return (seg.expires[slot] <= now) ? null
+							: connection(seg, slot);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return copies of all connections that have not expired
+	 */
+	public List<Connection> getConnections()
+	{
+		List<Connection> connections = new ArrayList<Connection>();
+		long now = System.currentTimeMillis();
+		for (Segment seg : this.segments)
+		{
+			synchronized (seg)
+			{
+				for (int slot = 0; slot <= seg.mask; slot++)
+				{
+					if (seg.states[slot] != 0 && seg.expires[slot] > now)
+					{ connections.add(connection(seg, slot)); }
+				}
+			}
+		}
+		return connections;
+	}
+
+	private static Connection connection(Segment seg, int slot)
+	{
+		int c = slot * 4;
+		return new Connection(seg.srcAddrs[slot], seg.ports[slot] >>> 16,
+				seg.dstAddrs[slot], seg.ports[slot] & 0xffff,
+				STATES[seg.states[slot] - 1],
+				(seg.flags[slot] & ASSURED) != 0, seg.expires[slot],
+				seg.counters[c], seg.counters[c + 1], seg.counters[c + 2],
+				seg.counters[c + 3]);
+	}
+
+	/**
+	 * @return number of connections, including expired ones not yet
+	 *         reclaimed
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (Segment seg : this.segments)
+		{ size += seg.count; }
+		return size;
+	}
+
+	/**
+	 * @return connections started
+	 */
+	public Counter getCreated()
+	{ return this.created; }
+
+	/**
+	 * @return connections forgotten after being idle too long
+	 */
+	public Counter getExpired()
+	{ return this.expired; }
+
+	/**
+	 * @return unassured connections dropped to make room for new ones
+	 */
+	public Counter getEarlyDrops()
+	{ return this.earlyDrops; }
+}
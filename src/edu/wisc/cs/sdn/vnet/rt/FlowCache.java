@@ -0,0 +1,263 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Exact-match cache of forwarding decisions, keyed on the IPv4 5-tuple and
+ * the interface on which the packet arrived. Each slot stores the resolved
+ * out interface and the Ethernet addresses to write into the frame, so
+ * packets after the first in a flow skip the route and ARP lookups.
+ * <p>
+ * The table uses open addressing with a bounded probe window; expired or
+ * stale slots are simply overwritten. Entries are stamped with the versions
+ * of the route table and ARP cache they were resolved from, and are ignored
+ * once either has changed. The cache is only used from the packet thread.
+ */
+public class FlowCache
+{
+	/** Default number of slots in the cache; must be a power of two */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/** Default timeout (in milliseconds) for idle flows */
+	public static final int DEFAULT_IDLE_TIMEOUT = 10 * 1000;
+
+	/** Maximum number of slots examined on lookup or install */
+	private static final int MAX_PROBES = 8;
+
+	private final int mask;
+	private final int idleTimeout;
+
+	/** Flow keys */
+	private final int[] srcAddrs;
+	private final int[] dstAddrs;
+	private final int[] ports;
+	private final byte[] protocols;
+	private final Iface[] inIfaces;
+
+	/** Forwarding actions */
+	private final Iface[] outIfaces;
+	private final MACAddress[] srcMacs;
+	private final MACAddress[] dstMacs;
+
+	/** Bookkeeping */
+	private final long[] lastUsed;
+	private final int[] routeVersions;
+	private final int[] arpVersions;
+
+	/** Number of lookups that hit and missed the cache */
+	private long hits;
+	private long misses;
+
+	/**
+	 * Create an empty flow cache with the default size and timeout.
+	 */
+	public FlowCache()
+	{ this(DEFAULT_CAPACITY, DEFAULT_IDLE_TIMEOUT); }
+
+	/**
+	 * Create an empty flow cache.
+	 * @param capacity number of slots; rounded up to a power of two
+	 * @param idleTimeout time (in milliseconds) after which an unused flow
+	 *        is no longer matched
+	 */
+	public FlowCache(int capacity, int idleTimeout)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) - 1) << 1;
+		this.mask = size - 1;
+		this.idleTimeout = idleTimeout;
+		this.srcAddrs = new int[size];
+		this.dstAddrs = new int[size];
+		this.ports = new int[size];
+		this.protocols = new byte[size];
+		this.inIfaces = new Iface[size];
+		this.outIfaces = new Iface[size];
+		this.srcMacs = new MACAddress[size];
+		this.dstMacs = new MACAddress[size];
+		this.lastUsed = new long[size];
+		this.routeVersions = new int[size];
+		this.arpVersions = new int[size];
+	}
+
+	/**
+	 * Extract the transport ports of a packet.
+	 * @param ipPacket the IPv4 packet
+	 * @return source port in the upper 16 bits and destination port in the
+	 *         lower 16 bits; 0 if the packet is not TCP or UDP, or is a
+	 *         fragment, since only the first fragment carries the ports
+	 */
+	static int getPorts(IPv4 ipPacket)
+	{
+		if (ipPacket.isFragment())
+		{ return 0; }
+		IPacket payload = ipPacket.getPayload();
+		if (payload instanceof TCP)
+		{
+			TCP tcp = (TCP)payload;
+			return (tcp.getSourcePort() << 16)
+					| (tcp.getDestinationPort() & 0xffff);
+		}
+		if (payload instanceof UDP)
+		{
+			UDP udp = (UDP)payload;
+			return (udp.getSourcePort() << 16)
+					| (udp.getDestinationPort() & 0xffff);
+		}
+		return 0;
+	}
+
+	private int hash(int srcAddr, int dstAddr, int portPair, byte protocol)
+	{
+		int h = srcAddr * 0x9E3779B1;
+		h = (h ^ dstAddr) * 0x85EBCA6B;
+		h = (h ^ portPair) * 0xC2B2AE35;
+		h ^= protocol;
+		return (h ^ (h >>> 16)) & this.mask;
+	}
+
+	private boolean isLive(int slot, long now, int routeVersion,
+			int arpVersion)
+	{
+		return (this.outIfaces[slot] != null)
+				&& (now - this.lastUsed[slot] <= this.idleTimeout)
+				&& (this.routeVersions[slot] == routeVersion)
+				&& (this.arpVersions[slot] == arpVersion);
+	}
+
+	/**
+	 * Find the cached forwarding action for a packet.
+	 * @param ipPacket the IPv4 packet
+	 * @param inIface the interface on which the packet was received
+	 * @param routeVersion current version of the route table
+	 * @param arpVersion current version of the ARP cache
+	 * @return the slot holding the action; -1 if the flow is not cached
+	 */
+	public int lookup(IPv4 ipPacket, Iface inIface, int routeVersion,
+			int arpVersion)
+	{
+		int srcAddr = ipPacket.getSourceAddress();
+		int dstAddr = ipPacket.getDestinationAddress();
+		int portPair = getPorts(ipPacket);
+		byte protocol = ipPacket.getProtocol();
+		long now = System.currentTimeMillis();
+
+		int slot = this.hash(srcAddr, dstAddr, portPair, protocol);
+		for (int i = 0; i < MAX_PROBES; i++)
+		{
+			if (this.inIfaces[slot] == inIface
+					&& this.dstAddrs[slot] == dstAddr
+					&& this.srcAddrs[slot] == srcAddr
+					&& this.ports[slot] == portPair
+					&& this.protocols[slot] == protocol
+					&& this.isLive(slot, now, routeVersion, arpVersion))
+			{
+				this.lastUsed[slot] = now;
+				this.hits++;
+				return slot;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		this.misses++;
+		return -1;
+	}
+
+	/**
+	 * Cache the forwarding action for a packet's flow.
+	 * @param ipPacket the IPv4 packet
+	 * @param inIface the interface on which the packet was received
+	 * @param outIface the interface out which the packet was sent
+	 * @param dstMac destination MAC address written into the frame
+	 * @param routeVersion version of the route table used to resolve the action
+	 * @param arpVersion version of the ARP cache used to resolve the action
+	 */
+	public void install(IPv4 ipPacket, Iface inIface, Iface outIface,
+			MACAddress dstMac, int routeVersion, int arpVersion)
+	{
+		int srcAddr = ipPacket.getSourceAddress();
+		int dstAddr = ipPacket.getDestinationAddress();
+		int portPair = getPorts(ipPacket);
+		byte protocol = ipPacket.getProtocol();
+		long now = System.currentTimeMillis();
+
+		// Use the first dead slot in the probe window, otherwise evict the
+		// least recently used one
+		int start = this.hash(srcAddr, dstAddr, portPair, protocol);
+		int victim = start;
+		int slot = start;
+		for (int i = 0; i < MAX_PROBES; i++)
+		{
+			if (!this.isLive(slot, now, routeVersion, arpVersion))
+			{
+				victim = slot;
+				break;
+			}
+			if (this.lastUsed[slot] < this.lastUsed[victim])
+			{ victim = slot; }
+			slot = (slot + 1) & this.mask;
+		}
+
+		this.srcAddrs[victim] = srcAddr;
+		this.dstAddrs[victim] = dstAddr;
+		this.ports[victim] = portPair;
+		this.protocols[victim] = protocol;
+		this.inIfaces[victim] = inIface;
+		this.outIfaces[victim] = outIface;
+		this.srcMacs[victim] = outIface.getMacAddress();
+		this.dstMacs[victim] = dstMac;
+		this.lastUsed[victim] = now;
+		this.routeVersions[victim] = routeVersion;
+		this.arpVersions[victim] = arpVersion;
+	}
+
+	/**
+	 * Remove all flows from the cache.
+	 */
+	public void clear()
+	{
+		for (int i = 0; i <= this.mask; i++)
+		{
+			this.inIfaces[i] = null;
+			this.outIfaces[i] = null;
+			this.srcMacs[i] = null;
+			this.dstMacs[i] = null;
+		}
+	}
+
+	/**
+	 * @param slot a slot returned by lookup
+	 * @return the interface out which packets in the flow should be sent
+	 */
+	public Iface getOutInterface(int slot)
+	{ return this.outIfaces[slot]; }
+
+	/**
+	 * @param slot a slot returned by lookup
+	 * @return the source MAC address to write into frames in the flow
+	 */
+	public MACAddress getSourceMac(int slot)
+	{ return this.srcMacs[slot]; }
+
+	/**
+	 * @param slot a slot returned by lookup
+	 * @return the destination MAC address to write into frames in the flow
+	 */
+	public MACAddress getDestinationMac(int slot)
+	{ return this.dstMacs[slot]; }
+
+	/**
+	 * @return number of lookups that found a cached flow
+	 */
+	public long getHits()
+	{ return this.hits; }
+
+	/**
+	 * @return number of lookups that did not find a cached flow
+	 */
+	public long getMisses()
+	{ return this.misses; }
+}
@@ -0,0 +1,60 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * The set of IP addresses a router accepts packets for: the addresses of its
+ * interfaces plus any multicast groups it listens to. Stored as a sorted
+ * array so membership is a single binary search; the array is replaced, not
+ * modified, when the interfaces change.
+ */
+public class LocalAddressSet
+{
+	/** Sorted local addresses */
+	private volatile int[] addresses;
+
+	/** Multicast groups that are always considered local */
+	private final int[] groups;
+
+	/**
+	 * Create an empty set of local addresses.
+	 * @param groups multicast groups that are always considered local
+	 */
+	public LocalAddressSet(int... groups)
+	{
+		this.groups = groups.clone();
+		this.addresses = new int[0];
+		this.rebuild(null);
+	}
+
+	/**
+	 * Recompute the set from a device's interfaces.
+	 * @param interfaces the device's interfaces; null if it has none
+	 */
+	public void rebuild(Collection<Iface> interfaces)
+	{
+		int count = (null == interfaces) ? 0 : interfaces.size();
+		int[] updated = new int[count + this.groups.length];
+		int i = 0;
+		if (interfaces != null)
+		{
+			for (Iface iface : interfaces)
+			{ updated[i++] = iface.getIpAddress(); }
+		}
+		for (int group : this.groups)
+		{ updated[i++] = group; }
+		Arrays.sort(updated);
+		this.addresses = updated;
+	}
+
+	/**
+	 * Checks if an address is local.
+	 * @param ip IP address
+	 * @return true if the address belongs to the router, otherwise false
+	 */
+	public boolean contains(int ip)
+	{ return Arrays.binarySearch(this.addresses, ip) >= 0; }
+}
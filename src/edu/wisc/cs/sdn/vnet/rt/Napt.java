@@ -0,0 +1,742 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.log.Logger;
+import edu.wisc.cs.sdn.vnet.metrics.Counter;
+
+/**
+ * Network address and port translation (RFC 3022) of TCP and UDP packets a
+ * router forwards out of its outside interfaces. The source of each packet
+ * from an inside host is rewritten to the outside interface's address and a
+ * port allocated for the connection; replies to that address and port are
+ * rewritten back to the inside host. Translations are keyed by the full
+ * 5-tuple in each direction, so a port is reused for connections to
+ * different remote endpoints once every port is in use, and a reply is
+ * only translated if it comes from the endpoint the connection was made to.
+ * Other protocols, and fragments, cannot be translated and are dropped.
+ * <p>
+ * Translations are kept in parallel primitive arrays indexed by entry, with
+ * an open-addressing hash table of entry indices for each direction, so
+ * lookups allocate nothing and a million translations cost tens of
+ * megabytes. Checksums are updated incrementally (RFC 1624) for the fields
+ * that change, without summing the payload.
+ * <p>
+ * Idle translations expire after {@link #UDP_TIMEOUT}, or for TCP after
+ * {@link #TCP_ESTABLISHED_TIMEOUT} once replies have been seen and
+ * {@link #TCP_TRANSITORY_TIMEOUT} before that or after a FIN or RST. Expiry
+ * uses a hashed timing wheel with one-second ticks: using a translation
+ * only moves its expiry time, and the wheel slot it sits in rechecks it when
+ * the slot comes around, so a translation is removed within one turn of the
+ * wheel after it expires.
+ * <p>
+ * The configuration file lists one outside interface per line, optionally
+ * with the range of ports to allocate:
+ * <pre>
+ *   eth3
+ *   eth4 20000-29999
+ * </pre>
+ * Blank lines and lines starting with # are ignored. Not thread-safe; only
+ * the thread that handles the router's packets may translate packets.
+ */
+public class Napt
+{
+	private static final Logger LOG = Logger.getLogger(Napt.class);
+
+	/** Default limit on the number of translations */
+	public static final int DEFAULT_MAX_TRANSLATIONS = 1 << 20;
+
+	/** Idle timeouts (in milliseconds), per RFC 4787 and RFC 5382 */
+	public static final int UDP_TIMEOUT = 300 * 1000;
+	public static final int TCP_TRANSITORY_TIMEOUT = 240 * 1000;
+	public static final int TCP_ESTABLISHED_TIMEOUT = 7440 * 1000;
+
+	/** Ports allocated on interfaces configured without a range */
+	public static final int DEFAULT_LOW_PORT = 1024;
+	public static final int DEFAULT_HIGH_PORT = 65535;
+
+	/** Number of in-use ports tried before giving up on a translation */
+	private static final int MAX_SHARED_PROBES = 64;
+
+	/** Entries allocated before the first translation is made */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** Timing wheel slots, each one tick (in milliseconds) wide */
+	private static final int WHEEL_SIZE = 512;
+	private static final int TICK = 1000;
+
+	/** TCP connection states */
+	private static final byte STATE_NEW = 0;
+	private static final byte STATE_ESTABLISHED = 1;
+	private static final byte STATE_CLOSING = 2;
+
+	private static final short TCP_FIN = 0x01;
+	private static final short TCP_RST = 0x04;
+
+	private final int maxTranslations;
+
+	/** Outside interfaces, and their port allocators for TCP and UDP */
+	private Iface[] outside;
+	private PortAllocator[] tcpPorts;
+	private PortAllocator[] udpPorts;
+
+	/** Translations, by entry; a protocol of 0 marks a free entry */
+	private int[] insideAddrs;
+	private int[] remoteAddrs;
+	/** Inside port in the upper 16 bits, remote port in the lower 16 */
+	private int[] ports;
+	private int[] mappedPorts;
+	private byte[] protocols;
+	private byte[] ifaces;
+	private byte[] states;
+	private long[] expires;
+
+	/** Next entry in the same wheel slot, or in the free list */
+	private int[] next;
+
+	/** Hash tables of entry indices plus one, by outbound and inbound key;
+	 *  0 marks an empty slot */
+	private int[] outTable;
+	private int[] inTable;
+
+	/** Free entries */
+	private int freeHead;
+
+	/** Heads of the wheel slots' lists; -1 if a slot is empty */
+	private final int[] wheel;
+
+	/** Last tick the wheel has been advanced to */
+	private long tick;
+
+	/** Number of translations */
+	private volatile int size;
+
+	/** Translations made and expired, and packets that could not be
+	 *  translated */
+	private final Counter created;
+	private final Counter expired;
+	private final Counter exhausted;
+	private final Counter unsupported;
+
+	/**
+	 * Create a translator without outside interfaces and with the default
+	 * limit on translations.
+	 */
+	public Napt()
+	{ this(DEFAULT_MAX_TRANSLATIONS); }
+
+	/**
+	 * Create a translator without outside interfaces.
+	 * @param maxTranslations limit on the number of translations
+	 */
+	public Napt(int maxTranslations)
+	{
+		this.maxTranslations = maxTranslations;
+		this.outside = new Iface[0];
+		this.tcpPorts = new PortAllocator[0];
+		this.udpPorts = new PortAllocator[0];
+		this.wheel = new int[WHEEL_SIZE];
+		Arrays.fill(this.wheel, -1);
+		this.tick = System.currentTimeMillis() / TICK;
+		this.allocate(Math.min(INITIAL_CAPACITY, maxTranslations));
+		this.created = new Counter();
+		this.expired = new Counter();
+		this.exhausted = new Counter();
+		this.unsupported = new Counter();
+	}
+
+	/**
+	 * Translate packets forwarded out of an interface.
+	 * @param iface the interface
+	 * @param lowPort lowest port to allocate
+	 * @param highPort highest port to allocate
+	 * @return true if the interface was added; false if it already was
+	 */
+	public boolean addOutside(Iface iface, int lowPort, int highPort)
+	{
+		if (this.indexOf(iface) >= 0 || this.outside.length > Byte.MAX_VALUE)
+		{ return false; }
+		int n = this.outside.length;
+		this.outside = Arrays.copyOf(this.outside, n + 1);
+		this.tcpPorts = Arrays.copyOf(this.tcpPorts, n + 1);
+		this.udpPorts = Arrays.copyOf(this.udpPorts, n + 1);
+		this.outside[n] = iface;
+		this.tcpPorts[n] = new PortAllocator(lowPort, highPort);
+		this.udpPorts[n] = new PortAllocator(lowPort, highPort);
+		return true;
+	}
+
+	/**
+	 * Read outside interfaces from a file.
+	 * @param filename name of the file
+	 * @param device the device whose interfaces are listed
+	 * @return true if the file was loaded, otherwise false
+	 */
+	public boolean load(String filename, Device device)
+	{
+		int lineNumber = 0;
+		try (BufferedReader reader = new BufferedReader(
+				new FileReader(filename)))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+				{ continue; }
+
+				String[] fields = line.split("\\s+");
+				int[] range = (2 == fields.length) ? parseRange(fields[1])
+						: new int[] { DEFAULT_LOW_PORT, DEFAULT_HIGH_PORT };
+				Iface iface = device.getInterface(fields[0]);
+				if (fields.length > 2 || null == range || null == iface
+						|| !this.addOutside(iface, range[0], range[1]))
+				{
+					LOG.error(filename+":"+lineNumber+": invalid entry");
+					return false;
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.error(e.toString());
+			return false;
+		}
+		return true;
+	}
+
+	private static int[] parseRange(String s)
+	{
+		int dash = s.indexOf('-');
+		if (dash < 0)
+		{ return null; }
+		try
+		{
+			int low = Integer.parseInt(s.substring(0, dash));
+			int high = Integer.parseInt(s.substring(dash + 1));
+			return (low > 0 && low <= high && high <= 0xffff)
+					? new int[] { low, high } : null;
+		}
+		catch (NumberFormatException e)
+		{ return null; }
+	}
+
+	private int indexOf(Iface iface)
+	{
+		for (int i = 0; i < this.outside.length; i++)
+		{
+			if (this.outside[i] == iface)
+			{ return i; }
+		}
+		return -1;
+	}
+
+	/**
+	 * @param iface an interface
+	 * @return true if packets forwarded out of the interface are translated
+	 */
+	public boolean isOutside(Iface iface)
+	{ return (this.indexOf(iface) >= 0); }
+
+	/*********************************************************************
+	 * Translation
+	 *********************************************************************/
+
+	/**
+	 * Translate the source of a packet forwarded from an inside interface
+	 * out of an outside interface, making a translation if there is none.
+	 * Packets between two outside or two inside interfaces are unchanged.
+	 * @param ipPacket the packet
+	 * @param inIface the interface on which the packet was received
+	 * @param outIface the interface out of which the packet is forwarded
+	 * @return true if the packet may be sent; false if it must be dropped
+	 *         because it cannot be translated
+	 */
+	public boolean translateOutbound(IPv4 ipPacket, Iface inIface,
+			Iface outIface)
+	{
+		int iface = this.indexOf(outIface);
+		if (iface < 0 || this.indexOf(inIface) >= 0)
+		{ return true; }
+
+		IPacket transport = ipPacket.isFragment() ? null
+				: ipPacket.getPayload();
+		if (!(transport instanceof TCP || transport instanceof UDP))
+		{
+			this.unsupported.increment();
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		this.advance(now);
+
+		byte protocol = ipPacket.getProtocol();
+		int insideAddr = ipPacket.getSourceAddress();
+		int remoteAddr = ipPacket.getDestinationAddress();
+		int ports = (getSourcePort(transport) << 16)
+				| getDestinationPort(transport);
+		int entry = this.findOutbound(insideAddr, remoteAddr, ports, protocol,
+				iface);
+		if (entry < 0)
+		{
+			entry = this.create(insideAddr, remoteAddr, ports, protocol, iface,
+					now);
+			if (entry < 0)
+			{
+				this.exhausted.increment();
+				return false;
+			}
+		}
+		this.refresh(entry, transport, false, now);
+		rewrite(ipPacket, transport, true, outIface.getIpAddress(),
+				this.mappedPorts[entry]);
+		return true;
+	}
+
+	/**
+	 * Translate the destination of a reply received on an outside
+	 * interface back to the inside host that made the connection.
+	 * @param ipPacket the packet
+	 * @param inIface the interface on which the packet was received
+	 * @return true if the packet was translated, otherwise false
+	 */
+	public boolean translateInbound(IPv4 ipPacket, Iface inIface)
+	{
+		int iface = this.indexOf(inIface);
+		if (iface < 0 || ipPacket.getDestinationAddress()
+				!= inIface.getIpAddress() || ipPacket.isFragment())
+		{ return false; }
+		IPacket transport = ipPacket.getPayload();
+		if (!(transport instanceof TCP || transport instanceof UDP))
+		{ return false; }
+		long now = System.currentTimeMillis();
+		this.advance(now);
+
+		int entry = this.findInbound(iface, ipPacket.getProtocol(),
+				getDestinationPort(transport), ipPacket.getSourceAddress(),
+				getSourcePort(transport));
+		if (entry < 0)
+		{ return false; }
+		this.refresh(entry, transport, true, now);
+		rewrite(ipPacket, transport, false, this.insideAddrs[entry],
+				this.ports[entry] >>> 16);
+		return true;
+	}
+
+	private static int getSourcePort(IPacket transport)
+	{
+		if (transport instanceof TCP)
+		{ return ((TCP)transport).getSourcePort() & 0xffff; }
+		return ((UDP)transport).getSourcePort() & 0xffff;
+	}
+
+	private static int getDestinationPort(IPacket transport)
+	{
+		if (transport instanceof TCP)
+		{ return ((TCP)transport).getDestinationPort() & 0xffff; }
+		return ((UDP)transport).getDestinationPort() & 0xffff;
+	}
+
+	/**
+	 * Move a translation's expiry time after a packet uses it.
+	 * @param inbound true if the packet is a reply
+	 */
+	private void refresh(int entry, IPacket transport, boolean inbound,
+			long now)
+	{
+		int timeout = UDP_TIMEOUT;
+		if (transport instanceof TCP)
+		{
+			short flags = ((TCP)transport).getFlags();
+			if ((flags & (TCP_FIN | TCP_RST)) != 0)
+			{ this.states[entry] = STATE_CLOSING; }
+			else if (inbound && STATE_NEW == this.states[entry])
+			{ this.states[entry] = STATE_ESTABLISHED; }
+			timeout = (STATE_ESTABLISHED == this.states[entry])
+					? TCP_ESTABLISHED_TIMEOUT : TCP_TRANSITORY_TIMEOUT;
+		}
+		this.expires[entry] = now + timeout;
+	}
+
+	/**
+	 * Rewrite a packet's source or destination address and port, adjusting
+	 * the checksums for the changed fields.
+	 */
+	private static void rewrite(IPv4 ipPacket, IPacket transport,
+			boolean source, int addr, int port)
+	{
+		int oldAddr = source ? ipPacket.getSourceAddress()
+				: ipPacket.getDestinationAddress();
+		int oldPort = source ? getSourcePort(transport)
+				: getDestinationPort(transport);
+
+		// The transport checksum covers the addresses in its pseudo-header
+		if (transport instanceof TCP)
+		{
+			TCP tcp = (TCP)transport;
+			tcp.setChecksum(adjust(adjust(tcp.getChecksum(), oldAddr, addr),
+					oldPort, port));
+			if (source)
+			{ tcp.setSourcePort((short)port); }
+			else
+			{ tcp.setDestinationPort((short)port); }
+		}
+		else
+		{
+			UDP udp = (UDP)transport;
+			// A UDP checksum of 0 means the sender did not compute one
+			if (udp.getChecksum() != 0)
+			{
+				udp.setChecksum(adjust(adjust(udp.getChecksum(), oldAddr,
+						addr), oldPort, port));
+			}
+			if (source)
+			{ udp.setSourcePort((short)port); }
+			else
+			{ udp.setDestinationPort((short)port); }
+		}
+
+		// A header checksum of 0 is recomputed when the packet is serialized
+		if (ipPacket.getChecksum() != 0)
+		{ ipPacket.setChecksum(adjust(ipPacket.getChecksum(), oldAddr, addr)); }
+		if (source)
+		{ ipPacket.setSourceAddress(addr); }
+		else
+		{ ipPacket.setDestinationAddress(addr); }
+	}
+
+	/**
+	 * Update a ones' complement checksum for a 32-bit field that changed
+	 * (RFC 1624, equation 3), one 16-bit half at a time; ports are passed
+	 * with an upper half of 0, which cancels out.
+	 * @return the new checksum; never 0, which would make serialization
+	 *         recompute the checksum over the whole packet
+	 */
+	static short adjust(short checksum, int oldValue, int newValue)
+	{
+		int sum = (~checksum & 0xffff)
+				+ (~oldValue >>> 16 & 0xffff) + (newValue >>> 16)
+				+ (~oldValue & 0xffff) + (newValue & 0xffff);
+		sum = (sum & 0xffff) + (sum >>> 16);
+		sum = (sum & 0xffff) + (sum >>> 16);
+		int result = ~sum & 0xffff;
+		return (short)((0 == result) ? 0xffff : result);
+	}
+
+	/*********************************************************************
+	 * Table
+	 *********************************************************************/
+
+	private static int hash(int a, int b, int c, int d)
+	{
+		int h = a * 0x9E3779B1;
+		h = (h ^ b) * 0x85EBCA6B;
+		h = (h ^ c) * 0xC2B2AE35;
+		h = (h ^ d) * 0x9E3779B1;
+		return h ^ (h >>> 16);
+	}
+
+	private static int outboundHash(int insideAddr, int remoteAddr,
+			int ports, byte protocol, int iface)
+	{ return hash(insideAddr, remoteAddr, ports, (protocol << 8) | iface); }
+
+	private static int inboundHash(int iface, byte protocol, int mappedPort,
+			int remoteAddr, int remotePort)
+	{
+		return hash(remoteAddr, iface, (mappedPort << 16) | remotePort,
+				protocol);
+	}
+
+	private int outboundHash(int entry)
+	{
+		return outboundHash(this.insideAddrs[entry], this.remoteAddrs[entry],
+				this.ports[entry], this.protocols[entry], this.ifaces[entry]);
+	}
+
+	private int inboundHash(int entry)
+	{
+		return inboundHash(this.ifaces[entry], this.protocols[entry],
+				this.mappedPorts[entry], this.remoteAddrs[entry],
+				this.ports[entry] & 0xffff);
+	}
+
+	private int findOutbound(int insideAddr, int remoteAddr, int ports,
+			byte protocol, int iface)
+	{
+		int mask = this.outTable.length - 1;
+		int slot = outboundHash(insideAddr, remoteAddr, ports, protocol, iface)
+				& mask;
+		for (int e; (e = this.outTable[slot]) != 0; slot = (slot + 1) & mask)
+		{
+			e--;
+			if (this.insideAddrs[e] == insideAddr
+					&& this.remoteAddrs[e] == remoteAddr && this.ports[e] == ports
+					&& this.protocols[e] == protocol && this.ifaces[e] == iface)
+			{ return e; }
+		}
+		return -1;
+	}
+
+	private int findInbound(int iface, byte protocol, int mappedPort,
+			int remoteAddr, int remotePort)
+	{
+		int mask = this.inTable.length - 1;
+		int slot = inboundHash(iface, protocol, mappedPort, remoteAddr,
+				remotePort) & mask;
+		for (int e; (e = this.inTable[slot]) != 0; slot = (slot + 1) & mask)
+		{
+			e--;
+			if (this.mappedPorts[e] == mappedPort
+					&& this.remoteAddrs[e] == remoteAddr
+					&& (this.ports[e] & 0xffff) == remotePort
+					&& this.protocols[e] == protocol && this.ifaces[e] == iface)
+			{ return e; }
+		}
+		return -1;
+	}
+
+	/**
+	 * Make a translation, allocating a port for it.
+	 * @return the translation's entry; -1 if there are too many translations
+	 *         or no port can be allocated
+	 */
+	private int create(int insideAddr, int remoteAddr, int ports,
+			byte protocol, int iface, long now)
+	{
+		if (this.freeHead < 0)
+		{
+			if (this.protocols.length >= this.maxTranslations)
+			{ return -1; }
+			this.allocate(Math.min(this.protocols.length * 2,
+					this.maxTranslations));
+		}
+
+		PortAllocator allocator = (IPv4.PROTOCOL_TCP == protocol)
+				? this.tcpPorts[iface] : this.udpPorts[iface];
+		int port = allocator.allocateFree();
+		// Every port is in use; share one with translations to other remote
+		// endpoints
+		for (int i = 0; port < 0 && i < MAX_SHARED_PROBES; i++)
+		{
+			int candidate = allocator.next();
+			if (this.findInbound(iface, protocol, candidate, remoteAddr,
+					ports & 0xffff) < 0)
+			{ port = candidate; }
+		}
+		if (port < 0)
+		{ return -1; }
+		allocator.use(port);
+
+		int entry = this.freeHead;
+		this.freeHead = this.next[entry];
+		this.insideAddrs[entry] = insideAddr;
+		this.remoteAddrs[entry] = remoteAddr;
+		this.ports[entry] = ports;
+		this.mappedPorts[entry] = port;
+		this.protocols[entry] = protocol;
+		this.ifaces[entry] = (byte)iface;
+		this.states[entry] = STATE_NEW;
+		this.expires[entry] = now;
+		insert(this.outTable, entry, this.outboundHash(entry));
+		insert(this.inTable, entry, this.inboundHash(entry));
+		this.link(entry, now + TICK);
+		this.size++;
+		this.created.increment();
+		return entry;
+	}
+
+	/**
+	 * Remove a translation and free its port.
+	 */
+	private void remove(int entry)
+	{
+		this.delete(this.outTable, entry, this.outboundHash(entry), true);
+		this.delete(this.inTable, entry, this.inboundHash(entry), false);
+		PortAllocator allocator = (IPv4.PROTOCOL_TCP == this.protocols[entry])
+				? this.tcpPorts[this.ifaces[entry]]
+				: this.udpPorts[this.ifaces[entry]];
+		allocator.release(this.mappedPorts[entry]);
+		this.protocols[entry] = 0;
+		this.next[entry] = this.freeHead;
+		this.freeHead = entry;
+		this.size--;
+	}
+
+	private static void insert(int[] table, int entry, int hash)
+	{
+		int mask = table.length - 1;
+		int slot = hash & mask;
+		while (table[slot] != 0)
+		{ slot = (slot + 1) & mask; }
+		table[slot] = entry + 1;
+	}
+
+	/**
+	 * Delete an entry from a hash table, shifting later entries of the same
+	 * probe sequence back so that no lookup stops short of them.
+	 */
+	private void delete(int[] table, int entry, int hash, boolean outbound)
+	{
+		int mask = table.length - 1;
+		int hole = hash & mask;
+		while (table[hole] != entry + 1)
+		{ hole = (hole + 1) & mask; }
+		for (int slot = (hole + 1) & mask; table[slot] != 0;
+				slot = (slot + 1) & mask)
+		{
+			int other = table[slot] - 1;
+			int home = (outbound ? this.outboundHash(other)
+					: this.inboundHash(other)) & mask;
+			// Move the entry into the hole unless its probe sequence starts
+			// after the hole
+			if (((slot - home) & mask) >= ((slot - hole) & mask))
+			{
+				table[hole] = table[slot];
+				hole = slot;
+			}
+		}
+		table[hole] = 0;
+	}
+
+	/**
+	 * Grow the entry arrays, and rebuild the hash tables at twice their
+	 * size.
+	 */
+	private void allocate(int capacity)
+	{
+		int old = (null == this.protocols) ? 0 : this.protocols.length;
+		if (0 == old)
+		{
+			this.insideAddrs = new int[capacity];
+			this.remoteAddrs = new int[capacity];
+			this.ports = new int[capacity];
+			this.mappedPorts = new int[capacity];
+			this.protocols = new byte[capacity];
+			this.ifaces = new byte[capacity];
+			this.states = new byte[capacity];
+			this.expires = new long[capacity];
+			this.next = new int[capacity];
+		}
+		else
+		{
+			this.insideAddrs = Arrays.copyOf(this.insideAddrs, capacity);
+			this.remoteAddrs = Arrays.copyOf(this.remoteAddrs, capacity);
+			this.ports = Arrays.copyOf(this.ports, capacity);
+			this.mappedPorts = Arrays.copyOf(this.mappedPorts, capacity);
+			this.protocols = Arrays.copyOf(this.protocols, capacity);
+			this.ifaces = Arrays.copyOf(this.ifaces, capacity);
+			this.states = Arrays.copyOf(this.states, capacity);
+			this.expires = Arrays.copyOf(this.expires, capacity);
+			this.next = Arrays.copyOf(this.next, capacity);
+		}
+		this.freeHead = -1;
+		for (int entry = capacity - 1; entry >= old; entry--)
+		{
+			this.next[entry] = this.freeHead;
+			this.freeHead = entry;
+		}
+
+		int tableSize = Integer.highestOneBit(capacity) << 2;
+		this.outTable = new int[tableSize];
+		this.inTable = new int[tableSize];
+		for (int entry = 0; entry < old; entry++)
+		{
+			if (this.protocols[entry] != 0)
+			{
+				insert(this.outTable, entry, this.outboundHash(entry));
+				insert(this.inTable, entry, this.inboundHash(entry));
+			}
+		}
+	}
+
+	/*********************************************************************
+	 * Timing wheel
+	 *********************************************************************/
+
+	/**
+	 * Add a translation to the wheel slot for a time.
+	 */
+	private void link(int entry, long time)
+	{
+		int slot = (int)((time / TICK) & (WHEEL_SIZE - 1));
+		this.next[entry] = this.wheel[slot];
+		this.wheel[slot] = entry;
+	}
+
+	/**
+	 * Check the wheel slots for every tick since the last advance, removing
+	 * expired translations and moving the rest to the slots for their
+	 * expiry times.
+	 */
+	private void advance(long now)
+	{
+		long tick = now / TICK;
+		long steps = Math.min(tick - this.tick, WHEEL_SIZE);
+		for (long t = this.tick + 1; t <= this.tick + steps; t++)
+		{
+			int slot = (int)(t & (WHEEL_SIZE - 1));
+			int entry = this.wheel[slot];
+			this.wheel[slot] = -1;
+			while (entry >= 0)
+			{
+				int following = this.next[entry];
+				if (this.expires[entry] <= now)
+				{
+					this.remove(entry);
+					this.expired.increment();
+				}
+				else
+				{ this.link(entry, Math.max(this.expires[entry], now + TICK)); }
+				entry = following;
+			}
+		}
+		if (tick > this.tick)
+		{ this.tick = tick; }
+	}
+
+	/*********************************************************************
+	 * Statistics
+	 *********************************************************************/
+
+	/**
+	 * @return number of translations, including expired ones not yet
+	 *         removed; safe to call from any thread
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * @return translations made
+	 */
+	public Counter getCreated()
+	{ return this.created; }
+
+	/**
+	 * @return translations removed after being idle too long
+	 */
+	public Counter getExpired()
+	{ return this.expired; }
+
+	/**
+	 * @return packets dropped because no translation could be made for them
+	 */
+	public Counter getExhausted()
+	{ return this.exhausted; }
+
+	/**
+	 * @return packets dropped because their protocol cannot be translated,
+	 *         or they were fragments
+	 */
+	public Counter getUnsupported()
+	{ return this.unsupported; }
+}
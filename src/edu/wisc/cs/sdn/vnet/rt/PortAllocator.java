@@ -0,0 +1,89 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * Hands out the ports of one outside interface and protocol to address
+ * translations. Free ports are handed out first, next-fit from a cursor, so
+ * a port just released is not reused while replies to its old translation
+ * may still arrive. Once every port is in use, ports are shared by
+ * translations to different remote endpoints; the caller checks that the
+ * remote endpoint does not already use the port. Not thread-safe.
+ */
+class PortAllocator
+{
+	/** Lowest and highest port handed out */
+	private final int low;
+	private final int high;
+
+	/** Number of translations using each port, indexed by port - low */
+	private final int[] users;
+
+	/** Number of ports no translation uses */
+	private int free;
+
+	/** Port at which the next search starts */
+	private int cursor;
+
+	/**
+	 * @param low lowest port to hand out
+	 * @param high highest port to hand out
+	 */
+	PortAllocator(int low, int high)
+	{
+		this.low = low;
+		this.high = high;
+		this.users = new int[high - low + 1];
+		this.free = this.users.length;
+		this.cursor = low;
+	}
+
+	/**
+	 * @return a port no translation uses; -1 if every port is in use
+	 */
+	int allocateFree()
+	{
+		if (0 == this.free)
+		{ return -1; }
+		while (this.users[this.cursor - this.low] != 0)
+		{ this.cursor = this.advance(this.cursor); }
+		int port = this.cursor;
+		this.cursor = this.advance(port);
+		return port;
+	}
+
+	/**
+	 * @return the next port in turn, whether or not it is in use
+	 */
+	int next()
+	{
+		int port = this.cursor;
+		this.cursor = this.advance(port);
+		return port;
+	}
+
+	private int advance(int port)
+	{ return (port == this.high) ? this.low : port + 1; }
+
+	/**
+	 * Record that a translation uses a port.
+	 */
+	void use(int port)
+	{
+		if (0 == this.users[port - this.low]++)
+		{ this.free--; }
+	}
+
+	/**
+	 * Record that a translation no longer uses a port.
+	 */
+	void release(int port)
+	{
+		if (0 == --this.users[port - this.low])
+		{ this.free++; }
+	}
+
+	/**
+	 * @return number of ports handed out
+	 */
+	int size()
+	{ return this.users.length; }
+}
@@ -0,0 +1,238 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Longest-prefix-match index over route entries: one open-addressing hash
+ * table per prefix length, keyed on the masked destination. A lookup probes
+ * the non-empty tables from the longest prefix to the shortest, so its cost
+ * depends on the number of distinct prefix lengths, not the number of
+ * routes. Entries with non-contiguous masks are kept in a list and checked
+ * on every lookup. Not thread-safe; the route table synchronizes access.
+ */
+class PrefixIndex
+{
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** Tables, indexed by prefix length; null if there are no entries with
+	 *  that length */
+	private final Table[] tables;
+
+	/** Prefix lengths that have entries, longest first */
+	private int[] lengths;
+
+	/** Entries whose masks are not contiguous */
+	private final List<RouteEntry> irregular;
+
+	PrefixIndex()
+	{
+		this.tables = new Table[33];
+		this.lengths = new int[0];
+		this.irregular = new ArrayList<RouteEntry>();
+	}
+
+	/**
+	 * @return prefix length of a mask; -1 if the mask is not contiguous
+	 */
+	private static int prefixLength(int mask)
+	{
+		int length = Integer.bitCount(mask);
+		return (mask == prefixMask(length)) ? length : -1;
+	}
+
+	private static int prefixMask(int length)
+	{ return (0 == length) ? 0 : (-1 << (32 - length)); }
+
+	/**
+	 * Add an entry, unless an entry for the same prefix is already present.
+	 * @param entry the entry
+	 */
+	void put(RouteEntry entry)
+	{
+		int mask = entry.getMaskAddress();
+		int length = prefixLength(mask);
+		if (length < 0)
+		{
+			if (!this.irregular.contains(entry))
+			{ this.irregular.add(entry); }
+			return;
+		}
+		Table table = this.tables[length];
+		if (null == table)
+		{
+			table = new Table();
+			this.tables[length] = table;
+			this.updateLengths();
+		}
+		table.putIfAbsent(entry.getDestinationAddress() & mask, entry);
+	}
+
+	/**
+	 * Remove an entry, if it is the one indexed for its prefix.
+	 * @param entry the entry
+	 * @return true if the entry was removed, otherwise false
+	 */
+	boolean remove(RouteEntry entry)
+	{
+		int mask = entry.getMaskAddress();
+		int length = prefixLength(mask);
+		if (length < 0)
+		{ return this.irregular.remove(entry); }
+		Table table = this.tables[length];
+		if (null == table
+				|| !table.remove(entry.getDestinationAddress() & mask, entry))
+		{ return false; }
+		if (0 == table.size)
+		{
+			this.tables[length] = null;
+			this.updateLengths();
+		}
+		return true;
+	}
+
+	/**
+	 * @param ip IP address
+	 * @return the entry with the longest prefix matching the address; null if
+	 *         none matches
+	 */
+	RouteEntry lookup(int ip)
+	{
+		RouteEntry best = null;
+		int bestLength = -1;
+		for (int length : this.lengths)
+		{
+			best = this.tables[length].get(ip & prefixMask(length));
+			if (best != null)
+			{
+				bestLength = length;
+				break;
+			}
+		}
+
+		for (RouteEntry entry : this.irregular)
+		{
+			int mask = entry.getMaskAddress();
+			if ((ip & mask) == (entry.getDestinationAddress() & mask)
+					&& Integer.bitCount(mask) > bestLength)
+			{
+				best = entry;
+				bestLength = Integer.bitCount(mask);
+			}
+		}
+		return best;
+	}
+
+	private void updateLengths()
+	{
+		int count = 0;
+		for (Table table : this.tables)
+		{
+			if (table != null)
+			{ count++; }
+		}
+		int[] updated = new int[count];
+		int i = 0;
+		for (int length = 32; length >= 0; length--)
+		{
+			if (this.tables[length] != null)
+			{ updated[i++] = length; }
+		}
+		this.lengths = updated;
+	}
+
+	/**
+	 * Open-addressing hash table from masked destinations to entries, with
+	 * linear probing and backward-shift deletion.
+	 */
+	private static class Table
+	{
+		private int[] keys;
+		private RouteEntry[] values;
+		private int size;
+
+		Table()
+		{
+			this.keys = new int[INITIAL_CAPACITY];
+			this.values = new RouteEntry[INITIAL_CAPACITY];
+		}
+
+		private static int slot(int key, int mask)
+		{
+			int h = key * 0x9E3779B1;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		RouteEntry get(int key)
+		{
+			int mask = this.keys.length - 1;
+			for (int i = slot(key, mask); this.values[i] != null;
+					i = (i + 1) & mask)
+			{
+				if (this.keys[i] == key)
+				{ return this.values[i]; }
+			}
+			return null;
+		}
+
+		void putIfAbsent(int key, RouteEntry value)
+		{
+			if (2 * (this.size + 1) > this.keys.length)
+			{ this.resize(); }
+			int mask = this.keys.length - 1;
+			int i = slot(key, mask);
+			for (; this.values[i] != null; i = (i + 1) & mask)
+			{
+				if (this.keys[i] == key)
+				{ return; }
+			}
+			this.keys[i] = key;
+			this.values[i] = value;
+			this.size++;
+		}
+
+		boolean remove(int key, RouteEntry value)
+		{
+			int mask = this.keys.length - 1;
+			int i = slot(key, mask);
+			for (; this.values[i] != null; i = (i + 1) & mask)
+			{
+				if (this.keys[i] == key)
+				{ break; }
+			}
+			if (this.values[i] != value)
+			{ return false; }
+
+			// Shift later entries in the probe sequence back into the gap
+			int gap = i;
+			for (int j = (i + 1) & mask; this.values[j] != null;
+					j = (j + 1) & mask)
+			{
+				int home = slot(this.keys[j], mask);
+				if (((j - home) & mask) >= ((j - gap) & mask))
+				{
+					this.keys[gap] = this.keys[j];
+					this.values[gap] = this.values[j];
+					gap = j;
+				}
+			}
+			this.values[gap] = null;
+			this.size--;
+			return true;
+		}
+
+		private void resize()
+		{
+			int[] oldKeys = this.keys;
+			RouteEntry[] oldValues = this.values;
+			this.keys = new int[oldKeys.length * 2];
+			this.values = new RouteEntry[oldKeys.length * 2];
+			this.size = 0;
+			for (int i = 0; i < oldKeys.length; i++)
+			{
+				if (oldValues[i] != null)
+				{ this.putIfAbsent(oldKeys[i], oldValues[i]); }
+			}
+		}
+	}
+}
@@ -0,0 +1,357 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.floodlightcontroller.packet.IPv4;
+
+import edu.wisc.cs.sdn.vnet.metrics.Counter;
+
+/**
+ * Reassembles IPv4 datagrams from their fragments (RFC 791). Fragments are
+ * held per datagram, identified by source, destination, identification, and
+ * protocol, until every byte of the datagram has arrived.
+ * <p>
+ * Memory is bounded: the bytes held across all datagrams, counting a fixed
+ * overhead per datagram and per fragment, never exceed a limit. When a
+ * fragment would exceed it, the oldest datagrams are discarded to make room.
+ * Datagrams not completed within the timeout are discarded as well. A
+ * fragment that overlaps one already held, other than an exact duplicate,
+ * discards its whole datagram: overlaps are how crafted fragments slip data
+ * past filters that inspect only one copy of the bytes.
+ * <p>
+ * Only the thread that handles the router's packets may call {@link #add};
+ * the memory in use may be read from any thread.
+ */
+public class ReassemblyBuffer
+{
+	/** Default limit (in bytes) on memory held by incomplete datagrams */
+	public static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+	/** Default time (in milliseconds) a datagram has to complete */
+	public static final int DEFAULT_TIMEOUT = 30 * 1000;
+
+	/** Largest total length of an IPv4 datagram */
+	private static final int MAX_DATAGRAM = 65535;
+
+	/** Bytes charged for the bookkeeping of each datagram and fragment */
+	private static final int DATAGRAM_OVERHEAD = 128;
+	private static final int FRAGMENT_OVERHEAD = 48;
+
+	/**
+	 * Fields that identify the fragments of one datagram.
+	 */
+	private static class Key
+	{
+		private final int srcAddr;
+		private final int dstAddr;
+		private final short identification;
+		private final byte protocol;
+
+		Key(IPv4 ipPacket)
+		{
+			this.srcAddr = ipPacket.getSourceAddress();
+			this.dstAddr = ipPacket.getDestinationAddress();
+			this.identification = ipPacket.getIdentification();
+			this.protocol = ipPacket.getProtocol();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int h = this.srcAddr * 31 + this.dstAddr;
+			return (h * 31 + this.identification) * 31 + this.protocol;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+			{ return false; }
+			Key other = (Key)obj;
+			return (this.srcAddr == other.srcAddr
+					&& this.dstAddr == other.dstAddr
+					&& this.identification == other.identification
+					&& this.protocol == other.protocol);
+		}
+	}
+
+	/**
+	 * The fragments of one datagram received so far.
+	 */
+	private static class Datagram
+	{
+		/** Time (in milliseconds since the epoch) the datagram is discarded */
+		private final long expires;
+
+		/** Header of the fragment at offset 0; null until it arrives */
+		private byte[] header;
+
+		/** Payloads of the fragments, by offset (in bytes) */
+		private final TreeMap<Integer,byte[]> fragments;
+
+		/** Length of the datagram's payload; -1 until the last fragment
+		 *  arrives */
+		private int length;
+
+		/** Payload bytes received */
+		private int received;
+
+		/** Bytes charged against the buffer's limit */
+		private int memory;
+
+		Datagram(long expires)
+		{
+			this.expires = expires;
+			this.fragments = new TreeMap<Integer,byte[]>();
+			this.length = -1;
+			this.memory = DATAGRAM_OVERHEAD;
+		}
+	}
+
+	private final int maxBytes;
+	private final int timeout;
+
+	/** Incomplete datagrams, oldest first */
+	private final LinkedHashMap<Key,Datagram> datagrams;
+
+	/** Bytes charged by incomplete datagrams, and their number */
+	private volatile int memory;
+	private volatile int size;
+
+	/** Datagrams reassembled, and discarded for each reason */
+	private final Counter reassembled;
+	private final Counter timeouts;
+	private final Counter overlaps;
+	private final Counter evictions;
+
+	/**
+	 * Create an empty buffer with the default memory limit and timeout.
+	 */
+	public ReassemblyBuffer()
+	{ this(DEFAULT_MAX_BYTES, DEFAULT_TIMEOUT); }
+
+	/**
+	 * Create an empty buffer.
+	 * @param maxBytes limit (in bytes) on memory held by incomplete datagrams
+	 * @param timeout time (in milliseconds) a datagram has to complete
+	 */
+	public ReassemblyBuffer(int maxBytes, int timeout)
+	{
+		this.maxBytes = maxBytes;
+		this.timeout = timeout;
+		this.datagrams = new LinkedHashMap<Key,Datagram>();
+		this.reassembled = new Counter();
+		this.timeouts = new Counter();
+		this.overlaps = new Counter();
+		this.evictions = new Counter();
+	}
+
+	/**
+	 * Add a fragment to its datagram.
+	 * @param fragment an IPv4 fragment whose payload has not been decoded
+	 * @return the reassembled datagram, if the fragment completed it;
+	 *         otherwise null
+	 */
+	public IPv4 add(IPv4 fragment)
+	{
+		long now = System.currentTimeMillis();
+		this.expire(now);
+
+		byte[] bytes = fragment.serialize();
+		int headerLength = (fragment.getHeaderLength() & 0xf) * 4;
+		int offset = fragment.getFragmentOffset() * 8;
+		int length = bytes.length - headerLength;
+		boolean last = (0 == (fragment.getFlags() & IPv4.IPV4_FLAGS_MOREFRAG));
+		// Every fragment but the last carries a multiple of 8 bytes
+		if ((!last && (0 == length || length % 8 != 0))
+				|| headerLength + offset + length > MAX_DATAGRAM)
+		{ return null; }
+
+		Key key = new Key(fragment);
+		Datagram datagram = this.datagrams.get(key);
+		if (datagram != null)
+		{
+			byte[] same = datagram.fragments.get(offset);
+			if (same != null && same.length == length
+					&& (!last || datagram.length == offset + length))
+			{ return null; }
+			if (this.overlaps(datagram, offset, length, last))
+			{
+				this.overlaps.increment();
+				this.discard(key, datagram);
+				return null;
+			}
+		}
+
+		// Make room by discarding the oldest datagrams
+		if (length + FRAGMENT_OVERHEAD + DATAGRAM_OVERHEAD > this.maxBytes)
+		{ return null; }
+		int cost = length + FRAGMENT_OVERHEAD
+				+ ((null == datagram) ? DATAGRAM_OVERHEAD : 0);
+		Iterator<Map.Entry<Key,Datagram>> oldest =
+				this.datagrams.entrySet().iterator();
+		while (this.memory + cost > this.maxBytes)
+		{
+			Datagram victim = oldest.next().getValue();
+			oldest.remove();
+			this.release(victim);
+			this.evictions.increment();
+			if (victim == datagram)
+			{
+				datagram = null;
+				cost += DATAGRAM_OVERHEAD;
+			}
+		}
+
+		if (null == datagram)
+		{
+			datagram = new Datagram(now + this.timeout);
+			this.datagrams.put(key, datagram);
+			this.memory += DATAGRAM_OVERHEAD;
+			this.size = this.datagrams.size();
+		}
+		byte[] payload = new byte[length];
+		System.arraycopy(bytes, headerLength, payload, 0, length);
+		datagram.fragments.put(offset, payload);
+		datagram.received += length;
+		datagram.memory += length + FRAGMENT_OVERHEAD;
+		this.memory += length + FRAGMENT_OVERHEAD;
+		if (0 == offset)
+		{
+			datagram.header = new byte[headerLength];
+			System.arraycopy(bytes, 0, datagram.header, 0, headerLength);
+		}
+		if (last)
+		{ datagram.length = offset + length; }
+
+		if (null == datagram.header || datagram.received != datagram.length)
+		{ return null; }
+		this.discard(key, datagram);
+		this.reassembled.increment();
+		return reassemble(datagram);
+	}
+
+	/**
+	 * Decide whether a new fragment conflicts with those already received:
+	 * it overlaps one of them, or it disagrees about where the datagram ends.
+	 */
+	private boolean overlaps(Datagram datagram, int offset, int length,
+			boolean last)
+	{
+		int end = offset + length;
+		if (datagram.length >= 0 && (end > datagram.length
+				|| (last && end != datagram.length)))
+		{ return true; }
+		if (last && datagram.fragments.lastKey()
+				+ datagram.fragments.lastEntry().getValue().length > end)
+		{ return true; }
+		Map.Entry<Integer,byte[]> before = datagram.fragments.floorEntry(offset);
+		if (before != null
+				&& before.getKey() + before.getValue().length > offset)
+		{ return true; }
+		Map.Entry<Integer,byte[]> after = datagram.fragments.higherEntry(offset);
+		return (after != null && after.getKey() < end);
+	}
+
+	/**
+	 * Build a datagram from its complete set of fragments.
+	 */
+	private static IPv4 reassemble(Datagram datagram)
+	{
+		int headerLength = datagram.header.length;
+		byte[] bytes = new byte[headerLength + datagram.length];
+		System.arraycopy(datagram.header, 0, bytes, 0, headerLength);
+		for (Map.Entry<Integer,byte[]> fragment : datagram.fragments.entrySet())
+		{
+			byte[] payload = fragment.getValue();
+			System.arraycopy(payload, 0, bytes, headerLength + fragment.getKey(),
+					payload.length);
+		}
+
+		// Total length covers every fragment, more-fragments flag and offset
+		// are cleared, and the checksum is recomputed when serialized
+		bytes[2] = (byte)(bytes.length >> 8);
+		bytes[3] = (byte)bytes.length;
+		bytes[6] &= (byte)0xc0;
+		bytes[7] = 0;
+		bytes[10] = 0;
+		bytes[11] = 0;
+		IPv4 ipPacket = new IPv4();
+		ipPacket.deserialize(bytes, 0, bytes.length);
+		return ipPacket;
+	}
+
+	/**
+	 * Discard datagrams that have not completed in time.
+	 */
+	private void expire(long now)
+	{
+		Iterator<Datagram> oldest = this.datagrams.values().iterator();
+		while (oldest.hasNext())
+		{
+			Datagram datagram = oldest.next();
+			if (datagram.expires > now)
+			{ break; }
+			oldest.remove();
+			this.release(datagram);
+			this.timeouts.increment();
+		}
+	}
+
+	private void discard(Key key, Datagram datagram)
+	{
+		this.datagrams.remove(key);
+		this.release(datagram);
+	}
+
+	private void release(Datagram datagram)
+	{
+		this.memory -= datagram.memory;
+		this.size = this.datagrams.size();
+	}
+
+	/**
+	 * @return bytes held by incomplete datagrams, including bookkeeping
+	 */
+	public int getMemory()
+	{ return this.memory; }
+
+	/**
+	 * @return limit (in bytes) on memory held by incomplete datagrams
+	 */
+	public int getMaxBytes()
+	{ return this.maxBytes; }
+
+	/**
+	 * @return number of incomplete datagrams
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * @return datagrams reassembled
+	 */
+	public Counter getReassembled()
+	{ return this.reassembled; }
+
+	/**
+	 * @return datagrams discarded because they did not complete in time
+	 */
+	public Counter getTimeouts()
+	{ return this.timeouts; }
+
+	/**
+	 * @return datagrams discarded because their fragments overlapped
+	 */
+	public Counter getOverlaps()
+	{ return this.overlaps; }
+
+	/**
+	 * @return datagrams discarded to make room for newer ones
+	 */
+	public Counter getEvictions()
+	{ return this.evictions; }
+}
@@ -2,6 +2,7 @@ package edu.wisc.cs.sdn.vnet.rt;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import net.floodlightcontroller.packet.Ethernet;
@@ -12,6 +13,10 @@ import net.floodlightcontroller.packet.RIPv2Entry;
 import net.floodlightcontroller.packet.UDP;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.jfr.RipUpdateSent;
+import edu.wisc.cs.sdn.vnet.log.Level;
+import edu.wisc.cs.sdn.vnet.log.Logger;
+import edu.wisc.cs.sdn.vnet.metrics.Counter;
 
 /**
  * Route table for a router.
@@ -19,6 +24,7 @@ import edu.wisc.cs.sdn.vnet.Iface;
  */
 public class RipProtocol implements Runnable 
 {
+	private static final Logger LOG = Logger.getLogger(RipProtocol.class);
 	
 	public static int MULTICAST_RIP_IP = IPv4.toIPv4Address("224.0.0.9");
 	public static MACAddress BROADCAST_MAC = MACAddress.valueOf("FF:FF:FF:FF:FF:FF");
@@ -27,15 +33,33 @@ public class RipProtocol implements Runnable
 	
 	private List<RIPv2Entry> entries;
 	private Router rt;
+	
+	/** Copies of the entries, rebuilt on the first read after entries are
+	 *  added, replaced, or expired, so they can be read without taking
+	 *  RIP_ENTRIES_LOCK on every read */
+	private volatile List<RIPv2Entry> published;
+	
+	/** True if the entries have changed since they were last published */
+	private volatile boolean stale;
+	
+	/** RIP messages sent and entries expired */
+	private Counter requestsSent;
+	private Counter responsesSent;
+	private Counter expired;
 		
 	public RipProtocol() {
 		entries = new ArrayList<RIPv2Entry>();
+		published = Collections.emptyList();
 		rt = null;
 	}
 	
 	public RipProtocol(Device rt) {
 		entries = new ArrayList<RIPv2Entry>();
+		published = Collections.emptyList();
 		this.rt = (Router) rt;
+		this.requestsSent = rt.getMetrics().counter("rip.requests_tx");
+		this.responsesSent = rt.getMetrics().counter("rip.responses_tx");
+		this.expired = rt.getMetrics().counter("rip.entries_expired");
 	}
 	
 	@Override
@@ -47,19 +71,23 @@ public class RipProtocol implements Runnable
 	 * Print content of the rip entries for debugging purposes
 	 */
 	public void print() {
+		if (!LOG.isEnabled(Level.DEBUG)) {
+			return;
+		}
+		StringBuilder sb = new StringBuilder("****RIP entries****");
 		synchronized (RIP_ENTRIES_LOCK) {
-			System.out.println("****RIP entries****");
 			int i = 1;
 			for (RIPv2Entry entry: this.entries) {
-				System.out.format("Entry #%d\n", i);
-				System.out.format("Address:  %s\n", IPv4.fromIPv4Address(entry.getAddress()));
-				System.out.format("Subnet Mask:  %s\n", IPv4.fromIPv4Address(entry.getSubnetMask()));
-				System.out.format("Next hop:  %s\n", IPv4.fromIPv4Address(entry.getNextHopAddress()));
-				System.out.format("metric:  %d\n", entry.getMetric());
-				System.out.format("ttl:  %d\n", entry.getTtl());
+				sb.append(String.format("\nEntry #%d", i));
+				sb.append(String.format("\nAddress:  %s", IPv4.fromIPv4Address(entry.getAddress())));
+				sb.append(String.format("\nSubnet Mask:  %s", IPv4.fromIPv4Address(entry.getSubnetMask())));
+				sb.append(String.format("\nNext hop:  %s", IPv4.fromIPv4Address(entry.getNextHopAddress())));
+				sb.append(String.format("\nmetric:  %d", entry.getMetric()));
+				sb.append(String.format("\nttl:  %d", entry.getTtl()));
 				i++;
 			}
 		}
+		LOG.debug(sb.toString());
 	}
 	
 	/**
@@ -100,6 +128,24 @@ public class RipProtocol implements Runnable
         return packet;
     } 
     
+    /**
+     * Record a sent RIP message in the flight recorder, if enabled
+     * @param rt router that sent the message
+     * @param iface interface the message was sent out
+     * @param commandType RIPv2.COMMAND_REQUEST or RIPv2.COMMAND_RESPONSE
+     * @param entries number of entries in the message
+     */
+    static void recordSent(Device rt, Iface iface, byte commandType, int entries) {
+    	RipUpdateSent event = new RipUpdateSent();
+    	if (event.shouldCommit()) {
+    		event.device = rt.getHost();
+    		event.iface = iface.getName();
+    		event.command = (RIPv2.COMMAND_REQUEST == commandType) ? "request" : "response";
+    		event.entries = entries;
+    		event.commit();
+    	}
+    }
+    
     /**
      * Creates a deep clone of the rip entries list
      * @return the cloned list
@@ -114,6 +160,42 @@ public class RipProtocol implements Runnable
     	return clone;
     }
     
+    /**
+     * @return copies of the rip entries as of the last change or expiry pass;
+     *         only takes RIP_ENTRIES_LOCK, once, if they changed since the
+     *         last call
+     */
+    public List<RIPv2Entry> getEntries() {
+    	if (stale) {
+    		synchronized (RIP_ENTRIES_LOCK) {
+    			if (stale) { publish(); }
+    		}
+    	}
+    	return published;
+    }
+    
+    /**
+     * Replace the published copies of the entries; must be called while
+     * holding RIP_ENTRIES_LOCK
+     */
+    private void publish() {
+    	stale = false;
+    	published = Collections.unmodifiableList(getRIPTableCopy());
+    }
+    
+    /**
+     * Replace the rip entries with ones saved before a restart; must be
+     * called before the protocol is started
+     * @param restored the entries
+     */
+    public void restore(List<RIPv2Entry> restored) {
+    	synchronized (RIP_ENTRIES_LOCK) {
+    		entries.clear();
+    		entries.addAll(restored);
+    		stale = true;
+    	}
+    }
+    
     /**
      * Adds a RIP entry to the table 
      * @param r the RIP entry to be added
@@ -132,6 +214,7 @@ public class RipProtocol implements Runnable
     						// Better metric so it replaces the old entry
     						entries.remove(currEntry);
     						entries.add(r);
+    						stale = true;
     						return true;
     					} else if(r.getMetric() == currEntry.getMetric() && currEntry.getNextHopAddress() == r.getNextHopAddress()) {
     						// reset ttl of the entry
@@ -145,6 +228,7 @@ public class RipProtocol implements Runnable
     		
     		// No existing entry found
     		entries.add(r);
+    		stale = true;
     		return true;
     	}
     }
@@ -177,8 +261,11 @@ public class RipProtocol implements Runnable
     	
     	for (Iface iface : interfaces) {
     		// send RIP request to all interfaces
+    		List<RIPv2Entry> entries = this.getRIPTableCopy();
     		rt.sendPacket(createRipPacket(iface, BROADCAST_MAC, MULTICAST_RIP_IP,
-    				RIPv2.COMMAND_REQUEST, this.getRIPTableCopy()), iface);
+    				RIPv2.COMMAND_REQUEST, entries), iface);
+    		requestsSent.increment();
+    		recordSent(rt, iface, RIPv2.COMMAND_REQUEST, entries.size());
     	}
     	
         while(true){
@@ -196,18 +283,23 @@ public class RipProtocol implements Runnable
         			if (entry.decreaseTtl((short)10) <= 0) {
         				// delete the entry
         				entries.remove(entry);
+        				expired.increment();
         				rt.getRouteTable().remove(entry.getAddress(), entry.getSubnetMask());
         			}
         		}
+        		stale = true;
         		
             }
         	
             for (Iface iface : interfaces) {
                 // send unsolicited RIP response to all interfaces
+                List<RIPv2Entry> entries = this.getRIPTableCopy();
                 Ethernet packet = 
                         createRipPacket(iface, BROADCAST_MAC, MULTICAST_RIP_IP,
-                                RIPv2.COMMAND_RESPONSE, this.getRIPTableCopy());
+                                RIPv2.COMMAND_RESPONSE, entries);
                 rt.sendPacket(packet, iface);
+                responsesSent.increment();
+                recordSent(rt, iface, RIPv2.COMMAND_RESPONSE, entries.size());
             }
             
         }  
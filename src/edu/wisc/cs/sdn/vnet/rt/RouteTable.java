@@ -1,17 +1,14 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import net.floodlightcontroller.packet.IPv4;
 
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.jfr.RouteTableChanged;
 
 /**
  * Route table for a router.
@@ -22,11 +19,28 @@ public class RouteTable
 	/** Entries in the route table */
 	private List<RouteEntry> entries; 
 
+	/** Longest-prefix-match index over the entries */
+	private PrefixIndex index;
+
+	/** Incremented every time the entries change */
+	private volatile int version;
+
+	/** Copies of the entries, rebuilt on the first read after the entries
+	 *  change, so they can be read without holding up lookups */
+	private volatile List<RouteEntry> published;
+
+	/** True if the entries have changed since they were last published */
+	private volatile boolean stale;
+
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{
+		this.entries = new ArrayList<RouteEntry>();
+		this.index = new PrefixIndex();
+		this.published = Collections.emptyList();
+	}
 
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -40,111 +54,102 @@ public class RouteTable
 			/*****************************************************************/
 			/* TODO: Find the route entry with the longest prefix match      */
 
-			RouteEntry bestMatch = null;
-			for (RouteEntry entry : this.entries)
+			return this.index.lookup(ip);
+
+			/*****************************************************************/
+		}
+	}
+
+	/**
+	 * @return a counter that changes whenever an entry is added, removed, or
+	 *         updated
+	 */
+	public int getVersion()
+	{ return this.version; }
+
+	/**
+	 * @return copies of the entries as of the last change; only locks the
+	 *         table, once, if the entries changed since the last call
+	 */
+	public List<RouteEntry> getEntries()
+	{
+		if (this.stale)
+		{
+			synchronized(this.entries)
 			{
-				int maskedDst = ip & entry.getMaskAddress();
-				int entrySubnet = entry.getDestinationAddress() & entry.getMaskAddress();
-				if (maskedDst == entrySubnet) {
-					if ((null == bestMatch) || (entry.getMaskAddress() > bestMatch.getMaskAddress()))
-					{ bestMatch = entry; }
-				}
+				if (this.stale)
+				{ this.publish(); }
 			}
+		}
+		return this.published;
+	}
 
-			return bestMatch;
-
-			/*****************************************************************/
+	/**
+	 * Replace the published copies of the entries; must be called while
+	 * holding the lock on the entries.
+	 */
+	private void publish()
+	{
+		this.stale = false;
+		List<RouteEntry> copy = new ArrayList<RouteEntry>(this.entries.size());
+		for (RouteEntry entry : this.entries)
+		{
+			copy.add(new RouteEntry(entry.getDestinationAddress(),
+					entry.getGatewayAddress(), entry.getMaskAddress(),
+					entry.getInterface()));
 		}
+		this.published = Collections.unmodifiableList(copy);
 	}
 
 	/**
-	 * Populate the route table from a file.
+	 * Populate the route table from a file. Lines that are not valid entries
+	 * are reported and skipped.
 	 * @param filename name of the file containing the static route table
 	 * @param router the route table is associated with
 	 * @return true if route table was successfully loaded, otherwise false
 	 */
 	public boolean load(String filename, Router router)
 	{
-		// Open the file
-		BufferedReader reader;
-		try 
+		// Interface names, as bytes, to compare against the file's bytes
+		final Iface[] ifaces = router.getInterfaces().values().toArray(
+				new Iface[0]);
+		final byte[][] names = new byte[ifaces.length][];
+		for (int i = 0; i < ifaces.length; i++)
 		{
-			FileReader fileReader = new FileReader(filename);
-			reader = new BufferedReader(fileReader);
-		}
-		catch (FileNotFoundException e) 
-		{
-			System.err.println(e.toString());
-			return false;
+			names[i] = ifaces[i].getName().getBytes(
+					StandardCharsets.US_ASCII);
 		}
 
-		while (true)
-		{
-			// Read a route entry from the file
-			String line = null;
-			try 
-			{ line = reader.readLine(); }
-			catch (IOException e) 
-			{
-				System.err.println(e.toString());
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
+		List<RouteEntry> loaded = TableFileParser.parse(filename, line -> {
+			line.skipSpace();
+			int dstIp = line.ip();
+			line.separator();
+			int gwIp = line.ip();
+			line.separator();
+			int maskIp = line.ip();
+			line.separator();
+			int nameStart = line.name();
+			line.finish();
+			if (!line.ok())
+			{ return null; }
 
-			// Stop if we have reached the end of the file
-			if (null == line)
-			{ break; }
-
-			// Parse fields for route entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String ifacePattern = "([a-zA-Z0-9]+)";
-			Pattern pattern = Pattern.compile(String.format(
-						"%s\\s+%s\\s+%s\\s+%s", 
-						ipPattern, ipPattern, ipPattern, ifacePattern));
-			Matcher matcher = pattern.matcher(line);
-			if (!matcher.matches() || matcher.groupCount() != 4)
+			for (int i = 0; i < names.length; i++)
 			{
-				System.err.println("Invalid entry in routing table file");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				if (line.matches(nameStart, names[i]))
+				{ return new RouteEntry(dstIp, gwIp, maskIp, ifaces[i]); }
 			}
+			line.fail("invalid interface "+line.field(nameStart));
+			return null;
+		});
+		if (null == loaded)
+		{ return false; }
 
-			int dstIp = IPv4.toIPv4Address(matcher.group(1));
-			if (0 == dstIp)
-			{
-				System.err.println("Error loading route table, cannot convert "
-						+ matcher.group(1) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-
-			int gwIp = IPv4.toIPv4Address(matcher.group(2));
-
-			int maskIp = IPv4.toIPv4Address(matcher.group(3));
-			if (0 == maskIp)
-			{
-				System.err.println("Error loading route table, cannot convert "
-						+ matcher.group(3) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-
-			String ifaceName = matcher.group(4).trim();
-			Iface iface = router.getInterface(ifaceName);
-			if (null == iface)
-			{
-				System.err.println("Error loading route table, invalid interface "
-						+ matcher.group(4));
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-
-			// Add an entry to the route table
-			this.insert(dstIp, gwIp, maskIp, iface);
+		synchronized(this.entries)
+		{
+			for (RouteEntry entry : loaded)
+			{ this.add(entry); }
 		}
-
-		// Close the file
-		try { reader.close(); } catch (IOException f) {};
+		this.changed("load", 0, 0, 0, null);
 		return true;
 	}
 
@@ -158,10 +163,43 @@ public class RouteTable
 	 */
 	public void insert(int dstIp, int gwIp, int maskIp, Iface iface)
 	{
-		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
+		this.add(dstIp, gwIp, maskIp, iface);
+		this.changed("insert", dstIp, maskIp, gwIp, iface);
+	}
+
+	/**
+	 * Add several entries to the route table at once.
+	 * @param entries the entries to add; the entries themselves are not
+	 *        kept, so the caller may reuse them
+	 */
+	public void insertAll(List<RouteEntry> entries)
+	{
+		synchronized(this.entries)
+		{
+			for (RouteEntry entry : entries)
+			{
+				this.add(new RouteEntry(entry.getDestinationAddress(),
+						entry.getGatewayAddress(), entry.getMaskAddress(),
+						entry.getInterface()));
+			}
+		}
+		this.changed("load", 0, 0, 0, null);
+	}
+
+	/**
+	 * Add an entry to the route table.
+	 */
+	private void add(int dstIp, int gwIp, int maskIp, Iface iface)
+	{ this.add(new RouteEntry(dstIp, gwIp, maskIp, iface)); }
+
+	private void add(RouteEntry entry)
+	{
 		synchronized(this.entries)
 		{ 
 			this.entries.add(entry);
+			this.index.put(entry);
+			this.version++;
+			this.stale = true;
 		}
 	}
 
@@ -178,7 +216,25 @@ public class RouteTable
 			RouteEntry entry = this.find(dstIp, maskIp);
 			if (null == entry) { return false; }
 			this.entries.remove(entry);
+			if (this.index.remove(entry))
+			{
+				// Index the next entry for the same prefix, if there is one
+				int mask = entry.getMaskAddress();
+				for (RouteEntry other : this.entries)
+				{
+					if (other.getMaskAddress() == mask
+							&& ((other.getDestinationAddress() ^
+								entry.getDestinationAddress()) & mask) == 0)
+					{
+						this.index.put(other);
+						break;
+					}
+				}
+			}
+			this.version++;
+			this.stale = true;
 		}
+		this.changed("remove", dstIp, maskIp, 0, null);
 		return true;
 	}
 
@@ -196,12 +252,41 @@ public class RouteTable
 		{
 			RouteEntry entry = this.find(dstIp, maskIp);
 			if (null == entry) { return false; }
+			// Refreshing an unchanged route must not invalidate cached flows
+			if (entry.getGatewayAddress() == gwIp
+					&& entry.getInterface() == iface)
+			{ return true; }
 			entry.setGatewayAddress(gwIp);
 			entry.setInterface(iface);
+			this.version++;
+			this.stale = true;
 		}
+		this.changed("update", dstIp, maskIp, gwIp, iface);
 		return true;
 	}
 
+	/**
+	 * Record a change to the table in the flight recorder, if enabled.
+	 */
+	private void changed(String operation, int dstIp, int maskIp, int gwIp,
+			Iface iface)
+	{
+		RouteTableChanged event = new RouteTableChanged();
+		if (!event.shouldCommit())
+		{ return; }
+		event.operation = operation;
+		if (dstIp != 0 || maskIp != 0)
+		{
+			event.destination = IPv4.fromIPv4Address(dstIp);
+			event.mask = IPv4.fromIPv4Address(maskIp);
+			event.gateway = IPv4.fromIPv4Address(gwIp);
+		}
+		event.iface = (null == iface) ? null : iface.getName();
+		synchronized(this.entries)
+		{ event.entries = this.entries.size(); }
+		event.commit();
+	}
+
 	/**
 	 * Find an entry in the route table.
 	 * @param dstIP destination IP of the entry to find
@@ -229,10 +314,11 @@ public class RouteTable
 			if (0 == this.entries.size())
 			{ return " WARNING: route table empty"; }
 
-			String result = "Destination\tGateway\t\tMask\t\tIface\n";
+			StringBuilder result = new StringBuilder(
+					"Destination\tGateway\t\tMask\t\tIface\n");
 			for (RouteEntry entry : entries)
-			{ result += entry.toString()+"\n"; }
-			return result;
+			{ result.append(entry.toString()).append('\n'); }
+			return result.toString();
 		}
 	}
 }
@@ -1,10 +1,23 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
+import java.util.List;
+
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.jfr.ArpMiss;
+import edu.wisc.cs.sdn.vnet.jfr.PacketDropped;
+import edu.wisc.cs.sdn.vnet.jfr.PacketForwarded;
+import edu.wisc.cs.sdn.vnet.jfr.RipUpdateReceived;
+import edu.wisc.cs.sdn.vnet.log.Level;
+import edu.wisc.cs.sdn.vnet.log.Logger;
+import edu.wisc.cs.sdn.vnet.metrics.Counter;
+import edu.wisc.cs.sdn.vnet.metrics.Gauge;
+import edu.wisc.cs.sdn.vnet.metrics.Histogram;
+import edu.wisc.cs.sdn.vnet.trace.Stage;
 
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPacket;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.RIPv2;
 import net.floodlightcontroller.packet.RIPv2Entry;
@@ -15,14 +28,64 @@ import net.floodlightcontroller.packet.UDP;
  */
 public class Router extends Device
 {	
+	private static final Logger LOG = Logger.getLogger(Router.class);
+
+	/** Packet classifications returned by classifyIpPacket */
+	private static final int CLASS_FORWARD = 0;
+	private static final int CLASS_LOCAL = 1;
+	private static final int CLASS_RIP = 2;
+
 	/** Routing table for the router */
 	private RouteTable routeTable;
 
 	/** ARP cache for the router */
 	private ArpCache arpCache;
+
+	/** Cache of resolved forwarding actions for active flows */
+	private FlowCache flowCache;
+
+	/** Addresses of the router's interfaces and the RIP multicast group */
+	private LocalAddressSet localAddresses;
+
+	/** Fragments addressed to the router, waiting for the rest of their
+	 *  datagrams */
+	private ReassemblyBuffer reassembly;
+
+	/** Access control lists; null if every packet is permitted */
+	private volatile AccessLists accessLists;
+
+	/** Address and port translation; null if packets are not translated */
+	private Napt napt;
+
+	/** TCP connection tracking; null if connections are not tracked */
+	private ConnectionTracker connTracker;
 	
 	private RipProtocol ripP;
 
+	/** Packets dropped, by reason */
+	private Counter dropChecksum;
+	private Counter dropTtl;
+	private Counter dropNoRoute;
+	private Counter dropNoArp;
+	private Counter dropSameIface;
+	private Counter dropFragNeeded;
+	private Counter dropAclIn;
+	private Counter dropAclOut;
+	private Counter dropNat;
+	private Counter dropConntrackFull;
+
+	/** Packets fragmented to fit an MTU, and fragments sent */
+	private Counter fragmented;
+	private Counter fragmentsSent;
+
+	/** Time (in nanoseconds) taken by route table lookups */
+	private Histogram routeLookupTime;
+
+	/** RIP messages received and route table changes they caused */
+	private Counter ripRequests;
+	private Counter ripResponses;
+	private Counter ripUpdates;
+
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -32,6 +95,50 @@ public class Router extends Device
 		super(host,logfile);
 		this.routeTable = new RouteTable();
 		this.arpCache = new ArpCache();
+		this.flowCache = new FlowCache();
+		this.localAddresses = new LocalAddressSet(RipProtocol.MULTICAST_RIP_IP);
+		this.reassembly = new ReassemblyBuffer();
+
+		this.dropChecksum = this.metrics.counter("drop.checksum");
+		this.dropTtl = this.metrics.counter("drop.ttl");
+		this.dropNoRoute = this.metrics.counter("drop.no_route");
+		this.dropNoArp = this.metrics.counter("drop.no_arp");
+		this.dropSameIface = this.metrics.counter("drop.same_iface");
+		this.dropFragNeeded = this.metrics.counter("drop.frag_needed");
+		this.dropAclIn = this.metrics.counter("drop.acl_in");
+		this.dropAclOut = this.metrics.counter("drop.acl_out");
+		this.dropNat = this.metrics.counter("drop.nat");
+		this.dropConntrackFull = this.metrics.counter("drop.conntrack_full");
+		this.fragmented = this.metrics.counter("frag.fragmented");
+		this.fragmentsSent = this.metrics.counter("frag.fragments_tx");
+		this.metrics.register("frag.reassembled",
+				this.reassembly.getReassembled());
+		this.metrics.register("frag.timeouts", this.reassembly.getTimeouts());
+		this.metrics.register("frag.overlaps", this.reassembly.getOverlaps());
+		this.metrics.register("frag.evictions",
+				this.reassembly.getEvictions());
+		this.metrics.register("frag.reassembly_bytes", new Gauge() {
+			public long getValue()
+			{ return reassembly.getMemory(); }
+		});
+		this.metrics.register("frag.reassembly_datagrams", new Gauge() {
+			public long getValue()
+			{ return reassembly.size(); }
+		});
+		this.routeLookupTime = this.metrics.histogram("route.lookup_ns");
+		this.ripRequests = this.metrics.counter("rip.requests_rx");
+		this.ripResponses = this.metrics.counter("rip.responses_rx");
+		this.ripUpdates = this.metrics.counter("rip.route_updates");
+	}
+
+	/**
+	 * Recompute the router's local addresses and forget cached flows.
+	 */
+	@Override
+	public void interfacesChanged()
+	{
+		this.localAddresses.rebuild(this.interfaces.values());
+		this.flowCache.clear();
 	}
 
 	/**
@@ -40,6 +147,88 @@ public class Router extends Device
 	public RouteTable getRouteTable()
 	{ return this.routeTable; }
 
+	/**
+	 * @return ARP cache for the router
+	 */
+	public ArpCache getArpCache()
+	{ return this.arpCache; }
+
+	/**
+	 * @return buffer reassembling fragments addressed to the router
+	 */
+	public ReassemblyBuffer getReassemblyBuffer()
+	{ return this.reassembly; }
+
+	/**
+	 * @return access control lists; null if every packet is permitted
+	 */
+	public AccessLists getAccessLists()
+	{ return this.accessLists; }
+
+	/**
+	 * Replace the router's access control lists. Packets being handled when
+	 * the lists are replaced are checked against either the old lists or
+	 * the new ones, never a mix.
+	 * @param accessLists the new lists; null to permit every packet
+	 */
+	public void setAccessLists(AccessLists accessLists)
+	{ this.accessLists = accessLists; }
+
+	/**
+	 * @return address and port translation; null if packets are not
+	 *         translated
+	 */
+	public Napt getNapt()
+	{ return this.napt; }
+
+	/**
+	 * Translate packets forwarded out of the translator's outside
+	 * interfaces. Must be called before the router handles packets.
+	 * @param napt the translator
+	 */
+	public void setNapt(final Napt napt)
+	{
+		this.napt = napt;
+		this.metrics.register("nat.translations", new Gauge() {
+			public long getValue()
+			{ return napt.size(); }
+		});
+		this.metrics.register("nat.created", napt.getCreated());
+		this.metrics.register("nat.expired", napt.getExpired());
+		this.metrics.register("nat.port_exhausted", napt.getExhausted());
+		this.metrics.register("nat.unsupported", napt.getUnsupported());
+	}
+
+	/**
+	 * @return TCP connection tracking; null if connections are not tracked
+	 */
+	public ConnectionTracker getConnectionTracker()
+	{ return this.connTracker; }
+
+	/**
+	 * Track the TCP connections the router's packets belong to. Must be
+	 * called before the router handles packets.
+	 * @param connTracker the tracker
+	 */
+	public void setConnectionTracker(final ConnectionTracker connTracker)
+	{
+		this.connTracker = connTracker;
+		this.metrics.register("conntrack.connections", new Gauge() {
+			public long getValue()
+			{ return connTracker.size(); }
+		});
+		this.metrics.register("conntrack.created", connTracker.getCreated());
+		this.metrics.register("conntrack.expired", connTracker.getExpired());
+		this.metrics.register("conntrack.early_drops",
+				connTracker.getEarlyDrops());
+	}
+
+	/**
+	 * @return RIP instance for the router; null if routes are static
+	 */
+	public RipProtocol getRipProtocol()
+	{ return this.ripP; }
+
 	public void setRipProtocl(RipProtocol ripP) {
 		this.ripP = ripP;
 	}
@@ -52,15 +241,15 @@ public class Router extends Device
 	{
 		if (!routeTable.load(routeTableFile, this))
 		{
-			System.err.println("Error setting up routing table from file "
+			LOG.error("Error setting up routing table from file "
 					+ routeTableFile);
 			System.exit(1);
 		}
 
-		System.out.println("Loaded route table");
-		System.out.println("-------------------------------------------------");
-		System.out.print(this.routeTable.toString());
-		System.out.println("-------------------------------------------------");
+		LOG.info(() -> "Loaded route table\n"
+				+ "-------------------------------------------------\n"
+				+ this.routeTable.toString()
+				+ "-------------------------------------------------");
 	}
 
 	/**
@@ -71,15 +260,15 @@ public class Router extends Device
 	{
 		if (!arpCache.load(arpCacheFile))
 		{
-			System.err.println("Error setting up ARP cache from file "
+			LOG.error("Error setting up ARP cache from file "
 					+ arpCacheFile);
 			System.exit(1);
 		}
 
-		System.out.println("Loaded static ARP cache");
-		System.out.println("----------------------------------");
-		System.out.print(this.arpCache.toString());
-		System.out.println("----------------------------------");
+		LOG.info(() -> "Loaded static ARP cache\n"
+				+ "----------------------------------\n"
+				+ this.arpCache.toString()
+				+ "----------------------------------");
 	}
 
 	/**
@@ -89,7 +278,7 @@ public class Router extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
+		LOG.sample(Level.DEBUG, () -> "*** -> Received packet: " +
 				etherPacket.toString().replace("\n", "\n\t"));
 
 		/********************************************************************/
@@ -105,15 +294,23 @@ public class Router extends Device
 	}
     
 	private void handleRipRequest(RIPv2 ripPacketPv2, Iface inIface, int sourceIp) {
-		System.out.format("****Handle RIP Request comming from %s ****\n", IPv4.fromIPv4Address(sourceIp));
+		LOG.debug(() -> String.format("****Handle RIP Request comming from %s ****", IPv4.fromIPv4Address(sourceIp)));
+		this.ripRequests.increment();
 		// Respond with RIP response packet
+		List<RIPv2Entry> entries = ripP.getRIPTableCopy();
 		Ethernet packet = RipProtocol.createRipPacket(inIface, inIface.getMacAddress(),
-				sourceIp, RIPv2.COMMAND_RESPONSE, ripP.getRIPTableCopy());
+				sourceIp, RIPv2.COMMAND_RESPONSE, entries);
 		this.sendPacket(packet, inIface);
+		RipProtocol.recordSent(this, inIface, RIPv2.COMMAND_RESPONSE, entries.size());
 	}
 	
-	private void handleRipResponse(RIPv2 ripPacketPv2, Iface inIface, int sourceIp) {
-		System.out.format("****Handle RIP Response comming from %s ****\n", IPv4.fromIPv4Address(sourceIp));
+	/**
+	 * @return number of entries in the response that changed the route table
+	 */
+	private int handleRipResponse(RIPv2 ripPacketPv2, Iface inIface, int sourceIp) {
+		LOG.debug(() -> String.format("****Handle RIP Response comming from %s ****", IPv4.fromIPv4Address(sourceIp)));
+		this.ripResponses.increment();
+		int updates = 0;
 		// Add the new RIP entries to the table
 		for(RIPv2Entry r: ripPacketPv2.getEntries()) {
 			r.setMetric(r.getMetric() + 1);// assume metric to adjacent router is 1
@@ -122,6 +319,8 @@ public class Router extends Device
             boolean res = ripP.addRIPEntry(r);
 			
 			if (res) {
+				this.ripUpdates.increment();
+				updates++;
 				// update the route table
 				boolean ex = routeTable.update(r.getAddress(), r.getSubnetMask(), sourceIp, inIface);
 				if(!ex) {
@@ -130,7 +329,7 @@ public class Router extends Device
                 }
 			}
 		}
-		
+		return updates;
 	}
 	
 	/**
@@ -142,7 +341,7 @@ public class Router extends Device
     	
     	// Get the UDP packet containing the rip packet
 		UDP udpPacket = (UDP)ipPacket.getPayload();
-		System.out.println("****Handle RIP packet****");
+		LOG.trace("****Handle RIP packet****");
 		
 		// Verify checksum
 		short origCksum = udpPacket.getChecksum();
@@ -151,15 +350,30 @@ public class Router extends Device
 		udpPacket.deserialize(serialized, 0, serialized.length);
 		short calcCksum = udpPacket.getChecksum();
 		if (origCksum != calcCksum)
-		{ return; }
+		{
+			this.drop(this.dropChecksum, "checksum", inIface);
+			return;
+		}
 		
 		RIPv2 ripPacketPv2 = (RIPv2)udpPacket.getPayload();
 		int sourceIp = ipPacket.getSourceAddress();
 		
+		RipUpdateReceived event = new RipUpdateReceived();
+		event.begin();
 		if(ripPacketPv2.getCommand() == RIPv2.COMMAND_REQUEST){
 			handleRipRequest(ripPacketPv2, inIface, sourceIp);
+			event.command = "request";
 		} else if(ripPacketPv2.getCommand() == RIPv2.COMMAND_RESPONSE) {
-			handleRipResponse(ripPacketPv2, inIface, sourceIp);
+			event.updates = handleRipResponse(ripPacketPv2, inIface, sourceIp);
+			event.command = "response";
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.device = this.getHost();
+			event.iface = inIface.getName();
+			event.source = IPv4.fromIPv4Address(sourceIp);
+			event.entries = ripPacketPv2.getEntries().size();
+			event.commit();
 		}
 		
     }
@@ -172,7 +386,7 @@ public class Router extends Device
 
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
-		System.out.println("Handle IP packet");
+		LOG.trace("Handle IP packet");
 
 		// Verify checksum
 		short origCksum = ipPacket.getChecksum();
@@ -181,67 +395,139 @@ public class Router extends Device
 		ipPacket.deserialize(serialized, 0, serialized.length);
 		short calcCksum = ipPacket.getChecksum();
 		if (origCksum != calcCksum)
-		{ return; }
+		{
+			this.drop(this.dropChecksum, "checksum", inIface);
+			return;
+		}
+		this.tracer.mark(Stage.CHECKSUM);
+
+		// Check the ingress access list
+		AccessLists acls = this.accessLists;
+		if (acls != null && !acls.permits(inIface, true, ipPacket))
+		{
+			this.drop(this.dropAclIn, "acl_in", inIface);
+			return;
+		}
 
 		// Check TTL
 		ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
 		if (0 == ipPacket.getTtl())
-		{ return; }
+		{
+			this.drop(this.dropTtl, "ttl", inIface);
+			return;
+		}
 		
 		// Reset checksum now that TTL is decremented
 		ipPacket.resetChecksum();
-		
-		// Check if packet is destined for one of router's interfaces
-		for (Iface iface : this.interfaces.values())
+
+		// Reassemble fragments addressed to the router before looking at
+		// their payload
+		if (ipPacket.isFragment()
+				&& this.localAddresses.contains(ipPacket.getDestinationAddress()))
 		{
-			
-			if (ipPacket.getDestinationAddress() == iface.getIpAddress() ||
-					ipPacket.getDestinationAddress() == RipProtocol.MULTICAST_RIP_IP){
-				
-				// this router cares about this packet
-				if(ipPacket.getProtocol() == IPv4.PROTOCOL_UDP) {
-					UDP udpPacket = (UDP) ipPacket.getPayload();
-					
-					if(udpPacket.getDestinationPort() == UDP.RIP_PORT &&
-							udpPacket.getSourcePort() == UDP.RIP_PORT &&
-							ipPacket.getPayload() instanceof UDP) {
-						// This is a RIP packet
-						this.handleRipPacket(ipPacket, inIface);
-						return;
-					}
-					
-				}
-				
-			}
-			
+			ipPacket = this.reassembly.add(ipPacket);
+			if (null == ipPacket)
+			{ return; }
+			etherPacket.setPayload(ipPacket);
 		}
-		
+
+		// Translate replies to connections inside hosts made through an
+		// outside interface
+		if (this.napt != null)
+		{ this.napt.translateInbound(ipPacket, inIface); }
+
+		// Track TCP connections, seeing inside addresses in both directions
+		if (this.connTracker != null && !this.connTracker.track(ipPacket))
+		{
+			this.drop(this.dropConntrackFull, "conntrack_full", inIface);
+			return;
+		}
+
+		// Handle RIP packets addressed to the router
+		if (CLASS_RIP == this.classifyIpPacket(ipPacket))
+		{
+			this.handleRipPacket(ipPacket, inIface);
+			return;
+		}
+
+		// Other packets, including non-RIP packets for the router, are routed
+
+		// Forward packets belonging to a flow we have already resolved
+		int slot = this.flowCache.lookup(ipPacket, inIface,
+				this.routeTable.getVersion(), this.arpCache.getVersion());
+		if (slot >= 0)
+		{
+			etherPacket.setSourceMACAddress(this.flowCache.getSourceMac(slot));
+			etherPacket.setDestinationMACAddress(
+					this.flowCache.getDestinationMac(slot));
+			Iface outIface = this.flowCache.getOutInterface(slot);
+			if (this.sendIpPacket(etherPacket, inIface, outIface))
+			{ this.forwarded(ipPacket, inIface, outIface, true); }
+			return;
+		}
+
 		// Do route lookup and forward
 		this.forwardIpPacket(etherPacket, inIface);
 	}
 
+	/**
+	 * Decide whether an IP packet is a RIP packet for the router, some other
+	 * packet for the router, or a packet to forward.
+	 * @param ipPacket the IP packet
+	 * @return CLASS_RIP, CLASS_LOCAL, or CLASS_FORWARD
+	 */
+	private int classifyIpPacket(IPv4 ipPacket)
+	{
+		if (!this.localAddresses.contains(ipPacket.getDestinationAddress()))
+		{ return CLASS_FORWARD; }
+
+		IPacket payload = ipPacket.getPayload();
+		if (ipPacket.getProtocol() == IPv4.PROTOCOL_UDP
+				&& payload instanceof UDP)
+		{
+			UDP udpPacket = (UDP)payload;
+			if (udpPacket.getDestinationPort() == UDP.RIP_PORT
+					&& udpPacket.getSourcePort() == UDP.RIP_PORT)
+			{ return CLASS_RIP; }
+		}
+		return CLASS_LOCAL;
+	}
+
 	private void forwardIpPacket(Ethernet etherPacket, Iface inIface)
 	{
 		// Make sure it's an IP packet
 		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4)
 		{ return; }
-		System.out.format("***Forward ip packet to %s ****\n", IPv4.fromIPv4Address(inIface.getIpAddress()));
+		LOG.trace(() -> String.format("***Forward ip packet to %s ****", IPv4.fromIPv4Address(inIface.getIpAddress())));
 
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
 		int dstAddr = ipPacket.getDestinationAddress();
 
+		// Remember which table versions the forwarding decision is based on
+		int routeVersion = this.routeTable.getVersion();
+		int arpVersion = this.arpCache.getVersion();
+
 		// Find matching route table entry 
+		long lookupStart = System.nanoTime();
 		RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
+		this.routeLookupTime.record(System.nanoTime() - lookupStart);
+		this.tracer.mark(Stage.ROUTE_LOOKUP);
 
 		// If no entry matched, do nothing
 		if (null == bestMatch)
-		{ return; }
+		{
+			this.drop(this.dropNoRoute, "no_route", inIface);
+			return;
+		}
 
 		// Make sure we don't sent a packet back out the interface it came in
 		Iface outIface = bestMatch.getInterface();
 		if (outIface == inIface)
-		{ return; }
+		{
+			this.drop(this.dropSameIface, "same_iface", inIface);
+			return;
+		}
 
 		// Set source MAC address in Ethernet header
 		etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
@@ -254,9 +540,122 @@ public class Router extends Device
 		// Set destination MAC address in Ethernet header
 		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
 		if (null == arpEntry)
-		{ return; }
+		{
+			ArpMiss event = new ArpMiss();
+			if (event.shouldCommit())
+			{
+				event.device = this.getHost();
+				event.nextHop = IPv4.fromIPv4Address(nextHop);
+				event.iface = outIface.getName();
+				event.commit();
+			}
+			this.drop(this.dropNoArp, "no_arp", inIface);
+			return;
+		}
 		etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
 
-		this.sendPacket(etherPacket, outIface);
+		// Remember the decision for the rest of the flow
+		this.flowCache.install(ipPacket, inIface, outIface, arpEntry.getMac(),
+				routeVersion, arpVersion);
+
+		if (this.sendIpPacket(etherPacket, inIface, outIface))
+		{ this.forwarded(ipPacket, inIface, outIface, false); }
+	}
+
+	/**
+	 * Send an IP packet, split into fragments if it is larger than the out
+	 * interface's MTU.
+	 * @param etherPacket an Ethernet packet carrying the IP packet, with its
+	 *        addresses set
+	 * @param inIface the interface on which the packet was received
+	 * @param outIface the interface on which to send the packet
+	 * @return true if the packet was sent; false if the egress access list
+	 *         denied it, it could not be translated, or it was too large but
+	 *         could not be fragmented
+	 */
+	private boolean sendIpPacket(Ethernet etherPacket, Iface inIface,
+			Iface outIface)
+	{
+		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+		AccessLists acls = this.accessLists;
+		if (acls != null && !acls.permits(outIface, false, ipPacket))
+		{
+			this.drop(this.dropAclOut, "acl_out", inIface);
+			return false;
+		}
+
+		// Translate packets from inside hosts leaving an outside interface
+		if (this.napt != null
+				&& !this.napt.translateOutbound(ipPacket, inIface, outIface))
+		{
+			this.drop(this.dropNat, "nat", inIface);
+			return false;
+		}
+
+		int mtu = outIface.getMtu();
+		if (ipPacket.serializedLength() <= mtu)
+		{
+			this.sendPacket(etherPacket, outIface);
+			return true;
+		}
+
+		List<IPv4> fragments = ipPacket.fragment(mtu);
+		if (null == fragments)
+		{
+			this.drop(this.dropFragNeeded, "frag_needed", inIface);
+			return false;
+		}
+		this.fragmented.increment();
+		for (IPv4 fragment : fragments)
+		{
+			Ethernet frame = new Ethernet();
+			frame.setSourceMACAddress(etherPacket.getSourceMACAddress());
+			frame.setDestinationMACAddress(
+					etherPacket.getDestinationMACAddress());
+			frame.setEtherType(Ethernet.TYPE_IPv4);
+			frame.setPayload(fragment);
+			this.sendPacket(frame, outIface);
+		}
+		this.fragmentsSent.add(fragments.size());
+		return true;
+	}
+
+	/**
+	 * Count a dropped packet and record it in the flight recorder, if
+	 * enabled.
+	 * @param counter counter for the reason the packet was dropped
+	 * @param reason why the packet was dropped
+	 * @param inIface the interface on which the packet was received
+	 */
+	private void drop(Counter counter, String reason, Iface inIface)
+	{
+		counter.increment();
+		PacketDropped event = new PacketDropped();
+		if (event.shouldCommit())
+		{
+			event.device = this.getHost();
+			event.iface = (null == inIface) ? null : inIface.getName();
+			event.reason = reason;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Record a forwarded packet in the flight recorder, if enabled.
+	 */
+	private void forwarded(IPv4 ipPacket, Iface inIface, Iface outIface,
+			boolean cached)
+	{
+		PacketForwarded event = new PacketForwarded();
+		if (event.shouldCommit())
+		{
+			event.device = this.getHost();
+			event.inIface = (null == inIface) ? null : inIface.getName();
+			event.outIface = outIface.getName();
+			event.destination =
+					IPv4.fromIPv4Address(ipPacket.getDestinationAddress());
+			event.cached = cached;
+			event.commit();
+		}
 	}
 }
@@ -0,0 +1,243 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.RIPv2Entry;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.log.Logger;
+
+/**
+ * Saves a router's route table, ARP cache, and RIP database to a compact
+ * binary file, and restores them, so a restarted router can forward packets
+ * immediately instead of waiting for RIP to converge.
+ * <p>
+ * The file is big-endian:
+ * <pre>
+ *   int magic, int version, long time written (ms since the epoch)
+ *   int n, n route entries:  int dst, int gateway, int mask, iface name
+ *   int n, n ARP entries:    int ip, 6-byte MAC
+ *   int n, n RIP entries:    int address, int mask, int next hop,
+ *                            int metric, short ttl
+ * </pre>
+ * where an interface name is a one-byte length followed by ASCII characters.
+ * Files are written to a temporary file and renamed into place, so a crash
+ * while writing never leaves a partial snapshot.
+ */
+public class StateSnapshot
+{
+	private static final Logger LOG = Logger.getLogger(StateSnapshot.class);
+
+	private static final int MAGIC = 0x564e5353; // "VNSS"
+	private static final int VERSION = 1;
+
+	/**
+	 * Write a router's current state to a file. Reads only the copies the
+	 * tables publish, which are rebuilt at most once per change.
+	 * @param router the router
+	 * @param filename name of the file
+	 * @return true if the snapshot was written, otherwise false
+	 */
+	public static boolean write(Router router, String filename)
+	{
+		Path path = Paths.get(filename);
+		Path tmp = Paths.get(filename + ".tmp");
+		List<RouteEntry> routes = router.getRouteTable().getEntries();
+		List<ArpEntry> arpEntries = router.getArpCache().getEntries();
+		List<RIPv2Entry> ripEntries = (null == router.getRipProtocol()) ?
+				new ArrayList<RIPv2Entry>()
+				: router.getRipProtocol().getEntries();
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp.toFile()))))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(System.currentTimeMillis());
+
+			out.writeInt(routes.size());
+			for (RouteEntry entry : routes)
+			{
+				out.writeInt(entry.getDestinationAddress());
+				out.writeInt(entry.getGatewayAddress());
+				out.writeInt(entry.getMaskAddress());
+				byte[] name = entry.getInterface().getName().getBytes(
+						StandardCharsets.US_ASCII);
+				out.writeByte(name.length);
+				out.write(name);
+			}
+
+			out.writeInt(arpEntries.size());
+			for (ArpEntry entry : arpEntries)
+			{
+				out.writeInt(entry.getIp());
+				out.write(entry.getMac().toBytes());
+			}
+
+			out.writeInt(ripEntries.size());
+			for (RIPv2Entry entry : ripEntries)
+			{
+				out.writeInt(entry.getAddress());
+				out.writeInt(entry.getSubnetMask());
+				out.writeInt(entry.getNextHopAddress());
+				out.writeInt(entry.getMetric());
+				out.writeShort(entry.getTtl());
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.error("Error writing snapshot "+tmp, e);
+			return false;
+		}
+
+		try
+		{
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			LOG.error("Error replacing snapshot "+filename, e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Restore a router's state from a file. Must be called after the
+	 * router's interfaces are known and before RIP is started; entries for
+	 * interfaces the router no longer has are skipped. Nothing is restored if
+	 * any part of the file is invalid.
+	 * @param router the router
+	 * @param filename name of the file
+	 * @return true if the snapshot was restored, otherwise false
+	 */
+	public static boolean restore(Router router, String filename)
+	{
+		long start = System.nanoTime();
+		MappedByteBuffer buf;
+		try (FileChannel channel = FileChannel.open(Paths.get(filename),
+				StandardOpenOption.READ))
+		{ buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); }
+		catch (NoSuchFileException e)
+		{
+			LOG.info("No snapshot "+filename+" to restore");
+			return false;
+		}
+		catch (IOException e)
+		{
+			LOG.error("Error reading snapshot "+filename, e);
+			return false;
+		}
+
+		List<RouteEntry> routes = new ArrayList<RouteEntry>();
+		List<ArpEntry> arpEntries = new ArrayList<ArpEntry>();
+		List<RIPv2Entry> ripEntries = new ArrayList<RIPv2Entry>();
+		long written;
+		try
+		{
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+			{
+				LOG.error(filename+" is not a snapshot");
+				return false;
+			}
+			written = buf.getLong();
+
+			int count = buf.getInt();
+			for (int i = 0; i < count; i++)
+			{
+				int dstIp = buf.getInt();
+				int gwIp = buf.getInt();
+				int maskIp = buf.getInt();
+				byte[] name = new byte[buf.get() & 0xff];
+				buf.get(name);
+				Iface iface = router.getInterface(
+						new String(name, StandardCharsets.US_ASCII));
+				if (iface != null)
+				{ routes.add(new RouteEntry(dstIp, gwIp, maskIp, iface)); }
+			}
+
+			count = buf.getInt();
+			for (int i = 0; i < count; i++)
+			{
+				int ip = buf.getInt();
+				byte[] mac = new byte[MACAddress.MAC_ADDRESS_LENGTH];
+				buf.get(mac);
+				arpEntries.add(new ArpEntry(MACAddress.valueOf(mac), ip));
+			}
+
+			count = buf.getInt();
+			for (int i = 0; i < count; i++)
+			{
+				RIPv2Entry entry = new RIPv2Entry(buf.getInt(), buf.getInt(),
+						buf.getInt(), buf.getInt());
+				short ttl = buf.getShort();
+				entry.decreaseTtl((short)(entry.getTtl() - ttl));
+				ripEntries.add(entry);
+			}
+		}
+		catch (BufferUnderflowException e)
+		{
+			LOG.error("Snapshot "+filename+" is truncated");
+			return false;
+		}
+
+		router.getRouteTable().insertAll(routes);
+		for (ArpEntry entry : arpEntries)
+		{ router.getArpCache().insert(entry.getMac(), entry.getIp()); }
+		if (router.getRipProtocol() != null)
+		{ router.getRipProtocol().restore(ripEntries); }
+
+		long elapsed = System.nanoTime() - start;
+		LOG.info(String.format("Restored %d routes, %d ARP entries, and %d "
+				+ "RIP entries from %s (%d s old) in %.1f ms", routes.size(),
+				arpEntries.size(), ripEntries.size(), filename,
+				(System.currentTimeMillis() - written) / 1000, elapsed / 1e6));
+		return true;
+	}
+
+	/**
+	 * Write a router's state to a file periodically, on a daemon thread, and
+	 * once more when the JVM shuts down.
+	 * @param router the router
+	 * @param filename name of the file
+	 * @param interval time (in milliseconds) between snapshots
+	 */
+	public static void schedule(final Router router, final String filename,
+			final long interval)
+	{
+		Thread writer = new Thread(() -> {
+			while (true)
+			{
+				try
+				{ Thread.sleep(interval); }
+				catch (InterruptedException e)
+				{ break; }
+				write(router, filename);
+			}
+		}, router.getHost()+"-snapshot");
+		writer.setDaemon(true);
+		writer.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			writer.interrupt();
+			write(router, filename);
+		}));
+	}
+}
@@ -0,0 +1,421 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.log.Logger;
+
+/**
+ * Parses text table files, such as route tables and ARP caches, one entry
+ * per line with fields separated by spaces or tabs. The file is memory-mapped
+ * and parsed byte by byte, without regular expressions or a String per line.
+ * Large files are split at line boundaries and the pieces parsed in
+ * parallel. Invalid lines are reported and skipped; they do not stop the
+ * rest of the file from loading.
+ */
+class TableFileParser
+{
+	private static final Logger LOG = Logger.getLogger(TableFileParser.class);
+
+	/** Files smaller than this many bytes per thread are parsed on fewer
+	 *  threads */
+	private static final int MIN_CHUNK_SIZE = 1 << 20;
+
+	/** Most invalid lines reported individually */
+	private static final int MAX_REPORTED_ERRORS = 20;
+
+	/**
+	 * Turns one line into an entry.
+	 */
+	interface LineParser<T>
+	{
+		/**
+		 * @param line the line
+		 * @return the entry; null if the line is invalid, in which case
+		 *         {@link Line#fail} must have been called
+		 */
+		T parse(Line line);
+	}
+
+	/**
+	 * Parse every line of a file.
+	 * @param filename name of the file
+	 * @param parser turns each line into an entry
+	 * @return entries from the valid lines, in file order; null if the file
+	 *         cannot be read
+	 */
+	static <T> List<T> parse(String filename, final LineParser<T> parser)
+	{
+		final ByteBuffer buf;
+		try (FileChannel channel = FileChannel.open(Paths.get(filename),
+				StandardOpenOption.READ))
+		{
+			if (channel.size() > Integer.MAX_VALUE)
+			{
+				LOG.error(filename+" is too large");
+				return null;
+			}
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		catch (IOException e)
+		{
+			LOG.error(e.toString());
+			return null;
+		}
+
+		// Split the file into chunks that each start at the beginning of a
+		// line
+		int size = buf.limit();
+		int chunks = Math.max(1, Math.min(
+				Runtime.getRuntime().availableProcessors(),
+				size / MIN_CHUNK_SIZE));
+		int[] bounds = new int[chunks + 1];
+		for (int i = 1; i < chunks; i++)
+		{
+			int pos = Math.max(bounds[i - 1], (int)((long)size * i / chunks));
+			while (pos < size && buf.get(pos) != '\n')
+			{ pos++; }
+			bounds[i] = Math.min(size, pos + 1);
+		}
+		bounds[chunks] = size;
+
+		final List<Chunk<T>> parsed = new ArrayList<Chunk<T>>(chunks);
+		for (int i = 0; i < chunks; i++)
+		{ parsed.add(new Chunk<T>(buf.duplicate(), bounds[i], bounds[i + 1])); }
+
+		if (1 == chunks)
+		{ parsed.get(0).parse(parser); }
+		else
+		{
+			Thread[] threads = new Thread[chunks];
+			for (int i = 0; i < chunks; i++)
+			{
+				final Chunk<T> chunk = parsed.get(i);
+				threads[i] = new Thread(() -> chunk.parse(parser),
+						"table-parser-"+i);
+				threads[i].start();
+			}
+			for (Thread thread : threads)
+			{
+				try
+				{ thread.join(); }
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+		}
+
+		// Combine the chunks and report errors with file-wide line numbers
+		int total = 0;
+		for (Chunk<T> chunk : parsed)
+		{ total += chunk.entries.size(); }
+		List<T> entries = new ArrayList<T>(total);
+		int firstLine = 1;
+		int errors = 0;
+		for (Chunk<T> chunk : parsed)
+		{
+			entries.addAll(chunk.entries);
+			for (int i = 0; i < chunk.errorLines.size(); i++)
+			{
+				if (errors++ < MAX_REPORTED_ERRORS)
+				{
+					LOG.error(String.format("%s:%d: %s", filename,
+							firstLine + chunk.errorLines.get(i),
+							chunk.errors.get(i)));
+				}
+			}
+			firstLine += chunk.lines;
+		}
+		if (errors > MAX_REPORTED_ERRORS)
+		{
+			LOG.error(String.format("%s: %d more invalid lines", filename,
+					errors - MAX_REPORTED_ERRORS));
+		}
+		return entries;
+	}
+
+	/**
+	 * A range of lines in a file, and the entries parsed from it.
+	 */
+	private static class Chunk<T>
+	{
+		private final ByteBuffer buf;
+		private final int start;
+		private final int end;
+
+		private final List<T> entries;
+
+		/** Lines in the chunk */
+		private int lines;
+
+		/** Invalid lines, numbered from 0 at the start of the chunk, and why
+		 *  they are invalid */
+		private final List<Integer> errorLines;
+		private final List<String> errors;
+
+		Chunk(ByteBuffer buf, int start, int end)
+		{
+			this.buf = buf;
+			this.start = start;
+			this.end = end;
+			this.entries = new ArrayList<T>(Math.max(16, (end - start) / 40));
+			this.errorLines = new ArrayList<Integer>();
+			this.errors = new ArrayList<String>();
+		}
+
+		void parse(LineParser<T> parser)
+		{
+			Line line = new Line(this.buf);
+			int pos = this.start;
+			while (pos < this.end)
+			{
+				int lineEnd = pos;
+				while (lineEnd < this.end && this.buf.get(lineEnd) != '\n')
+				{ lineEnd++; }
+				line.reset(pos, lineEnd);
+				pos = lineEnd + 1;
+
+				if (line.isBlank())
+				{
+					this.lines++;
+					continue;
+				}
+				T entry = parser.parse(line);
+				if (entry != null)
+				{ this.entries.add(entry); }
+				else
+				{
+					this.errorLines.add(this.lines);
+					this.errors.add((null == line.error) ? "invalid entry"
+							: line.error);
+				}
+				this.lines++;
+			}
+		}
+	}
+
+	/**
+	 * A cursor over the bytes of one line. Field readers advance the cursor;
+	 * on malformed input they record an error and return a dummy value, so a
+	 * parser can read every field and check {@link #ok} once at the end.
+	 */
+	static class Line
+	{
+		private final ByteBuffer buf;
+		private int pos;
+		private int end;
+		private String error;
+
+		Line(ByteBuffer buf)
+		{ this.buf = buf; }
+
+		void reset(int start, int end)
+		{
+			// Ignore the carriage return of a CRLF line ending
+			if (end > start && '\r' == this.buf.get(end - 1))
+			{ end--; }
+			this.pos = start;
+			this.end = end;
+			this.error = null;
+		}
+
+		private boolean isBlank()
+		{
+			for (int i = this.pos; i < this.end; i++)
+			{
+				byte b = this.buf.get(i);
+				if (b != ' ' && b != '\t')
+				{ return false; }
+			}
+			return true;
+		}
+
+		/**
+		 * Record why the line is invalid; only the first reason is kept.
+		 * @param message the reason
+		 */
+		void fail(String message)
+		{
+			if (null == this.error)
+			{ this.error = message; }
+		}
+
+		/**
+		 * @return true if no field has failed to parse
+		 */
+		boolean ok()
+		{ return (null == this.error); }
+
+		/**
+		 * Skip leading spaces and tabs; there need not be any.
+		 */
+		void skipSpace()
+		{
+			while (this.pos < this.end && (' ' == this.buf.get(this.pos)
+					|| '\t' == this.buf.get(this.pos)))
+			{ this.pos++; }
+		}
+
+		/**
+		 * Skip spaces and tabs separating two fields; there must be at least
+		 * one.
+		 */
+		void separator()
+		{
+			int before = this.pos;
+			this.skipSpace();
+			if (this.pos == before)
+			{ this.fail("invalid entry"); }
+		}
+
+		/**
+		 * Check that nothing but spaces and tabs remains.
+		 */
+		void finish()
+		{
+			this.skipSpace();
+			if (this.pos != this.end)
+			{ this.fail("invalid entry"); }
+		}
+
+		/**
+		 * Read a dotted-quad IPv4 address.
+		 * @return the address
+		 */
+		int ip()
+		{
+			int start = this.pos;
+			int ip = 0;
+			for (int octet = 0; octet < 4; octet++)
+			{
+				if (octet > 0)
+				{
+					if (this.pos >= this.end || this.buf.get(this.pos) != '.')
+					{ return this.failIp(start); }
+					this.pos++;
+				}
+				int value = 0;
+				int digits = 0;
+				while (this.pos < this.end && digits < 3)
+				{
+					int digit = this.buf.get(this.pos) - '0';
+					if (digit < 0 || digit > 9)
+					{ break; }
+					value = value * 10 + digit;
+					digits++;
+					this.pos++;
+				}
+				if (0 == digits || value > 255)
+				{ return this.failIp(start); }
+				ip = (ip << 8) | value;
+			}
+			return ip;
+		}
+
+		private int failIp(int start)
+		{
+			this.fail("cannot convert "+this.field(start)+" to valid IP");
+			return 0;
+		}
+
+		/**
+		 * Read a MAC address written as six colon-separated pairs of hex
+		 * digits.
+		 * @return the address; null if the field is invalid
+		 */
+		MACAddress mac()
+		{
+			int start = this.pos;
+			byte[] mac = new byte[MACAddress.MAC_ADDRESS_LENGTH];
+			for (int i = 0; i < mac.length; i++)
+			{
+				if (i > 0)
+				{
+					if (this.pos >= this.end || this.buf.get(this.pos) != ':')
+					{ return this.failMac(start); }
+					this.pos++;
+				}
+				if (this.pos + 2 > this.end)
+				{ return this.failMac(start); }
+				int high = Character.digit(this.buf.get(this.pos), 16);
+				int low = Character.digit(this.buf.get(this.pos + 1), 16);
+				if (high < 0 || low < 0)
+				{ return this.failMac(start); }
+				mac[i] = (byte)((high << 4) | low);
+				this.pos += 2;
+			}
+			return MACAddress.valueOf(mac);
+		}
+
+		private MACAddress failMac(int start)
+		{
+			this.fail("cannot convert "+this.field(start)+" to valid MAC");
+			return null;
+		}
+
+		/**
+		 * Read a field of letters and digits.
+		 * @return the position at which the field starts; the field ends at
+		 *         the cursor
+		 */
+		int name()
+		{
+			int start = this.pos;
+			while (this.pos < this.end)
+			{
+				byte b = this.buf.get(this.pos);
+				if (!((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+						|| (b >= '0' && b <= '9')))
+				{ break; }
+				this.pos++;
+			}
+			if (this.pos == start)
+			{ this.fail("invalid entry"); }
+			return start;
+		}
+
+		/**
+		 * @param start position at which a field read by {@link #name}
+		 *        starts
+		 * @param name candidate value of the field, as ASCII bytes
+		 * @return true if the field is exactly the name
+		 */
+		boolean matches(int start, byte[] name)
+		{
+			if (this.pos - start != name.length)
+			{ return false; }
+			for (int i = 0; i < name.length; i++)
+			{
+				if (this.buf.get(start + i) != name[i])
+				{ return false; }
+			}
+			return true;
+		}
+
+		/**
+		 * @return the text from a position up to the next space or the end
+		 *         of the line, for error messages
+		 */
+		String field(int start)
+		{
+			int stop = start;
+			while (stop < this.end && this.buf.get(stop) != ' '
+					&& this.buf.get(stop) != '\t')
+			{ stop++; }
+			byte[] bytes = new byte[stop - start];
+			for (int i = 0; i < bytes.length; i++)
+			{ bytes[i] = this.buf.get(start + i); }
+			return new String(bytes, StandardCharsets.US_ASCII);
+		}
+	}
+}
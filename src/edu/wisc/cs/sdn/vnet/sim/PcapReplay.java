@@ -0,0 +1,481 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.PcapReader;
+import edu.wisc.cs.sdn.vnet.log.Level;
+import edu.wisc.cs.sdn.vnet.log.Logger;
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+import edu.wisc.cs.sdn.vnet.vns.VNSServer;
+
+/**
+ * Replays the frames in a PCAP file into one switch or router from a
+ * topology, and reports how fast the device handled them.
+ * <p>
+ * By default frames are handed straight to {@link Device#receivePacket} and
+ * the device's output is discarded by a stub {@link VNSComm}; latency is the
+ * time each call takes. With -socket, the device instead connects to an
+ * in-process {@link VNSServer} and frames travel over the VNS socket; latency
+ * is then measured from sending a frame to the device sending it back out,
+ * matching frames by fields forwarding does not change.
+ * <p>
+ * Frames are sent either as fast as possible, at their original capture
+ * times, or at their capture times scaled by a speedup factor. The whole
+ * capture is read into memory first so disk reads do not affect timing.
+ */
+public class PcapReplay
+{
+	private static final int MODE_MAX = 0;
+	private static final int MODE_ORIGINAL = 1;
+	private static final int MODE_SCALED = 2;
+
+	/** Time (in milliseconds) without output after which the socket replay
+	 *  stops waiting for the device */
+	private static final int IDLE_TIMEOUT = 1000;
+
+	/** Pacing sleeps rather than spins when a frame is due further ahead
+	 *  than this (in nanoseconds) */
+	private static final long SPIN_THRESHOLD = 100000;
+
+	/**
+	 * Discards, but counts, everything a device sends.
+	 */
+	private class StubVNSComm extends VNSComm
+	{
+		public StubVNSComm(Device device)
+		{ super(device); }
+
+		@Override
+		public boolean sendPacket(Ethernet etherPacket, String ifaceName)
+		{
+			etherPacket.serialize();
+			outputs++;
+			return true;
+		}
+
+		@Override
+		public boolean sendPacket(Ethernet etherPacket, Iface[] ifaces)
+		{
+			etherPacket.serialize();
+			outputs += ifaces.length;
+			return true;
+		}
+	}
+
+	/**
+	 * Gives the device its interfaces and matches what it sends to what was
+	 * replayed.
+	 */
+	private class ReplayServer extends VNSServer
+	{
+		protected Collection<Iface> getInterfaces(String host)
+		{
+			if (!host.equals(node.getName()))
+			{ return null; }
+			return node.getInterfaces();
+		}
+
+		protected void handlePacket(String host, String ifaceName,
+				byte[] frame)
+		{
+			long now = System.nanoTime();
+			outputs++;
+			lastOutput = now;
+			long sentAt = matchOutput(fingerprint(frame));
+			if (sentAt >= 0)
+			{ record(now - sentAt); }
+		}
+	}
+
+	private Topology.Node node;
+	private Device device;
+	private Iface inIface;
+	private ReplayServer server;
+
+	/** Frames to replay and their capture times, relative to the first */
+	private List<byte[]> frames;
+	private long[] times;
+
+	/** Number of frames the device has sent */
+	private volatile long outputs;
+	private volatile long lastOutput;
+
+	/** Send times of frames awaiting output in socket mode; maps frame
+	 *  fingerprints to the times, oldest first, of frames sharing it */
+	private Map<Long,ArrayDeque<Long>> pending;
+	private int pendingCount;
+
+	/** Latency (in nanoseconds) of each frame that produced output */
+	private long[] latencies;
+	private int latencyCount;
+
+	/**
+	 * @param topo topology containing the device
+	 * @param node the switch or router to replay frames into
+	 */
+	public PcapReplay(Topology topo, Topology.Node node)
+	{
+		this.node = node;
+		this.device = Simulator.createDevice(node);
+		this.frames = new ArrayList<byte[]>();
+		this.latencies = new long[1024];
+	}
+
+	/**
+	 * Read every frame in a capture.
+	 * @param filename name of the PCAP file
+	 * @return true if the file was read, otherwise false
+	 */
+	public boolean load(String filename)
+	{
+		PcapReader reader = PcapReader.open(filename);
+		if (null == reader)
+		{ return false; }
+
+		List<Long> stamps = new ArrayList<Long>();
+		byte[] frame;
+		while ((frame = reader.readFrame()) != null)
+		{
+			this.frames.add(frame);
+			stamps.add(reader.getTimestamp());
+		}
+		reader.close();
+
+		this.times = new long[stamps.size()];
+		for (int i = 0; i < this.times.length; i++)
+		{ this.times[i] = stamps.get(i) - stamps.get(0); }
+		return true;
+	}
+
+	/**
+	 * Connect the device, either to a stub or to a VNS server over loopback,
+	 * and load its static routes and ARP cache.
+	 * @param topo topology containing the device
+	 * @param ifaceName interface on which frames arrive; null for the
+	 *        device's first interface
+	 * @param socket true to connect over loopback, false to use a stub
+	 * @param port TCP port for the VNS server; 0 to pick a free port
+	 * @return true if the device is ready, otherwise false
+	 */
+	public boolean start(Topology topo, String ifaceName, boolean socket,
+			int port)
+	{
+		if (socket)
+		{
+			this.pending = new HashMap<Long,ArrayDeque<Long>>();
+			this.server = new ReplayServer();
+			if (!this.server.listen(port))
+			{ return false; }
+			Thread serverThread = new Thread(this.server, "vns-server");
+			serverThread.setDaemon(true);
+			serverThread.start();
+			if (!Simulator.connect(this.device, this.server.getPort()))
+			{ return false; }
+		}
+		else
+		{
+			new StubVNSComm(this.device);
+			Simulator.addInterfaces(this.device, this.node);
+		}
+
+		if (this.device instanceof Router)
+		{
+			Simulator.configureRouter((Router)this.device, topo,
+					topo.getArpTable(), false);
+		}
+
+		if (null == ifaceName && !this.node.getInterfaces().isEmpty())
+		{ ifaceName = this.node.getInterfaces().get(0).getName(); }
+		this.inIface = (null == ifaceName) ? null
+				: this.device.getInterface(ifaceName);
+		if (null == this.inIface)
+		{
+			System.err.println("No interface "+ifaceName+" on "+node);
+			return false;
+		}
+		return true;
+	}
+
+	private synchronized void record(long latency)
+	{
+		if (this.latencyCount == this.latencies.length)
+		{
+			this.latencies = Arrays.copyOf(this.latencies,
+					this.latencies.length * 2);
+		}
+		this.latencies[this.latencyCount++] = latency;
+	}
+
+	/**
+	 * Identify a frame by fields a switch or router does not change when
+	 * forwarding it: for IPv4, the addresses, identification, protocol, and
+	 * first 8 bytes of the transport header; otherwise the whole frame.
+	 */
+	private static long fingerprint(byte[] frame)
+	{
+		long h = 0xcbf29ce484222325L;
+		if (frame.length >= 34 && 0x08 == frame[12] && 0x00 == frame[13])
+		{
+			int ihl = (frame[14] & 0x0f) * 4;
+			int end = Math.min(frame.length, 14 + ihl + 8);
+			for (int i = 18; i < end; i++)
+			{
+				// Skip flags, TTL, and checksum
+				if (i >= 20 && i < 26 && i != 23)
+				{ continue; }
+				h = (h ^ (frame[i] & 0xff)) * 0x100000001b3L;
+			}
+			return h;
+		}
+		for (int i = 0; i < frame.length; i++)
+		{ h = (h ^ (frame[i] & 0xff)) * 0x100000001b3L; }
+		return h;
+	}
+
+	private synchronized void addPending(long fingerprint, long sentAt)
+	{
+		ArrayDeque<Long> times = this.pending.get(fingerprint);
+		if (null == times)
+		{
+			times = new ArrayDeque<Long>(1);
+			this.pending.put(fingerprint, times);
+		}
+		times.add(sentAt);
+		this.pendingCount++;
+	}
+
+	/**
+	 * @return send time of the oldest frame awaiting output with a
+	 *         fingerprint; -1 if there is none
+	 */
+	private synchronized long matchOutput(long fingerprint)
+	{
+		ArrayDeque<Long> times = this.pending.get(fingerprint);
+		if (null == times)
+		{ return -1; }
+		long sentAt = times.poll();
+		if (times.isEmpty())
+		{ this.pending.remove(fingerprint); }
+		this.pendingCount--;
+		return sentAt;
+	}
+
+	private synchronized int getPendingCount()
+	{ return this.pendingCount; }
+
+	private void inject(byte[] frame)
+	{
+		if (this.server != null)
+		{
+			this.addPending(fingerprint(frame), System.nanoTime());
+			this.server.sendPacket(this.node.getName(),
+					this.inIface.getName(), frame);
+			return;
+		}
+
+		long start = System.nanoTime();
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.deserialize(frame, 0, frame.length);
+		this.device.receivePacket(etherPacket, this.inIface);
+		this.record(System.nanoTime() - start);
+	}
+
+	private static void waitUntil(long due)
+	{
+		long delay;
+		while ((delay = due - System.nanoTime()) > 0)
+		{
+			if (delay > SPIN_THRESHOLD)
+			{ LockSupport.parkNanos(delay - SPIN_THRESHOLD); }
+		}
+	}
+
+	/**
+	 * Replay the capture.
+	 * @param mode MODE_MAX, MODE_ORIGINAL, or MODE_SCALED
+	 * @param speedup factor by which to shorten gaps between frames in
+	 *        MODE_SCALED
+	 * @param loops number of times to replay the capture
+	 * @return time (in nanoseconds) taken to replay the capture and, in
+	 *         socket mode, for the device to finish sending its output
+	 */
+	public long replay(int mode, double speedup, int loops)
+			throws InterruptedException
+	{
+		double scale = (MODE_SCALED == mode) ? 1.0 / speedup : 1.0;
+		long duration = (0 == this.times.length) ? 0
+				: this.times[this.times.length - 1];
+
+		long start = System.nanoTime();
+		this.lastOutput = start;
+		for (int l = 0; l < loops; l++)
+		{
+			for (int i = 0; i < this.times.length; i++)
+			{
+				if (mode != MODE_MAX)
+				{
+					waitUntil(start + (long)((l * duration + this.times[i])
+							* scale));
+				}
+				this.inject(this.frames.get(i));
+			}
+		}
+		long end = System.nanoTime();
+
+		// Wait for the device to work through what was sent
+		if (this.server != null)
+		{
+			while (this.getPendingCount() > 0 && System.nanoTime()
+					- Math.max(this.lastOutput, end) < IDLE_TIMEOUT * 1000000L)
+			{ Thread.sleep(1); }
+			end = Math.max(end, this.lastOutput);
+		}
+		return end - start;
+	}
+
+	/**
+	 * @param percentile a percentile between 0 and 100
+	 * @return latency (in nanoseconds) at the percentile; 0 if no latencies
+	 *         were recorded
+	 */
+	private long getLatency(double percentile)
+	{
+		if (0 == this.latencyCount)
+		{ return 0; }
+		int index = (int)Math.ceil(percentile / 100 * this.latencyCount) - 1;
+		return this.latencies[Math.max(0, Math.min(index,
+				this.latencyCount - 1))];
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		String pcapFile = null;
+		String topoFile = null;
+		String host = null;
+		String ifaceName = null;
+		int mode = MODE_MAX;
+		double speedup = 1.0;
+		int loops = 1;
+		boolean socket = false;
+		int port = 0;
+		boolean verbose = false;
+
+		// Parse arguments
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				usage();
+				return;
+			}
+			else if (arg.equals("-r"))
+			{ pcapFile = args[++i]; }
+			else if (arg.equals("-t"))
+			{ topoFile = args[++i]; }
+			else if (arg.equals("-d"))
+			{ host = args[++i]; }
+			else if (arg.equals("-i"))
+			{ ifaceName = args[++i]; }
+			else if (arg.equals("-m"))
+			{
+				String name = args[++i];
+				if (name.equals("original"))
+				{ mode = MODE_ORIGINAL; }
+				else if (name.equals("scaled"))
+				{ mode = MODE_SCALED; }
+				else if (name.equals("max"))
+				{ mode = MODE_MAX; }
+				else
+				{
+					usage();
+					return;
+				}
+			}
+			else if (arg.equals("-x"))
+			{ speedup = Double.parseDouble(args[++i]); }
+			else if (arg.equals("-c"))
+			{ loops = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-socket"))
+			{ socket = true; }
+			else if (arg.equals("-p"))
+			{ port = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-v"))
+			{ verbose = true; }
+		}
+
+		if (null == pcapFile || null == topoFile || null == host
+				|| speedup <= 0 || loops < 1)
+		{
+			usage();
+			return;
+		}
+
+		Topology topo = Topology.load(topoFile);
+		if (null == topo)
+		{ System.exit(1); }
+		Topology.Node node = topo.getNode(host);
+		if (null == node || Topology.HOST == node.getType())
+		{
+			System.err.println(host+" is not a switch or router in "+topoFile);
+			System.exit(1);
+		}
+
+		Logger.setLevel(verbose ? Level.DEBUG : Level.WARN);
+
+		PcapReplay replay = new PcapReplay(topo, node);
+		if (!replay.load(pcapFile) || !replay.start(topo, ifaceName, socket,
+				port))
+		{ System.exit(1); }
+
+		// Always exit, so a device thread cannot keep a failed replay alive
+		int status = 0;
+		try
+		{
+			long elapsed = replay.replay(mode, speedup, loops);
+			long frames = (long)replay.frames.size() * loops;
+			double seconds = elapsed / 1e9;
+			Arrays.sort(replay.latencies, 0, replay.latencyCount);
+
+			System.out.println(String.format("Replayed %d frames into %s.%s "
+					+ "in %.3f s: %.0f packets/s", frames, host,
+					replay.inIface.getName(), seconds,
+					(seconds > 0) ? frames / seconds : 0.0));
+			System.out.println(String.format("Device sent %d frames",
+					replay.outputs));
+			System.out.println(String.format("Latency (us) for %d frames: "
+					+ "p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f",
+					replay.latencyCount, replay.getLatency(50) / 1e3,
+					replay.getLatency(90) / 1e3, replay.getLatency(99) / 1e3,
+					replay.getLatency(99.9) / 1e3, replay.getLatency(100) / 1e3));
+		}
+		catch (RuntimeException e)
+		{
+			e.printStackTrace();
+			status = 1;
+		}
+		finally
+		{ replay.device.destroy(); }
+		System.exit(status);
+	}
+
+	static void usage()
+	{
+		System.out.println("PCAP Replay");
+		System.out.println("PcapReplay -r pcap_file -t topo_file -d device [-h]");
+		System.out.println("     [-i iface] [-m max|original|scaled] [-x speedup]");
+		System.out.println("     [-c loops] [-socket [-p port]] [-v]");
+	}
+}
@@ -0,0 +1,121 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.UDP;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * An end host in a simulated network. Hosts only originate UDP traffic and
+ * count the IPv4 packets addressed to them; everything else they receive is
+ * ignored.
+ */
+public class SimHost
+{
+	private String name;
+
+	/** The host's only interface */
+	private Iface iface;
+
+	/** Default gateway; 0 if the host has none */
+	private int gateway;
+
+	/** Number of IPv4 packets received for the host's address */
+	private AtomicLong received;
+
+	/**
+	 * Create a host from its description in a topology.
+	 * @param node the host node
+	 */
+	public SimHost(Topology.Node node)
+	{
+		this.name = node.getName();
+		this.iface = node.getInterfaces().isEmpty() ? null
+				: node.getInterfaces().get(0);
+		this.gateway = node.getGateway();
+		this.received = new AtomicLong();
+	}
+
+	public String getName()
+	{ return this.name; }
+
+	/**
+	 * @return the host's interface; null if the host is not linked to
+	 *         anything
+	 */
+	public Iface getInterface()
+	{ return this.iface; }
+
+	/**
+	 * @return number of IPv4 packets received for the host's address
+	 */
+	public long getReceived()
+	{ return this.received.get(); }
+
+	/**
+	 * Build a UDP packet from this host to another.
+	 * @param dst destination host
+	 * @param srcPort UDP source port
+	 * @param dstPort UDP destination port
+	 * @param payloadSize number of bytes of UDP payload
+	 * @param arpTable static ARP table for the network
+	 * @return the serialized Ethernet frame; null if the destination is not
+	 *         on the host's subnet and the host has no gateway
+	 */
+	public byte[] createUdpFrame(SimHost dst, short srcPort, short dstPort,
+			int payloadSize, Map<Integer,MACAddress> arpTable)
+	{
+		int dstAddr = dst.iface.getIpAddress();
+		int mask = this.iface.getSubnetMask();
+		int nextHop = dstAddr;
+		if ((dstAddr & mask) != (this.iface.getIpAddress() & mask))
+		{ nextHop = this.gateway; }
+		MACAddress dstMac = arpTable.get(nextHop);
+		if (null == dstMac)
+		{ return null; }
+
+		UDP udpPacket = new UDP();
+		udpPacket.setSourcePort(srcPort);
+		udpPacket.setDestinationPort(dstPort);
+		udpPacket.setPayload(new Data(new byte[payloadSize]));
+
+		IPv4 ipPacket = new IPv4();
+		ipPacket.setTtl((byte)64);
+		ipPacket.setProtocol(IPv4.PROTOCOL_UDP);
+		ipPacket.setSourceAddress(this.iface.getIpAddress());
+		ipPacket.setDestinationAddress(dstAddr);
+		ipPacket.setPayload(udpPacket);
+
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.setEtherType(Ethernet.TYPE_IPv4);
+		etherPacket.setSourceMACAddress(this.iface.getMacAddress());
+		etherPacket.setDestinationMACAddress(dstMac);
+		etherPacket.setPayload(ipPacket);
+		return etherPacket.serialize();
+	}
+
+	/**
+	 * Called when a frame arrives on the host's interface.
+	 * @param frame the Ethernet frame
+	 * @return true if the frame was an IPv4 packet for the host, otherwise
+	 *         false
+	 */
+	public boolean receive(byte[] frame)
+	{
+		// Ethernet type at 12, IPv4 destination at 14+16
+		if (frame.length < 34 || frame[12] != 0x08 || frame[13] != 0x00)
+		{ return false; }
+		int dstAddr = ((frame[30] & 0xff) << 24) | ((frame[31] & 0xff) << 16)
+				| ((frame[32] & 0xff) << 8) | (frame[33] & 0xff);
+		if (dstAddr != this.iface.getIpAddress())
+		{ return false; }
+		this.received.incrementAndGet();
+		return true;
+	}
+}
@@ -0,0 +1,90 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.util.Map;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.trace.Stage;
+import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+
+/**
+ * Connects a device to a simulated network inside the same process. Packets
+ * the device sends are serialized, exactly as they would be for the VNS
+ * server, and handed to the simulator for delivery to the other end of the
+ * link.
+ */
+public class SimVNSComm extends VNSComm
+{
+	private Device device;
+	private Simulator simulator;
+
+	/** Maps each of the device's interface names to the other end of its
+	 *  link */
+	private Map<String,Simulator.Port> peers;
+
+	/**
+	 * @param device the device to connect
+	 * @param simulator the simulator delivering packets
+	 * @param peers maps each of the device's interface names to the other
+	 *        end of its link
+	 */
+	public SimVNSComm(Device device, Simulator simulator,
+			Map<String,Simulator.Port> peers)
+	{
+		super(device);
+		this.device = device;
+		this.simulator = simulator;
+		this.peers = peers;
+	}
+
+	@Override
+	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
+	{
+		Simulator.Port peer = this.peers.get(ifaceName);
+		if (null == peer)
+		{ return false; }
+
+		// Log packet
+		if (this.device.getLogFile() != null)
+		{
+			this.device.getLogFile().dump(etherPacket);
+			this.device.getTracer().mark(Stage.DUMP_TX);
+		}
+
+		byte[] bytes = etherPacket.serialize();
+		this.device.getTracer().mark(Stage.SERIALIZE);
+		this.simulator.transmit(peer, bytes);
+		this.device.getTracer().mark(Stage.WRITE);
+		return true;
+	}
+
+	@Override
+	public boolean sendPacket(Ethernet etherPacket, Iface[] ifaces)
+	{
+		byte[] bytes = etherPacket.serialize();
+		this.device.getTracer().mark(Stage.SERIALIZE);
+
+		// Log packets
+		if (this.device.getLogFile() != null)
+		{
+			for (int i = 0; i < ifaces.length; i++)
+			{ this.device.getLogFile().dump(bytes, 0, bytes.length); }
+			this.device.getTracer().mark(Stage.DUMP_TX);
+		}
+
+		// Receivers only read frames, so every peer can share the same bytes
+		boolean sent = true;
+		for (Iface iface : ifaces)
+		{
+			Simulator.Port peer = this.peers.get(iface.getName());
+			if (null == peer)
+			{ sent = false; }
+			else
+			{ this.simulator.transmit(peer, bytes); }
+		}
+		this.device.getTracer().mark(Stage.WRITE);
+		return sent;
+	}
+}
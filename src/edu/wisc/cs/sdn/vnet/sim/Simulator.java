@@ -0,0 +1,649 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.DumpFile;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.log.Level;
+import edu.wisc.cs.sdn.vnet.log.Logger;
+import edu.wisc.cs.sdn.vnet.rt.RipProtocol;
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.sw.Switch;
+import edu.wisc.cs.sdn.vnet.vns.Command;
+import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+import edu.wisc.cs.sdn.vnet.vns.VNSServer;
+
+/**
+ * Runs every switch and router in a topology inside one JVM and measures
+ * how fast they forward traffic between the topology's hosts.
+ * <p>
+ * In the default in-memory mode, devices are connected by a single packet
+ * queue drained on the main thread, so runs are deterministic. In loopback
+ * mode, a {@link VNSServer} stands in for the POX module and every device
+ * talks to it over its own TCP connection and thread, exactly as it would
+ * under Mininet.
+ */
+public class Simulator
+{
+	private static final int DEFAULT_PACKETS = 100000;
+	private static final int DEFAULT_FLOWS = 64;
+	private static final int DEFAULT_PAYLOAD = 64;
+	private static final int DEFAULT_RIP_WAIT = 35;
+	private static final int DEFAULT_STP_WAIT = 5;
+	private static final short FIRST_SRC_PORT = 1024;
+	private static final short DST_PORT = 9;
+
+	/** Packets injected between drains of the in-memory queue */
+	private static final int BATCH = 256;
+
+	/** Packets allowed in flight in loopback mode */
+	private static final int WINDOW = 4096;
+
+	/** Time (in milliseconds) without a delivery after which the rest of the
+	 *  packets are considered lost */
+	private static final int IDLE_TIMEOUT = 2000;
+
+	/**
+	 * The receiving end of a link: an interface on a device or a host.
+	 */
+	public static class Port
+	{
+		private String node;
+		private String ifaceName;
+		private Device device;
+		private Iface iface;
+		private SimHost host;
+	}
+
+	/**
+	 * A frame waiting in the in-memory queue.
+	 */
+	private static class Delivery
+	{
+		private Port port;
+		private byte[] frame;
+
+		private Delivery(Port port, byte[] frame)
+		{
+			this.port = port;
+			this.frame = frame;
+		}
+	}
+
+	/**
+	 * Hands devices their interfaces from the topology and relays the
+	 * packets they send.
+	 */
+	private class TopologyServer extends VNSServer
+	{
+		protected Collection<Iface> getInterfaces(String host)
+		{
+			Topology.Node node = topo.getNode(host);
+			if (null == node || Topology.HOST == node.getType())
+			{ return null; }
+			return node.getInterfaces();
+		}
+
+		protected void handlePacket(String host, String ifaceName,
+				byte[] frame)
+		{
+			Map<String,Port> peers = links.get(host);
+			Port peer = (null == peers) ? null : peers.get(ifaceName);
+			if (peer != null)
+			{ transmit(peer, frame); }
+		}
+	}
+
+	private Topology topo;
+	private boolean loopback;
+	private TopologyServer server;
+
+	/** Devices and hosts; maps node names to devices and hosts */
+	private Map<String,Device> devices;
+	private Map<String,SimHost> hosts;
+
+	/** Links; maps a node name and interface name to the other end */
+	private Map<String,Map<String,Port>> links;
+
+	/** Frames in flight between devices, in in-memory mode */
+	private LinkedBlockingQueue<Delivery> queue;
+
+	/** Limits packets in flight, in loopback mode */
+	private Semaphore credits;
+
+	/**
+	 * @param topo the network to simulate
+	 * @param loopback true to connect devices through a VNS server over
+	 *        loopback TCP, false to connect them in memory
+	 */
+	public Simulator(Topology topo, boolean loopback)
+	{
+		this.topo = topo;
+		this.loopback = loopback;
+		this.devices = new LinkedHashMap<String,Device>();
+		this.hosts = new LinkedHashMap<String,SimHost>();
+		this.links = new HashMap<String,Map<String,Port>>();
+		this.queue = new LinkedBlockingQueue<Delivery>();
+	}
+
+	/**
+	 * Create and connect every device in the topology and configure the
+	 * routers.
+	 * @param port TCP port for the VNS server in loopback mode; 0 to pick a
+	 *        free port
+	 * @param rip true to have routers learn routes using RIP, false to load
+	 *        static routes computed from the topology
+	 * @return true if all devices were started, otherwise false
+	 */
+	public boolean start(int port, boolean rip)
+	{
+		for (Topology.Node node : this.topo.getNodes())
+		{
+			this.links.put(node.getName(), new HashMap<String,Port>());
+			if (Topology.HOST == node.getType())
+			{ this.hosts.put(node.getName(), new SimHost(node)); }
+			else
+			{ this.devices.put(node.getName(), createDevice(node)); }
+		}
+
+		if (this.loopback)
+		{
+			if (!this.connectDevices(port))
+			{ return false; }
+		}
+		else
+		{
+			for (Device dev : this.devices.values())
+			{
+				new SimVNSComm(dev, this, this.links.get(dev.getHost()));
+				addInterfaces(dev, this.topo.getNode(dev.getHost()));
+			}
+		}
+
+		// Bundle parallel links
+		for (Device dev : this.devices.values())
+		{
+			Topology.Node node = this.topo.getNode(dev.getHost());
+			for (Map.Entry<String,List<String>> group
+					: node.getLinkGroups().entrySet())
+			{
+				if (null == dev.addLinkGroup(group.getKey(), group.getValue()))
+				{ return false; }
+			}
+		}
+
+		// Resolve the receiving end of every link
+		for (Topology.Node node : this.topo.getNodes())
+		{
+			Map<String,Port> peers = this.links.get(node.getName());
+			for (Iface iface : node.getInterfaces())
+			{
+				Topology.Endpoint endpoint = this.topo.getPeer(node,
+						iface.getName());
+				Port peer = new Port();
+				peer.node = endpoint.getNode().getName();
+				peer.ifaceName = endpoint.getInterface().getName();
+				peer.host = this.hosts.get(peer.node);
+				peer.device = this.devices.get(peer.node);
+				if (peer.device != null)
+				{ peer.iface = peer.device.getInterface(peer.ifaceName); }
+				peers.put(iface.getName(), peer);
+			}
+		}
+
+		// Configure routers
+		Map<Integer,MACAddress> arpTable = this.topo.getArpTable();
+		for (Device dev : this.devices.values())
+		{
+			if (dev instanceof Router)
+			{ configureRouter((Router)dev, this.topo, arpTable, rip); }
+		}
+		return true;
+	}
+
+	/**
+	 * Create the device for a switch or router in a topology.
+	 * @param node a switch or router node
+	 * @return the device, without any interfaces
+	 */
+	static Device createDevice(Topology.Node node)
+	{
+		if (Topology.SWITCH == node.getType())
+		{ return new Switch(node.getName(), null); }
+		return new Router(node.getName(), null);
+	}
+
+	/**
+	 * Give a device the interfaces a topology node has, as if it had
+	 * received them from the VNS server.
+	 * @param dev the device
+	 * @param node the node describing the device
+	 */
+	static void addInterfaces(Device dev, Topology.Node node)
+	{
+		for (Iface topoIface : node.getInterfaces())
+		{
+			Iface iface = dev.addInterface(topoIface.getName());
+			iface.setMacAddress(topoIface.getMacAddress());
+			iface.setIpAddress(topoIface.getIpAddress());
+			iface.setSubnetMask(topoIface.getSubnetMask());
+		}
+		dev.interfacesChanged();
+	}
+
+	/**
+	 * Load a router's static ARP cache and either its static routes or start
+	 * RIP.
+	 * @param router the router, with its interfaces added
+	 * @param topo the topology containing the router
+	 * @param arpTable static ARP table for the topology
+	 * @param rip true to start RIP, false to load static routes
+	 */
+	static void configureRouter(Router router, Topology topo,
+			Map<Integer,MACAddress> arpTable, boolean rip)
+	{
+		for (Map.Entry<Integer,MACAddress> entry : arpTable.entrySet())
+		{ router.getArpCache().insert(entry.getValue(), entry.getKey()); }
+
+		if (rip)
+		{
+			RipProtocol ripP = new RipProtocol(router);
+			router.setRipProtocl(ripP);
+			Thread thread = new Thread(ripP, router.getHost()+"-rip");
+			thread.setDaemon(true);
+			thread.start();
+			return;
+		}
+
+		for (Topology.Route route : topo.getRoutes(
+				topo.getNode(router.getHost())))
+		{
+			router.getRouteTable().insert(route.getDestinationAddress(),
+					route.getGatewayAddress(), route.getMaskAddress(),
+					router.getInterface(route.getInterfaceName()));
+		}
+	}
+
+	private boolean connectDevices(int port)
+	{
+		this.server = new TopologyServer();
+		if (!this.server.listen(port))
+		{ return false; }
+		Thread serverThread = new Thread(this.server, "vns-server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		for (Device dev : this.devices.values())
+		{
+			if (!connect(dev, this.server.getPort()))
+			{ return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * Connect a device to a VNS server on this host, wait for its
+	 * interfaces, and start a thread to handle the packets it receives.
+	 * @param dev the device
+	 * @param port TCP port of the server
+	 * @return true if the device was connected, otherwise false
+	 */
+	static boolean connect(Device dev, int port)
+	{
+		final VNSComm vnsComm = new VNSComm(dev);
+		if (!vnsComm.connectToServer((short)port, "localhost"))
+		{ return false; }
+		if (!vnsComm.readFromServerExpect(Command.VNS_HW_INFO))
+		{ return false; }
+
+		Thread thread = new Thread(new Runnable() {
+			public void run()
+			{ while (vnsComm.readFromServer()); }
+		}, dev.getHost());
+		thread.setDaemon(true);
+		thread.start();
+		return true;
+	}
+
+	/**
+	 * Shut down all devices. Connections to the VNS server, if any, are left
+	 * for the JVM to tear down on exit, since devices report a closed
+	 * connection as an error.
+	 */
+	public void stop()
+	{
+		for (Device dev : this.devices.values())
+		{ dev.destroy(); }
+	}
+
+	/**
+	 * Bring a link down or back up, as if its cable were pulled or plugged
+	 * back in. Frames are not sent or received on either end while it is
+	 * down.
+	 * @param nodeName name of the switch or router at one end of the link
+	 * @param ifaceName name of the interface at that end
+	 * @param up true to bring the link up, false to bring it down
+	 * @return true if the link exists, otherwise false
+	 */
+	public boolean setLinkUp(String nodeName, String ifaceName, boolean up)
+	{
+		Device dev = this.devices.get(nodeName);
+		if (null == dev)
+		{ return false; }
+		Iface iface = dev.getInterface(ifaceName);
+		Port peer = this.links.get(nodeName).get(ifaceName);
+		if (null == iface || null == peer)
+		{ return false; }
+		iface.setUp(up);
+		if (peer.iface != null)
+		{ peer.iface.setUp(up); }
+		return true;
+	}
+
+	/**
+	 * Send a frame to the receiving end of a link.
+	 * @param peer the receiving end
+	 * @param frame the Ethernet frame
+	 */
+	void transmit(Port peer, byte[] frame)
+	{
+		if (peer.host != null)
+		{
+			if (peer.host.receive(frame) && this.credits != null)
+			{ this.credits.release(); }
+		}
+		else if (this.loopback)
+		{ this.server.sendPacket(peer.node, peer.ifaceName, frame); }
+		else
+		{ this.queue.add(new Delivery(peer, frame)); }
+	}
+
+	private void deliver(Delivery delivery)
+	{
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.deserialize(delivery.frame, 0, delivery.frame.length);
+
+		Device dev = delivery.port.device;
+		DumpFile logfile = dev.getLogFile();
+		if (logfile != null)
+		{ logfile.dump(etherPacket); }
+		dev.receivePacket(etherPacket, delivery.port.iface);
+	}
+
+	/**
+	 * Deliver queued frames until the queue is empty.
+	 */
+	private void drain()
+	{
+		Delivery delivery;
+		while ((delivery = this.queue.poll()) != null)
+		{ this.deliver(delivery); }
+	}
+
+	/**
+	 * Keep the network running for a while, e.g., to let RIP converge.
+	 * @param millis time to wait, in milliseconds
+	 */
+	public void idle(long millis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + millis;
+		long remaining;
+		while ((remaining = deadline - System.currentTimeMillis()) > 0)
+		{
+			if (this.loopback)
+			{
+				Thread.sleep(remaining);
+				continue;
+			}
+			Delivery delivery = this.queue.poll(remaining,
+					TimeUnit.MILLISECONDS);
+			if (delivery != null)
+			{ this.deliver(delivery); }
+		}
+	}
+
+	/**
+	 * @return total number of packets hosts have received
+	 */
+	public long getDelivered()
+	{
+		long delivered = 0;
+		for (SimHost host : this.hosts.values())
+		{ delivered += host.getReceived(); }
+		return delivered;
+	}
+
+	/**
+	 * Send UDP packets between pairs of hosts and wait for them to arrive.
+	 * @param packets number of packets to send
+	 * @param flows number of distinct flows to spread the packets across
+	 * @param payloadSize number of bytes of UDP payload in each packet
+	 * @return time (in nanoseconds) from sending the first packet to
+	 *         receiving the last; -1 if there are fewer than two hosts
+	 */
+	public long run(int packets, int flows, int payloadSize)
+			throws InterruptedException
+	{
+		List<SimHost> senders = new ArrayList<SimHost>();
+		for (SimHost host : this.hosts.values())
+		{
+			if (host.getInterface() != null)
+			{ senders.add(host); }
+		}
+		int n = senders.size();
+		if (n < 2)
+		{ return -1; }
+
+		// Build one frame per flow; flow f goes from host f to a different
+		// host each time around the host list
+		Map<Integer,MACAddress> arpTable = this.topo.getArpTable();
+		byte[][] frames = new byte[flows][];
+		Port[] firstHops = new Port[flows];
+		for (int f = 0; f < flows; f++)
+		{
+			SimHost src = senders.get(f % n);
+			SimHost dst = senders.get((f % n + 1 + (f / n) % (n - 1)) % n);
+			frames[f] = src.createUdpFrame(dst, (short)(FIRST_SRC_PORT + f),
+					DST_PORT, payloadSize, arpTable);
+			firstHops[f] = this.links.get(src.getName()).get(
+					src.getInterface().getName());
+		}
+
+		long baseline = this.getDelivered();
+		long expected = baseline + packets;
+		long start = System.nanoTime();
+		if (this.loopback)
+		{ this.credits = new Semaphore(WINDOW); }
+
+		for (int i = 0; i < packets; i++)
+		{
+			int f = i % flows;
+			if (null == frames[f])
+			{
+				expected--;
+				continue;
+			}
+			if (this.loopback)
+			{ this.credits.tryAcquire(IDLE_TIMEOUT, TimeUnit.MILLISECONDS); }
+			this.transmit(firstHops[f], frames[f].clone());
+			if (!this.loopback && (i % BATCH == BATCH - 1))
+			{ this.drain(); }
+		}
+
+		if (!this.loopback)
+		{
+			this.drain();
+			return System.nanoTime() - start;
+		}
+
+		// Wait until every packet arrives or deliveries stop
+		long end = System.nanoTime();
+		long last = baseline;
+		long delivered;
+		while ((delivered = this.getDelivered()) < expected)
+		{
+			if (delivered != last)
+			{
+				last = delivered;
+				end = System.nanoTime();
+			}
+			else if (System.nanoTime() - end > IDLE_TIMEOUT * 1000000L)
+			{ break; }
+			Thread.sleep(1);
+		}
+		if (delivered != last)
+		{ end = System.nanoTime(); }
+		this.credits = null;
+		return end - start;
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		String topoFile = null;
+		int linear = 0;
+		int packets = DEFAULT_PACKETS;
+		int flows = DEFAULT_FLOWS;
+		int payloadSize = DEFAULT_PAYLOAD;
+		boolean loopback = false;
+		int port = 0;
+		boolean rip = false;
+		boolean stp = false;
+		int wait = -1;
+		boolean verbose = false;
+		boolean metrics = false;
+		int traceRate = 0;
+
+		// Parse arguments
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				usage();
+				return;
+			}
+			else if (arg.equals("-t"))
+			{ topoFile = args[++i]; }
+			else if (arg.equals("-linear"))
+			{ linear = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-n"))
+			{ packets = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-f"))
+			{ flows = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-s"))
+			{ payloadSize = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-loopback"))
+			{ loopback = true; }
+			else if (arg.equals("-p"))
+			{ port = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-rip"))
+			{ rip = true; }
+			else if (arg.equals("-stp"))
+			{ stp = true; }
+			else if (arg.equals("-w"))
+			{ wait = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-v"))
+			{ verbose = true; }
+			else if (arg.equals("-metrics"))
+			{ metrics = true; }
+			else if (arg.equals("-trace"))
+			{ traceRate = Integer.parseInt(args[++i]); }
+		}
+
+		if ((null == topoFile) == (0 == linear) || flows < 1 || packets < 0)
+		{
+			usage();
+			return;
+		}
+
+		Topology topo = (topoFile != null) ? Topology.load(topoFile)
+				: Topology.linear(linear);
+		if (null == topo)
+		{ System.exit(1); }
+
+		// Devices log every packet they handle; keep that out of the
+		// measurements unless asked for
+		Logger.setLevel(verbose ? Level.DEBUG : Level.WARN);
+
+		Simulator sim = new Simulator(topo, loopback);
+		if (!sim.start(port, rip))
+		{
+			System.err.println("Error starting devices");
+			System.exit(1);
+		}
+		for (Device dev : sim.devices.values())
+		{ dev.getTracer().setSampleRate(traceRate); }
+		System.out.println(String.format("Started %d devices and %d hosts (%s)",
+				sim.devices.size(), sim.hosts.size(),
+				loopback ? "loopback" : "in-memory"));
+
+		if (stp)
+		{
+			for (Device dev : sim.devices.values())
+			{
+				if (dev instanceof Switch)
+				{ ((Switch)dev).startSpanningTree(); }
+			}
+		}
+		if (rip || stp)
+		{
+			if (wait < 0)
+			{ wait = rip ? DEFAULT_RIP_WAIT : DEFAULT_STP_WAIT; }
+			System.out.println(String.format("Waiting %d seconds for %s to converge",
+					wait, rip ? "RIP" : "the spanning tree"));
+			sim.idle(wait * 1000L);
+		}
+
+		long elapsed = sim.run(packets, flows, payloadSize);
+		if (elapsed < 0)
+		{
+			System.err.println("Topology must have at least two linked hosts");
+			sim.stop();
+			System.exit(1);
+		}
+		long delivered = sim.getDelivered();
+		double seconds = elapsed / 1e9;
+		System.out.println(String.format("Sent %d packets in %d flows", packets,
+				flows));
+		System.out.println(String.format("Delivered %d packets in %.3f s: %.0f packets/s",
+				delivered, seconds, (seconds > 0) ? delivered / seconds : 0.0));
+		if (metrics)
+		{
+			for (Device dev : sim.devices.values())
+			{
+				System.out.println("--- "+dev.getHost()+" ---");
+				System.out.print(dev.getMetrics().snapshot());
+			}
+		}
+
+		sim.stop();
+		System.exit(0);
+	}
+
+	static void usage()
+	{
+		System.out.println("Virtual Network Simulator");
+		System.out.println("Simulator (-t topo_file | -linear routers) [-h]");
+		System.out.println("     [-n packets] [-f flows] [-s payload_bytes]");
+		System.out.println("     [-loopback [-p port]] [-rip] [-stp] [-w seconds]");
+		System.out.println("     [-metrics] [-trace N] [-v]");
+		System.out.println(String.format(
+				"  defaults packets=%d flows=%d payload_bytes=%d",
+				DEFAULT_PACKETS, DEFAULT_FLOWS, DEFAULT_PAYLOAD));
+		System.out.println(String.format(
+				"  -w  time to let RIP (default %d) or the spanning tree"
+				+ " (default %d) converge", DEFAULT_RIP_WAIT, DEFAULT_STP_WAIT));
+	}
+}
@@ -0,0 +1,557 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A network described by a topology file, in the format read by
+ * run_mininet.py:
+ * <pre>
+ * host   NAME IP/PREFIX GATEWAY|-
+ * switch NAME
+ * router NAME IP/PREFIX [IP/PREFIX ...]
+ * link   NAME NAME
+ * lag    NAME NAME
+ * </pre>
+ * Interfaces are named the way the POX module names them: a host's only
+ * interface is eth0, and switch and router interfaces are eth1, eth2, ... in
+ * the order links are listed. A router's addresses are assigned to its
+ * interfaces in the order they are listed. MAC addresses are derived from
+ * the node and interface numbers, so the same file always yields the same
+ * network.
+ * <p>
+ * A lag line bundles every link listed so far between two switches or
+ * routers into a link aggregation group on each of them, named bond1,
+ * bond2, ... in the order lag lines are listed.
+ * <p>
+ * Static routes are computed the same way run_mininet.py does: every router
+ * reaches the subnets of every other router through the first router hop on
+ * a shortest path, and a global static ARP table maps every address to its
+ * interface's MAC address.
+ */
+public class Topology
+{
+	public static final int HOST = 0;
+	public static final int SWITCH = 1;
+	public static final int ROUTER = 2;
+
+	/**
+	 * A host, switch, or router in the topology.
+	 */
+	public static class Node
+	{
+		private String name;
+		private int type;
+		private int index;
+		private List<Iface> ifaces;
+		private List<Integer> addrs;
+		private List<Integer> masks;
+		private int gateway;
+		private Map<String,List<String>> linkGroups;
+
+		private Node(String name, int type, int index)
+		{
+			this.name = name;
+			this.type = type;
+			this.index = index;
+			this.ifaces = new ArrayList<Iface>();
+			this.addrs = new ArrayList<Integer>();
+			this.masks = new ArrayList<Integer>();
+			this.linkGroups = new LinkedHashMap<String,List<String>>();
+		}
+
+		public String getName()
+		{ return this.name; }
+
+		/**
+		 * @return HOST, SWITCH, or ROUTER
+		 */
+		public int getType()
+		{ return this.type; }
+
+		/**
+		 * @return the node's interfaces, in the order they were linked
+		 */
+		public List<Iface> getInterfaces()
+		{ return this.ifaces; }
+
+		/**
+		 * @return the host's default gateway; 0 if none, or not a host
+		 */
+		public int getGateway()
+		{ return this.gateway; }
+
+		/**
+		 * @return link aggregation groups; maps group names to the names of
+		 *         their member interfaces
+		 */
+		public Map<String,List<String>> getLinkGroups()
+		{ return this.linkGroups; }
+
+		public String toString()
+		{ return this.name; }
+	}
+
+	/**
+	 * One end of a link.
+	 */
+	public static class Endpoint
+	{
+		private Node node;
+		private Iface iface;
+
+		private Endpoint(Node node, Iface iface)
+		{
+			this.node = node;
+			this.iface = iface;
+		}
+
+		public Node getNode()
+		{ return this.node; }
+
+		public Iface getInterface()
+		{ return this.iface; }
+	}
+
+	/**
+	 * A route computed for a router.
+	 */
+	public static class Route
+	{
+		private int dstIp;
+		private int gwIp;
+		private int maskIp;
+		private String ifaceName;
+
+		private Route(int dstIp, int gwIp, int maskIp, String ifaceName)
+		{
+			this.dstIp = dstIp;
+			this.gwIp = gwIp;
+			this.maskIp = maskIp;
+			this.ifaceName = ifaceName;
+		}
+
+		public int getDestinationAddress()
+		{ return this.dstIp; }
+
+		public int getGatewayAddress()
+		{ return this.gwIp; }
+
+		public int getMaskAddress()
+		{ return this.maskIp; }
+
+		public String getInterfaceName()
+		{ return this.ifaceName; }
+	}
+
+	/** Nodes in the order they were declared; maps names to nodes */
+	private Map<String,Node> nodes;
+
+	/** Maps each interface to the other end of its link */
+	private Map<Iface,Endpoint> peers;
+
+	/** Router adjacencies; maps each router to the routers sharing a
+	 *  segment with each of its interfaces */
+	private Map<Node,List<List<Endpoint>>> adjacencies;
+
+	private Topology()
+	{
+		this.nodes = new LinkedHashMap<String,Node>();
+		this.peers = new HashMap<Iface,Endpoint>();
+	}
+
+	/**
+	 * Read a topology from a file.
+	 * @param filename name of the topology file
+	 * @return the topology; null if the file could not be read or is invalid
+	 */
+	public static Topology load(String filename)
+	{
+		List<String> lines = new ArrayList<String>();
+		try
+		{
+			BufferedReader reader = new BufferedReader(new FileReader(filename));
+			String line;
+			while ((line = reader.readLine()) != null)
+			{ lines.add(line); }
+			reader.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+		return parse(lines);
+	}
+
+	/**
+	 * Generate a chain of routers, each with one attached host, like
+	 * topos/linear5_rt.topo but of any length.
+	 * @param n number of routers
+	 * @return the topology; null if n is out of range
+	 */
+	public static Topology linear(int n)
+	{
+		if (n < 1 || n > 0x7fff)
+		{
+			System.err.println("Linear topology must have 1 to 32767 routers");
+			return null;
+		}
+
+		List<String> lines = new ArrayList<String>();
+		List<String> links = new ArrayList<String>();
+		for (int i = 1; i <= n; i++)
+		{
+			String hostNet = subnet(2*i - 1);
+			lines.add(String.format("host h%d %s.100/24 %s.1", i, hostNet,
+					hostNet));
+			StringBuilder router = new StringBuilder();
+			router.append(String.format("router r%d %s.1/24", i, hostNet));
+			if (i > 1)
+			{ router.append(String.format(" %s.2/24", subnet(2*i - 2))); }
+			if (i < n)
+			{ router.append(String.format(" %s.1/24", subnet(2*i))); }
+			lines.add(router.toString());
+			links.add(String.format("link r%d h%d", i, i));
+			if (i > 1)
+			{ links.add(String.format("link r%d r%d", i - 1, i)); }
+		}
+		lines.addAll(links);
+		return parse(lines);
+	}
+
+	private static String subnet(int k)
+	{ return String.format("10.%d.%d", (k >> 8) & 0xff, k & 0xff); }
+
+	private static Topology parse(List<String> lines)
+	{
+		Topology topo = new Topology();
+		int lineNum = 0;
+		for (String line : lines)
+		{
+			lineNum++;
+			String[] parts = line.trim().split("\\s+");
+			if (0 == parts[0].length() || parts[0].startsWith("#"))
+			{ continue; }
+
+			String error = topo.parseLine(parts);
+			if (error != null)
+			{
+				System.err.println(String.format(
+						"Error in topology line %d: %s", lineNum, error));
+				return null;
+			}
+		}
+		topo.computeAdjacencies();
+		return topo;
+	}
+
+	private String parseLine(String[] parts)
+	{
+		if (parts.length < 2)
+		{ return "missing name"; }
+		String name = parts[1];
+		if (!parts[0].equals("link") && !parts[0].equals("lag")
+				&& this.nodes.containsKey(name))
+		{ return "duplicate node "+name; }
+
+		if (parts[0].equals("host"))
+		{
+			if (parts.length != 4)
+			{ return "expected host NAME IP/PREFIX GATEWAY"; }
+			Node node = this.addNode(name, HOST);
+			if (!this.parseAddress(node, parts[2]))
+			{ return "invalid address "+parts[2]; }
+			if (!parts[3].equals("-"))
+			{ node.gateway = IPv4.toIPv4Address(parts[3]); }
+		}
+		else if (parts[0].equals("switch"))
+		{ this.addNode(name, SWITCH); }
+		else if (parts[0].equals("router"))
+		{
+			if (parts.length < 3)
+			{ return "expected router NAME IP/PREFIX [IP/PREFIX ...]"; }
+			Node node = this.addNode(name, ROUTER);
+			for (int i = 2; i < parts.length; i++)
+			{
+				if (!this.parseAddress(node, parts[i]))
+				{ return "invalid address "+parts[i]; }
+			}
+		}
+		else if (parts[0].equals("link"))
+		{
+			if (parts.length != 3)
+			{ return "expected link NAME NAME"; }
+			Node nodeA = this.nodes.get(parts[1]);
+			Node nodeB = this.nodes.get(parts[2]);
+			if (null == nodeA || null == nodeB)
+			{ return "link to undeclared node"; }
+			Iface ifaceA = this.addInterface(nodeA);
+			Iface ifaceB = this.addInterface(nodeB);
+			if (null == ifaceA || null == ifaceB)
+			{ return "too many links for "+((null == ifaceA) ? nodeA : nodeB); }
+			this.peers.put(ifaceA, new Endpoint(nodeB, ifaceB));
+			this.peers.put(ifaceB, new Endpoint(nodeA, ifaceA));
+		}
+		else if (parts[0].equals("lag"))
+		{
+			if (parts.length != 3)
+			{ return "expected lag NAME NAME"; }
+			Node nodeA = this.nodes.get(parts[1]);
+			Node nodeB = this.nodes.get(parts[2]);
+			if (null == nodeA || null == nodeB)
+			{ return "lag between undeclared nodes"; }
+			if (HOST == nodeA.type || HOST == nodeB.type || nodeA == nodeB)
+			{ return "lag must join two switches or routers"; }
+			List<String> membersA = this.ungroupedLinks(nodeA, nodeB);
+			List<String> membersB = this.ungroupedLinks(nodeB, nodeA);
+			if (membersA.size() < 2)
+			{ return "fewer than two links between "+nodeA+" and "+nodeB; }
+			nodeA.linkGroups.put("bond"+(nodeA.linkGroups.size() + 1),
+					membersA);
+			nodeB.linkGroups.put("bond"+(nodeB.linkGroups.size() + 1),
+					membersB);
+		}
+		else
+		{ return "unknown keyword "+parts[0]; }
+		return null;
+	}
+
+	/**
+	 * @return names of a node's interfaces that link to another node and do
+	 *         not already belong to a link aggregation group
+	 */
+	private List<String> ungroupedLinks(Node node, Node peer)
+	{
+		List<String> names = new ArrayList<String>();
+		for (Iface iface : node.ifaces)
+		{
+			Endpoint endpoint = this.peers.get(iface);
+			if (endpoint.node != peer)
+			{ continue; }
+			boolean grouped = false;
+			for (List<String> members : node.linkGroups.values())
+			{ grouped |= members.contains(iface.getName()); }
+			if (!grouped)
+			{ names.add(iface.getName()); }
+		}
+		return names;
+	}
+
+	private Node addNode(String name, int type)
+	{
+		Node node = new Node(name, type, this.nodes.size() + 1);
+		this.nodes.put(name, node);
+		return node;
+	}
+
+	private boolean parseAddress(Node node, String addr)
+	{
+		String[] fields = addr.split("/");
+		if (fields.length != 2)
+		{ return false; }
+		int ip = IPv4.toIPv4Address(fields[0]);
+		int prefix;
+		try
+		{ prefix = Integer.parseInt(fields[1]); }
+		catch (NumberFormatException e)
+		{ return false; }
+		if (prefix < 1 || prefix > 32)
+		{ return false; }
+		node.addrs.add(ip);
+		node.masks.add(0xffffffff << (32 - prefix));
+		return true;
+	}
+
+	private Iface addInterface(Node node)
+	{
+		int num = node.ifaces.size() + ((HOST == node.type) ? 0 : 1);
+		if ((HOST == node.type && num > 0)
+				|| (ROUTER == node.type && num > node.addrs.size()))
+		{ return null; }
+
+		Iface iface = new Iface("eth"+num);
+		iface.setMacAddress(MACAddress.valueOf(0x020000000000L
+				| ((long)node.index << 16) | num));
+		if (node.type != SWITCH)
+		{
+			iface.setIpAddress(node.addrs.get(node.ifaces.size()));
+			iface.setSubnetMask(node.masks.get(node.ifaces.size()));
+		}
+		node.ifaces.add(iface);
+		return iface;
+	}
+
+	/**
+	 * Find the routers that share a segment with each router interface.
+	 */
+	private void computeAdjacencies()
+	{
+		this.adjacencies = new HashMap<Node,List<List<Endpoint>>>();
+		for (Node router : this.nodes.values())
+		{
+			if (router.type != ROUTER)
+			{ continue; }
+			List<List<Endpoint>> adjacent =
+					new ArrayList<List<Endpoint>>(router.ifaces.size());
+			for (Iface iface : router.ifaces)
+			{
+				List<Endpoint> found = new ArrayList<Endpoint>();
+				Endpoint peer = this.peers.get(iface);
+				if (peer != null)
+				{ this.findRouters(peer, new HashSet<Node>(), found); }
+				adjacent.add(found);
+			}
+			this.adjacencies.put(router, adjacent);
+		}
+	}
+
+	private void findRouters(Endpoint peer, Set<Node> visited,
+			List<Endpoint> found)
+	{
+		ArrayDeque<Endpoint> queue = new ArrayDeque<Endpoint>();
+		queue.add(peer);
+		while (!queue.isEmpty())
+		{
+			Endpoint endpoint = queue.poll();
+			Node node = endpoint.node;
+			if (ROUTER == node.type)
+			{ found.add(endpoint); }
+			else if (SWITCH == node.type && visited.add(node))
+			{
+				for (Iface iface : node.ifaces)
+				{
+					Endpoint next = this.peers.get(iface);
+					if (iface != endpoint.iface && next != null)
+					{ queue.add(next); }
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return all nodes, in the order they were declared
+	 */
+	public Collection<Node> getNodes()
+	{ return this.nodes.values(); }
+
+	/**
+	 * @param name name of a node
+	 * @return the node; null if no node has the name
+	 */
+	public Node getNode(String name)
+	{ return this.nodes.get(name); }
+
+	/**
+	 * @param node a node in the topology
+	 * @param ifaceName name of one of the node's interfaces
+	 * @return the other end of the interface's link; null if the interface
+	 *         does not exist
+	 */
+	public Endpoint getPeer(Node node, String ifaceName)
+	{
+		for (Iface iface : node.ifaces)
+		{
+			if (iface.getName().equals(ifaceName))
+			{ return this.peers.get(iface); }
+		}
+		return null;
+	}
+
+	/**
+	 * @return a static ARP table for the whole network; maps every host and
+	 *         router interface address to the interface's MAC address
+	 */
+	public Map<Integer,MACAddress> getArpTable()
+	{
+		Map<Integer,MACAddress> arpTable = new HashMap<Integer,MACAddress>();
+		for (Node node : this.nodes.values())
+		{
+			for (Iface iface : node.ifaces)
+			{
+				if (iface.getIpAddress() != 0)
+				{ arpTable.put(iface.getIpAddress(), iface.getMacAddress()); }
+			}
+		}
+		return arpTable;
+	}
+
+	/**
+	 * Compute a router's static routes.
+	 * @param router a router in the topology
+	 * @return routes to the router's own subnets, followed by routes to the
+	 *         subnets of every router it can reach
+	 */
+	public List<Route> getRoutes(Node router)
+	{
+		List<Route> routes = new ArrayList<Route>();
+		Set<Long> known = new HashSet<Long>();
+
+		// Directly connected subnets
+		for (Iface iface : router.ifaces)
+		{
+			int subnet = iface.getIpAddress() & iface.getSubnetMask();
+			if (known.add(((long)subnet << 32) | (iface.getSubnetMask() & 0xffffffffL)))
+			{
+				routes.add(new Route(subnet, 0, iface.getSubnetMask(),
+						iface.getName()));
+			}
+		}
+
+		// Breadth-first search over routers, remembering the first hop
+		Map<Node,Route> firstHops = new HashMap<Node,Route>();
+		ArrayDeque<Node> queue = new ArrayDeque<Node>();
+		firstHops.put(router, null);
+		queue.add(router);
+		while (!queue.isEmpty())
+		{
+			Node node = queue.poll();
+			Route firstHop = firstHops.get(node);
+			List<List<Endpoint>> adjacent = this.adjacencies.get(node);
+			for (int i = 0; i < adjacent.size(); i++)
+			{
+				for (Endpoint neighbor : adjacent.get(i))
+				{
+					if (firstHops.containsKey(neighbor.node))
+					{ continue; }
+					Route hop = firstHop;
+					if (null == hop)
+					{
+						hop = new Route(0, neighbor.iface.getIpAddress(), 0,
+								router.ifaces.get(i).getName());
+					}
+					firstHops.put(neighbor.node, hop);
+					queue.add(neighbor.node);
+
+					// Subnets of the neighbor not already reachable
+					for (Iface iface : neighbor.node.ifaces)
+					{
+						int mask = iface.getSubnetMask();
+						int subnet = iface.getIpAddress() & mask;
+						if (known.add(((long)subnet << 32) | (mask & 0xffffffffL)))
+						{
+							routes.add(new Route(subnet, hop.gwIp, mask,
+									hop.ifaceName));
+						}
+					}
+				}
+			}
+		}
+		return routes;
+	}
+}
@@ -0,0 +1,131 @@
+package edu.wisc.cs.sdn.vnet.stats;
+
+/**
+ * Builds a JSON document one token at a time, inserting commas between
+ * members and elements. Callers are responsible for balancing objects and
+ * arrays.
+ */
+public class JsonWriter
+{
+	private final StringBuilder sb;
+
+	/** True if the next value is the first in its object or array */
+	private boolean first;
+
+	public JsonWriter()
+	{
+		this.sb = new StringBuilder();
+		this.first = true;
+	}
+
+	private void separate()
+	{
+		if (!this.first)
+		{ this.sb.append(','); }
+		this.first = false;
+	}
+
+	public JsonWriter beginObject()
+	{
+		this.separate();
+		this.sb.append('{');
+		this.first = true;
+		return this;
+	}
+
+	public JsonWriter endObject()
+	{
+		this.sb.append('}');
+		this.first = false;
+		return this;
+	}
+
+	public JsonWriter beginArray()
+	{
+		this.separate();
+		this.sb.append('[');
+		this.first = true;
+		return this;
+	}
+
+	public JsonWriter endArray()
+	{
+		this.sb.append(']');
+		this.first = false;
+		return this;
+	}
+
+	/**
+	 * Start a member of an object; must be followed by a value, object, or
+	 * array.
+	 * @param name name of the member
+	 */
+	public JsonWriter name(String name)
+	{
+		this.separate();
+		this.quote(name);
+		this.sb.append(':');
+		this.first = true;
+		return this;
+	}
+
+	public JsonWriter value(String value)
+	{
+		this.separate();
+		if (null == value)
+		{ this.sb.append("null"); }
+		else
+		{ this.quote(value); }
+		return this;
+	}
+
+	public JsonWriter value(long value)
+	{
+		this.separate();
+		this.sb.append(value);
+		return this;
+	}
+
+	public JsonWriter value(boolean value)
+	{
+		this.separate();
+		this.sb.append(value);
+		return this;
+	}
+
+	public JsonWriter value(double value)
+	{
+		this.separate();
+		if (Double.isNaN(value) || Double.isInfinite(value))
+		{ this.sb.append("null"); }
+		else
+		{ this.sb.append(value); }
+		return this;
+	}
+
+	private void quote(String s)
+	{
+		this.sb.append('"');
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			switch (c)
+			{
+			case '"':  this.sb.append("\\\""); break;
+			case '\\': this.sb.append("\\\\"); break;
+			case '\n': this.sb.append("\\n"); break;
+			case '\r': this.sb.append("\\r"); break;
+			case '\t': this.sb.append("\\t"); break;
+			default:
+				if (c < 0x20)
+				{ this.sb.append(String.format("\\u%04x", (int)c)); }
+				else
+				{ this.sb.append(c); }
+			}
+		}
+		this.sb.append('"');
+	}
+
+	public String toString()
+	{ return this.sb.toString(); }
+}
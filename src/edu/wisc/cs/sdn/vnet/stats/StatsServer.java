@@ -0,0 +1,508 @@
+package edu.wisc.cs.sdn.vnet.stats;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.RIPv2Entry;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.LinkGroup;
+import edu.wisc.cs.sdn.vnet.log.Logger;
+import edu.wisc.cs.sdn.vnet.metrics.Histogram;
+import edu.wisc.cs.sdn.vnet.metrics.MetricsRegistry;
+import edu.wisc.cs.sdn.vnet.rt.ArpEntry;
+import edu.wisc.cs.sdn.vnet.rt.Connection;
+import edu.wisc.cs.sdn.vnet.rt.ConnectionTracker;
+import edu.wisc.cs.sdn.vnet.rt.RipProtocol;
+import edu.wisc.cs.sdn.vnet.rt.RouteEntry;
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.sw.MACTableEntry;
+import edu.wisc.cs.sdn.vnet.sw.SpanningTree;
+import edu.wisc.cs.sdn.vnet.sw.Switch;
+import edu.wisc.cs.sdn.vnet.trace.Trace;
+
+/**
+ * Serves a device's tables and metrics over HTTP:
+ * <pre>
+ *   /metrics     all metrics, in Prometheus text format
+ *   /stats       all metrics, as JSON
+ *   /interfaces  interfaces and their addresses and counters
+ *   /routes      route table (routers)
+ *   /arp         ARP cache (routers)
+ *   /rip         RIP database (routers running RIP)
+ *   /conntrack   tracked TCP connections (routers tracking them)
+ *   /mac         MAC learning table (switches)
+ *   /stp         spanning tree port roles and states (switches running it)
+ *   /traces      most recent per-stage traces of sampled packets
+ * </pre>
+ * Requests are handled on a single background thread. Every response is
+ * built from copies the tables publish; a table is only locked, to rebuild
+ * its copy, on the first scrape after it changes.
+ */
+public class StatsServer implements HttpHandler
+{
+	private static final Logger LOG = Logger.getLogger(StatsServer.class);
+
+	/** Prefix for the names of all exported Prometheus metrics */
+	private static final String PROMETHEUS_PREFIX = "vnet_";
+
+	/** Quantiles exported for each histogram */
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final Device device;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	/**
+	 * @param device the device whose tables and metrics are served
+	 */
+	public StatsServer(Device device)
+	{ this.device = device; }
+
+	/**
+	 * Start serving requests.
+	 * @param port TCP port on which to listen
+	 * @return true if the server started, otherwise false
+	 */
+	public boolean start(int port)
+	{
+		try
+		{ this.server = HttpServer.create(new InetSocketAddress(port), 0); }
+		catch (IOException e)
+		{
+			LOG.error("Cannot listen for HTTP on port "+port, e);
+			return false;
+		}
+
+		this.executor = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "stats-http");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/", this);
+		this.server.start();
+		LOG.info("Serving stats on http://localhost:"
+				+ this.server.getAddress().getPort() + "/");
+		return true;
+	}
+
+	/**
+	 * @return port on which the server is listening; -1 if not started
+	 */
+	public int getPort()
+	{ return (null == this.server) ? -1 : this.server.getAddress().getPort(); }
+
+	public void stop()
+	{
+		if (null == this.server)
+		{ return; }
+		this.server.stop(0);
+		this.executor.shutdownNow();
+		this.server = null;
+	}
+
+	public void handle(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			if (!"GET".equals(exchange.getRequestMethod()))
+			{
+				this.respond(exchange, 405, "text/plain", "Method not allowed\n");
+				return;
+			}
+
+			String path = exchange.getRequestURI().getPath();
+			String body = null;
+			String contentType = "application/json";
+			if (path.equals("/metrics"))
+			{
+				body = this.prometheus();
+				contentType = "text/plain; version=0.0.4";
+			}
+			else if (path.equals("/stats"))
+			{ body = this.stats(); }
+			else if (path.equals("/interfaces"))
+			{ body = this.interfaces(); }
+			else if (path.equals("/routes"))
+			{ body = this.routes(); }
+			else if (path.equals("/arp"))
+			{ body = this.arp(); }
+			else if (path.equals("/rip"))
+			{ body = this.rip(); }
+			else if (path.equals("/conntrack"))
+			{ body = this.conntrack(); }
+			else if (path.equals("/mac"))
+			{ body = this.mac(); }
+			else if (path.equals("/stp"))
+			{ body = this.stp(); }
+			else if (path.equals("/traces"))
+			{ body = this.traces(); }
+			else if (path.equals("/"))
+			{
+				body = "/metrics /stats /interfaces /routes /arp /rip"
+						+ " /conntrack /mac /stp /traces\n";
+				contentType = "text/plain";
+			}
+
+			if (null == body)
+			{ this.respond(exchange, 404, "text/plain", "Not found\n"); }
+			else
+			{ this.respond(exchange, 200, contentType, body); }
+		}
+		finally
+		{ exchange.close(); }
+	}
+
+	private void respond(HttpExchange exchange, int status, String contentType,
+			String body) throws IOException
+	{
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private String stats()
+	{
+		MetricsRegistry.Snapshot snapshot = this.device.getMetrics().snapshot();
+		JsonWriter json = new JsonWriter();
+		json.beginObject();
+		json.name("device").value(this.device.getHost());
+		json.name("metrics").beginObject();
+		for (Map.Entry<String,Long> entry : snapshot.getValues().entrySet())
+		{ json.name(entry.getKey()).value(entry.getValue()); }
+		json.endObject();
+		json.name("histograms").beginObject();
+		for (Map.Entry<String,Histogram.Snapshot> entry
+				: snapshot.getHistograms().entrySet())
+		{
+			Histogram.Snapshot histogram = entry.getValue();
+			json.name(entry.getKey()).beginObject();
+			json.name("count").value(histogram.getCount());
+			json.name("mean").value(histogram.getMean());
+			json.name("p50").value(histogram.getValueAtPercentile(50));
+			json.name("p90").value(histogram.getValueAtPercentile(90));
+			json.name("p99").value(histogram.getValueAtPercentile(99));
+			json.name("p99.9").value(histogram.getValueAtPercentile(99.9));
+			json.name("max").value(histogram.getMax());
+			json.endObject();
+		}
+		json.endObject();
+		json.endObject();
+		return json.toString();
+	}
+
+	private String interfaces()
+	{
+		JsonWriter json = new JsonWriter();
+		json.beginArray();
+		for (Iface iface : this.device.getInterfaces().values())
+		{ this.writeInterface(json, iface); }
+		json.endArray();
+		return json.toString();
+	}
+
+	private void writeInterface(JsonWriter json, Iface iface)
+	{
+		json.beginObject();
+		json.name("name").value(iface.getName());
+		json.name("up").value(iface.isUp());
+		json.name("mac").value((null == iface.getMacAddress()) ? null
+				: iface.getMacAddress().toString());
+		json.name("ip").value(IPv4.fromIPv4Address(iface.getIpAddress()));
+		json.name("mask").value(IPv4.fromIPv4Address(iface.getSubnetMask()));
+		json.name("mtu").value(iface.getMtu());
+		json.name("rx_packets").value(iface.getRxPackets().get());
+		json.name("rx_bytes").value(iface.getRxBytes().get());
+		json.name("tx_packets").value(iface.getTxPackets().get());
+		json.name("tx_bytes").value(iface.getTxBytes().get());
+		if (iface instanceof LinkGroup)
+		{
+			json.name("members").beginArray();
+			for (Iface member : ((LinkGroup)iface).getMembers())
+			{ this.writeInterface(json, member); }
+			json.endArray();
+		}
+		json.endObject();
+	}
+
+	private String routes()
+	{
+		if (!(this.device instanceof Router))
+		{ return null; }
+		List<RouteEntry> entries =
+				((Router)this.device).getRouteTable().getEntries();
+		JsonWriter json = new JsonWriter();
+		json.beginArray();
+		for (RouteEntry entry : entries)
+		{
+			json.beginObject();
+			json.name("destination").value(
+					IPv4.fromIPv4Address(entry.getDestinationAddress()));
+			json.name("gateway").value(
+					IPv4.fromIPv4Address(entry.getGatewayAddress()));
+			json.name("mask").value(
+					IPv4.fromIPv4Address(entry.getMaskAddress()));
+			json.name("iface").value(entry.getInterface().getName());
+			json.endObject();
+		}
+		json.endArray();
+		return json.toString();
+	}
+
+	private String arp()
+	{
+		if (!(this.device instanceof Router))
+		{ return null; }
+		long now = System.currentTimeMillis();
+		JsonWriter json = new JsonWriter();
+		json.beginArray();
+		for (ArpEntry entry : ((Router)this.device).getArpCache().getEntries())
+		{
+			json.beginObject();
+			json.name("ip").value(IPv4.fromIPv4Address(entry.getIp()));
+			json.name("mac").value(entry.getMac().toString());
+			json.name("age_ms").value(now - entry.getTimeAdded());
+			json.endObject();
+		}
+		json.endArray();
+		return json.toString();
+	}
+
+	private String rip()
+	{
+		if (!(this.device instanceof Router))
+		{ return null; }
+		RipProtocol rip = ((Router)this.device).getRipProtocol();
+		if (null == rip)
+		{ return null; }
+		JsonWriter json = new JsonWriter();
+		json.beginArray();
+		for (RIPv2Entry entry : rip.getEntries())
+		{
+			json.beginObject();
+			json.name("address").value(
+					IPv4.fromIPv4Address(entry.getAddress()));
+			json.name("mask").value(
+					IPv4.fromIPv4Address(entry.getSubnetMask()));
+			json.name("next_hop").value(
+					IPv4.fromIPv4Address(entry.getNextHopAddress()));
+			json.name("metric").value(entry.getMetric());
+			json.name("ttl").value(entry.getTtl());
+			json.endObject();
+		}
+		json.endArray();
+		return json.toString();
+	}
+
+	private String conntrack()
+	{
+		if (!(this.device instanceof Router))
+		{ return null; }
+		ConnectionTracker tracker =
+				((Router)this.device).getConnectionTracker();
+		if (null == tracker)
+		{ return null; }
+		long now = System.currentTimeMillis();
+		JsonWriter json = new JsonWriter();
+		json.beginArray();
+		for (Connection conn : tracker.getConnections())
+		{
+			json.beginObject();
+			json.name("src").value(IPv4.fromIPv4Address(conn.getSourceAddress()));
+			json.name("sport").value(conn.getSourcePort());
+			json.name("dst").value(
+					IPv4.fromIPv4Address(conn.getDestinationAddress()));
+			json.name("dport").value(conn.getDestinationPort());
+			json.name("state").value(conn.getState().name().toLowerCase());
+			json.name("assured").value(conn.isAssured());
+			json.name("expires_ms").value(conn.getExpires() - now);
+			json.name("orig_packets").value(conn.getOrigPackets());
+			json.name("orig_bytes").value(conn.getOrigBytes());
+			json.name("reply_packets").value(conn.getReplyPackets());
+			json.name("reply_bytes").value(conn.getReplyBytes());
+			json.endObject();
+		}
+		json.endArray();
+		return json.toString();
+	}
+
+	private String mac()
+	{
+		if (!(this.device instanceof Switch))
+		{ return null; }
+		long now = System.currentTimeMillis();
+		JsonWriter json = new JsonWriter();
+		json.beginArray();
+		for (MACTableEntry entry : ((Switch)this.device).getMACTable().getEntries())
+		{
+			json.beginObject();
+			json.name("vlan").value(entry.getVlan());
+			json.name("mac").value(entry.getMACAddress().toString());
+			json.name("iface").value(entry.getInterface().getName());
+			json.name("age_ms").value(now - entry.getTimeUpdated());
+			json.name("moves").value(entry.getMoves());
+			json.name("suppressed").value(entry.isSuppressed(now));
+			json.endObject();
+		}
+		json.endArray();
+		return json.toString();
+	}
+
+	private String stp()
+	{
+		if (!(this.device instanceof Switch))
+		{ return null; }
+		SpanningTree spanningTree = ((Switch)this.device).getSpanningTree();
+		if (null == spanningTree)
+		{ return null; }
+		SpanningTree.Port rootPort = spanningTree.getRootPort();
+		JsonWriter json = new JsonWriter();
+		json.beginObject();
+		json.name("bridge_id").value(String.format("%016x",
+				spanningTree.getBridgeId()));
+		json.name("root_id").value(String.format("%016x",
+				spanningTree.getRootId()));
+		json.name("root_path_cost").value(spanningTree.getRootPathCost());
+		json.name("root_port").value((null == rootPort) ? null
+				: rootPort.getInterface().getName());
+		json.name("ports").beginArray();
+		for (SpanningTree.Port port : spanningTree.getPorts())
+		{
+			json.beginObject();
+			json.name("iface").value(port.getInterface().getName());
+			json.name("role").value(port.getRole().name().toLowerCase());
+			json.name("state").value(port.getState().name().toLowerCase());
+			json.name("edge").value(port.isEdge());
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+		return json.toString();
+	}
+
+	private String traces()
+	{
+		JsonWriter json = new JsonWriter();
+		json.beginArray();
+		for (Trace trace : this.device.getTracer().getTraces())
+		{
+			json.beginObject();
+			json.name("start_ms").value(trace.getStartTime());
+			json.name("total_ns").value(trace.getTotal());
+			json.name("stages").beginArray();
+			for (int i = 0; i < trace.size(); i++)
+			{
+				json.beginObject();
+				json.name("stage").value(trace.getStage(i).name().toLowerCase());
+				json.name("ns").value(trace.getDuration(i));
+				json.endObject();
+			}
+			json.endArray();
+			json.endObject();
+		}
+		json.endArray();
+		return json.toString();
+	}
+
+	/**
+	 * Render the device's metrics in the Prometheus text exposition format.
+	 * Per-interface metrics (iface.NAME.metric) become one family per metric
+	 * with an iface label; histograms become summaries.
+	 */
+	private String prometheus()
+	{
+		MetricsRegistry.Snapshot snapshot = this.device.getMetrics().snapshot();
+		String deviceLabel = "device=\""+this.device.getHost()+"\"";
+
+		// Samples must be grouped by family; maps family names to samples
+		Map<String,StringBuilder> families = new TreeMap<String,StringBuilder>();
+		for (Map.Entry<String,Long> entry : snapshot.getValues().entrySet())
+		{
+			String name = entry.getKey();
+			String labels = deviceLabel;
+			if (name.startsWith("iface."))
+			{
+				int end = name.indexOf('.', 6);
+				if (end > 0)
+				{
+					labels += ",iface=\""+name.substring(6, end)+"\"";
+					name = "iface."+name.substring(end + 1);
+				}
+			}
+			String family = PROMETHEUS_PREFIX + sanitize(name);
+			StringBuilder samples = families.get(family);
+			if (null == samples)
+			{
+				samples = new StringBuilder();
+				samples.append("# TYPE ").append(family).append(" untyped\n");
+				families.put(family, samples);
+			}
+			samples.append(family).append('{').append(labels).append("} ")
+					.append(entry.getValue()).append('\n');
+		}
+
+		for (Map.Entry<String,Histogram.Snapshot> entry
+				: snapshot.getHistograms().entrySet())
+		{
+			String family = PROMETHEUS_PREFIX + sanitize(entry.getKey());
+			Histogram.Snapshot histogram = entry.getValue();
+			StringBuilder samples = new StringBuilder();
+			samples.append("# TYPE ").append(family).append(" summary\n");
+			for (double quantile : QUANTILES)
+			{
+				samples.append(family).append('{').append(deviceLabel)
+						.append(",quantile=\"").append(quantile).append("\"} ")
+						.append(histogram.getValueAtPercentile(quantile * 100))
+						.append('\n');
+			}
+			samples.append(family).append("_sum{").append(deviceLabel)
+					.append("} ")
+					.append((long)(histogram.getMean() * histogram.getCount()))
+					.append('\n');
+			samples.append(family).append("_count{").append(deviceLabel)
+					.append("} ").append(histogram.getCount()).append('\n');
+			families.put(family, samples);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (StringBuilder samples : families.values())
+		{ sb.append(samples); }
+		return sb.toString();
+	}
+
+	/**
+	 * @return the name with every character Prometheus does not allow in a
+	 *         metric name replaced by an underscore
+	 */
+	private static String sanitize(String name)
+	{
+		StringBuilder sb = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++)
+		{
+			char c = name.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (c >= '0' && c <= '9') || '_' == c)
+			{ sb.append(c); }
+			else
+			{ sb.append('_'); }
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,222 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.floodlightcontroller.packet.IGMP;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * IGMP snooping (RFC 4541): learns, from the IGMP messages a switch
+ * forwards, which interfaces lead to hosts that joined each IPv4 multicast
+ * group and which lead to multicast routers. Multicast to a group is then
+ * sent only to the group's member ports and the router ports, not flooded.
+ * Multicast to groups no port has joined is still flooded, as are groups in
+ * 224.0.0.0/24, such as RIP's 224.0.0.9: they are link-local, and hosts
+ * never report them.
+ * <p>
+ * Reports add a port to a group for {@link #GROUP_MEMBERSHIP_INTERVAL}. A v2
+ * leave, or a v3 change to an empty include list, shortens the port's
+ * membership to {@link #LAST_MEMBER_QUERY_TIME}, so the port stays only if a
+ * host answers the querier's group-specific query. v3 source lists are
+ * otherwise ignored: a port that wants any source of a group gets all of it.
+ * Ports on which queries arrive are router ports for
+ * {@link #ROUTER_PORT_INTERVAL}.
+ * <p>
+ * Only the thread that handles the switch's packets changes the table.
+ */
+public class IgmpSnooping
+{
+	/** Time (in milliseconds) a report keeps a port in a group */
+	public static final int GROUP_MEMBERSHIP_INTERVAL = 260 * 1000;
+
+	/** Time (in milliseconds) a query keeps a port a router port */
+	public static final int ROUTER_PORT_INTERVAL = 255 * 1000;
+
+	/** Time (in milliseconds) a port stays in a group after a leave */
+	public static final int LAST_MEMBER_QUERY_TIME = 2 * 1000;
+
+	/** Member ports; maps VLANs and groups, packed by {@link #key}, to the
+	 *  ports and the times (in milliseconds since the epoch) their
+	 *  membership expires */
+	private final Map<Long,Map<Iface,Long>> groups;
+
+	/** Router ports; maps VLANs to the ports and the times their status
+	 *  expires */
+	private final Map<Short,Map<Iface,Long>> routerPorts;
+
+	/** Time (in milliseconds since the epoch) at which groups nobody has
+	 *  sent to since their membership expired are next forgotten */
+	private long nextSweep;
+
+	public IgmpSnooping()
+	{
+		this.groups = new ConcurrentHashMap<Long,Map<Iface,Long>>();
+		this.routerPorts = new ConcurrentHashMap<Short,Map<Iface,Long>>();
+	}
+
+	private static long key(short vlan, int group)
+	{ return ((long)vlan << 32) | (group & 0xffffffffL); }
+
+	/**
+	 * @param group an IPv4 address
+	 * @return true if the address is in 224.0.0.0/24, whose groups are
+	 *         always flooded
+	 */
+	public static boolean isLinkLocal(int group)
+	{ return (0xe0000000 == (group & 0xffffff00)); }
+
+	/**
+	 * Learn from an IGMP message.
+	 * @param vlan VLAN in which the message was received; 0 if the switch is
+	 *        not VLAN-aware
+	 * @param inIface the interface on which the message was received
+	 * @param igmp the message
+	 */
+	public void receive(short vlan, Iface inIface, IGMP igmp)
+	{
+		long now = System.currentTimeMillis();
+		if (now >= this.nextSweep)
+		{
+			this.sweep(now);
+			this.nextSweep = now + GROUP_MEMBERSHIP_INTERVAL;
+		}
+
+		switch (igmp.getIgmpType())
+		{
+		case IGMP.TYPE_MEMBERSHIP_QUERY:
+			Map<Iface,Long> routers = this.routerPorts.get(vlan);
+			if (null == routers)
+			{
+				routers = new ConcurrentHashMap<Iface,Long>();
+				this.routerPorts.put(vlan, routers);
+			}
+			routers.put(inIface, now + ROUTER_PORT_INTERVAL);
+			break;
+		case IGMP.TYPE_V1_MEMBERSHIP_REPORT:
+		case IGMP.TYPE_V2_MEMBERSHIP_REPORT:
+			this.join(vlan, igmp.getGroupAddress(), inIface, now);
+			break;
+		case IGMP.TYPE_LEAVE_GROUP:
+			this.leave(vlan, igmp.getGroupAddress(), inIface, now);
+			break;
+		case IGMP.TYPE_V3_MEMBERSHIP_REPORT:
+			for (IGMP.GroupRecord record : igmp.getRecords())
+			{
+				byte type = record.getRecordType();
+				int group = record.getMulticastAddress();
+				if ((IGMP.GroupRecord.MODE_IS_INCLUDE == type
+						|| IGMP.GroupRecord.CHANGE_TO_INCLUDE_MODE == type)
+						&& 0 == record.getSources().length)
+				{ this.leave(vlan, group, inIface, now); }
+				else if (type != IGMP.GroupRecord.BLOCK_OLD_SOURCES)
+				{ this.join(vlan, group, inIface, now); }
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Forget expired members, and groups without members.
+	 */
+	private void sweep(long now)
+	{
+		for (Map.Entry<Long,Map<Iface,Long>> group : this.groups.entrySet())
+		{
+			expire(group.getValue(), now);
+			if (group.getValue().isEmpty())
+			{ this.groups.remove(group.getKey()); }
+		}
+	}
+
+	private void join(short vlan, int group, Iface iface, long now)
+	{
+		if ((group & 0xf0000000) != 0xe0000000 || isLinkLocal(group))
+		{ return; }
+		long key = key(vlan, group);
+		Map<Iface,Long> members = this.groups.get(key);
+		if (null == members)
+		{
+			members = new ConcurrentHashMap<Iface,Long>();
+			this.groups.put(key, members);
+		}
+		members.put(iface, now + GROUP_MEMBERSHIP_INTERVAL);
+	}
+
+	private void leave(short vlan, int group, Iface iface, long now)
+	{
+		Map<Iface,Long> members = this.groups.get(key(vlan, group));
+		Long expires = (null == members) ? null : members.get(iface);
+		if (expires != null && expires > now + LAST_MEMBER_QUERY_TIME)
+		{ members.put(iface, now + LAST_MEMBER_QUERY_TIME); }
+	}
+
+	/**
+	 * @param vlan a VLAN; 0 if the switch is not VLAN-aware
+	 * @param group a multicast group that is not link-local
+	 * @return the group's member ports and the router ports in the VLAN;
+	 *         null if no port is a member of the group
+	 */
+	public List<Iface> getPorts(short vlan, int group)
+	{
+		long now = System.currentTimeMillis();
+		long key = key(vlan, group);
+		Map<Iface,Long> members = this.groups.get(key);
+		if (null == members)
+		{ return null; }
+		expire(members, now);
+		if (members.isEmpty())
+		{
+			this.groups.remove(key);
+			return null;
+		}
+		List<Iface> ports = new ArrayList<Iface>(members.keySet());
+		Map<Iface,Long> routers = this.routerPorts.get(vlan);
+		if (routers != null)
+		{
+			expire(routers, now);
+			for (Iface port : routers.keySet())
+			{
+				if (!ports.contains(port))
+				{ ports.add(port); }
+			}
+		}
+		return ports;
+	}
+
+	/**
+	 * @param vlan a VLAN; 0 if the switch is not VLAN-aware
+	 * @return the router ports in the VLAN, to which reports and leaves are
+	 *         sent
+	 */
+	public List<Iface> getRouterPorts(short vlan)
+	{
+		Map<Iface,Long> routers = this.routerPorts.get(vlan);
+		if (null == routers)
+		{ return new ArrayList<Iface>(); }
+		expire(routers, System.currentTimeMillis());
+		return new ArrayList<Iface>(routers.keySet());
+	}
+
+	/**
+	 * Forget ports whose membership or router status has expired.
+	 */
+	private static void expire(Map<Iface,Long> expiries, long now)
+	{
+		for (Map.Entry<Iface,Long> entry : expiries.entrySet())
+		{
+			if (entry.getValue() <= now)
+			{ expiries.remove(entry.getKey(), entry.getValue()); }
+		}
+	}
+
+	/**
+	 * @return number of groups with member ports, including ones whose
+	 *         membership has expired but not yet been forgotten
+	 */
+	public int size()
+	{ return this.groups.size(); }
+}
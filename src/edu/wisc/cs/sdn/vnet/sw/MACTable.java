@@ -1,26 +1,57 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.jfr.MacMove;
+import edu.wisc.cs.sdn.vnet.log.Logger;
+import edu.wisc.cs.sdn.vnet.metrics.Counter;
 
 import net.floodlightcontroller.packet.MACAddress;
 
 /**
- * A MAC learning table.
+ * A MAC learning table. A MAC address that keeps moving between interfaces,
+ * e.g., because of a loop, is pinned to the interface it was last learned on
+ * and not learned elsewhere until the flapping has had time to stop.
  * @author Aaron Gember-Jacobson
  */
 public class MACTable implements Runnable
 {
+	private static final Logger LOG = Logger.getLogger(MACTable.class);
+	
 	/** Timeout (in milliseconds) for entries in the MAC table */
 	public static final int TIMEOUT = 15 * 1000;
 	
-	/** Entries in the MAC table */
-	private Map<MACAddress,MACTableEntry> entries;
+	/** Moves of a MAC address within {@link #MOVE_WINDOW} after which
+	 *  learning is suppressed for the address */
+	public static final int MOVE_THRESHOLD = 4;
+	
+	/** Length (in milliseconds) of the window in which moves are counted */
+	public static final int MOVE_WINDOW = 5 * 1000;
+	
+	/** Time (in milliseconds) for which learning is suppressed; suppressed
+	 *  entries do not time out */
+	public static final int SUPPRESS_TIME = 30 * 1000;
+	
+	/** Entries in the MAC table; keyed by VLAN and MAC address, packed by
+	 *  {@link #key} */
+	private Map<Long,MACTableEntry> entries;
 	
 	/** Thread for timing out requests and entries in the cache */
 	private Thread timeoutThread;
+	
+	/** MAC addresses that moved to another interface */
+	private Counter moves;
+	
+	/** Times learning was suppressed for a MAC address that moved too
+	 *  often */
+	private Counter flaps;
+	
+	/** Moves ignored because learning was suppressed */
+	private Counter suppressedMoves;
 
 	/**
 	 * Initializes an empty MAC learning table for a switch.
@@ -28,28 +59,164 @@ public class MACTable implements Runnable
 	 */
 	public MACTable()
 	{
-		this.entries = new ConcurrentHashMap<MACAddress, MACTableEntry>();
+		this.entries = new ConcurrentHashMap<Long, MACTableEntry>();
+		this.moves = new Counter();
+		this.flaps = new Counter();
+		this.suppressedMoves = new Counter();
 		timeoutThread = new Thread(this);
+		timeoutThread.setDaemon(true);
 		timeoutThread.start();
 	}
 	
+	/**
+	 * @param vlan a VLAN; 0 if the switch is not VLAN-aware
+	 * @param macAddress a MAC address
+	 * @return the VLAN in the top 16 bits and the MAC address in the low 48
+	 */
+	private static long key(short vlan, MACAddress macAddress)
+	{ return ((long)vlan << 48) | macAddress.toLong(); }
+	
 	public void insert(MACAddress macAddress, Iface iface)
+	{ this.insert((short)0, macAddress, iface); }
+	
+	/**
+	 * Learn that a MAC address in a VLAN is reachable through an interface.
+	 * @param vlan the VLAN; 0 if the switch is not VLAN-aware
+	 * @param macAddress the MAC address
+	 * @param iface the interface
+	 */
+	public void insert(short vlan, MACAddress macAddress, Iface iface)
 	{
-		MACTableEntry entry = this.lookup(macAddress);
+		long key = key(vlan, macAddress);
+		MACTableEntry entry = this.entries.get(key);
 		if(entry != null)
-		{ entry.update(iface); }
+		{
+			Iface oldIface = entry.getInterface();
+			if (oldIface == iface)
+			{
+				entry.update(iface);
+				return;
+			}
+			
+			long now = System.currentTimeMillis();
+			if (entry.isSuppressed(now))
+			{
+				this.suppressedMoves.increment();
+				return;
+			}
+			this.moves.increment();
+			int moves = entry.recordMove(now, MOVE_WINDOW);
+			boolean suppress = (moves >= MOVE_THRESHOLD);
+			if (suppress)
+			{
+				entry.suppress(now + SUPPRESS_TIME);
+				this.flaps.increment();
+				LOG.warn(String.format("%s moved %d times within %d ms between %s"
+						+ " and %s; suppressing learning for %d ms", macAddress,
+						moves, MOVE_WINDOW, oldIface.getName(), iface.getName(),
+						SUPPRESS_TIME));
+			}
+			else
+			{ entry.update(iface); }
+			this.moved(entry, oldIface, iface, moves, suppress);
+		}
 		else
 		{ 
-			entry = new MACTableEntry(macAddress, iface);
-			this.entries.put(macAddress, entry); 
+			entry = new MACTableEntry(vlan, macAddress, iface);
+			this.entries.put(key, entry); 
 		}
 	}
 	
+	/**
+	 * Record a move in the flight recorder, if enabled.
+	 */
+	private void moved(MACTableEntry entry, Iface from, Iface to, int moves,
+			boolean suppressed)
+	{
+		MacMove event = new MacMove();
+		if (!event.shouldCommit())
+		{ return; }
+		event.vlan = entry.getVlan();
+		event.mac = entry.getMACAddress().toString();
+		event.from = from.getName();
+		event.to = to.getName();
+		event.moves = moves;
+		event.suppressed = suppressed;
+		event.commit();
+	}
+	
+	/**
+	 * @return number of times a MAC address moved to another interface
+	 */
+	public Counter getMoves()
+	{ return this.moves; }
+	
+	/**
+	 * @return number of times learning was suppressed for a MAC address
+	 *         that moved too often
+	 */
+	public Counter getFlaps()
+	{ return this.flaps; }
+	
+	/**
+	 * @return number of moves ignored because learning was suppressed
+	 */
+	public Counter getSuppressedMoves()
+	{ return this.suppressedMoves; }
+	
+	/**
+	 * @return number of entries in the table
+	 */
+	public int size()
+	{ return this.entries.size(); }
+	
+	/**
+	 * @return the entries in the table; never locks the table
+	 */
+	public List<MACTableEntry> getEntries()
+	{ return new ArrayList<MACTableEntry>(this.entries.values()); }
+	
 	public MACTableEntry lookup(MACAddress macAddress) 
+	{ return this.lookup((short)0, macAddress); }
+	
+	/**
+	 * @param vlan a VLAN; 0 if the switch is not VLAN-aware
+	 * @param macAddress a MAC address
+	 * @return the entry for the MAC address in the VLAN; null if there is
+	 *         none
+	 */
+	public MACTableEntry lookup(short vlan, MACAddress macAddress)
+	{ return this.entries.get(key(vlan, macAddress)); }
+	
+	private void remove(MACTableEntry entry)
+	{ this.entries.remove(key(entry.getVlan(), entry.getMACAddress())); }
+	
+	/**
+	 * Forget every MAC address learned on an interface.
+	 * @param iface the interface
+	 */
+	public void removeInterface(Iface iface)
+	{
+		for (MACTableEntry entry : this.entries.values())
+		{
+			if (entry.getInterface() == iface)
+			{ this.remove(entry); }
+		}
+	}
+	
+	/**
+	 * Forget every MAC address learned on any interface but one, e.g.,
+	 * because the topology changed.
+	 * @param iface the interface whose entries are kept; null to forget all
+	 *        entries
+	 */
+	public void flush(Iface iface)
 	{
-		if (this.entries.containsKey(macAddress))
-		{ return this.entries.get(macAddress); }
-		return null;
+		for (MACTableEntry entry : this.entries.values())
+		{
+			if (entry.getInterface() != iface)
+			{ this.remove(entry); }
+		}
 	}
 	
 	/**
@@ -65,12 +232,13 @@ public class MACTable implements Runnable
 			catch (InterruptedException e) 
 			{ break; }
 			
-			// Timeout entries
+			// Timeout entries, but keep suppressed entries pinned
+			long now = System.currentTimeMillis();
 			for (MACTableEntry entry : this.entries.values())
 			{
-				if ((System.currentTimeMillis() - entry.getTimeUpdated()) 
-						> TIMEOUT)
-				{ this.entries.remove(entry.getMACAddress()); }
+				if ((now - entry.getTimeUpdated()) > TIMEOUT
+						&& !entry.isSuppressed(now))
+				{ this.remove(entry); }
 			}
 		}
 	}
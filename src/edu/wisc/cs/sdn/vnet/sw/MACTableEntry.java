@@ -9,6 +9,10 @@ import net.floodlightcontroller.packet.MACAddress;
  */
 public class MACTableEntry 
 {
+	/** VLAN in which the MAC address was learned; 0 if the switch is not
+	 *  VLAN-aware */
+	private short vlan;
+	
 	/** MAC address */
 	private MACAddress macAddress;
 
@@ -18,6 +22,18 @@ public class MACTableEntry
 	/** Time (in milliseconds since the epoch) the entry was updated */
 	private long timeUpdated;
 	
+	/** Times the MAC address moved to another interface, in total and in
+	 *  the current window */
+	private long totalMoves;
+	private int moves;
+	
+	/** Time (in milliseconds since the epoch) the current window started */
+	private long windowStart;
+	
+	/** Time (in milliseconds since the epoch) until which learning is
+	 *  suppressed for the MAC address; 0 if it never was */
+	private long suppressedUntil;
+	
 	/**
 	 * Create a new MAC table entry.
 	 * @param macAddress MAC addresses
@@ -25,7 +41,18 @@ public class MACTableEntry
 	 *        be sent to reach the MAC address
 	 */
 	public MACTableEntry(MACAddress macAddress, Iface iface)
+	{ this((short)0, macAddress, iface); }
+	
+	/**
+	 * Create a new MAC table entry for a VLAN.
+	 * @param vlan VLAN in which the MAC address was learned
+	 * @param macAddress MAC addresses
+	 * @param iface switch interface out which packets should be sent to
+	 *        reach the MAC address
+	 */
+	public MACTableEntry(short vlan, MACAddress macAddress, Iface iface)
 	{
+		this.vlan = vlan;
 		this.macAddress = macAddress;
 		this.iface = iface;
 		this.timeUpdated = System.currentTimeMillis();
@@ -37,6 +64,55 @@ public class MACTableEntry
 		this.timeUpdated = System.currentTimeMillis();
 	}
 	
+	/**
+	 * Count a move of the MAC address to another interface.
+	 * @param now current time (in milliseconds since the epoch)
+	 * @param window length (in milliseconds) of the window in which moves
+	 *        are counted
+	 * @return moves in the current window, including this one
+	 */
+	int recordMove(long now, int window)
+	{
+		if (now - this.windowStart > window)
+		{
+			this.windowStart = now;
+			this.moves = 0;
+		}
+		this.totalMoves++;
+		return ++this.moves;
+	}
+	
+	/**
+	 * Stop learning the MAC address on other interfaces for a while.
+	 * @param until time (in milliseconds since the epoch) at which learning
+	 *        resumes
+	 */
+	void suppress(long until)
+	{
+		this.suppressedUntil = until;
+		this.moves = 0;
+	}
+	
+	/**
+	 * @param now current time (in milliseconds since the epoch)
+	 * @return true if learning is suppressed for the MAC address
+	 */
+	public boolean isSuppressed(long now)
+	{ return (now < this.suppressedUntil); }
+	
+	/**
+	 * @return times the MAC address has moved to another interface
+	 */
+	public long getMoves()
+	{ return this.totalMoves; }
+	
+	/**
+	 * @return VLAN in which the MAC address was learned; 0 if the switch is
+	 *         not VLAN-aware
+	 */
+	public short getVlan()
+	{ return this.vlan; }
+	
 	public MACAddress getMACAddress() 
 	{ return this.macAddress; }
 
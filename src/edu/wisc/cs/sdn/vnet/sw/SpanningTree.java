@@ -0,0 +1,694 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.BPDU;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.log.Logger;
+import edu.wisc.cs.sdn.vnet.metrics.Counter;
+
+/**
+ * A simplified rapid spanning tree (IEEE 802.1D-2004 RSTP) bridge for a
+ * switch. Every port has a role, computed from the BPDUs received on it, and
+ * a state; the switch only learns on ports that are learning or forwarding,
+ * and only forwards on ports that are forwarding, so flooding stays bounded
+ * in any topology.
+ * <p>
+ * Designated ports become forwarding as soon as the bridge on the other end
+ * agrees to a proposal, and ports that receive no BPDUs soon become edge
+ * ports and forward without waiting. Only if a neighbor never answers does a
+ * port fall back to the forward delay timers. Port path costs are fixed, and
+ * there is no support for legacy STP bridges beyond decoding their BPDUs.
+ */
+public class SpanningTree implements Runnable
+{
+	private static final Logger LOG = Logger.getLogger(SpanningTree.class);
+
+	/** Destination MAC address of BPDUs; frames to it are never forwarded */
+	public static final MACAddress BPDU_ADDRESS =
+			MACAddress.valueOf("01:80:c2:00:00:00");
+
+	/** Bridge and port priorities */
+	public static final int BRIDGE_PRIORITY = 0x8000;
+	public static final int PORT_PRIORITY = 0x80;
+
+	/** Cost of every port, as for a 1 Gb/s link */
+	public static final int PATH_COST = 20000;
+
+	/** Time (in milliseconds) between BPDUs sent on designated ports */
+	public static final int HELLO_TIME = 2000;
+
+	/** Time (in milliseconds) information received on a port is kept
+	 *  without being refreshed */
+	public static final int INFO_TIMEOUT = 3 * HELLO_TIME;
+
+	/** Time (in milliseconds) a port spends discarding, and then learning,
+	 *  before forwarding, if the other end never agrees to a proposal */
+	public static final int FORWARD_DELAY = 15000;
+
+	/** Time (in milliseconds) after which a port that has not received a
+	 *  BPDU becomes an edge port */
+	public static final int EDGE_DELAY = 3000;
+
+	/** Time (in milliseconds) BPDUs are flagged after a topology change */
+	public static final int TOPOLOGY_CHANGE_TIME = 2 * HELLO_TIME;
+
+	/** Largest message age; BPDUs that are older are ignored */
+	private static final int MAX_AGE = 20;
+
+	/** Time (in milliseconds) between checks of the timers */
+	private static final int TICK = 250;
+
+	public enum Role { ROOT, DESIGNATED, ALTERNATE, BACKUP }
+
+	public enum State { DISCARDING, LEARNING, FORWARDING }
+
+	/**
+	 * A spanning tree priority vector: the root bridge, the cost to reach
+	 * it, and the bridge and port through which it is reached. Smaller is
+	 * better.
+	 */
+	private static class Vector implements Comparable<Vector>
+	{
+		private final long rootId;
+		private final int rootCost;
+		private final long bridgeId;
+		private final int portId;
+
+		Vector(long rootId, int rootCost, long bridgeId, int portId)
+		{
+			this.rootId = rootId;
+			this.rootCost = rootCost;
+			this.bridgeId = bridgeId;
+			this.portId = portId;
+		}
+
+		public int compareTo(Vector other)
+		{
+			int result = Long.compareUnsigned(this.rootId, other.rootId);
+			if (0 == result)
+			{ result = Integer.compareUnsigned(this.rootCost, other.rootCost); }
+			if (0 == result)
+			{ result = Long.compareUnsigned(this.bridgeId, other.bridgeId); }
+			if (0 == result)
+			{ result = Integer.compare(this.portId, other.portId); }
+			return result;
+		}
+
+		/**
+		 * @return true if both vectors were sent by the same port of the
+		 *         same bridge
+		 */
+		boolean isFromSamePort(Vector other)
+		{
+			return this.bridgeId == other.bridgeId
+					&& this.portId == other.portId;
+		}
+	}
+
+	/**
+	 * The spanning tree's view of one switch interface.
+	 */
+	public static class Port
+	{
+		private final Iface iface;
+		private final int id;
+		private volatile Role role;
+		private volatile State state;
+		private volatile boolean edge;
+
+		/** Information from the designated bridge on the port's link; null
+		 *  if the port has not received any */
+		private Vector info;
+		private long infoExpires;
+		private short infoAge;
+
+		/** Time (in milliseconds since the epoch) the port was added */
+		private final long added;
+		private boolean bpduReceived;
+
+		/** True while the port waits for agreement to its proposal */
+		private boolean proposing;
+
+		/** Time (in milliseconds since the epoch) a port that is waiting for
+		 *  agreement moves on to the next state */
+		private long stateTimer;
+
+		/** Time (in milliseconds since the epoch) until which BPDUs sent on
+		 *  the port announce a topology change */
+		private long topologyChangeUntil;
+
+		Port(Iface iface, int number, long now)
+		{
+			this.iface = iface;
+			this.id = (PORT_PRIORITY << 8) | (number & 0xfff);
+			this.role = Role.DESIGNATED;
+			this.state = State.DISCARDING;
+			this.added = now;
+		}
+
+		public Iface getInterface()
+		{ return this.iface; }
+
+		public Role getRole()
+		{ return this.role; }
+
+		public State getState()
+		{ return this.state; }
+
+		/**
+		 * @return true if no bridge has been seen on the port
+		 */
+		public boolean isEdge()
+		{ return this.edge; }
+	}
+
+	private final Switch sw;
+
+	/** Ports; maps each of the switch's interfaces to its port */
+	private volatile Map<Iface,Port> ports;
+
+	private long bridgeId;
+
+	/** Best priority vector to the root, from this bridge */
+	private volatile Vector rootVector;
+	private volatile Port rootPort;
+
+	/** Time (in milliseconds since the epoch) of the next hello */
+	private long nextHello;
+
+	/** True if a port has started or stopped forwarding since the switch
+	 *  was last told */
+	private boolean statesChanged;
+
+	private Thread timerThread;
+
+	private Counter bpdusReceived;
+	private Counter bpdusSent;
+	private Counter topologyChanges;
+
+	/**
+	 * @param sw the switch, with its interfaces added
+	 */
+	public SpanningTree(Switch sw)
+	{
+		this.sw = sw;
+		this.ports = new HashMap<Iface,Port>();
+		this.bpdusReceived = sw.getMetrics().counter("stp.bpdus_rx");
+		this.bpdusSent = sw.getMetrics().counter("stp.bpdus_tx");
+		this.topologyChanges = sw.getMetrics().counter("stp.topology_changes");
+		this.interfacesChanged();
+	}
+
+	/**
+	 * Start sending BPDUs and running the timers, on a daemon thread.
+	 */
+	public void start()
+	{
+		this.timerThread = new Thread(this, this.sw.getHost()+"-stp");
+		this.timerThread.setDaemon(true);
+		this.timerThread.start();
+	}
+
+	/**
+	 * Stop sending BPDUs.
+	 */
+	public void stop()
+	{
+		if (this.timerThread != null)
+		{ this.timerThread.interrupt(); }
+	}
+
+	/**
+	 * Add ports for new interfaces and drop ports for removed ones. The
+	 * bridge is identified by the smallest MAC address of its interfaces.
+	 */
+	public synchronized void interfacesChanged()
+	{
+		long now = System.currentTimeMillis();
+		List<Iface> ifaces = new ArrayList<Iface>(
+				this.sw.getInterfaces().values());
+		Collections.sort(ifaces, new Comparator<Iface>() {
+			public int compare(Iface a, Iface b)
+			{ return a.getName().compareTo(b.getName()); }
+		});
+
+		Map<Iface,Port> ports = new HashMap<Iface,Port>();
+		long mac = 0xffffffffffffL;
+		for (int i = 0; i < ifaces.size(); i++)
+		{
+			Iface iface = ifaces.get(i);
+			Port port = this.ports.get(iface);
+			if (null == port)
+			{ port = new Port(iface, i + 1, now); }
+			ports.put(iface, port);
+			if (iface.getMacAddress() != null)
+			{ mac = Math.min(mac, iface.getMacAddress().toLong()); }
+		}
+		this.ports = ports;
+		this.bridgeId = ((long)BRIDGE_PRIORITY << 48) | mac;
+		if (this.rootPort != null && !ports.containsValue(this.rootPort))
+		{ this.rootPort = null; }
+
+		this.updateRoles(now);
+		this.notifySwitch();
+	}
+
+	/**
+	 * @param iface a switch interface
+	 * @return true if frames received on the interface may be learned from
+	 */
+	public boolean isLearning(Iface iface)
+	{
+		Port port = this.ports.get(iface);
+		return (port != null && port.state != State.DISCARDING);
+	}
+
+	/**
+	 * @param iface a switch interface
+	 * @return true if frames may be received and sent on the interface
+	 */
+	public boolean isForwarding(Iface iface)
+	{
+		Port port = this.ports.get(iface);
+		return (port != null && State.FORWARDING == port.state);
+	}
+
+	/**
+	 * @return the ports, in no particular order
+	 */
+	public Collection<Port> getPorts()
+	{ return this.ports.values(); }
+
+	/**
+	 * @return identifier of this bridge: priority, then MAC address
+	 */
+	public long getBridgeId()
+	{ return this.bridgeId; }
+
+	/**
+	 * @return identifier of the root bridge
+	 */
+	public long getRootId()
+	{ return this.rootVector.rootId; }
+
+	/**
+	 * @return cost of the path from this bridge to the root
+	 */
+	public int getRootPathCost()
+	{ return this.rootVector.rootCost; }
+
+	/**
+	 * @return the port on the path to the root; null if this bridge is the
+	 *         root
+	 */
+	public Port getRootPort()
+	{ return this.rootPort; }
+
+	/**
+	 * Handle a BPDU received on an interface.
+	 * @param iface the interface on which the BPDU was received
+	 * @param bpdu the BPDU
+	 */
+	public synchronized void receive(Iface iface, BPDU bpdu)
+	{
+		this.bpdusReceived.increment();
+		Port port = this.ports.get(iface);
+		if (null == port)
+		{ return; }
+		long now = System.currentTimeMillis();
+
+		// A bridge is attached, so the port is not an edge port
+		port.bpduReceived = true;
+		port.edge = false;
+
+		if (BPDU.TYPE_TCN == bpdu.getType())
+		{
+			this.topologyChangeReceived(port, now);
+			this.notifySwitch();
+			return;
+		}
+
+		byte role = bpdu.getRole();
+		if (BPDU.ROLE_DESIGNATED == role
+				&& (bpdu.getMessageAge() >> 8) < MAX_AGE)
+		{
+			Vector received = new Vector(bpdu.getRootId(),
+					bpdu.getRootPathCost(), bpdu.getBridgeId(),
+					bpdu.getPortId() & 0xffff);
+
+			// Keep information that is at least as good as what the port has,
+			// or that replaces what the same bridge sent earlier
+			if (null == port.info || received.compareTo(port.info) <= 0
+					|| received.isFromSamePort(port.info))
+			{
+				boolean changed = (null == port.info
+						|| received.compareTo(port.info) != 0);
+				port.info = received;
+				port.infoAge = bpdu.getMessageAge();
+				port.infoExpires = now + INFO_TIMEOUT;
+				if (changed)
+				{ this.updateRoles(now); }
+			}
+			else if (Role.DESIGNATED == port.role)
+			{
+				// The other bridge is out of date; tell it about the better
+				// root right away
+				this.sendBpdu(port, now, (byte)0);
+			}
+
+			// Agree to a proposal once nothing below this bridge can form a
+			// loop: either the port is blocked anyway, or every designated
+			// port has been put back into discarding
+			if (bpdu.hasFlag(BPDU.FLAG_PROPOSAL) && port.role != Role.DESIGNATED)
+			{
+				if (Role.ROOT == port.role)
+				{ this.sync(now); }
+				this.sendBpdu(port, now, BPDU.FLAG_AGREEMENT);
+			}
+		}
+		else if (bpdu.hasFlag(BPDU.FLAG_AGREEMENT)
+				&& Role.DESIGNATED == port.role && port.proposing)
+		{
+			port.proposing = false;
+			this.setState(port, State.FORWARDING, now);
+		}
+
+		if (bpdu.hasFlag(BPDU.FLAG_TOPOLOGY_CHANGE))
+		{ this.topologyChangeReceived(port, now); }
+		this.notifySwitch();
+	}
+
+	/**
+	 * Every few hundred milliseconds: expire old information, move ports
+	 * along their timers, and send hellos.
+	 */
+	public void run()
+	{
+		while (true)
+		{
+			synchronized (this)
+			{ this.tick(System.currentTimeMillis()); }
+			try
+			{ Thread.sleep(TICK); }
+			catch (InterruptedException e)
+			{ break; }
+		}
+	}
+
+	private void tick(long now)
+	{
+		boolean changed = false;
+		for (Port port : this.ports.values())
+		{
+			if (port.info != null && now >= port.infoExpires)
+			{
+				LOG.info(this.sw.getHost()+" "+port.iface.getName()
+						+ ": spanning tree information expired");
+				port.info = null;
+				changed = true;
+			}
+
+			if (port.role != Role.DESIGNATED
+					|| State.FORWARDING == port.state)
+			{ continue; }
+			if (!port.bpduReceived && now - port.added >= EDGE_DELAY)
+			{
+				port.edge = true;
+				port.proposing = false;
+				this.setState(port, State.FORWARDING, now);
+			}
+			else if (now >= port.stateTimer)
+			{
+				// No agreement; fall back to the forward delay
+				if (State.DISCARDING == port.state)
+				{
+					this.setState(port, State.LEARNING, now);
+					port.stateTimer = now + FORWARD_DELAY;
+				}
+				else
+				{
+					port.proposing = false;
+					this.setState(port, State.FORWARDING, now);
+				}
+			}
+		}
+		if (changed)
+		{ this.updateRoles(now); }
+
+		if (now >= this.nextHello)
+		{
+			for (Port port : this.ports.values())
+			{
+				if (Role.DESIGNATED == port.role)
+				{ this.sendBpdu(port, now, (byte)0); }
+			}
+			this.nextHello = now + HELLO_TIME;
+		}
+		this.notifySwitch();
+	}
+
+	/**
+	 * Choose the root port and assign every port a role.
+	 */
+	private void updateRoles(long now)
+	{
+		// The root port is the one with the best path to the root, if that
+		// is better than this bridge being the root
+		Vector best = new Vector(this.bridgeId, 0, this.bridgeId, 0);
+		Port bestPort = null;
+		for (Port port : this.ports.values())
+		{
+			if (null == port.info || port.info.bridgeId == this.bridgeId)
+			{ continue; }
+			Vector candidate = new Vector(port.info.rootId,
+					port.info.rootCost + PATH_COST, port.info.bridgeId,
+					port.info.portId);
+			int result = candidate.compareTo(best);
+			if (result < 0 || (0 == result && bestPort != null
+					&& port.id < bestPort.id))
+			{
+				best = candidate;
+				bestPort = port;
+			}
+		}
+		boolean rootChanged = (null == this.rootVector
+				|| best.rootId != this.rootVector.rootId
+				|| best.rootCost != this.rootVector.rootCost);
+		Port oldRootPort = this.rootPort;
+		this.rootVector = best;
+		this.rootPort = bestPort;
+
+		Map<Port,Role> roles = new HashMap<Port,Role>();
+		for (Port port : this.ports.values())
+		{
+			Role role;
+			if (port == bestPort)
+			{ role = Role.ROOT; }
+			else if (null == port.info || new Vector(best.rootId,
+					best.rootCost, this.bridgeId, port.id).compareTo(
+					port.info) < 0)
+			{ role = Role.DESIGNATED; }
+			else if (port.info.bridgeId == this.bridgeId)
+			{ role = Role.BACKUP; }
+			else
+			{ role = Role.ALTERNATE; }
+			roles.put(port, role);
+		}
+
+		// Block first, so no new loop forms while roles change
+		for (Map.Entry<Port,Role> entry : roles.entrySet())
+		{
+			Port port = entry.getKey();
+			Role role = entry.getValue();
+			if (Role.ALTERNATE == role || Role.BACKUP == role)
+			{
+				this.setRole(port, role);
+				port.proposing = false;
+				this.setState(port, State.DISCARDING, now);
+			}
+		}
+		if (bestPort != oldRootPort && bestPort != null)
+		{ this.sync(now); }
+		for (Map.Entry<Port,Role> entry : roles.entrySet())
+		{
+			Port port = entry.getKey();
+			if (Role.DESIGNATED == entry.getValue())
+			{
+				// A former root port may still lead to a bridge that
+				// forwards towards this one
+				if (port.role != Role.DESIGNATED && !port.edge)
+				{ this.setState(port, State.DISCARDING, now); }
+				this.setRole(port, Role.DESIGNATED);
+				if (port.state != State.FORWARDING && !port.proposing)
+				{ this.propose(port, now); }
+			}
+		}
+		if (bestPort != null)
+		{
+			this.setRole(bestPort, Role.ROOT);
+			bestPort.proposing = false;
+			this.setState(bestPort, State.FORWARDING, now);
+		}
+
+		// Tell the other bridges about a new root right away
+		if (rootChanged)
+		{
+			for (Port port : this.ports.values())
+			{
+				if (Role.DESIGNATED == port.role)
+				{ this.sendBpdu(port, now, (byte)0); }
+			}
+		}
+	}
+
+	private void setRole(Port port, Role role)
+	{
+		if (port.role == role)
+		{ return; }
+		final Role old = port.role;
+		port.role = role;
+		LOG.info(() -> this.sw.getHost()+" "+port.iface.getName()+": "
+				+ old.name().toLowerCase()+" -> "+role.name().toLowerCase());
+	}
+
+	/**
+	 * Put every designated port that is not an edge port back into
+	 * discarding, and propose that it forward, because the path to the root
+	 * has changed.
+	 */
+	private void sync(long now)
+	{
+		for (Port port : this.ports.values())
+		{
+			if (Role.DESIGNATED == port.role && !port.edge)
+			{
+				this.setState(port, State.DISCARDING, now);
+				this.propose(port, now);
+			}
+		}
+	}
+
+	private void propose(Port port, long now)
+	{
+		port.proposing = true;
+		port.stateTimer = now + FORWARD_DELAY;
+		this.sendBpdu(port, now, (byte)0);
+	}
+
+	private void setState(Port port, State state, long now)
+	{
+		State old = port.state;
+		if (old == state)
+		{ return; }
+		port.state = state;
+		this.statesChanged = true;
+		if (State.DISCARDING == state)
+		{ this.sw.getMACTable().removeInterface(port.iface); }
+		else if (State.FORWARDING == state && !port.edge)
+		{ this.topologyChange(port, now); }
+	}
+
+	/**
+	 * A port that is not an edge port has started forwarding, so stations
+	 * may now be reachable through different ports.
+	 */
+	private void topologyChange(Port port, long now)
+	{
+		this.topologyChanges.increment();
+		this.sw.getMACTable().flush(port.iface);
+		for (Port other : this.ports.values())
+		{
+			if (!other.edge && (Role.ROOT == other.role
+					|| Role.DESIGNATED == other.role))
+			{ other.topologyChangeUntil = now + TOPOLOGY_CHANGE_TIME; }
+		}
+	}
+
+	/**
+	 * Another bridge has announced a topology change: forget the stations
+	 * learned through every other port, and pass the announcement on.
+	 */
+	private void topologyChangeReceived(Port port, long now)
+	{
+		this.sw.getMACTable().flush(port.iface);
+		for (Port other : this.ports.values())
+		{
+			if (other != port && !other.edge && now >= other.topologyChangeUntil
+					&& (Role.ROOT == other.role || Role.DESIGNATED == other.role))
+			{ other.topologyChangeUntil = now + TOPOLOGY_CHANGE_TIME; }
+		}
+	}
+
+	private void sendBpdu(Port port, long now, byte extraFlags)
+	{
+		if (null == port.iface.getMacAddress())
+		{ return; }
+
+		byte role;
+		switch (port.role)
+		{
+		case ROOT:
+			role = BPDU.ROLE_ROOT;
+			break;
+		case DESIGNATED:
+			role = BPDU.ROLE_DESIGNATED;
+			break;
+		default:
+			role = BPDU.ROLE_ALTERNATE_BACKUP;
+			break;
+		}
+		int flags = extraFlags;
+		if (port.proposing)
+		{ flags |= BPDU.FLAG_PROPOSAL; }
+		if (port.state != State.DISCARDING)
+		{ flags |= BPDU.FLAG_LEARNING; }
+		if (State.FORWARDING == port.state)
+		{ flags |= BPDU.FLAG_FORWARDING; }
+		if (now < port.topologyChangeUntil)
+		{ flags |= BPDU.FLAG_TOPOLOGY_CHANGE; }
+
+		Vector root = this.rootVector;
+		Port rootPort = this.rootPort;
+		short age = (null == rootPort) ? 0 : (short)(rootPort.infoAge + 256);
+
+		BPDU bpdu = new BPDU();
+		bpdu.setFlags((byte)flags).setRole(role);
+		bpdu.setRootId(root.rootId).setRootPathCost(root.rootCost)
+				.setBridgeId(this.bridgeId).setPortId((short)port.id)
+				.setMessageAge(age).setMaxAge((short)(MAX_AGE << 8))
+				.setHelloTime((short)((HELLO_TIME / 1000) << 8))
+				.setForwardDelay((short)((FORWARD_DELAY / 1000) << 8));
+
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.setDestinationMACAddress(BPDU_ADDRESS);
+		etherPacket.setSourceMACAddress(port.iface.getMacAddress());
+		etherPacket.setEtherType((short)bpdu.serializedLength());
+		etherPacket.setPad(true);
+		etherPacket.setPayload(bpdu);
+		if (this.sw.sendPacket(etherPacket, port.iface))
+		{ this.bpdusSent.increment(); }
+	}
+
+	/**
+	 * Have the switch recompute where it floods frames, if any port has
+	 * started or stopped forwarding.
+	 */
+	private void notifySwitch()
+	{
+		if (this.statesChanged)
+		{
+			this.statesChanged = false;
+			this.sw.portStatesChanged();
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.log.Logger;
+import edu.wisc.cs.sdn.vnet.metrics.Counter;
+
+/**
+ * Limits the rate at which each interface may receive frames a switch has to
+ * flood: broadcast, multicast, and unicast to unknown destinations. Each
+ * interface has a token bucket per kind of traffic, limited in packets or
+ * bits per second, so one host cannot make the switch flood every other
+ * port without bound. Frames over the limit are dropped before they are
+ * flooded.
+ * <p>
+ * Buckets are kept as generic cell rate algorithm state: the time at which
+ * the bucket would next be full, advanced by each frame's cost. Checking a
+ * frame takes a few arithmetic operations and no allocation; there is no
+ * refill timer.
+ * <p>
+ * The configuration file has one line per interface, kind of traffic, and
+ * limit:
+ * <pre>
+ *   eth1 broadcast 100 pps
+ *   *    unknown-unicast 1000000 bps
+ * </pre>
+ * Rates are in packets (pps) or bits (bps) per second; a frame's bits
+ * count its Ethernet header and payload. An interface of * sets the limit
+ * for every interface without its own.
+ * Blank lines and lines starting with # are ignored. Not thread-safe; only
+ * the thread that handles the switch's packets may call {@link #allow}.
+ */
+public class StormControl
+{
+	private static final Logger LOG = Logger.getLogger(StormControl.class);
+
+	/** Burst (in nanoseconds of traffic at the limit) a bucket admits after
+	 *  being idle */
+	private static final long BURST = 100 * 1000000L;
+
+	/** Interface name that sets the limits for every other interface */
+	private static final String ALL = "*";
+
+	/**
+	 * Kinds of flooded traffic.
+	 */
+	public enum Kind
+	{
+		BROADCAST("broadcast"),
+		MULTICAST("multicast"),
+		UNKNOWN_UNICAST("unknown-unicast");
+
+		private final String name;
+
+		private Kind(String name)
+		{ this.name = name; }
+
+		/**
+		 * @return the kind's name in configuration files
+		 */
+		public String getName()
+		{ return this.name; }
+	}
+
+	/**
+	 * A limit on one kind of traffic.
+	 */
+	private static class Limit
+	{
+		/** Packets or bits per second */
+		private final long rate;
+
+		/** True if the rate is in bits, false if in packets */
+		private final boolean bits;
+
+		Limit(long rate, boolean bits)
+		{
+			this.rate = rate;
+			this.bits = bits;
+		}
+	}
+
+	/**
+	 * A token bucket enforcing one limit.
+	 */
+	private static class Bucket
+	{
+		private final long rate;
+		private final boolean bits;
+
+		/** Time (in nanoseconds) at which the bucket is full again */
+		private long full;
+
+		Bucket(Limit limit)
+		{
+			this.rate = limit.rate;
+			this.bits = limit.bits;
+			this.full = Long.MIN_VALUE;
+		}
+
+		/**
+		 * @param now current time (in nanoseconds)
+		 * @param length length of the frame (in bytes)
+		 * @return true if the frame is under the limit, otherwise false
+		 */
+		boolean take(long now, int length)
+		{
+			long full = Math.max(this.full, now);
+			if (full - now > BURST)
+			{ return false; }
+			long units = this.bits ? length * 8L : 1;
+			this.full = full + units * 1000000000L / this.rate;
+			return true;
+		}
+	}
+
+	/** Configured limits; maps interface names, or *, to limits indexed by
+	 *  kind */
+	private final Map<String,Limit[]> limits;
+
+	/** Buckets; maps interfaces to buckets indexed by kind, which are null
+	 *  for kinds without a limit */
+	private final Map<Iface,Bucket[]> buckets;
+
+	/** Frames dropped, indexed by kind */
+	private final Counter[] drops;
+
+	public StormControl()
+	{
+		this.limits = new HashMap<String,Limit[]>();
+		this.buckets = new HashMap<Iface,Bucket[]>();
+		this.drops = new Counter[Kind.values().length];
+		for (int i = 0; i < this.drops.length; i++)
+		{ this.drops[i] = new Counter(); }
+	}
+
+	/**
+	 * Limit one kind of traffic received on an interface.
+	 * @param ifaceName name of the interface; * for every interface without
+	 *        its own limit
+	 * @param kind the kind of traffic
+	 * @param rate packets or bits per second; must be positive
+	 * @param bits true if the rate is in bits, false if in packets
+	 */
+	public void setLimit(String ifaceName, Kind kind, long rate, boolean bits)
+	{
+		Limit[] limits = this.limits.get(ifaceName);
+		if (null == limits)
+		{
+			limits = new Limit[Kind.values().length];
+			this.limits.put(ifaceName, limits);
+		}
+		limits[kind.ordinal()] = new Limit(rate, bits);
+		this.buckets.clear();
+	}
+
+	/**
+	 * Read limits from a file.
+	 * @param filename name of the file
+	 * @return true if the file was loaded, otherwise false
+	 */
+	public boolean load(String filename)
+	{
+		int lineNumber = 0;
+		try (BufferedReader reader = new BufferedReader(
+				new FileReader(filename)))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+				{ continue; }
+
+				String[] fields = line.split("\\s+");
+				Kind kind = (fields.length == 4) ? parseKind(fields[1]) : null;
+				long rate = (fields.length == 4) ? parseRate(fields[2]) : -1;
+				boolean pps = (fields.length == 4) && fields[3].equals("pps");
+				boolean bps = (fields.length == 4) && fields[3].equals("bps");
+				if (null == kind || rate <= 0 || !(pps || bps))
+				{
+					LOG.error(filename+":"+lineNumber+": invalid entry");
+					return false;
+				}
+				this.setLimit(fields[0], kind, rate, bps);
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.error(e.toString());
+			return false;
+		}
+		return true;
+	}
+
+	private static Kind parseKind(String s)
+	{
+		for (Kind kind : Kind.values())
+		{
+			if (kind.getName().equals(s))
+			{ return kind; }
+		}
+		return null;
+	}
+
+	private static long parseRate(String s)
+	{
+		try
+		{ return Long.parseLong(s); }
+		catch (NumberFormatException e)
+		{ return -1; }
+	}
+
+	/**
+	 * Decide whether a frame that would be flooded is under its interface's
+	 * limit, and count it against the limit if so.
+	 * @param inIface the interface on which the frame was received
+	 * @param kind the kind of traffic
+	 * @param length length of the frame (in bytes)
+	 * @return true if the frame may be flooded, false if it must be dropped
+	 */
+	public boolean allow(Iface inIface, Kind kind, int length)
+	{
+		Bucket[] buckets = this.buckets.get(inIface);
+		if (null == buckets)
+		{
+			buckets = this.createBuckets(inIface);
+			this.buckets.put(inIface, buckets);
+		}
+		Bucket bucket = buckets[kind.ordinal()];
+		if (null == bucket || bucket.take(System.nanoTime(), length))
+		{ return true; }
+		this.drops[kind.ordinal()].increment();
+		return false;
+	}
+
+	private Bucket[] createBuckets(Iface iface)
+	{
+		Limit[] own = this.limits.get(iface.getName());
+		Limit[] all = this.limits.get(ALL);
+		Bucket[] buckets = new Bucket[Kind.values().length];
+		for (int i = 0; i < buckets.length; i++)
+		{
+			Limit limit = (own != null && own[i] != null) ? own[i]
+					: ((null == all) ? null : all[i]);
+			if (limit != null)
+			{ buckets[i] = new Bucket(limit); }
+		}
+		return buckets;
+	}
+
+	/**
+	 * @param kind a kind of traffic
+	 * @return frames of that kind dropped for being over the limit
+	 */
+	public Counter getDrops(Kind kind)
+	{ return this.drops[kind.ordinal()]; }
+}
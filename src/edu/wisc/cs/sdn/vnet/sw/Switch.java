@@ -1,17 +1,66 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.BPDU;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IGMP;
+import net.floodlightcontroller.packet.IPv4;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.jfr.MacFlood;
+import edu.wisc.cs.sdn.vnet.log.Level;
+import edu.wisc.cs.sdn.vnet.log.Logger;
+import edu.wisc.cs.sdn.vnet.metrics.Counter;
+import edu.wisc.cs.sdn.vnet.metrics.Gauge;
+import edu.wisc.cs.sdn.vnet.trace.Stage;
 
 /**
  * @author Aaron Gember-Jacobson
  */
 public class Switch extends Device
 {
+	private static final Logger LOG = Logger.getLogger(Switch.class);
+	
 	private MACTable macTable;
 	
+	/** Packets sent out every interface because the destination was unknown */
+	private Counter floods;
+	
+	/** Interfaces a packet is flooded out; maps each VLAN, and each
+	 *  receiving interface, to every other interface in the VLAN, and null
+	 *  to all interfaces in the VLAN */
+	private volatile Map<Short,Map<Iface,FloodPorts>> floodPorts;
+	
+	/** VLAN membership of the interfaces; null if the switch is not
+	 *  VLAN-aware, in which case every frame is in VLAN 0 and tags are left
+	 *  as they are */
+	private volatile VlanTable vlans;
+	
+	/** Frames dropped because the receiving interface is not in their VLAN */
+	private Counter vlanDrops;
+	
+	/** Limits on flooded traffic; null if there are none */
+	private volatile StormControl stormControl;
+	
+	/** Multicast group membership; null if multicast is flooded */
+	private volatile IgmpSnooping igmpSnooping;
+	
+	/** Multicast packets sent only to group members and routers */
+	private Counter multicastForwards;
+	
+	/** Rapid spanning tree bridge; null if the spanning tree is disabled */
+	private volatile SpanningTree spanningTree;
+	
+	/** Frames dropped because a port was not forwarding */
+	private Counter stpDiscards;
+	
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -20,8 +69,263 @@ public class Switch extends Device
 	{
 		super(host,logfile);
 		this.macTable = new MACTable();
+		this.floods = this.metrics.counter("switch.floods");
+		this.floodPorts = new HashMap<Short,Map<Iface,FloodPorts>>();
+		this.stpDiscards = this.metrics.counter("stp.discards");
+		this.vlanDrops = this.metrics.counter("vlan.drops");
+		this.multicastForwards = this.metrics.counter("igmp.constrained");
+		this.metrics.register("mac_table.size", new Gauge() {
+			public long getValue()
+			{ return macTable.size(); }
+		});
+		this.metrics.register("mac_table.moves", this.macTable.getMoves());
+		this.metrics.register("mac_table.flaps", this.macTable.getFlaps());
+		this.metrics.register("mac_table.suppressed_moves",
+				this.macTable.getSuppressedMoves());
 	}
 
+	/**
+	 * Interfaces out which frames in one VLAN, received on one interface,
+	 * are flooded.
+	 */
+	private static class FloodPorts
+	{
+		/** Interfaces on which frames are sent without an 802.1Q header */
+		private final Iface[] untagged;
+		
+		/** Interfaces on which frames are sent with an 802.1Q header */
+		private final Iface[] tagged;
+		
+		FloodPorts(Iface[] untagged, Iface[] tagged)
+		{
+			this.untagged = untagged;
+			this.tagged = tagged;
+		}
+	}
+	
+	/**
+	 * Make the switch VLAN-aware.
+	 * @param vlans VLAN membership of the switch's interfaces
+	 */
+	public void setVlanTable(VlanTable vlans)
+	{
+		this.vlans = vlans;
+		this.portStatesChanged();
+	}
+	
+	/**
+	 * Limit the rate at which each interface may receive traffic the switch
+	 * floods.
+	 * @param stormControl the limits
+	 */
+	public void setStormControl(StormControl stormControl)
+	{
+		for (StormControl.Kind kind : StormControl.Kind.values())
+		{
+			this.metrics.register("storm."+kind.name().toLowerCase()+"_drops",
+					stormControl.getDrops(kind));
+		}
+		this.stormControl = stormControl;
+	}
+	
+	/**
+	 * Send multicast only to the interfaces IGMP messages show lead to group
+	 * members or multicast routers, rather than flooding it.
+	 * @param igmpSnooping group membership
+	 */
+	public void setIgmpSnooping(final IgmpSnooping igmpSnooping)
+	{
+		this.metrics.register("igmp.groups", new Gauge() {
+			public long getValue()
+			{ return igmpSnooping.size(); }
+		});
+		this.igmpSnooping = igmpSnooping;
+	}
+	
+	/**
+	 * @return VLAN membership of the switch's interfaces; null if the switch
+	 *         is not VLAN-aware
+	 */
+	public VlanTable getVlanTable()
+	{ return this.vlans; }
+	
+	/**
+	 * Run the rapid spanning tree protocol, so the switch can be part of a
+	 * looped topology. Must be called after the switch's interfaces are
+	 * added; ports forward only once the spanning tree allows it.
+	 */
+	public void startSpanningTree()
+	{
+		this.spanningTree = new SpanningTree(this);
+		this.portStatesChanged();
+		this.spanningTree.start();
+	}
+	
+	/**
+	 * @return rapid spanning tree bridge; null if the spanning tree is
+	 *         disabled
+	 */
+	public SpanningTree getSpanningTree()
+	{ return this.spanningTree; }
+	
+	/**
+	 * Recompute the interfaces out which packets are flooded.
+	 */
+	@Override
+	public void interfacesChanged()
+	{
+		if (this.spanningTree != null)
+		{ this.spanningTree.interfacesChanged(); }
+		this.portStatesChanged();
+	}
+	
+	/**
+	 * Recompute the interfaces out which packets are flooded, because ports
+	 * have started or stopped forwarding.
+	 */
+	void portStatesChanged()
+	{
+		VlanTable vlans = this.vlans;
+		Collection<Short> vlanIds = (null == vlans) ?
+				Collections.singleton((short)0)
+				: vlans.getVlans(this.interfaces.values());
+		Map<Short,Map<Iface,FloodPorts>> floodPorts =
+				new HashMap<Short,Map<Iface,FloodPorts>>();
+		for (short vlan : vlanIds)
+		{
+			Map<Iface,FloodPorts> vlanPorts = new HashMap<Iface,FloodPorts>();
+			vlanPorts.put(null, this.computeFloodPorts(vlan, null));
+			for (Iface inIface : this.interfaces.values())
+			{ vlanPorts.put(inIface, this.computeFloodPorts(vlan, inIface)); }
+			floodPorts.put(vlan, vlanPorts);
+		}
+		this.floodPorts = floodPorts;
+	}
+	
+	/**
+	 * @param vlan a VLAN; 0 if the switch is not VLAN-aware
+	 * @param inIface the interface on which a packet was received
+	 * @return every other interface in the VLAN that is forwarding; all
+	 *         forwarding interfaces in the VLAN if the receiving interface is
+	 *         null
+	 */
+	private FloodPorts computeFloodPorts(short vlan, Iface inIface)
+	{ return this.selectPorts(vlan, inIface, this.interfaces.values()); }
+	
+	/**
+	 * @param vlan a VLAN; 0 if the switch is not VLAN-aware
+	 * @param inIface the interface on which a packet was received
+	 * @param candidates interfaces the packet may be sent out
+	 * @return every candidate other than the receiving interface that is in
+	 *         the VLAN and forwarding
+	 */
+	private FloodPorts selectPorts(short vlan, Iface inIface,
+			Collection<Iface> candidates)
+	{
+		SpanningTree spanningTree = this.spanningTree;
+		VlanTable vlans = this.vlans;
+		List<Iface> untagged = new ArrayList<Iface>(candidates.size());
+		List<Iface> tagged = new ArrayList<Iface>();
+		for (Iface iface : candidates)
+		{
+			if (iface == inIface || (spanningTree != null
+					&& !spanningTree.isForwarding(iface)))
+			{ continue; }
+			if (null == vlans)
+			{ untagged.add(iface); }
+			else if (vlans.isTagged(iface, vlan))
+			{ tagged.add(iface); }
+			else if (vlans.isMember(iface, vlan))
+			{ untagged.add(iface); }
+		}
+		return new FloodPorts(untagged.toArray(new Iface[untagged.size()]),
+				tagged.toArray(new Iface[tagged.size()]));
+	}
+	
+	/**
+	 * Send a packet out several interfaces, untagged on some and tagged on
+	 * the others.
+	 * @param etherPacket the packet
+	 * @param vlan the packet's VLAN; 0 if the switch is not VLAN-aware
+	 * @param ports the interfaces
+	 * @return number of interfaces the packet was sent out
+	 */
+	private int sendPacket(Ethernet etherPacket, short vlan, FloodPorts ports)
+	{
+		if (ports.untagged.length > 0)
+		{
+			if (this.vlans != null)
+			{ etherPacket.setVlanID(Ethernet.VLAN_UNTAGGED); }
+			this.sendPacket(etherPacket, ports.untagged);
+		}
+		if (ports.tagged.length > 0)
+		{
+			etherPacket.setVlanID(vlan);
+			this.sendPacket(etherPacket, ports.tagged);
+		}
+		return ports.untagged.length + ports.tagged.length;
+	}
+	
+	/**
+	 * Learn group membership from IGMP messages, and send multicast only to
+	 * the interfaces that lead to members or multicast routers.
+	 * @param etherPacket a multicast packet
+	 * @param inIface the interface on which the packet was received
+	 * @param vlan the packet's VLAN; 0 if the switch is not VLAN-aware
+	 * @param igmpSnooping group membership
+	 * @return true if the packet was sent, or dropped by storm control;
+	 *         false if it must be flooded
+	 */
+	private boolean forwardMulticast(Ethernet etherPacket, Iface inIface,
+			short vlan, IgmpSnooping igmpSnooping)
+	{
+		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4
+				|| !(etherPacket.getPayload() instanceof IPv4))
+		{ return false; }
+		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+		
+		List<Iface> candidates;
+		if (IPv4.PROTOCOL_IGMP == ipPacket.getProtocol()
+				&& ipPacket.getPayload() instanceof IGMP)
+		{
+			IGMP igmp = (IGMP)ipPacket.getPayload();
+			igmpSnooping.receive(vlan, inIface, igmp);
+			
+			// Queries go to every host; reports and leaves only to routers,
+			// so other members do not suppress their own reports
+			if (IGMP.TYPE_MEMBERSHIP_QUERY == igmp.getIgmpType())
+			{ return false; }
+			candidates = igmpSnooping.getRouterPorts(vlan);
+		}
+		else if (IgmpSnooping.isLinkLocal(ipPacket.getDestinationAddress()))
+		{ return false; }
+		else
+		{
+			candidates = igmpSnooping.getPorts(vlan,
+					ipPacket.getDestinationAddress());
+			if (null == candidates)
+			{ return false; }
+		}
+		
+		// Snooped multicast still counts against the multicast storm limit
+		StormControl stormControl = this.stormControl;
+		if (stormControl != null && !stormControl.allow(inIface,
+				StormControl.Kind.MULTICAST, etherPacket.serializedLength()))
+		{ return true; }
+		
+		final int count = this.sendPacket(etherPacket, vlan,
+				this.selectPorts(vlan, inIface, candidates));
+		this.multicastForwards.increment();
+		LOG.trace(() -> "Multicast packet out "+count+" interfaces");
+		return true;
+	}
+	
+	/**
+	 * @return MAC learning table for the switch
+	 */
+	public MACTable getMACTable()
+	{ return this.macTable; }
+
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
 	 * @param etherPacket the Ethernet packet that was received
@@ -29,26 +333,108 @@ public class Switch extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
+		LOG.sample(Level.DEBUG, () -> "*** -> Received packet: " +
 				etherPacket.toString().replace("\n", "\n\t"));
 		
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
 		
-		this.macTable.insert(etherPacket.getSourceMAC(), inIface);
+		SpanningTree spanningTree = this.spanningTree;
+		if (spanningTree != null)
+		{
+			// BPDUs are for this switch, and are never forwarded
+			if (SpanningTree.BPDU_ADDRESS.equals(etherPacket.getDestinationMAC()))
+			{
+				if (etherPacket.getPayload() instanceof BPDU)
+				{ spanningTree.receive(inIface, (BPDU)etherPacket.getPayload()); }
+				return;
+			}
+			if (!spanningTree.isLearning(inIface))
+			{
+				this.stpDiscards.increment();
+				return;
+			}
+		}
 		
-		MACTableEntry entry = this.macTable.lookup(etherPacket.getDestinationMAC());
+		// Frames received untagged join the interface's VLAN
+		VlanTable vlans = this.vlans;
+		short vlan = 0;
+		if (vlans != null)
+		{
+			vlan = vlans.classify(inIface, etherPacket.getVlanID());
+			if (VlanTable.NONE == vlan)
+			{
+				this.vlanDrops.increment();
+				return;
+			}
+		}
+		
+		this.macTable.insert(vlan, etherPacket.getSourceMAC(), inIface);
+		if (spanningTree != null && !spanningTree.isForwarding(inIface))
+		{
+			this.stpDiscards.increment();
+			return;
+		}
+		
+		// Multicast goes only where IGMP says it is wanted
+		IgmpSnooping igmpSnooping = this.igmpSnooping;
+		if (igmpSnooping != null && etherPacket.isMulticast()
+				&& !etherPacket.isBroadcast()
+				&& this.forwardMulticast(etherPacket, inIface, vlan,
+						igmpSnooping))
+		{ return; }
+		
+		MACTableEntry entry = this.macTable.lookup(vlan,
+				etherPacket.getDestinationMAC());
+		this.tracer.mark(Stage.MAC_LOOKUP);
 		if (entry != null)
-		{ this.sendPacket(etherPacket, entry.getInterface()); }
-		else
 		{
-			for (Iface iface : this.interfaces.values()) 
+			Iface outIface = entry.getInterface();
+			if (spanningTree != null && !spanningTree.isForwarding(outIface))
+			{ this.stpDiscards.increment(); }
+			else
 			{
-				if (iface != inIface)
+				// Only the header's tag changes; the payload is copied as
+				// received
+				if (vlans != null)
 				{
-					this.sendPacket(etherPacket, iface);
-					System.out.println("Send packet out interface "+iface);
+					etherPacket.setVlanID(vlans.isTagged(outIface, vlan) ? vlan
+							: Ethernet.VLAN_UNTAGGED);
 				}
+				this.sendPacket(etherPacket, outIface);
+			}
+		}
+		else
+		{
+			StormControl stormControl = this.stormControl;
+			if (stormControl != null)
+			{
+				StormControl.Kind kind = etherPacket.isBroadcast() ?
+						StormControl.Kind.BROADCAST
+						: (etherPacket.isMulticast() ?
+								StormControl.Kind.MULTICAST
+								: StormControl.Kind.UNKNOWN_UNICAST);
+				if (!stormControl.allow(inIface, kind,
+						etherPacket.serializedLength()))
+				{ return; }
+			}
+			
+			this.floods.increment();
+			Map<Iface,FloodPorts> vlanPorts = this.floodPorts.get(vlan);
+			FloodPorts ports = (null == vlanPorts) ? null
+					: vlanPorts.get(inIface);
+			if (null == ports)
+			{ ports = this.computeFloodPorts(vlan, inIface); }
+			final int count = this.sendPacket(etherPacket, vlan, ports);
+			LOG.trace(() -> "Flood packet out "+count+" interfaces");
+			MacFlood event = new MacFlood();
+			if (event.shouldCommit())
+			{
+				event.interfaces = count;
+				event.device = this.getHost();
+				event.iface = inIface.getName();
+				event.destination = etherPacket.getDestinationMAC().toString();
+				event.commit();
 			}
 		}
 		
@@ -0,0 +1,222 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.log.Logger;
+
+/**
+ * VLAN membership of a switch's interfaces. Each interface may carry one
+ * VLAN untagged and any number of VLANs tagged with 802.1Q headers. An
+ * interface that is not configured carries only the default VLAN, untagged.
+ * <p>
+ * The configuration file has one line per interface and kind of
+ * membership:
+ * <pre>
+ *   eth1 untagged 10
+ *   eth3 tagged 10 20 30
+ * </pre>
+ * Blank lines and lines starting with # are ignored. Membership must be
+ * configured before the switch starts handling packets.
+ */
+public class VlanTable
+{
+	private static final Logger LOG = Logger.getLogger(VlanTable.class);
+
+	/** VLAN carried untagged by interfaces that are not configured */
+	public static final short DEFAULT_VLAN = 1;
+
+	/** Largest VLAN ID; 4095 is reserved */
+	public static final short MAX_VLAN = 4094;
+
+	/** No VLAN, e.g., because a frame must be dropped */
+	public static final short NONE = -1;
+
+	/**
+	 * VLAN membership of one interface.
+	 */
+	private static class Port
+	{
+		/** VLAN carried untagged; NONE if the interface only carries tagged
+		 *  frames */
+		private short untagged;
+
+		/** VLANs carried tagged */
+		private final BitSet tagged;
+
+		Port()
+		{
+			this.untagged = NONE;
+			this.tagged = new BitSet(MAX_VLAN + 1);
+		}
+	}
+
+	/** Configured interfaces; maps interface names to their membership */
+	private final Map<String,Port> ports;
+
+	public VlanTable()
+	{ this.ports = new HashMap<String,Port>(); }
+
+	/**
+	 * Add an interface to a VLAN.
+	 * @param ifaceName name of the interface
+	 * @param vlan the VLAN
+	 * @param tagged true if frames in the VLAN carry 802.1Q headers on the
+	 *        interface
+	 */
+	public void addMember(String ifaceName, short vlan, boolean tagged)
+	{
+		Port port = this.ports.get(ifaceName);
+		if (null == port)
+		{
+			port = new Port();
+			this.ports.put(ifaceName, port);
+		}
+		if (tagged)
+		{ port.tagged.set(vlan); }
+		else
+		{ port.untagged = vlan; }
+	}
+
+	/**
+	 * Read VLAN membership from a file.
+	 * @param filename name of the file
+	 * @return true if the file was loaded, otherwise false
+	 */
+	public boolean load(String filename)
+	{
+		int lineNumber = 0;
+		try (BufferedReader reader = new BufferedReader(
+				new FileReader(filename)))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+				{ continue; }
+
+				String[] fields = line.split("\\s+");
+				boolean tagged = (fields.length >= 3)
+						&& fields[1].equals("tagged");
+				if (fields.length < 3 || (!tagged
+						&& (!fields[1].equals("untagged") || fields.length != 3)))
+				{
+					LOG.error(filename+":"+lineNumber+": invalid entry");
+					return false;
+				}
+				for (int i = 2; i < fields.length; i++)
+				{
+					short vlan = parseVlan(fields[i]);
+					if (NONE == vlan)
+					{
+						LOG.error(filename+":"+lineNumber+": invalid VLAN "
+								+ fields[i]);
+						return false;
+					}
+					this.addMember(fields[0], vlan, tagged);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.error(e.toString());
+			return false;
+		}
+		return true;
+	}
+
+	private static short parseVlan(String s)
+	{
+		try
+		{
+			int vlan = Integer.parseInt(s);
+			return (vlan >= 1 && vlan <= MAX_VLAN) ? (short)vlan : NONE;
+		}
+		catch (NumberFormatException e)
+		{ return NONE; }
+	}
+
+	/**
+	 * Determine the VLAN of a received frame.
+	 * @param inIface the interface on which the frame was received
+	 * @param frameVlan VLAN ID in the frame's 802.1Q header;
+	 *        {@link Ethernet#VLAN_UNTAGGED} if it has none
+	 * @return the frame's VLAN; NONE if the interface does not carry it
+	 */
+	public short classify(Iface inIface, short frameVlan)
+	{
+		Port port = this.ports.get(inIface.getName());
+		// Frames with a VLAN ID of 0 only carry a priority
+		if (Ethernet.VLAN_UNTAGGED == frameVlan || 0 == frameVlan)
+		{
+			if (null == port)
+			{ return DEFAULT_VLAN; }
+			return port.untagged;
+		}
+		if (null == port || frameVlan < 0 || frameVlan > MAX_VLAN
+				|| !port.tagged.get(frameVlan))
+		{ return NONE; }
+		return frameVlan;
+	}
+
+	/**
+	 * @param iface an interface
+	 * @param vlan a VLAN
+	 * @return true if the interface carries the VLAN, tagged or untagged
+	 */
+	public boolean isMember(Iface iface, short vlan)
+	{
+		Port port = this.ports.get(iface.getName());
+		if (null == port)
+		{ return (DEFAULT_VLAN == vlan); }
+		return (port.untagged == vlan || port.tagged.get(vlan));
+	}
+
+	/**
+	 * @param iface an interface
+	 * @param vlan a VLAN the interface carries
+	 * @return true if frames in the VLAN are sent on the interface with an
+	 *         802.1Q header
+	 */
+	public boolean isTagged(Iface iface, short vlan)
+	{
+		Port port = this.ports.get(iface.getName());
+		return (port != null && port.untagged != vlan
+				&& port.tagged.get(vlan));
+	}
+
+	/**
+	 * @param ifaces the switch's interfaces
+	 * @return every VLAN carried by at least one of the interfaces
+	 */
+	public Set<Short> getVlans(Iterable<Iface> ifaces)
+	{
+		Set<Short> vlans = new TreeSet<Short>();
+		for (Iface iface : ifaces)
+		{
+			Port port = this.ports.get(iface.getName());
+			if (null == port)
+			{
+				vlans.add(DEFAULT_VLAN);
+				continue;
+			}
+			if (port.untagged != NONE)
+			{ vlans.add(port.untagged); }
+			for (int vlan = port.tagged.nextSetBit(0); vlan >= 0;
+					vlan = port.tagged.nextSetBit(vlan + 1))
+			{ vlans.add((short)vlan); }
+		}
+		return vlans;
+	}
+}
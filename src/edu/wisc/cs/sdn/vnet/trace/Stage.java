@@ -0,0 +1,36 @@
+package edu.wisc.cs.sdn.vnet.trace;
+
+/**
+ * Points on the path a packet takes through a device at which a trace
+ * records the time. Each stage's duration is the time since the stage
+ * recorded before it.
+ */
+public enum Stage
+{
+	/** Command body read from the VNS server */
+	READ,
+	/** Command and Ethernet frame deserialized */
+	DESERIALIZE,
+	/** Received frame written to the dump file */
+	DUMP_RX,
+	/** IP checksum verified */
+	CHECKSUM,
+	/** Route table lookup done */
+	ROUTE_LOOKUP,
+	/** MAC table lookup done */
+	MAC_LOOKUP,
+	/** Outgoing frame serialized */
+	SERIALIZE,
+	/** Sent frame written to the dump file */
+	DUMP_TX,
+	/** Outgoing frame written to the VNS server */
+	WRITE,
+	/** Device finished handling the packet */
+	DONE;
+
+	/**
+	 * @return name of the stage's histogram in a device's metrics
+	 */
+	public String getMetricName()
+	{ return "trace."+this.name().toLowerCase()+"_ns"; }
+}
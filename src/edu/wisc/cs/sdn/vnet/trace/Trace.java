@@ -0,0 +1,74 @@
+package edu.wisc.cs.sdn.vnet.trace;
+
+/**
+ * The stages one sampled packet passed through, and how long each took.
+ */
+public class Trace
+{
+	/** Time (in milliseconds since the epoch) the packet arrived */
+	private final long startTime;
+
+	private final Stage[] stages;
+
+	/** Duration (in nanoseconds) of each stage */
+	private final long[] durations;
+
+	Trace(long startTime, Stage[] stages, long[] durations)
+	{
+		this.startTime = startTime;
+		this.stages = stages;
+		this.durations = durations;
+	}
+
+	/**
+	 * @return time (in milliseconds since the epoch) the packet arrived
+	 */
+	public long getStartTime()
+	{ return this.startTime; }
+
+	/**
+	 * @return number of stages recorded
+	 */
+	public int size()
+	{ return this.stages.length; }
+
+	/**
+	 * @param i index of a stage, in the order the stages were recorded
+	 * @return the stage
+	 */
+	public Stage getStage(int i)
+	{ return this.stages[i]; }
+
+	/**
+	 * @param i index of a stage, in the order the stages were recorded
+	 * @return time (in nanoseconds) since the previous stage, or since the
+	 *         packet arrived for the first stage
+	 */
+	public long getDuration(int i)
+	{ return this.durations[i]; }
+
+	/**
+	 * @return time (in nanoseconds) from the packet's arrival to its last
+	 *         stage
+	 */
+	public long getTotal()
+	{
+		long total = 0;
+		for (long duration : this.durations)
+		{ total += duration; }
+		return total;
+	}
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%d total=%dns", this.startTime,
+				this.getTotal()));
+		for (int i = 0; i < this.stages.length; i++)
+		{
+			sb.append(' ').append(this.stages[i].name().toLowerCase())
+					.append('=').append(this.durations[i]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,190 @@
+package edu.wisc.cs.sdn.vnet.trace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import edu.wisc.cs.sdn.vnet.metrics.Histogram;
+import edu.wisc.cs.sdn.vnet.metrics.MetricsRegistry;
+
+/**
+ * Records when one in every N packets reaches each {@link Stage} on a
+ * device's packet-processing thread. Stage durations are added to per-stage
+ * histograms in the device's metrics, and the most recent traces are kept in
+ * a ring buffer.
+ * <p>
+ * While tracing is disabled, or between sampled packets, {@link #mark} only
+ * reads a field. Marks made on other threads, e.g., by RIP's timer thread
+ * sending updates, are ignored.
+ */
+public class Tracer
+{
+	/** Default number of traces kept */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/** Most stages recorded for one packet; later marks are ignored */
+	private static final int MAX_MARKS = 64;
+
+	private final MetricsRegistry metrics;
+
+	/** Histogram for each stage; null until tracing is enabled */
+	private Histogram[] histograms;
+
+	/** Trace one in this many packets; 0 if tracing is disabled */
+	private volatile int sampleRate;
+
+	/** Packets seen since the last one traced */
+	private int count;
+
+	/** True between begin and end for a packet, whether or not it was
+	 *  sampled, so a packet is only counted once */
+	private boolean pending;
+
+	/** True while a sampled packet is being traced */
+	private boolean active;
+
+	/** Thread handling the packet being traced */
+	private Thread owner;
+
+	private long startTime;
+	private long lastMark;
+	private final Stage[] stages;
+	private final long[] durations;
+	private int marks;
+
+	/** Completed traces; oldest is overwritten first */
+	private final AtomicReferenceArray<Trace> ring;
+	private int next;
+
+	/**
+	 * @param metrics the registry to which per-stage histograms are added
+	 */
+	public Tracer(MetricsRegistry metrics)
+	{
+		this.metrics = metrics;
+		this.stages = new Stage[MAX_MARKS];
+		this.durations = new long[MAX_MARKS];
+		this.ring = new AtomicReferenceArray<Trace>(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param rate trace one in this many packets; 0 to disable tracing
+	 */
+	public void setSampleRate(int rate)
+	{
+		if (rate > 0 && null == this.histograms)
+		{
+			Histogram[] histograms = new Histogram[Stage.values().length];
+			for (Stage stage : Stage.values())
+			{
+				histograms[stage.ordinal()] =
+						this.metrics.histogram(stage.getMetricName());
+			}
+			this.histograms = histograms;
+		}
+		this.sampleRate = Math.max(0, rate);
+	}
+
+	/**
+	 * @return one in this many packets is traced; 0 if tracing is disabled
+	 */
+	public int getSampleRate()
+	{ return this.sampleRate; }
+
+	/**
+	 * Called when a packet arrives; decides whether to trace it. Does nothing
+	 * if called again before the packet is ended, so the earliest caller
+	 * determines when the trace starts.
+	 */
+	public void begin()
+	{
+		int rate = this.sampleRate;
+		if (0 == rate || this.pending)
+		{ return; }
+		this.pending = true;
+		if (++this.count < rate)
+		{ return; }
+		this.count = 0;
+		this.active = true;
+		this.owner = Thread.currentThread();
+		this.marks = 0;
+		this.startTime = System.currentTimeMillis();
+		this.lastMark = System.nanoTime();
+	}
+
+	/**
+	 * Record that the packet being traced, if any, has reached a stage.
+	 * @param stage the stage
+	 */
+	public void mark(Stage stage)
+	{
+		if (!this.active || Thread.currentThread() != this.owner)
+		{ return; }
+		long now = System.nanoTime();
+		if (this.marks < MAX_MARKS)
+		{
+			this.stages[this.marks] = stage;
+			this.durations[this.marks] = now - this.lastMark;
+			this.marks++;
+		}
+		this.lastMark = now;
+	}
+
+	/**
+	 * Called when the device has finished with a packet; completes the trace
+	 * of the packet, if it was sampled.
+	 */
+	public void end()
+	{
+		if (!this.active)
+		{
+			this.pending = false;
+			return;
+		}
+		if (Thread.currentThread() != this.owner)
+		{ return; }
+		this.pending = false;
+		this.mark(Stage.DONE);
+		this.active = false;
+
+		for (int i = 0; i < this.marks; i++)
+		{ this.histograms[this.stages[i].ordinal()].record(this.durations[i]); }
+
+		Trace trace = new Trace(this.startTime,
+				Arrays.copyOf(this.stages, this.marks),
+				Arrays.copyOf(this.durations, this.marks));
+		this.ring.set(this.next, trace);
+		this.next = (this.next + 1) % this.ring.length();
+	}
+
+	/**
+	 * Abandon the trace of the current packet, if any, e.g., because what
+	 * arrived was not a packet.
+	 */
+	public void cancel()
+	{
+		if (this.active && Thread.currentThread() != this.owner)
+		{ return; }
+		this.pending = false;
+		this.active = false;
+	}
+
+	/**
+	 * @return the most recent traces, oldest first; may be called from any
+	 *         thread
+	 */
+	public List<Trace> getTraces()
+	{
+		int length = this.ring.length();
+		int start = this.next;
+		List<Trace> traces = new ArrayList<Trace>(length);
+		for (int i = 0; i < length; i++)
+		{
+			Trace trace = this.ring.get((start + i) % length);
+			if (trace != null)
+			{ traces.add(trace); }
+		}
+		return traces;
+	}
+}
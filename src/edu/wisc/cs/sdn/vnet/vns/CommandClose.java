@@ -19,4 +19,21 @@ public class CommandClose extends Command
 		
 		return this;
 	}
+	
+	protected byte[] serialize()
+	{
+		this.mLen = this.getSize();
+		byte[] data = new byte[this.mLen];
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        
+        bb.put(super.serialize());
+        byte[] msg = (null == this.mErrorMessage) ? new byte[0] 
+        		: this.mErrorMessage.getBytes();
+        bb.put(msg, 0, Math.min(msg.length, 256));
+        
+        return data;
+	}
+	
+	protected int getSize()
+	{ return super.getSize() + 256; }
 }
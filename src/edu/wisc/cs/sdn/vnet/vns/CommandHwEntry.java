@@ -9,16 +9,38 @@ public class CommandHwEntry
 	public static final int HW_ETH_IP = 4;
 	public static final int HW_MASK = 8;
 	
+	public static final int VALUE_SIZE = 32;
+	
 	protected int mKey;
 	protected byte [] value;
 	
+	public CommandHwEntry()
+	{ }
+	
+	public CommandHwEntry(int mKey, byte[] value)
+	{
+		this.mKey = mKey;
+		this.value = new byte[VALUE_SIZE];
+		System.arraycopy(value, 0, this.value, 0, 
+				Math.min(value.length, VALUE_SIZE));
+	}
+	
 	protected CommandHwEntry deserialize(ByteBuffer buf)
 	{
 		this.mKey = buf.getInt();
 		
-		this.value = new byte[32];
+		this.value = new byte[VALUE_SIZE];
 		buf.get(this.value);
 		
 		return this;
 	}
+	
+	protected void serialize(ByteBuffer buf)
+	{
+		buf.putInt(this.mKey);
+		buf.put(this.value);
+	}
+	
+	protected static int getSize()
+	{ return 4 + VALUE_SIZE; }
 }
@@ -17,7 +17,7 @@ public class CommandOpen extends Command
 		super.deserialize(buf);
 		byte[] tmpBytes = new byte[Command.ID_SIZE];
 		buf.get(tmpBytes);
-		this.mVirtualHostId = new String(tmpBytes);
+		this.mVirtualHostId = new String(tmpBytes).trim();
 		
 		return this;
 	}
@@ -1,6 +1,7 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import net.floodlightcontroller.packet.Ethernet;
 
@@ -32,22 +33,34 @@ public class CommandPacket extends Command
 	
 	protected byte[] serialize()
 	{
-		byte[] packet = this.etherPacket.serialize();
-		int size = this.getSize() + packet.length;
+		int size = this.getSize() + this.etherPacket.serializedLength();
 		this.mLen = size;
 		
 		byte[] data = new byte[size];
         ByteBuffer bb = ByteBuffer.wrap(data);
         
-        byte[] parentData = super.serialize();
-        
-        bb.put(parentData);
-        byte[] tmp = new byte[16];
-        System.arraycopy(this.mInterfaceName.getBytes(), 0, tmp, 0, 
-                this.mInterfaceName.length());
-        bb.put(tmp);
-        bb.put(packet);
+        bb.putInt(this.mLen);
+        bb.putInt(this.mType);
+        setInterfaceName(data, 0, this.mInterfaceName);
+        bb.position(this.getSize());
+        this.etherPacket.serializeTo(bb);
         
         return data;
 	}
+	
+	/**
+	 * Replace the interface name in a serialized packet command.
+	 * @param data buffer containing the command
+	 * @param offset position of the command in the buffer
+	 * @param ifaceName the new interface name
+	 */
+	protected static void setInterfaceName(byte[] data, int offset,
+			String ifaceName)
+	{
+		int start = offset + 8;
+		byte[] name = ifaceName.getBytes();
+		int length = Math.min(name.length, 16);
+		System.arraycopy(name, 0, data, start, length);
+		Arrays.fill(data, start + length, start + 16, (byte)0);
+	}
 }
@@ -13,9 +13,14 @@ import net.floodlightcontroller.packet.MACAddress;
 
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.log.Logger;
+import edu.wisc.cs.sdn.vnet.trace.Stage;
+import edu.wisc.cs.sdn.vnet.trace.Tracer;
 
 public class VNSComm 
 {
+	private static final Logger LOG = Logger.getLogger(VNSComm.class);
+	
 	private Socket socket;
 	private Device device;
 	
@@ -33,16 +38,16 @@ public class VNSComm
 		{ addr = InetAddress.getByName(server); }
 		catch (UnknownHostException e) 
 		{
-			e.printStackTrace();
+			LOG.error("Cannot resolve server "+server, e);
 			return false;
 		}
 		
 		// Create socket and attempt to connect to the server
 		try 
-		{ socket = new Socket(addr, port); }
+		{ socket = new Socket(addr, port & 0xffff); }
 		catch (IOException e) 
 		{
-			e.printStackTrace();
+			LOG.error("Cannot connect to server "+server, e);
 			return false;
 		}
 		
@@ -59,7 +64,7 @@ public class VNSComm
 		}
 		catch(IOException e)
 		{
-			e.printStackTrace();
+			LOG.error("Error sending VNS_OPEN", e);
 			return false;
 		}
 		
@@ -87,18 +92,22 @@ public class VNSComm
 				lastIface.setMacAddress(new MACAddress(hwEntry.value));
 				break;
 			default:
-				System.out.println(String.format(" %d", hwEntry.mKey));
+				LOG.warn(String.format("Unknown hardware entry %d", hwEntry.mKey));
 			}
 		}
+		this.device.interfacesChanged();
 		
-		System.out.println("Device interfaces:");
-		if (0 == this.device.getInterfaces().size())
-		{ System.out.println(" Interface list empty"); }
-		else
-		{
-			for (Iface iface : this.device.getInterfaces().values())
-			{ System.out.println(iface.toString()); }
-		}
+		LOG.info(() -> {
+			StringBuilder sb = new StringBuilder("Device interfaces:");
+			if (0 == this.device.getInterfaces().size())
+			{ sb.append("\n Interface list empty"); }
+			else
+			{
+				for (Iface iface : this.device.getInterfaces().values())
+				{ sb.append("\n").append(iface.toString()); }
+			}
+			return sb.toString();
+		});
 		
 		return true;
 	}
@@ -116,7 +125,7 @@ public class VNSComm
 		{ inStream = this.socket.getInputStream(); } 
 		catch (IOException e) 
 		{
-			e.printStackTrace();
+			LOG.error("Error reading from server", e);
 			return false;
 		}
 		
@@ -133,17 +142,22 @@ public class VNSComm
 			} 
 			catch (Exception e) 
 			{
-				e.printStackTrace();
+				LOG.error("Error: failed reading command length", e);
 				return false;
 			}
 		}
 		
 		int len = ByteBuffer.wrap(lenBytes).getInt();
 		
+		// Time from here on is spent on this command, not waiting for it
+		Tracer tracer = this.device.getTracer();
+		tracer.begin();
+		
 		if (len > 10000 || len < 0)
 		{
-			System.err.println(String.format(
+			LOG.error(String.format(
 					"Error: comamnd length too large %d", len));
+			tracer.cancel();
 			try { socket.close(); } catch (IOException e) { }
 			return false;
 		}
@@ -166,12 +180,13 @@ public class VNSComm
 			} 
 			catch (Exception e) 
 			{
-				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
+				LOG.error("Error: failed reading command body", e);
+				tracer.cancel();
 				try { socket.close(); } catch (IOException e2) { }
 				return false;
 			}
 		}
+		tracer.mark(Stage.READ);
 		
 		// Make sure the command is what we expected if we were expecting something
 		int command = buf.getInt();
@@ -179,9 +194,10 @@ public class VNSComm
 		{
 			if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
 			{
-				System.err.println(String.format(
+				LOG.error(String.format(
 						"Error: expected command %d but got %d", expectedCmd,
 						command));
+				tracer.cancel();
 				return false;
 			}
 		}
@@ -192,31 +208,38 @@ public class VNSComm
 		case Command.VNS_PACKET:
 			CommandPacket cmdPkt = new CommandPacket();
 			cmdPkt.deserialize(buf);
+			tracer.mark(Stage.DESERIALIZE);
 			
 			// Log packet
             if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
+            {
+            	this.device.getLogFile().dump(cmdPkt.etherPacket);
+            	tracer.mark(Stage.DUMP_RX);
+            }
 			
 			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
+			this.device.receivePacket(cmdPkt.etherPacket, 
 					this.device.getInterface(cmdPkt.mInterfaceName));
 			break;
 			
 		case Command.VNS_CLOSE:
-			System.err.println("VNS server closed session.");
+			tracer.cancel();
 			CommandClose cmdClose = new CommandClose();
 			cmdClose.deserialize(buf);
-			System.err.println("Reason: " + new String(cmdClose.mErrorMessage));
+			LOG.warn("VNS server closed session. Reason: "
+					+ new String(cmdClose.mErrorMessage));
 			return true;
 			
 		case Command.VNS_HW_INFO:
+			tracer.cancel();
 			CommandHwInfo cmdHwInfo = new CommandHwInfo();
 			cmdHwInfo.deserialize(buf);
 			this.handleHwInfo(cmdHwInfo);
 			break;
 		
 		default:
-			System.err.println(String.format("unknown command: %d", command));
+			tracer.cancel();
+			LOG.warn(String.format("unknown command: %d", command));
 			break;
 		}
 
@@ -229,13 +252,13 @@ public class VNSComm
 		Iface iface = this.device.getInterface(ifaceName);
 		if (null == iface)
 		{
-			System.err.println("** Error, interface " + ifaceName 
+			LOG.error("** Error, interface " + ifaceName 
 					+ ", does not exist");
 			return false;
 		}
 		if (!iface.getMacAddress().equals(etherPacket.getSourceMAC()))
 		{
-			System.err.println("** Error, source address does not match interface"); 
+			LOG.error("** Error, source address does not match interface"); 
 			return false;
 		}
 		return true;
@@ -248,17 +271,22 @@ public class VNSComm
 		cmdPacket.mInterfaceName = ifaceName;
 		cmdPacket.etherPacket = etherPacket;
 		
+		Tracer tracer = this.device.getTracer();
 		byte[] buf = cmdPacket.serialize();
+		tracer.mark(Stage.SERIALIZE);
 		
 		/*if (!etherAddrsMatchInterface(etherPacket, ifaceName))
 		{
-			System.err.println("*** Error: problem with ethernet header, check log");
+			LOG.error("*** Error: problem with ethernet header, check log");
 			return false;
 		}*/
 		
 		// Log packet
         if (this.device.getLogFile() != null)
-        { this.device.getLogFile().dump(etherPacket); }
+        {
+        	this.device.getLogFile().dump(etherPacket);
+        	tracer.mark(Stage.DUMP_TX);
+        }
 		
 	    try
 		{
@@ -268,9 +296,67 @@ public class VNSComm
 		}
 		catch(IOException e)
 		{
-			System.err.println("Error writing packet");
+			LOG.error("Error writing packet");
+			return false;
+		}
+		tracer.mark(Stage.WRITE);
+		return true;
+	}
+	
+	/**
+	 * Send copies of an Ethernet packet out several interfaces. The packet is
+	 * serialized once; the copies differ only in the interface name, and all
+	 * of them are sent to the server in a single write.
+	 * @param etherPacket the packet
+	 * @param ifaces interfaces on which to send the packet
+	 * @return true if the packets were sent successfully, otherwise false
+	 */
+	public boolean sendPacket(Ethernet etherPacket, Iface[] ifaces)
+	{
+		if (0 == ifaces.length)
+		{ return true; }
+		
+		CommandPacket cmdPacket = new CommandPacket();
+		cmdPacket.mInterfaceName = ifaces[0].getName();
+		cmdPacket.etherPacket = etherPacket;
+		
+		Tracer tracer = this.device.getTracer();
+		byte[] first = cmdPacket.serialize();
+		int length = first.length;
+		byte[] buf = new byte[length * ifaces.length];
+		System.arraycopy(first, 0, buf, 0, length);
+		for (int i = 1; i < ifaces.length; i++)
+		{
+			System.arraycopy(first, 0, buf, i * length, length);
+			CommandPacket.setInterfaceName(buf, i * length,
+					ifaces[i].getName());
+		}
+		tracer.mark(Stage.SERIALIZE);
+		
+		// Log packets
+		if (this.device.getLogFile() != null)
+		{
+			int header = cmdPacket.getSize();
+			for (int i = 0; i < ifaces.length; i++)
+			{
+				this.device.getLogFile().dump(buf, i * length + header,
+						length - header);
+			}
+			tracer.mark(Stage.DUMP_TX);
+		}
+		
+		try
+		{
+			OutputStream outStream = socket.getOutputStream();
+			outStream.write(buf);
+			outStream.flush();
+		}
+		catch(IOException e)
+		{
+			LOG.error("Error writing packet");
 			return false;
 		}
+		tracer.mark(Stage.WRITE);
 		return true;
 	}
 }
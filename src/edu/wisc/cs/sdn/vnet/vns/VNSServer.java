@@ -0,0 +1,318 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A stand-in for the Virtual Network Simulator server run by the POX module.
+ * Accepts connections from devices, answers VNS_OPEN with the device's
+ * hardware information, and hands every VNS_PACKET a device sends to
+ * {@link #handlePacket}. Subclasses decide what the network looks like and
+ * where packets go; they deliver packets to a device with
+ * {@link #sendPacket}.
+ */
+public abstract class VNSServer implements Runnable
+{
+	private ServerSocket serverSocket;
+
+	/** Connected devices; maps hostname to connection */
+	private Map<String,Connection> connections;
+
+	public VNSServer()
+	{ this.connections = new ConcurrentHashMap<String,Connection>(); }
+
+	/**
+	 * Start listening for devices on the loopback interface.
+	 * @param port TCP port to listen on; 0 to pick a free port
+	 * @return true if the server is listening, otherwise false
+	 */
+	public boolean listen(int port)
+	{
+		try
+		{
+			this.serverSocket = new ServerSocket(port, 1024,
+					InetAddress.getLoopbackAddress());
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return TCP port the server is listening on
+	 */
+	public int getPort()
+	{ return this.serverSocket.getLocalPort(); }
+
+	/**
+	 * @param host hostname of a device
+	 * @return true if the device has connected and been sent its hardware
+	 *         information, otherwise false
+	 */
+	public boolean isConnected(String host)
+	{ return this.connections.containsKey(host); }
+
+	/**
+	 * @return number of devices that are connected
+	 */
+	public int getConnectedCount()
+	{ return this.connections.size(); }
+
+	/**
+	 * Accept devices until the server is closed.
+	 */
+	public void run()
+	{
+		while (!this.serverSocket.isClosed())
+		{
+			Socket socket;
+			try
+			{ socket = this.serverSocket.accept(); }
+			catch (IOException e)
+			{ break; }
+
+			final Connection conn = new Connection(socket);
+			Thread thread = new Thread(conn, "vns-server-"+socket.getPort());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stop accepting devices and close all connections.
+	 */
+	public void close()
+	{
+		try { this.serverSocket.close(); } catch (IOException e) { }
+		for (Connection conn : this.connections.values())
+		{ conn.close(); }
+		this.connections.clear();
+	}
+
+	/**
+	 * Deliver a packet to a connected device, as if it arrived on one of the
+	 * device's interfaces.
+	 * @param host hostname of the device
+	 * @param ifaceName interface on which the packet arrives
+	 * @param frame the Ethernet frame
+	 * @return true if the packet was written to the device, otherwise false
+	 */
+	public boolean sendPacket(String host, String ifaceName, byte[] frame)
+	{
+		Connection conn = this.connections.get(host);
+		if (null == conn)
+		{ return false; }
+
+		int size = 8 + 16 + frame.length;
+		ByteBuffer bb = ByteBuffer.allocate(size);
+		bb.putInt(size);
+		bb.putInt(Command.VNS_PACKET);
+		byte[] name = ifaceName.getBytes();
+		bb.put(name, 0, Math.min(name.length, 16));
+		bb.position(8 + 16);
+		bb.put(frame);
+		return conn.write(bb.array());
+	}
+
+	/**
+	 * @param host hostname sent by a device in its VNS_OPEN message
+	 * @return the device's interfaces; null if the host is unknown
+	 */
+	protected abstract Collection<Iface> getInterfaces(String host);
+
+	/**
+	 * Called when a device sends a packet out one of its interfaces.
+	 * @param host hostname of the device
+	 * @param ifaceName interface out which the packet was sent
+	 * @param frame the Ethernet frame
+	 */
+	protected abstract void handlePacket(String host, String ifaceName,
+			byte[] frame);
+
+	private CommandHwInfo createHwInfo(Collection<Iface> ifaces)
+	{
+		CommandHwInfo cmdHwInfo = new CommandHwInfo();
+		for (Iface iface : ifaces)
+		{
+			cmdHwInfo.mHwInfo.add(new CommandHwEntry(
+					CommandHwEntry.HW_INTERFACE, iface.getName().getBytes()));
+			if (null == iface.getMacAddress())
+			{ continue; }
+			cmdHwInfo.mHwInfo.add(new CommandHwEntry(
+					CommandHwEntry.HW_ETHER, iface.getMacAddress().toBytes()));
+			cmdHwInfo.mHwInfo.add(new CommandHwEntry(CommandHwEntry.HW_ETH_IP,
+					ByteBuffer.allocate(4).putInt(iface.getIpAddress()).array()));
+			cmdHwInfo.mHwInfo.add(new CommandHwEntry(CommandHwEntry.HW_MASK,
+					ByteBuffer.allocate(4).putInt(iface.getSubnetMask()).array()));
+		}
+		return cmdHwInfo;
+	}
+
+	/**
+	 * A connection from one device. Messages to the device are queued and
+	 * written by a separate thread, so relaying a packet never blocks on a
+	 * device that is itself blocked writing to the server.
+	 */
+	private class Connection implements Runnable
+	{
+		private Socket socket;
+		private String host;
+		private BlockingQueue<byte[]> outQueue;
+
+		/** Set once the device has disconnected or been turned away */
+		private volatile boolean done;
+
+		public Connection(Socket socket)
+		{
+			this.socket = socket;
+			this.outQueue = new LinkedBlockingQueue<byte[]>();
+		}
+
+		public boolean write(byte[] data)
+		{
+			if (this.done)
+			{ return false; }
+			return this.outQueue.offer(data);
+		}
+
+		public void close()
+		{
+			this.done = true;
+			try { this.socket.close(); } catch (IOException e) { }
+		}
+
+		private void writeLoop()
+		{
+			try
+			{
+				OutputStream outStream = new BufferedOutputStream(
+						this.socket.getOutputStream());
+				while (true)
+				{
+					byte[] data = this.outQueue.poll(1, TimeUnit.SECONDS);
+					if (null == data)
+					{
+						if (this.done)
+						{ break; }
+						continue;
+					}
+
+					// Write everything queued before flushing
+					do
+					{ outStream.write(data); }
+					while ((data = this.outQueue.poll()) != null);
+					outStream.flush();
+				}
+			}
+			catch (IOException e)
+			{ }
+			catch (InterruptedException e)
+			{ }
+			this.close();
+		}
+
+		private ByteBuffer readCommand(InputStream inStream) throws IOException
+		{
+			byte[] lenBytes = new byte[4];
+			int bytesRead = 0;
+			while (bytesRead < 4)
+			{
+				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
+				if (ret < 0)
+				{ return null; }
+				bytesRead += ret;
+			}
+
+			int len = ByteBuffer.wrap(lenBytes).getInt();
+			if (len < 8 || len > 10000)
+			{ throw new IOException("Invalid command length "+len); }
+
+			ByteBuffer buf = ByteBuffer.allocate(len);
+			buf.putInt(len);
+			while (bytesRead < len)
+			{
+				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
+				if (ret < 0)
+				{ return null; }
+				bytesRead += ret;
+			}
+			buf.position(0);
+			return buf;
+		}
+
+		public void run()
+		{
+			Thread writer = new Thread(new Runnable() {
+				public void run()
+				{ writeLoop(); }
+			}, Thread.currentThread().getName()+"-out");
+			writer.setDaemon(true);
+			writer.start();
+
+			try
+			{
+				InputStream inStream = new BufferedInputStream(
+						this.socket.getInputStream());
+
+				// Device must open a session first
+				ByteBuffer buf = this.readCommand(inStream);
+				if (null == buf || buf.getInt(4) != Command.VNS_OPEN)
+				{ return; }
+				CommandOpen cmdOpen = new CommandOpen();
+				cmdOpen.deserialize(buf);
+				this.host = cmdOpen.mVirtualHostId;
+
+				Collection<Iface> ifaces = getInterfaces(this.host);
+				if (null == ifaces)
+				{
+					CommandClose cmdClose = new CommandClose();
+					cmdClose.mErrorMessage = "Unknown host "+this.host;
+					this.write(cmdClose.serialize());
+					return;
+				}
+				connections.put(this.host, this);
+				this.write(createHwInfo(ifaces).serialize());
+
+				// Relay packets until the device disconnects
+				while ((buf = this.readCommand(inStream)) != null)
+				{
+					if (buf.getInt(4) != Command.VNS_PACKET)
+					{ continue; }
+					byte[] name = new byte[16];
+					buf.position(8);
+					buf.get(name);
+					byte[] frame = new byte[buf.remaining()];
+					buf.get(frame);
+					handlePacket(this.host, new String(name).trim(), frame);
+				}
+			}
+			catch (IOException e)
+			{ }
+			finally
+			{
+				// Writer closes the socket once anything queued is sent
+				if (this.host != null)
+				{ connections.remove(this.host, this); }
+				this.done = true;
+			}
+		}
+	}
+}
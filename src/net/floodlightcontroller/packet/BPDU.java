@@ -0,0 +1,277 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A spanning tree bridge protocol data unit (IEEE 802.1D-2004, clause 9),
+ * including the 802.2 LLC header that precedes it in an 802.3 frame. Decodes
+ * configuration, topology change notification, and rapid spanning tree
+ * BPDUs; always encodes rapid spanning tree BPDUs unless the type is changed.
+ */
+public class BPDU extends BasePacket {
+    /** LLC service access point for spanning tree BPDUs */
+    public static final byte LLC_SAP = 0x42;
+    public static final byte LLC_CONTROL = 0x03;
+
+    public static final byte VERSION_STP = 0;
+    public static final byte VERSION_RSTP = 2;
+
+    public static final byte TYPE_CONFIG = 0x00;
+    public static final byte TYPE_RST = 0x02;
+    public static final byte TYPE_TCN = (byte) 0x80;
+
+    public static final byte FLAG_TOPOLOGY_CHANGE = 0x01;
+    public static final byte FLAG_PROPOSAL = 0x02;
+    public static final byte FLAG_LEARNING = 0x10;
+    public static final byte FLAG_FORWARDING = 0x20;
+    public static final byte FLAG_AGREEMENT = 0x40;
+    public static final byte FLAG_TOPOLOGY_CHANGE_ACK = (byte) 0x80;
+
+    /** Port role, stored in bits 2-3 of the flags */
+    public static final byte ROLE_UNKNOWN = 0;
+    public static final byte ROLE_ALTERNATE_BACKUP = 1;
+    public static final byte ROLE_ROOT = 2;
+    public static final byte ROLE_DESIGNATED = 3;
+
+    protected byte version;
+    protected byte type;
+    protected byte flags;
+    protected long rootId;
+    protected int rootPathCost;
+    protected long bridgeId;
+    protected short portId;
+    /** Times, in 1/256ths of a second */
+    protected short messageAge;
+    protected short maxAge;
+    protected short helloTime;
+    protected short forwardDelay;
+
+    public BPDU() {
+        super();
+        this.version = VERSION_RSTP;
+        this.type = TYPE_RST;
+    }
+
+    public byte getVersion() {
+        return version;
+    }
+
+    public BPDU setVersion(byte version) {
+        this.version = version;
+        return this;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public BPDU setType(byte type) {
+        this.type = type;
+        return this;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public BPDU setFlags(byte flags) {
+        this.flags = flags;
+        return this;
+    }
+
+    /**
+     * @param flag one of the FLAG_ constants
+     * @return true if the flag is set
+     */
+    public boolean hasFlag(byte flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * @return the role of the port that sent the BPDU, one of the ROLE_
+     *         constants; configuration BPDUs are always sent by designated
+     *         ports
+     */
+    public byte getRole() {
+        if (type == TYPE_CONFIG)
+            return ROLE_DESIGNATED;
+        return (byte) ((flags >> 2) & 0x03);
+    }
+
+    public BPDU setRole(byte role) {
+        this.flags = (byte) ((flags & ~0x0c) | ((role & 0x03) << 2));
+        return this;
+    }
+
+    public long getRootId() {
+        return rootId;
+    }
+
+    public BPDU setRootId(long rootId) {
+        this.rootId = rootId;
+        return this;
+    }
+
+    public int getRootPathCost() {
+        return rootPathCost;
+    }
+
+    public BPDU setRootPathCost(int rootPathCost) {
+        this.rootPathCost = rootPathCost;
+        return this;
+    }
+
+    public long getBridgeId() {
+        return bridgeId;
+    }
+
+    public BPDU setBridgeId(long bridgeId) {
+        this.bridgeId = bridgeId;
+        return this;
+    }
+
+    public short getPortId() {
+        return portId;
+    }
+
+    public BPDU setPortId(short portId) {
+        this.portId = portId;
+        return this;
+    }
+
+    public short getMessageAge() {
+        return messageAge;
+    }
+
+    public BPDU setMessageAge(short messageAge) {
+        this.messageAge = messageAge;
+        return this;
+    }
+
+    public short getMaxAge() {
+        return maxAge;
+    }
+
+    public BPDU setMaxAge(short maxAge) {
+        this.maxAge = maxAge;
+        return this;
+    }
+
+    public short getHelloTime() {
+        return helloTime;
+    }
+
+    public BPDU setHelloTime(short helloTime) {
+        this.helloTime = helloTime;
+        return this;
+    }
+
+    public short getForwardDelay() {
+        return forwardDelay;
+    }
+
+    public BPDU setForwardDelay(short forwardDelay) {
+        this.forwardDelay = forwardDelay;
+        return this;
+    }
+
+    @Override
+    public int serializedLength() {
+        // LLC header, then protocol identifier, version, and type
+        int length = 3 + 4;
+        if (type == TYPE_TCN)
+            return length;
+        length += 31;
+        if (type == TYPE_RST)
+            length += 1; // Version 1 length
+        return length;
+    }
+
+    @Override
+    public void serializeTo(ByteBuffer bb) {
+        bb.put(LLC_SAP);
+        bb.put(LLC_SAP);
+        bb.put(LLC_CONTROL);
+        bb.putShort((short) 0);
+        bb.put(version);
+        bb.put(type);
+        if (type == TYPE_TCN)
+            return;
+        bb.put(flags);
+        bb.putLong(rootId);
+        bb.putInt(rootPathCost);
+        bb.putLong(bridgeId);
+        bb.putShort(portId);
+        bb.putShort(messageAge);
+        bb.putShort(maxAge);
+        bb.putShort(helloTime);
+        bb.putShort(forwardDelay);
+        if (type == TYPE_RST)
+            bb.put((byte) 0);
+    }
+
+    @Override
+    public IPacket deserialize(byte[] data, int offset, int length) {
+        ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
+        if (bb.remaining() < 7)
+            return null;
+        if (bb.get() != LLC_SAP || bb.get() != LLC_SAP
+                || bb.get() != LLC_CONTROL || bb.getShort() != 0)
+            return null;
+        this.version = bb.get();
+        this.type = bb.get();
+        if (type == TYPE_TCN)
+            return this;
+        if (bb.remaining() < 31)
+            return null;
+        this.flags = bb.get();
+        this.rootId = bb.getLong();
+        this.rootPathCost = bb.getInt();
+        this.bridgeId = bb.getLong();
+        this.portId = bb.getShort();
+        this.messageAge = bb.getShort();
+        this.maxAge = bb.getShort();
+        this.helloTime = bb.getShort();
+        this.forwardDelay = bb.getShort();
+        return this;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 2777;
+        int result = super.hashCode();
+        result = prime * result + type;
+        result = prime * result + flags;
+        result = prime * result + (int) (rootId ^ (rootId >>> 32));
+        result = prime * result + rootPathCost;
+        result = prime * result + (int) (bridgeId ^ (bridgeId >>> 32));
+        result = prime * result + portId;
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!super.equals(obj))
+            return false;
+        if (!(obj instanceof BPDU))
+            return false;
+        BPDU other = (BPDU) obj;
+        return version == other.version && type == other.type
+                && flags == other.flags && rootId == other.rootId
+                && rootPathCost == other.rootPathCost
+                && bridgeId == other.bridgeId && portId == other.portId
+                && messageAge == other.messageAge && maxAge == other.maxAge
+                && helloTime == other.helloTime
+                && forwardDelay == other.forwardDelay;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BPDU : {version=%d, type=0x%02x, flags=0x%02x, "
+                + "root=%016x, cost=%d, bridge=%016x, port=0x%04x}", version,
+                type & 0xff, flags & 0xff, rootId, rootPathCost, bridgeId,
+                portId & 0xffff);
+    }
+}
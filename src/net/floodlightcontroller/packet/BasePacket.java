@@ -17,6 +17,7 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
 
 /**
 *
@@ -26,6 +27,16 @@ public abstract class BasePacket implements IPacket {
     protected IPacket parent;
     protected IPacket payload;
 
+    /**
+     * Bytes of a payload that has not been decoded yet. Deserialization only
+     * records where the payload lies in the received buffer; the payload
+     * packet is built on the first call to {@link #getPayload()}, and
+     * serialized straight from these bytes if it is never requested.
+     */
+    protected byte[] rawPayload;
+    protected int rawPayloadOffset;
+    protected int rawPayloadLength;
+
     /**
      * @return the parent
      */
@@ -44,10 +55,17 @@ public abstract class BasePacket implements IPacket {
     }
 
     /**
-     * @return the payload
+     * @return the payload, decoding it first if necessary
      */
     @Override
     public IPacket getPayload() {
+        if (payload == null && rawPayload != null) {
+            byte[] data = rawPayload;
+            rawPayload = null;
+            payload = decodePayload(data, rawPayloadOffset, rawPayloadLength);
+            if (payload != null)
+                payload.setParent(this);
+        }
         return payload;
     }
 
@@ -57,8 +75,85 @@ public abstract class BasePacket implements IPacket {
     @Override
     public IPacket setPayload(IPacket payload) {
         this.payload = payload;
+        this.rawPayload = null;
         return this;
     }
+
+    /**
+     * @return true if the payload has been decoded or was set explicitly,
+     *         false if it is still held as undecoded bytes
+     */
+    public boolean isPayloadDecoded() {
+        return rawPayload == null;
+    }
+
+    /**
+     * Records the location of this packet's payload without decoding it.
+     * The array is referenced, not copied, so it must not be modified while
+     * the packet is in use.
+     * @param data the buffer holding the payload
+     * @param offset offset of the payload in the buffer
+     * @param length length of the payload
+     */
+    protected void setRawPayload(byte[] data, int offset, int length) {
+        this.payload = null;
+        this.rawPayload = data;
+        this.rawPayloadOffset = offset;
+        this.rawPayloadLength = length;
+    }
+
+    /**
+     * Decodes the payload bytes recorded by {@link #setRawPayload}. The
+     * default decodes the payload as {@link Data}; packets that carry other
+     * protocols override this to pick the payload type.
+     * @param data the buffer holding the payload
+     * @param offset offset of the payload in the buffer
+     * @param length length of the payload
+     * @return the decoded payload
+     */
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        return new Data().deserialize(data, offset, length);
+    }
+
+    /**
+     * Sets the payload's parent and returns its serialized length.
+     * @return the number of bytes the payload occupies; 0 if there is none
+     */
+    protected int payloadLength() {
+        if (payload != null) {
+            payload.setParent(this);
+            return payload.serializedLength();
+        }
+        if (rawPayload != null)
+            return rawPayloadLength;
+        return 0;
+    }
+
+    /**
+     * Serializes the payload into a buffer, copying the original bytes if the
+     * payload was never decoded.
+     * @param bb the buffer to write into
+     */
+    protected void serializePayloadTo(ByteBuffer bb) {
+        if (payload != null) {
+            payload.setParent(this);
+            payload.serializeTo(bb);
+        } else if (rawPayload != null) {
+            bb.put(rawPayload, rawPayloadOffset, rawPayloadLength);
+        }
+    }
+
+    /**
+     * Serializes this packet and its payloads into a new array sized by
+     * {@link #serializedLength()}.
+     * @return a byte[] containing this packet and payloads
+     */
+    @Override
+    public byte[] serialize() {
+        byte[] data = new byte[this.serializedLength()];
+        this.serializeTo(ByteBuffer.wrap(data));
+        return data;
+    }
     
     @Override
     public void resetChecksum() {
@@ -73,6 +168,7 @@ public abstract class BasePacket implements IPacket {
     public int hashCode() {
         final int prime = 6733;
         int result = 1;
+        IPacket payload = getPayload();
         result = prime * result + ((payload == null) ? 0 : payload.hashCode());
         return result;
     }
@@ -89,10 +185,11 @@ public abstract class BasePacket implements IPacket {
         if (!(obj instanceof BasePacket))
             return false;
         BasePacket other = (BasePacket) obj;
+        IPacket payload = getPayload();
         if (payload == null) {
-            if (other.payload != null)
+            if (other.getPayload() != null)
                 return false;
-        } else if (!payload.equals(other.payload))
+        } else if (!payload.equals(other.getPayload()))
             return false;
         return true;
     }
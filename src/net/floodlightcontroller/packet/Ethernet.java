@@ -18,7 +18,6 @@
 package net.floodlightcontroller.packet;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -37,13 +36,30 @@ public class Ethernet extends BasePacket {
     public static final short TYPE_BSN = (short) 0x8942;
     public static final short VLAN_UNTAGGED = (short)0xffff;
     public static final short DATALAYER_ADDRESS_LENGTH = 6; // bytes
+    /** EtherType values up to this are 802.3 lengths, and the payload
+     *  starts with an 802.2 LLC header */
+    public static final short MAX_LENGTH = 1500;
     public static Map<Short, Class<? extends IPacket>> etherTypeClassMap;
+    /** Payload types of 802.3 frames, keyed by LLC destination SAP */
+    public static Map<Byte, Class<? extends IPacket>> llcSapClassMap;
 
     static {
         etherTypeClassMap = new HashMap<Short, Class<? extends IPacket>>();
         etherTypeClassMap.put(TYPE_ARP, ARP.class);
         etherTypeClassMap.put(TYPE_RARP, ARP.class);
         etherTypeClassMap.put(TYPE_IPv4, IPv4.class);
+        llcSapClassMap = new HashMap<Byte, Class<? extends IPacket>>();
+        llcSapClassMap.put(BPDU.LLC_SAP, BPDU.class);
+
+        PacketFactories.register(ARP.class, new PacketFactory() {
+            public IPacket newPacket() { return new ARP(); }
+        });
+        PacketFactories.register(IPv4.class, new PacketFactory() {
+            public IPacket newPacket() { return new IPv4(); }
+        });
+        PacketFactories.register(BPDU.class, new PacketFactory() {
+            public IPacket newPacket() { return new BPDU(); }
+        });
     }
 
     protected MACAddress destinationMACAddress;
@@ -83,6 +99,14 @@ public class Ethernet extends BasePacket {
         return this;
     }
 
+    /**
+     * @param destinationMACAddress the destination MAC to set
+     */
+    public Ethernet setDestinationMACAddress(MACAddress destinationMACAddress) {
+        this.destinationMACAddress = destinationMACAddress;
+        return this;
+    }
+
     /**
      * @param destinationMACAddress the destination MAC to set
      */
@@ -113,6 +137,14 @@ public class Ethernet extends BasePacket {
         return this;
     }
 
+    /**
+     * @param sourceMACAddress the source MAC to set
+     */
+    public Ethernet setSourceMACAddress(MACAddress sourceMACAddress) {
+        this.sourceMACAddress = sourceMACAddress;
+        return this;
+    }
+
     /**
      * @param sourceMACAddress the source MAC to set
      */
@@ -197,32 +229,91 @@ public class Ethernet extends BasePacket {
         return this;
     }
 
-    public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
+    /**
+     * Hash of the frame's flow, for spreading flows across parallel links
+     * without reordering the packets within a flow: the IPv4 addresses,
+     * protocol, and TCP or UDP ports if the payload is IPv4, otherwise the
+     * MAC addresses. An undecoded payload is read in place, not decoded.
+     * Fragments are hashed without ports, so every fragment of a datagram
+     * hashes the same.
+     * @return the hash
+     */
+    public int flowHash() {
+        int hash;
+        if (etherType == TYPE_IPv4 && rawPayload != null
+                && rawPayloadLength >= 20) {
+            byte[] data = rawPayload;
+            int off = rawPayloadOffset;
+            int headerLength = (data[off] & 0x0f) * 4;
+            byte protocol = data[off + 9];
+            hash = 31 * getInt(data, off + 12) + getInt(data, off + 16);
+            hash = 31 * hash + protocol;
+            boolean fragment = (data[off + 6] & 0x3f) != 0
+                    || data[off + 7] != 0;
+            if (!fragment && (protocol == IPv4.PROTOCOL_TCP
+                    || protocol == IPv4.PROTOCOL_UDP)
+                    && rawPayloadLength >= headerLength + 4)
+                hash = 31 * hash + getInt(data, off + headerLength);
+        } else if (etherType == TYPE_IPv4 && payload instanceof IPv4) {
+            IPv4 ip = (IPv4) payload;
+            hash = 31 * ip.getSourceAddress() + ip.getDestinationAddress();
+            hash = 31 * hash + ip.getProtocol();
+            boolean fragment = ip.getFragmentOffset() != 0
+                    || (ip.getFlags() & IPv4.IPV4_FLAGS_MOREFRAG) != 0;
+            IPacket transport = fragment ? null : ip.getPayload();
+            if (transport instanceof TCP) {
+                TCP tcp = (TCP) transport;
+                hash = 31 * hash + ((tcp.getSourcePort() << 16)
+                        | (tcp.getDestinationPort() & 0xffff));
+            } else if (transport instanceof UDP) {
+                UDP udp = (UDP) transport;
+                hash = 31 * hash + ((udp.getSourcePort() << 16)
+                        | (udp.getDestinationPort() & 0xffff));
+            }
+        } else {
+            long macs = 31 * sourceMACAddress.toLong()
+                    + destinationMACAddress.toLong();
+            hash = (int) (macs ^ (macs >>> 32));
         }
+        // Mix so that nearby addresses and ports spread across links
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static int getInt(byte[] data, int off) {
+        return ((data[off] & 0xff) << 24) | ((data[off + 1] & 0xff) << 16)
+                | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+    }
+
+    @Override
+    public int serializedLength() {
         int length = 14 + ((vlanID == VLAN_UNTAGGED) ? 0 : 4) +
-                          ((payloadData == null) ? 0 : payloadData.length);
+                          payloadLength();
         if (pad && length < 60) {
             length = 60;
         }
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
-        bb.put(destinationMACAddress.toBytes());
-        bb.put(sourceMACAddress.toBytes());
+        return length;
+    }
+
+    @Override
+    public void serializeTo(ByteBuffer bb) {
+        int start = bb.position();
+        destinationMACAddress.writeTo(bb);
+        sourceMACAddress.writeTo(bb);
         if (vlanID != VLAN_UNTAGGED) {
             bb.putShort((short) 0x8100);
             bb.putShort((short) ((priorityCode << 13) | (vlanID & 0x0fff)));
         }
         bb.putShort(etherType);
-        if (payloadData != null)
-            bb.put(payloadData);
+        serializePayloadTo(bb);
         if (pad) {
-            Arrays.fill(data, bb.position(), data.length, (byte)0x0);
+            while (bb.position() - start < 60)
+                bb.put((byte)0x0);
         }
-        return data;
     }
 
     @Override
@@ -253,22 +344,27 @@ public class Ethernet extends BasePacket {
         }
         this.etherType = etherType;
         
-        IPacket payload;
-        if (Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
-            Class<? extends IPacket> clazz = Ethernet.etherTypeClassMap.get(this.etherType);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for Ethernet packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.setRawPayload(data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 
+    @Override
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        Class<? extends IPacket> clazz;
+        if ((this.etherType & 0xffff) <= MAX_LENGTH)
+            clazz = (length > 0) ?
+                    Ethernet.llcSapClassMap.get(data[offset]) : null;
+        else
+            clazz = Ethernet.etherTypeClassMap.get(this.etherType);
+        if (clazz != null) {
+            IPacket payload = PacketFactories.newPacket(clazz);
+            IPacket decoded = payload.deserialize(data, offset, length);
+            if (decoded != null)
+                return decoded;
+        }
+        return new Data().deserialize(data, offset, length);
+    }
+
     /**
      * Checks to see if a string is a valid MAC address.
      * @param macAddress
@@ -376,6 +472,8 @@ public class Ethernet extends BasePacket {
             sb.append("icmp");
         else if (pkt instanceof IPv4)
             sb.append("ip");
+        else if (pkt instanceof BPDU)
+            sb.append("bpdu");
         else  sb.append(this.getEtherType());
 
         sb.append("\ndl_vlan: ");
@@ -0,0 +1,353 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An Internet Group Management Protocol message: IGMPv1 and v2 messages
+ * (RFC 2236) and IGMPv3 queries and reports (RFC 3376). A query is a v3
+ * query if it has a source list, even an empty one.
+ */
+public class IGMP extends BasePacket {
+    public static final byte TYPE_MEMBERSHIP_QUERY = 0x11;
+    public static final byte TYPE_V1_MEMBERSHIP_REPORT = 0x12;
+    public static final byte TYPE_V2_MEMBERSHIP_REPORT = 0x16;
+    public static final byte TYPE_LEAVE_GROUP = 0x17;
+    public static final byte TYPE_V3_MEMBERSHIP_REPORT = 0x22;
+
+    /** All-systems group, to which general queries are sent */
+    public static final int ALL_SYSTEMS = 0xe0000001;
+    /** All-routers group, to which v2 leaves are sent */
+    public static final int ALL_ROUTERS = 0xe0000002;
+    /** Group to which v3 reports are sent */
+    public static final int ALL_V3_ROUTERS = 0xe0000016;
+
+    /**
+     * A group record in an IGMPv3 report.
+     */
+    public static class GroupRecord {
+        public static final byte MODE_IS_INCLUDE = 1;
+        public static final byte MODE_IS_EXCLUDE = 2;
+        public static final byte CHANGE_TO_INCLUDE_MODE = 3;
+        public static final byte CHANGE_TO_EXCLUDE_MODE = 4;
+        public static final byte ALLOW_NEW_SOURCES = 5;
+        public static final byte BLOCK_OLD_SOURCES = 6;
+
+        protected byte recordType;
+        protected int multicastAddress;
+        protected int[] sources;
+        /** Auxiliary data, in 32-bit words */
+        protected int[] auxData;
+
+        public GroupRecord() {
+            this.sources = new int[0];
+            this.auxData = new int[0];
+        }
+
+        public byte getRecordType() {
+            return recordType;
+        }
+
+        public GroupRecord setRecordType(byte recordType) {
+            this.recordType = recordType;
+            return this;
+        }
+
+        public int getMulticastAddress() {
+            return multicastAddress;
+        }
+
+        public GroupRecord setMulticastAddress(int multicastAddress) {
+            this.multicastAddress = multicastAddress;
+            return this;
+        }
+
+        public int[] getSources() {
+            return sources;
+        }
+
+        public GroupRecord setSources(int[] sources) {
+            this.sources = sources;
+            return this;
+        }
+
+        int serializedLength() {
+            return 8 + 4 * sources.length + 4 * auxData.length;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 3259;
+            int result = recordType;
+            result = prime * result + multicastAddress;
+            result = prime * result + Arrays.hashCode(sources);
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof GroupRecord))
+                return false;
+            GroupRecord other = (GroupRecord) obj;
+            return recordType == other.recordType
+                    && multicastAddress == other.multicastAddress
+                    && Arrays.equals(sources, other.sources)
+                    && Arrays.equals(auxData, other.auxData);
+        }
+    }
+
+    protected byte igmpType;
+    protected byte maxRespCode;
+    protected short checksum;
+    protected int groupAddress;
+    /** Suppress flag and querier's robustness variable of a v3 query */
+    protected byte querierFlags;
+    /** Querier's query interval code of a v3 query */
+    protected byte qqic;
+    /** Sources of a v3 query; null for a v1 or v2 query */
+    protected int[] sources;
+    /** Group records of a v3 report */
+    protected List<GroupRecord> records;
+
+    public IGMP() {
+        super();
+        this.records = new ArrayList<GroupRecord>();
+    }
+
+    public byte getIgmpType() {
+        return igmpType;
+    }
+
+    public IGMP setIgmpType(byte igmpType) {
+        this.igmpType = igmpType;
+        return this;
+    }
+
+    /**
+     * @return the maximum response time of a query, in tenths of a second
+     *         (encoded as a floating-point value above 127 in v3)
+     */
+    public byte getMaxRespCode() {
+        return maxRespCode;
+    }
+
+    public IGMP setMaxRespCode(byte maxRespCode) {
+        this.maxRespCode = maxRespCode;
+        return this;
+    }
+
+    public short getChecksum() {
+        return checksum;
+    }
+
+    public IGMP setChecksum(short checksum) {
+        this.checksum = checksum;
+        return this;
+    }
+
+    /**
+     * @return the group of a report, leave, or group-specific query; 0 for
+     *         a general query or a v3 report
+     */
+    public int getGroupAddress() {
+        return groupAddress;
+    }
+
+    public IGMP setGroupAddress(int groupAddress) {
+        this.groupAddress = groupAddress;
+        return this;
+    }
+
+    public byte getQuerierFlags() {
+        return querierFlags;
+    }
+
+    public IGMP setQuerierFlags(byte querierFlags) {
+        this.querierFlags = querierFlags;
+        return this;
+    }
+
+    public byte getQqic() {
+        return qqic;
+    }
+
+    public IGMP setQqic(byte qqic) {
+        this.qqic = qqic;
+        return this;
+    }
+
+    /**
+     * @return sources of a v3 query; null if the query is not a v3 query
+     */
+    public int[] getSources() {
+        return sources;
+    }
+
+    public IGMP setSources(int[] sources) {
+        this.sources = sources;
+        return this;
+    }
+
+    /**
+     * @return group records of a v3 report
+     */
+    public List<GroupRecord> getRecords() {
+        return records;
+    }
+
+    public IGMP setRecords(List<GroupRecord> records) {
+        this.records = records;
+        return this;
+    }
+
+    @Override
+    public int serializedLength() {
+        if (igmpType == TYPE_V3_MEMBERSHIP_REPORT) {
+            int length = 8;
+            for (GroupRecord record : records)
+                length += record.serializedLength();
+            return length;
+        }
+        if (igmpType == TYPE_MEMBERSHIP_QUERY && sources != null)
+            return 12 + 4 * sources.length;
+        return 8;
+    }
+
+    /**
+     * Serializes the packet. Will compute and set the following fields if they
+     * are set to specific values at the time serialize is called:
+     *      -checksum : 0
+     */
+    @Override
+    public void serializeTo(ByteBuffer bb) {
+        int start = bb.position();
+        bb.put(igmpType);
+        bb.put(maxRespCode);
+        bb.putShort(checksum);
+        if (igmpType == TYPE_V3_MEMBERSHIP_REPORT) {
+            bb.putShort((short) 0);
+            bb.putShort((short) records.size());
+            for (GroupRecord record : records) {
+                bb.put(record.recordType);
+                bb.put((byte) record.auxData.length);
+                bb.putShort((short) record.sources.length);
+                bb.putInt(record.multicastAddress);
+                for (int source : record.sources)
+                    bb.putInt(source);
+                for (int word : record.auxData)
+                    bb.putInt(word);
+            }
+        } else {
+            bb.putInt(groupAddress);
+            if (igmpType == TYPE_MEMBERSHIP_QUERY && sources != null) {
+                bb.put(querierFlags);
+                bb.put(qqic);
+                bb.putShort((short) sources.length);
+                for (int source : sources)
+                    bb.putInt(source);
+            }
+        }
+        int length = bb.position() - start;
+
+        if (this.parent != null && this.parent instanceof IPv4)
+            ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_IGMP);
+
+        // compute checksum if needed
+        if (this.checksum == 0) {
+            int accumulation = 0;
+            for (int i = 0; i < length / 2; ++i) {
+                accumulation += 0xffff & bb.getShort(start + i * 2);
+            }
+            accumulation = ((accumulation >> 16) & 0xffff)
+                    + (accumulation & 0xffff);
+            this.checksum = (short) (~accumulation & 0xffff);
+            bb.putShort(start + 2, this.checksum);
+        }
+    }
+
+    @Override
+    public IPacket deserialize(byte[] data, int offset, int length) {
+        if (length < 8)
+            return null;
+        ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
+        this.igmpType = bb.get();
+        this.maxRespCode = bb.get();
+        this.checksum = bb.getShort();
+        this.records = new ArrayList<GroupRecord>();
+        this.sources = null;
+        if (igmpType == TYPE_V3_MEMBERSHIP_REPORT) {
+            bb.getShort();
+            int count = bb.getShort() & 0xffff;
+            for (int i = 0; i < count; i++) {
+                if (bb.remaining() < 8)
+                    return null;
+                GroupRecord record = new GroupRecord();
+                record.recordType = bb.get();
+                int auxLength = bb.get() & 0xff;
+                int sourceCount = bb.getShort() & 0xffff;
+                record.multicastAddress = bb.getInt();
+                if (bb.remaining() < 4 * (sourceCount + auxLength))
+                    return null;
+                record.sources = new int[sourceCount];
+                for (int j = 0; j < sourceCount; j++)
+                    record.sources[j] = bb.getInt();
+                record.auxData = new int[auxLength];
+                for (int j = 0; j < auxLength; j++)
+                    record.auxData[j] = bb.getInt();
+                records.add(record);
+            }
+            return this;
+        }
+        this.groupAddress = bb.getInt();
+        if (igmpType == TYPE_MEMBERSHIP_QUERY && bb.remaining() >= 4) {
+            this.querierFlags = bb.get();
+            this.qqic = bb.get();
+            int sourceCount = bb.getShort() & 0xffff;
+            if (bb.remaining() < 4 * sourceCount)
+                return null;
+            this.sources = new int[sourceCount];
+            for (int j = 0; j < sourceCount; j++)
+                this.sources[j] = bb.getInt();
+        }
+        return this;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 6007;
+        int result = super.hashCode();
+        result = prime * result + igmpType;
+        result = prime * result + maxRespCode;
+        result = prime * result + groupAddress;
+        result = prime * result + records.hashCode();
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!super.equals(obj))
+            return false;
+        if (!(obj instanceof IGMP))
+            return false;
+        IGMP other = (IGMP) obj;
+        return igmpType == other.igmpType && maxRespCode == other.maxRespCode
+                && checksum == other.checksum
+                && groupAddress == other.groupAddress
+                && querierFlags == other.querierFlags && qqic == other.qqic
+                && Arrays.equals(sources, other.sources)
+                && records.equals(other.records);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("IGMP : {type=0x%02x, group=%s, records=%d}",
+                igmpType & 0xff, IPv4.fromIPv4Address(groupAddress),
+                records.size());
+    }
+}
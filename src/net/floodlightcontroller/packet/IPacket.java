@@ -17,6 +17,8 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
+
 /**
 *
 * @author David Erickson (daviderickson@cs.stanford.edu)
@@ -61,7 +63,25 @@ public interface IPacket {
     public byte[] serialize();
 
     /**
-     * Deserializes this packet layer and all possible payloads
+     * Sets all payloads parent packet if applicable, then serializes this
+     * packet and all payloads into a buffer, starting at the buffer's
+     * current position and leaving the position after the last byte written.
+     * Checksums are computed over the bytes once they are in the buffer.
+     * @param bb the buffer to write into; must have at least
+     *        {@link #serializedLength()} bytes remaining
+     */
+    public void serializeTo(ByteBuffer bb);
+
+    /**
+     * @return the number of bytes this packet and its payloads occupy when
+     *         serialized
+     */
+    public int serializedLength();
+
+    /**
+     * Deserializes this packet layer; payloads are decoded when they are
+     * first requested. The data array is retained until then, so it must
+     * not be modified while the packet is in use.
      * @param data
      * @param offset offset to start deserializing from
      * @param length length of the data to deserialize
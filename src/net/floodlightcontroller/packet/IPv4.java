@@ -21,9 +21,11 @@
 package net.floodlightcontroller.packet;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -32,15 +34,32 @@ import java.util.Map;
  */
 public class IPv4 extends BasePacket {
     public static final byte PROTOCOL_ICMP = 0x1;
+    public static final byte PROTOCOL_IGMP = 0x2;
     public static final byte PROTOCOL_TCP = 0x6;
     public static final byte PROTOCOL_UDP = 0x11;
+    public static final byte IPV4_FLAGS_MOREFRAG = 0x1;
+    public static final byte IPV4_FLAGS_DONTFRAG = 0x2;
     public static Map<Byte, Class<? extends IPacket>> protocolClassMap;
 
     static {
         protocolClassMap = new HashMap<Byte, Class<? extends IPacket>>();
         protocolClassMap.put(PROTOCOL_ICMP, ICMP.class);
+        protocolClassMap.put(PROTOCOL_IGMP, IGMP.class);
         protocolClassMap.put(PROTOCOL_TCP, TCP.class);
         protocolClassMap.put(PROTOCOL_UDP, UDP.class);
+
+        PacketFactories.register(ICMP.class, new PacketFactory() {
+            public IPacket newPacket() { return new ICMP(); }
+        });
+        PacketFactories.register(IGMP.class, new PacketFactory() {
+            public IPacket newPacket() { return new IGMP(); }
+        });
+        PacketFactories.register(TCP.class, new PacketFactory() {
+            public IPacket newPacket() { return new TCP(); }
+        });
+        PacketFactories.register(UDP.class, new PacketFactory() {
+            public IPacket newPacket() { return new UDP(); }
+        });
     }
 
     protected byte version;
@@ -279,6 +298,112 @@ public class IPv4 extends BasePacket {
         return this;
     }
 
+    /**
+     * @return true if the packet is a fragment of a larger datagram
+     */
+    public boolean isFragment() {
+        return (flags & IPV4_FLAGS_MOREFRAG) != 0 || fragmentOffset != 0;
+    }
+
+    /**
+     * Splits the packet into fragments no longer than an MTU (RFC 791). The
+     * payload is serialized only if it has been decoded, and then only once;
+     * each fragment refers to its slice of the payload bytes rather than a
+     * copy. Fragments after the first carry only the options whose copied
+     * flag is set.
+     * @param mtu largest total length of a fragment, in bytes
+     * @return the fragments, in order; null if the packet has the
+     *         don't-fragment flag set or the MTU cannot hold a header and 8
+     *         bytes of payload
+     */
+    public List<IPv4> fragment(int mtu) {
+        if ((flags & IPV4_FLAGS_DONTFRAG) != 0)
+            return null;
+        byte[] data;
+        int offset;
+        int length;
+        if (payload == null && rawPayload != null) {
+            data = rawPayload;
+            offset = rawPayloadOffset;
+            length = rawPayloadLength;
+        } else {
+            length = payloadLength();
+            data = new byte[length];
+            offset = 0;
+            serializePayloadTo(ByteBuffer.wrap(data));
+        }
+
+        byte[] copiedOptions = copiedOptions();
+        List<IPv4> fragments = new ArrayList<IPv4>();
+        int done = 0;
+        do {
+            byte[] fragmentOptions = (done == 0) ? options : copiedOptions;
+            int headerLength = 20
+                    + ((fragmentOptions == null) ? 0 : fragmentOptions.length);
+            int room = (mtu - headerLength) / 8 * 8;
+            if (room <= 0)
+                return null;
+            int size = Math.min(room, length - done);
+            boolean last = (done + size == length);
+
+            IPv4 fragment = new IPv4();
+            fragment.version = version;
+            fragment.diffServ = diffServ;
+            fragment.identification = identification;
+            fragment.flags = (byte) (last ? flags : flags | IPV4_FLAGS_MOREFRAG);
+            fragment.fragmentOffset = (short) (fragmentOffset + done / 8);
+            fragment.ttl = ttl;
+            fragment.protocol = protocol;
+            fragment.sourceAddress = sourceAddress;
+            fragment.destinationAddress = destinationAddress;
+            fragment.options = fragmentOptions;
+            fragment.setRawPayload(data, offset + done, size);
+            fragments.add(fragment);
+            done += size;
+        } while (done < length);
+        return fragments;
+    }
+
+    /**
+     * @return the options whose copied flag is set, padded to a multiple of
+     *         4 bytes; null if there are none
+     */
+    private byte[] copiedOptions() {
+        if (options == null)
+            return null;
+        ByteBuffer copied = ByteBuffer.allocate(options.length);
+        int i = 0;
+        while (i < options.length) {
+            int type = options[i] & 0xff;
+            if (type == 0) // end of option list
+                break;
+            if (type == 1) { // no operation
+                i++;
+                continue;
+            }
+            int optionLength = (i + 1 < options.length)
+                    ? (options[i + 1] & 0xff) : 0;
+            if (optionLength < 2 || i + optionLength > options.length)
+                break;
+            if ((type & 0x80) != 0)
+                copied.put(options, i, optionLength);
+            i += optionLength;
+        }
+        if (copied.position() == 0)
+            return null;
+        byte[] result = new byte[(copied.position() + 3) / 4 * 4];
+        System.arraycopy(copied.array(), 0, result, 0, copied.position());
+        return result;
+    }
+
+    @Override
+    public int serializedLength() {
+        int optionsLength = 0;
+        if (this.options != null)
+            optionsLength = this.options.length / 4;
+        return (5 + optionsLength) * 4 + payloadLength();
+    }
+
     /**
      * Serializes the packet. Will compute and set the following fields if they
      * are set to specific values at the time serialize is called:
@@ -286,27 +411,17 @@ public class IPv4 extends BasePacket {
      *      -headerLength : 0
      *      -totalLength : 0
      */
-    public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
-
+    @Override
+    public void serializeTo(ByteBuffer bb) {
+        int start = bb.position();
         int optionsLength = 0;
         if (this.options != null)
             optionsLength = this.options.length / 4;
         this.headerLength = (byte) (5 + optionsLength);
 
-        this.totalLength = (short) (this.headerLength * 4 + ((payloadData == null) ? 0
-                : payloadData.length));
-
-        byte[] data = new byte[this.totalLength];
-        ByteBuffer bb = ByteBuffer.wrap(data);
-
         bb.put((byte) (((this.version & 0xf) << 4) | (this.headerLength & 0xf)));
         bb.put(this.diffServ);
-        bb.putShort(this.totalLength);
+        bb.putShort((short) 0); // total length, filled in below
         bb.putShort(this.identification);
         bb.putShort((short) (((this.flags & 0x7) << 13) | (this.fragmentOffset & 0x1fff)));
         bb.put(this.ttl);
@@ -316,22 +431,24 @@ public class IPv4 extends BasePacket {
         bb.putInt(this.destinationAddress);
         if (this.options != null)
             bb.put(this.options);
-        if (payloadData != null)
-            bb.put(payloadData);
+        serializePayloadTo(bb);
+
+        // the payload may have set the protocol while serializing itself
+        this.totalLength = (short) (bb.position() - start);
+        bb.putShort(start + 2, this.totalLength);
+        bb.put(start + 9, this.protocol);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
             for (int i = 0; i < this.headerLength * 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
+                accumulation += 0xffff & bb.getShort(start + i * 2);
             }
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(10, this.checksum);
+            bb.putShort(start + 10, this.checksum);
         }
-        return data;
     }
 
     @Override
@@ -360,19 +477,12 @@ public class IPv4 extends BasePacket {
             bb.get(this.options);
         }
 
-        IPacket payload;
-        if (IPv4.protocolClassMap.containsKey(this.protocol)) {
-            Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for IPv4 packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        // Ethernet pads short packets; the padding is not part of the payload
+        int payloadLength = bb.limit() - bb.position();
+        int total = this.totalLength & 0xffff;
+        if (total >= this.headerLength * 4 && total < length)
+            payloadLength = total - this.headerLength * 4;
+        this.setRawPayload(data, bb.position(), payloadLength);
 
         if (this.totalLength != length)
             this.isTruncated = true;
@@ -382,6 +492,15 @@ public class IPv4 extends BasePacket {
         return this;
     }
 
+    @Override
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        Class<? extends IPacket> clazz =
+                IPv4.protocolClassMap.get(this.protocol);
+        IPacket payload = (clazz != null) ?
+                PacketFactories.newPacket(clazz) : new Data();
+        return payload.deserialize(data, offset, length);
+    }
+
     /**
      * Accepts an IPv4 address of the form xxx.xxx.xxx.xxx, ie 192.168.0.1 and
      * returns the corresponding 32 bit integer.
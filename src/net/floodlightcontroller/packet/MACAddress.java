@@ -1,5 +1,6 @@
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -88,6 +89,14 @@ public class MACAddress {
         return Arrays.copyOf(address, address.length);
     }
 
+    /**
+     * Writes the {@code MACAddress} into a buffer at the buffer's current position.
+     * @param bb the buffer to write into.
+     */
+    public void writeTo(ByteBuffer bb) {
+        bb.put(address);
+    }
+
     /**
      * Returns the value of the {@code MACAddress} as a {@code long}.
      * @return the numeric value represented by this object after conversion to type {@code long}.
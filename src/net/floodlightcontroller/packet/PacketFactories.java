@@ -0,0 +1,67 @@
+package net.floodlightcontroller.packet;
+
+import java.lang.reflect.Constructor;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates empty packets of the classes found in the protocol maps, such as
+ * {@link Ethernet#etherTypeClassMap}, so payloads are decoded without
+ * reflection. The maps stay the only record of which class decodes which
+ * payload; factories are looked up by class, so changes to the maps take
+ * effect immediately. A class with no registered factory is instantiated
+ * through its no-argument constructor.
+ */
+public class PacketFactories {
+    private static final Map<Class<? extends IPacket>, PacketFactory> factories =
+            new ConcurrentHashMap<Class<? extends IPacket>, PacketFactory>();
+
+    private PacketFactories() {
+    }
+
+    /**
+     * Registers a factory for a packet class.
+     * @param clazz the packet class
+     * @param factory creates instances of clazz
+     */
+    public static void register(Class<? extends IPacket> clazz,
+            PacketFactory factory) {
+        factories.put(clazz, factory);
+    }
+
+    /**
+     * @param clazz a packet class
+     * @return a new, empty packet of the class
+     */
+    public static IPacket newPacket(Class<? extends IPacket> clazz) {
+        PacketFactory factory = factories.get(clazz);
+        if (factory == null)
+            factory = factories.computeIfAbsent(clazz,
+                    c -> new ReflectiveFactory(c));
+        return factory.newPacket();
+    }
+
+    /**
+     * Instantiates packet classes that have no registered factory.
+     */
+    private static class ReflectiveFactory implements PacketFactory {
+        private final Constructor<? extends IPacket> constructor;
+
+        ReflectiveFactory(Class<? extends IPacket> clazz) {
+            try {
+                this.constructor = clazz.getConstructor();
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException("Failure instantiating class", e);
+            }
+        }
+
+        @Override
+        public IPacket newPacket() {
+            try {
+                return this.constructor.newInstance();
+            } catch (Exception e) {
+                throw new RuntimeException("Failure instantiating class", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package net.floodlightcontroller.packet;
+
+/**
+ * Creates empty packets of a particular type, ready to be deserialized.
+ * Used by {@link PacketFactories} so payloads can be decoded with a plain
+ * constructor call rather than through reflection.
+ */
+public interface PacketFactory {
+    /**
+     * @return a new, empty packet
+     */
+    public IPacket newPacket();
+}
@@ -40,19 +40,17 @@ public class RIPv2 extends BasePacket
 	{ return this.command; }
 
 	@Override
-	public byte[] serialize() 
-    {
-		int length = 1 + 1 + 2 + this.entries.size() * (5*4);
-		byte[] data = new byte[length];
-		ByteBuffer bb = ByteBuffer.wrap(data);
+	public int serializedLength()
+	{ return 1 + 1 + 2 + this.entries.size() * (5*4); }
 
+	@Override
+	public void serializeTo(ByteBuffer bb) 
+    {
 		bb.put(this.command);
 		bb.put(this.version);
 		bb.putShort((short)0); // Put padding
 		for (RIPv2Entry entry : this.entries)
-		{ bb.put(entry.serialize()); }
-
-		return data;
+		{ entry.serializeTo(bb); }
 	}
 
 	@Override
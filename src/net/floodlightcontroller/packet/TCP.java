@@ -144,26 +144,24 @@ public class TCP extends BasePacket {
         return this;
     }
 
+    @Override
+    public int serializedLength() {
+        if (dataOffset == 0)
+            dataOffset = 5;  // default header length
+        return (dataOffset << 2) + payloadLength();
+    }
+
     /**
      * Serializes the packet. Will compute and set the following fields if they
      * are set to specific values at the time serialize is called:
      *      -checksum : 0
      *      -length : 0
      */
-    public byte[] serialize() {
-        int length;
+    @Override
+    public void serializeTo(ByteBuffer bb) {
+        int start = bb.position();
         if (dataOffset == 0)
             dataOffset = 5;  // default header length
-        length = dataOffset << 2;
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-            length += payloadData.length;
-        }
-
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
 
         bb.putShort(this.sourcePort);
         bb.putShort(this.destinationPort);
@@ -180,15 +178,14 @@ public class TCP extends BasePacket {
             for (int i = 0; i < padding; i++)
                 bb.put((byte) 0);
         }
-        if (payloadData != null)
-            bb.put(payloadData);
+        serializePayloadTo(bb);
+        int length = bb.position() - start;
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_TCP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
 
             // compute pseudo header mac
@@ -203,19 +200,18 @@ public class TCP extends BasePacket {
             }
 
             for (int i = 0; i < length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
+                accumulation += 0xffff & bb.getShort(start + i * 2);
             }
             // pad to an even number of shorts
             if (length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
+                accumulation += (bb.get(start + length - 1) & 0xff) << 8;
             }
 
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(16, this.checksum);
+            bb.putShort(start + 16, this.checksum);
         }
-        return data;
     }
 
     /* (non-Javadoc)
@@ -282,9 +278,7 @@ public class TCP extends BasePacket {
             }
         }
         
-        this.payload = new Data();
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.setRawPayload(data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 }
@@ -34,6 +34,10 @@ public class UDP extends BasePacket {
     static {
         decodeMap = new HashMap<Short, Class<? extends IPacket>>();
         UDP.decodeMap.put(RIP_PORT, RIPv2.class);
+
+        PacketFactories.register(RIPv2.class, new PacketFactory() {
+            public IPacket newPacket() { return new RIPv2(); }
+        });
     }
 
     protected short sourcePort;
@@ -99,38 +103,34 @@ public class UDP extends BasePacket {
         super.resetChecksum();
     }
 
+    @Override
+    public int serializedLength() {
+        return 8 + payloadLength();
+    }
+
     /**
      * Serializes the packet. Will compute and set the following fields if they
      * are set to specific values at the time serialize is called:
      *      -checksum : 0
      *      -length : 0
      */
-    public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
-
-        this.length = (short) (8 + ((payloadData == null) ? 0
-                : payloadData.length));
-
-        byte[] data = new byte[this.length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
-
+    @Override
+    public void serializeTo(ByteBuffer bb) {
+        int start = bb.position();
         bb.putShort(this.sourcePort);
         bb.putShort(this.destinationPort);
-        bb.putShort(this.length);
+        bb.putShort((short) 0); // length, filled in below
         bb.putShort(this.checksum);
-        if (payloadData != null)
-            bb.put(payloadData);
+        serializePayloadTo(bb);
+
+        this.length = (short) (bb.position() - start);
+        bb.putShort(start + 4, this.length);
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_UDP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
 
             // compute pseudo header mac
@@ -144,20 +144,20 @@ public class UDP extends BasePacket {
                 accumulation += this.length & 0xffff;
             }
 
-            for (int i = 0; i < this.length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
+            int length = this.length & 0xffff;
+            for (int i = 0; i < length / 2; ++i) {
+                accumulation += 0xffff & bb.getShort(start + i * 2);
             }
             // pad to an even number of shorts
-            if (this.length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
+            if (length % 2 > 0) {
+                accumulation += (bb.get(start + length - 1) & 0xff) << 8;
             }
 
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(6, this.checksum);
+            bb.putShort(start + 6, this.checksum);
         }
-        return data;
     }
 
     /* (non-Javadoc)
@@ -205,23 +205,17 @@ public class UDP extends BasePacket {
         this.length = bb.getShort();
         this.checksum = bb.getShort();
 
-        if (UDP.decodeMap.containsKey(this.destinationPort)) {
-            try {
-                this.payload = UDP.decodeMap.get(this.destinationPort).getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Failure instantiating class", e);
-            }
-        } else if (UDP.decodeMap.containsKey(this.sourcePort)) {
-            try {
-                this.payload = UDP.decodeMap.get(this.sourcePort).getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Failure instantiating class", e);
-            }
-        } else {
-            this.payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.setRawPayload(data, bb.position(), bb.limit()-bb.position());
         return this;
     }
+
+    @Override
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        Class<? extends IPacket> clazz = UDP.decodeMap.get(this.destinationPort);
+        if (clazz == null)
+            clazz = UDP.decodeMap.get(this.sourcePort);
+        IPacket payload = (clazz != null) ?
+                PacketFactories.newPacket(clazz) : new Data();
+        return payload.deserialize(data, offset, length);
+    }
 }